@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.benchmarks;
+
+import java.net.HttpCookie;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brianjmelton.apcs.util.SerializableHttpCookieAdapter;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Cost of converting a single cookie between {@link HttpCookie} and
+ * {@link SerializableCookie}, which every add and every restored cookie pays.
+ * 
+ * @author brianmelton
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AdapterBenchmark {
+
+	private HttpCookie cookie;
+	private SerializableCookie serialized;
+	private long now;
+
+	@Setup
+	public void setUp() {
+		cookie = Jars.cookie(42);
+		serialized = SerializableCookie.serialize(cookie);
+		now = System.currentTimeMillis();
+	}
+
+	@Benchmark
+	public SerializableCookie serialize() {
+		return SerializableCookie.serialize(cookie);
+	}
+
+	@Benchmark
+	public HttpCookie deserialize() {
+		return SerializableHttpCookieAdapter.deserialize(serialized, now);
+	}
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brianjmelton.apcs.util.BinaryCookieCodec;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Java serialization, as {@link com.brianjmelton.apcs.api.BasicCookieStoreSerializer}
+ * uses, against {@link BinaryCookieCodec}, encoding to and decoding from
+ * memory so that disk speed doesn't hide the difference between the two.
+ * 
+ * @author brianmelton
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CodecBenchmark {
+
+	@Param({ "10", "1000", "10000", "100000" })
+	public int size;
+
+	private HashMap<URI, List<SerializableCookie>> snapshot;
+	private byte[] serialized, encoded;
+
+	@Setup
+	public void setUp() throws IOException {
+		snapshot = new HashMap<URI, List<SerializableCookie>>(
+				Jars.snapshot(size));
+		serialized = serialize();
+		encoded = encode();
+	}
+
+	@Benchmark
+	public byte[] serialize() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(snapshot);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Object deserialize() throws IOException, ClassNotFoundException {
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				serialized));
+		try {
+			return in.readObject();
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		BinaryCookieCodec.write(out, snapshot);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	@Benchmark
+	public Map<URI, List<SerializableCookie>> decode() throws IOException {
+		return BinaryCookieCodec.read(new DataInputStream(
+				new ByteArrayInputStream(encoded)));
+	}
+
+}
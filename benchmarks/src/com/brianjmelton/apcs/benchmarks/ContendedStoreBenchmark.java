@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.benchmarks;
+
+import java.net.HttpCookie;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.brianjmelton.apcs.PersistentCookieStore;
+
+/**
+ * The {@link StoreBenchmark} operations under contention: each operation
+ * from four threads at once, and a mix of three readers to one writer, as
+ * when several HTTP clients share one jar. The stripe count shows how much
+ * {@link PersistentCookieStore.Builder#lockStripes(int)} buys. The threads
+ * share one cursor over the jar; a lost update only repeats a cookie.
+ * 
+ * @author brianmelton
+ * 
+ */
+@State(Scope.Benchmark)
+@Threads(4)
+public class ContendedStoreBenchmark extends StoreBenchmark {
+
+	@Param({ "1", "16" })
+	public int stripes;
+
+	@Override
+	void configure(PersistentCookieStore.Builder builder) {
+		builder.lockStripes(stripes);
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(3)
+	public List<HttpCookie> mixedGet() {
+		return get();
+	}
+
+	@Benchmark
+	@Group("mixed")
+	@GroupThreads(1)
+	public void mixedAdd() {
+		add();
+	}
+
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brianjmelton.apcs.api.BinaryCookieStoreSerializer;
+import com.brianjmelton.apcs.api.EncryptedCookieStoreSerializer;
+import com.brianjmelton.apcs.api.IncrementalPersister;
+import com.brianjmelton.apcs.api.JournalingCookieStoreSerializer;
+import com.brianjmelton.apcs.api.KeyProvider;
+import com.brianjmelton.apcs.api.Persister;
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Throughput of the encrypted format against the plain ones it stands in
+ * for: "binary" for whole-file writes and "journal" for appended changes.
+ * "persistAll" changes every cookie between writes, so every block is
+ * encrypted again; "persistOne" changes a single cookie, which costs the
+ * encrypted format one block. "appendOne" sets a single cookie the way the
+ * store does: appended where the format has a journal, else by writing the
+ * whole jar.
+ * 
+ * @author brianmelton
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class EncryptionBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int size;
+
+	@Param({ "binary", "journal", "encrypted" })
+	public String format;
+
+	private File dir;
+	private ExecutorService compactor;
+	private Persister persister;
+	private Map<URI, List<SerializableCookie>> snapshot, allChanged,
+			oneChanged;
+	private List<CookieDelta> change, changeBack;
+	private boolean flip;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, PersistenceException {
+		dir = File.createTempFile("apcs", "bench");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		compactor = Executors.newSingleThreadExecutor();
+		persister = newPersister(new File(dir, "cookies"));
+		snapshot = Jars.snapshot(size);
+		allChanged = changed(size);
+		oneChanged = changed(1);
+		URI uri = Jars.uri(0);
+		change = Collections.singletonList(CookieDelta.add(uri,
+				oneChanged.get(uri).get(0)));
+		changeBack = Collections.singletonList(CookieDelta.add(uri,
+				snapshot.get(uri).get(0)));
+		persister.persist(snapshot);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		compactor.shutdown();
+		File[] files = dir.listFiles();
+		if (null != files) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private Persister newPersister(File file) {
+		if ("binary".equals(format)) {
+			return new BinaryCookieStoreSerializer(file);
+		}
+		if ("journal".equals(format)) {
+			return new JournalingCookieStoreSerializer(file, compactor);
+		}
+		if ("encrypted".equals(format)) {
+			byte[] bytes = new byte[32];
+			new SecureRandom().nextBytes(bytes);
+			final SecretKey key = new SecretKeySpec(bytes, "AES");
+			return new EncryptedCookieStoreSerializer(file, new KeyProvider() {
+				@Override
+				public int getCurrentKeyId() {
+					return 1;
+				}
+
+				@Override
+				public SecretKey getKey(int keyId) {
+					return key;
+				}
+			});
+		}
+		throw new IllegalArgumentException("Unknown format " + format);
+	}
+
+	/**
+	 * @return a jar of {@link #size} cookies, the first count of which have
+	 *         other values than in {@link Jars#snapshot(int)}
+	 */
+	private Map<URI, List<SerializableCookie>> changed(int count) {
+		Map<URI, List<SerializableCookie>> changed = new HashMap<URI, List<SerializableCookie>>();
+		for (int i = 0; i < size; i++) {
+			URI uri = Jars.uri(i / Jars.COOKIES_PER_HOST);
+			List<SerializableCookie> list = changed.get(uri);
+			if (null == list) {
+				list = new ArrayList<SerializableCookie>(Jars.COOKIES_PER_HOST);
+				changed.put(uri, list);
+			}
+			HttpCookie cookie = Jars.cookie(i);
+			if (i < count) {
+				cookie.setValue(cookie.getValue() + "-changed");
+			}
+			list.add(SerializableCookie.serialize(cookie));
+		}
+		return changed;
+	}
+
+	@Benchmark
+	public void persistAll() throws PersistenceException {
+		flip = !flip;
+		persister.persist(flip ? allChanged : snapshot);
+	}
+
+	@Benchmark
+	public void persistOne() throws PersistenceException {
+		flip = !flip;
+		persister.persist(flip ? oneChanged : snapshot);
+	}
+
+	@Benchmark
+	public void appendOne() throws PersistenceException {
+		flip = !flip;
+		if (persister instanceof IncrementalPersister) {
+			((IncrementalPersister) persister).append(flip ? change
+					: changeBack);
+		} else {
+			persister.persist(flip ? oneChanged : snapshot);
+		}
+	}
+
+	@Benchmark
+	public Map<URI, List<SerializableCookie>> restore()
+			throws PersistenceException {
+		return persister.restore();
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.benchmarks;
+
+import java.net.CookieManager;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.brianjmelton.apcs.IndexedCookieStore;
+import com.brianjmelton.apcs.PackedCookieStore;
+import com.brianjmelton.apcs.PersistentCookieStore;
+import com.brianjmelton.apcs.api.Persister;
+import com.brianjmelton.apcs.api.StubPersistenceExceptionHandler;
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Synthetic cookie jars shared by the benchmarks. Cookies are spread over
+ * hosts {@value #COOKIES_PER_HOST} at a time, with values and lifetimes
+ * shaped like typical session and tracking cookies.
+ * 
+ * @author brianmelton
+ * 
+ */
+final class Jars {
+
+	static final int COOKIES_PER_HOST = 20;
+
+	private Jars() {
+	}
+
+	static int hostCount(int cookies) {
+		return Math.max(1, (cookies + COOKIES_PER_HOST - 1) / COOKIES_PER_HOST);
+	}
+
+	static URI uri(int host) {
+		return URI.create("https://www.host" + host + ".example.com/app/");
+	}
+
+	/**
+	 * @return the index-th cookie of a jar; cookie i belongs to host
+	 *         i / {@link #COOKIES_PER_HOST}
+	 */
+	static HttpCookie cookie(int index) {
+		int host = index / COOKIES_PER_HOST;
+		HttpCookie cookie = new HttpCookie("c" + index % COOKIES_PER_HOST,
+				"v" + Integer.toHexString(index * 0x9e3779b1) + "-0123456789abcdef");
+		cookie.setDomain(".host" + host + ".example.com");
+		cookie.setPath("/");
+		cookie.setMaxAge(86400L * (1 + index % 30));
+		cookie.setSecure(0 == index % 3);
+		cookie.setVersion(0);
+		return cookie;
+	}
+
+	static Map<URI, List<SerializableCookie>> snapshot(int size) {
+		Map<URI, List<SerializableCookie>> snapshot = new HashMap<URI, List<SerializableCookie>>();
+		for (int i = 0; i < size; i++) {
+			URI uri = uri(i / COOKIES_PER_HOST);
+			List<SerializableCookie> list = snapshot.get(uri);
+			if (null == list) {
+				list = new ArrayList<SerializableCookie>(COOKIES_PER_HOST);
+				snapshot.put(uri, list);
+			}
+			list.add(SerializableCookie.serialize(cookie(i)));
+		}
+		return snapshot;
+	}
+
+	static CookieStore newCookieStore(String kind) {
+		if ("indexed".equals(kind)) {
+			return new IndexedCookieStore();
+		}
+		if ("packed".equals(kind)) {
+			return new PackedCookieStore();
+		}
+		if ("memory".equals(kind)) {
+			return new CookieManager().getCookieStore();
+		}
+		throw new IllegalArgumentException("Unknown cookie store " + kind);
+	}
+
+	static PersistentCookieStore.Builder newStore(CookieStore store,
+			Persister persister) {
+		return new PersistentCookieStore.Builder().useCookieStore(store)
+				.usePersister(persister)
+				.throwTo(new StubPersistenceExceptionHandler())
+				.logWithTag("bench");
+	}
+
+	/**
+	 * A {@link Persister} which restores a fixed snapshot and drops whatever
+	 * it is asked to persist, for measuring the store on its own. Restoring
+	 * is how the benchmarks fill a store, so that every cookie goes through
+	 * the same bookkeeping as in an app.
+	 */
+	static final class SnapshotPersister implements Persister {
+
+		private final Map<URI, List<SerializableCookie>> snapshot;
+
+		SnapshotPersister(Map<URI, List<SerializableCookie>> snapshot) {
+			this.snapshot = snapshot;
+		}
+
+		@Override
+		public void persist(Map<URI, List<SerializableCookie>> cookies)
+				throws PersistenceException {
+		}
+
+		@Override
+		public Map<URI, List<SerializableCookie>> restore()
+				throws PersistenceException {
+			return snapshot;
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.brianjmelton.apcs.PersistentCookieStore;
+import com.brianjmelton.apcs.api.BasicCookieStoreSerializer;
+import com.brianjmelton.apcs.api.BinaryCookieStoreSerializer;
+import com.brianjmelton.apcs.api.CookieVisitor;
+import com.brianjmelton.apcs.api.JournalingCookieStoreSerializer;
+import com.brianjmelton.apcs.api.MappedCookieStoreSerializer;
+import com.brianjmelton.apcs.api.Persister;
+import com.brianjmelton.apcs.api.StreamingPersister;
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Latency of writing a whole jar to disk and of reading it back, for each of
+ * the on-disk formats. "restore" decodes the file only; "restoreStore" also
+ * builds a {@link PersistentCookieStore} from it, as an app does on launch.
+ * <p>
+ * Files are written through the platform's file system with the default
+ * {@link com.brianjmelton.apcs.api.SyncPolicy}, so the results include the
+ * cost of forcing them to disk.
+ * 
+ * @author brianmelton
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PersistBenchmark {
+
+	@Param({ "10", "1000", "10000", "100000" })
+	public int size;
+
+	@Param({ "basic", "binary", "mapped", "journal" })
+	public String format;
+
+	private File dir;
+	private ExecutorService compactor;
+	private Persister persister;
+	private Map<URI, List<SerializableCookie>> snapshot;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, PersistenceException {
+		dir = File.createTempFile("apcs", "bench");
+		if (!dir.delete() || !dir.mkdir()) {
+			throw new IOException("Cannot create " + dir);
+		}
+		compactor = Executors.newSingleThreadExecutor();
+		persister = newPersister(new File(dir, "cookies"));
+		snapshot = Jars.snapshot(size);
+		persister.persist(snapshot);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		compactor.shutdown();
+		File[] files = dir.listFiles();
+		if (null != files) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	private Persister newPersister(File file) {
+		if ("basic".equals(format)) {
+			return new BasicCookieStoreSerializer(file);
+		}
+		if ("binary".equals(format)) {
+			return new BinaryCookieStoreSerializer(file);
+		}
+		if ("mapped".equals(format)) {
+			return new MappedCookieStoreSerializer(file);
+		}
+		if ("journal".equals(format)) {
+			return new JournalingCookieStoreSerializer(file, compactor);
+		}
+		throw new IllegalArgumentException("Unknown format " + format);
+	}
+
+	@Benchmark
+	public void persist() throws PersistenceException {
+		persister.persist(snapshot);
+	}
+
+	@Benchmark
+	public void restore(final Blackhole blackhole) throws PersistenceException {
+		if (persister instanceof StreamingPersister) {
+			((StreamingPersister) persister).restore(new CookieVisitor() {
+				@Override
+				public void visit(URI uri, SerializableCookie cookie) {
+					blackhole.consume(cookie);
+				}
+			});
+		} else {
+			blackhole.consume(persister.restore());
+		}
+	}
+
+	@Benchmark
+	public PersistentCookieStore restoreStore() {
+		return Jars.newStore(Jars.newCookieStore("indexed"), persister)
+				.build();
+	}
+
+}
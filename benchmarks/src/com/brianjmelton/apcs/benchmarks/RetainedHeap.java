@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.benchmarks;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.brianjmelton.apcs.util.SerializableHttpCookieAdapter;
+import com.brianjmelton.apcs.util.StringPool;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Heap retained by a restored jar with and without a {@link StringPool}.
+ * JMH measures allocation, not what stays reachable, so this is a plain
+ * program: it restores the jar's cookies, drops everything else, collects,
+ * and reports the used heap.
+ * 
+ * <pre>
+ * java -Xmx1g -cp ... com.brianjmelton.apcs.benchmarks.RetainedHeap [cookies]
+ * </pre>
+ * 
+ * @author brianmelton
+ * 
+ */
+public class RetainedHeap {
+
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+		// Once each, so neither run pays for loading classes
+		restore(size, null);
+		restore(size, new StringPool());
+
+		long baseline = usedHeap();
+		List<HttpCookie> plain = restore(size, null);
+		long plainBytes = usedHeap() - baseline;
+		plain = null;
+
+		baseline = usedHeap();
+		List<HttpCookie> pooled = restore(size, new StringPool());
+		long pooledBytes = usedHeap() - baseline;
+
+		System.out.println(size + " cookies over " + Jars.hostCount(size)
+				+ " hosts");
+		System.out.println("without pool: " + plainBytes / 1024 + " KiB");
+		System.out.println("with pool:    " + pooledBytes / 1024 + " KiB ("
+				+ (100 - 100 * pooledBytes / Math.max(1, plainBytes))
+				+ "% less)");
+		System.out.println(pooled.size() + " cookies retained");
+	}
+
+	/**
+	 * Decodes a jar as a restore does, keeping only the resulting cookies
+	 */
+	private static List<HttpCookie> restore(int size, StringPool strings) {
+		Map<URI, List<SerializableCookie>> snapshot = Jars.snapshot(size);
+		long now = System.currentTimeMillis();
+		List<HttpCookie> cookies = new ArrayList<HttpCookie>(size);
+		for (List<SerializableCookie> list : snapshot.values()) {
+			for (SerializableCookie cookie : list) {
+				cookies.add(SerializableHttpCookieAdapter.deserialize(cookie,
+						now, strings));
+			}
+		}
+		return cookies;
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 4; i++) {
+			System.gc();
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+}
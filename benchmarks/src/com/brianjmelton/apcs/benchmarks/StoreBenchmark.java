@@ -0,0 +1,140 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.benchmarks;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.brianjmelton.apcs.PersistentCookieStore;
+
+/**
+ * Single-threaded throughput of {@link PersistentCookieStore#add},
+ * {@link PersistentCookieStore#get} and {@link PersistentCookieStore#remove}
+ * against a jar of a given size. The {@link com.brianjmelton.apcs.api.Persister}
+ * drops what it is given, so "sync" measures the cost of taking a snapshot on
+ * every mutation and "writeBehind" the cost of the store alone.
+ * 
+ * @author brianmelton
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class StoreBenchmark {
+
+	@Param({ "10", "1000", "10000", "100000" })
+	public int size;
+
+	@Param({ "memory", "indexed", "packed" })
+	public String cookieStore;
+
+	@Param({ "sync", "writeBehind" })
+	public String persistence;
+
+	PersistentCookieStore store;
+	private ExecutorService writer;
+	private HttpCookie[] cookies;
+	private URI[] uris;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		PersistentCookieStore.Builder builder = Jars.newStore(
+				Jars.newCookieStore(cookieStore), new Jars.SnapshotPersister(
+						Jars.snapshot(size)));
+		if ("writeBehind".equals(persistence)) {
+			writer = Executors.newSingleThreadExecutor();
+			builder.writeBehind(writer, 50, 500);
+		}
+		configure(builder);
+		store = builder.build();
+
+		cookies = new HttpCookie[size];
+		uris = new URI[size];
+		for (int i = 0; i < size; i++) {
+			cookies[i] = Jars.cookie(i);
+			uris[i] = Jars.uri(i / Jars.COOKIES_PER_HOST);
+		}
+	}
+
+	/**
+	 * Hook for subclasses adding options to the store under test
+	 */
+	void configure(PersistentCookieStore.Builder builder) {
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		store.close();
+		if (null != writer) {
+			writer.shutdown();
+		}
+	}
+
+	/**
+	 * Re-sets an existing cookie, so the jar keeps its size
+	 */
+	@Benchmark
+	public void add() {
+		int i = nextIndex();
+		store.add(uris[i], cookies[i]);
+	}
+
+	@Benchmark
+	public List<HttpCookie> get() {
+		return store.get(uris[nextIndex()]);
+	}
+
+	/**
+	 * Removes a cookie and puts it back, so the jar keeps its size
+	 */
+	@Benchmark
+	public boolean removeAndAdd() {
+		int i = nextIndex();
+		boolean removed = store.remove(uris[i], cookies[i]);
+		store.add(uris[i], cookies[i]);
+		return removed;
+	}
+
+	int nextIndex() {
+		int i = next;
+		next = i + 1 == size ? 0 : i + 1;
+		return i;
+	}
+
+}
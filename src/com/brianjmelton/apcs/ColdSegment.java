@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.brianjmelton.apcs.api.CookieVisitor;
+import com.brianjmelton.apcs.util.BinaryCookieCodec;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * The on-disk tier of a tiered store: the cookies of cold domains, each
+ * domain written as one {@link BinaryCookieCodec} extent at the end of a
+ * scratch file, with the extents indexed in memory by domain. Paging a domain
+ * back in reads its extent alone and leaves a hole, which is reclaimed by
+ * copying the live extents to a fresh file once holes make up most of it.
+ * <p>
+ * The file is only opened for the duration of each operation. It holds no
+ * data of its own: whatever is in it when the store starts is discarded, as
+ * the {@link com.brianjmelton.apcs.api.Persister} still holds every cookie.
+ *
+ * @author brianmelton
+ *
+ */
+final class ColdSegment {
+
+	/** Holes smaller than this in total are never worth a copy */
+	private static final long MIN_COMPACT_BYTES = 1024 * 1024;
+
+	private final File file;
+	private final Map<String, Extent> index = new ConcurrentHashMap<String, Extent>();
+	private boolean truncated;
+	/** Guarded by this object's monitor */
+	private long length, liveBytes;
+
+	ColdSegment(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * @return whether the domain's cookies are in the segment. Doesn't take
+	 *         the monitor.
+	 */
+	boolean contains(String domain) {
+		return index.containsKey(domain);
+	}
+
+	int size() {
+		return index.size();
+	}
+
+	synchronized long length() {
+		return length;
+	}
+
+	/**
+	 * Appends a domain's cookies. The domain must not be in the segment yet.
+	 */
+	synchronized void put(String domain,
+			Map<URI, List<SerializableCookie>> cookies) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryCookieCodec.write(new DataOutputStream(bytes), cookies);
+		RandomAccessFile raf = open();
+		try {
+			raf.seek(length);
+			raf.write(bytes.toByteArray());
+		} finally {
+			raf.close();
+		}
+		index.put(domain, new Extent(length, bytes.size()));
+		length += bytes.size();
+		liveBytes += bytes.size();
+	}
+
+	/**
+	 * Reads a domain's cookies and drops them from the segment.
+	 * 
+	 * @return the cookies which have not expired, null if the domain is not
+	 *         in the segment
+	 */
+	synchronized Map<URI, List<SerializableCookie>> take(String domain)
+			throws IOException {
+		Extent extent = index.get(domain);
+		if (null == extent) {
+			return null;
+		}
+		byte[] bytes;
+		RandomAccessFile raf = open();
+		try {
+			bytes = read(raf, extent);
+		} finally {
+			raf.close();
+		}
+		index.remove(domain);
+		liveBytes -= extent.length;
+		if (liveBytes == 0) {
+			clear();
+		} else if (length - liveBytes >= Math.max(MIN_COMPACT_BYTES,
+				liveBytes)) {
+			try {
+				compact();
+			} catch (IOException e) {
+				// The holes stay until the next attempt
+			}
+		}
+		return BinaryCookieCodec.read(new DataInputStream(
+				new ByteArrayInputStream(bytes)));
+	}
+
+	/**
+	 * Streams every cookie in the segment which has not expired, leaving the
+	 * segment as it is
+	 */
+	synchronized void read(CookieVisitor visitor) throws IOException {
+		if (index.isEmpty()) {
+			return;
+		}
+		RandomAccessFile raf = open();
+		try {
+			for (Extent extent : index.values()) {
+				BinaryCookieCodec.read(new DataInputStream(
+						new ByteArrayInputStream(read(raf, extent))), visitor);
+			}
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Drops every domain
+	 */
+	synchronized void clear() {
+		index.clear();
+		length = 0;
+		liveBytes = 0;
+		// Truncated on the next write
+		truncated = false;
+	}
+
+	private RandomAccessFile open() throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		if (!truncated) {
+			try {
+				raf.setLength(length);
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+			truncated = true;
+		}
+		return raf;
+	}
+
+	private static byte[] read(RandomAccessFile raf, Extent extent)
+			throws IOException {
+		byte[] bytes = new byte[extent.length];
+		raf.seek(extent.offset);
+		raf.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Copies the live extents to a fresh file which then replaces the
+	 * segment. On failure the segment stays as it was.
+	 */
+	private void compact() throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		Map<String, Extent> moved = new ConcurrentHashMap<String, Extent>();
+		long offset = 0;
+		RandomAccessFile in = open();
+		try {
+			RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+			try {
+				out.setLength(0);
+				for (Map.Entry<String, Extent> entry : index.entrySet()) {
+					Extent extent = entry.getValue();
+					out.write(read(in, extent));
+					moved.put(entry.getKey(), new Extent(offset,
+							extent.length));
+					offset += extent.length;
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (!tmp.renameTo(file)) {
+			// Some platforms won't rename over an existing file. Move the
+			// segment aside rather than delete it, so that it can be put
+			// back if the copy can't take its place.
+			File backup = new File(file.getPath() + ".bak");
+			backup.delete();
+			if (!file.renameTo(backup)) {
+				tmp.delete();
+				throw new IOException("Cannot replace " + file);
+			}
+			if (!tmp.renameTo(file)) {
+				tmp.delete();
+				if (!backup.renameTo(file)) {
+					throw new IOException("Cannot restore " + file + " from "
+							+ backup);
+				}
+				throw new IOException("Cannot replace " + file);
+			}
+			backup.delete();
+		}
+		index.putAll(moved);
+		length = offset;
+	}
+
+	private static final class Extent {
+
+		final long offset;
+		final int length;
+
+		Extent(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+}
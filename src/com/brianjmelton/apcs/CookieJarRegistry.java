@@ -0,0 +1,457 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.io.Closeable;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.brianjmelton.apcs.api.JarStorage;
+import com.brianjmelton.apcs.api.PersistenceExceptionHandler;
+import com.brianjmelton.apcs.api.Persister;
+import com.brianjmelton.apcs.api.StubPersistenceExceptionHandler;
+
+/**
+ * Manages many named cookie jars, such as one per account or per automated
+ * session, kept in one {@link JarStorage}. {@link #get(String)} hands out a
+ * {@link Jar} at once; the jar's cookies are loaded the first time it is used
+ * and dropped from memory again once it has been idle for a while, after its
+ * pending changes are written out.
+ * <p>
+ * Every jar writes behind, restores and is swept on the one
+ * {@link ScheduledExecutorService} the registry was built with, and the
+ * registry starts no threads of its own, so thousands of jars cost neither
+ * thousands of threads nor, with a {@link JarStorage} which only opens files
+ * to read or write them, thousands of open files.
+ * 
+ * @author brianmelton
+ * 
+ */
+public class CookieJarRegistry implements Closeable {
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final JarStorage storage;
+	private final ScheduledExecutorService scheduler;
+	private final PersistenceExceptionHandler exceptionHandler;
+	private final String logTag;
+	private final long debounceMillis;
+	private final long maxDelayMillis;
+	private final long idleMillis;
+	private final ScheduledFuture<?> idleSweep;
+	private volatile boolean closed;
+
+	protected CookieJarRegistry(Builder builder) {
+		this.storage = builder.storage;
+		this.scheduler = builder.scheduler;
+		this.exceptionHandler = builder.exceptionHandler;
+		this.logTag = builder.logTag;
+		this.debounceMillis = builder.debounceMillis;
+		this.maxDelayMillis = builder.maxDelayMillis;
+		this.idleMillis = builder.idleMillis;
+		long period = Math.max(idleMillis / 2, 1);
+		this.idleSweep = scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				evictIdle();
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * The builder for {@link CookieJarRegistry}
+	 * 
+	 * @author brianmelton
+	 * 
+	 */
+	public static class Builder {
+
+		/** Write a jar's changes after it has been quiet this long */
+		public static final long DEFAULT_DEBOUNCE_MILLIS = 1000;
+		/** Write a jar's changes no later than this after the first one */
+		public static final long DEFAULT_MAX_DELAY_MILLIS = 10000;
+		/** Drop a jar from memory after it has been unused this long */
+		public static final long DEFAULT_IDLE_MILLIS = 5 * 60 * 1000;
+
+		private JarStorage storage;
+		private ScheduledExecutorService scheduler;
+		private PersistenceExceptionHandler exceptionHandler = new StubPersistenceExceptionHandler();
+		private String logTag = "CookieJarRegistry";
+		private long debounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+		private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+		private long idleMillis = DEFAULT_IDLE_MILLIS;
+
+		/**
+		 * @param storage
+		 *            where the jars are kept
+		 * @return a reference to this Builder
+		 */
+		public Builder useStorage(JarStorage storage) {
+			if (null == storage) {
+				throw new IllegalArgumentException("JarStorage cannot be null");
+			}
+			this.storage = storage;
+			return this;
+		}
+
+		/**
+		 * @param scheduler
+		 *            runs every jar's writes, restores and the idle sweep.
+		 *            The registry does not shut it down.
+		 * @return a reference to this Builder
+		 */
+		public Builder useScheduler(ScheduledExecutorService scheduler) {
+			if (null == scheduler) {
+				throw new IllegalArgumentException("Scheduler cannot be null");
+			}
+			this.scheduler = scheduler;
+			return this;
+		}
+
+		/**
+		 * @param exceptionHandler
+		 *            notified of every jar's persist and restore failures
+		 * @return a reference to this Builder
+		 */
+		public Builder throwTo(PersistenceExceptionHandler exceptionHandler) {
+			if (null == exceptionHandler) {
+				throw new IllegalArgumentException(
+						"PersistenceExceptionHandler cannot be null");
+			}
+			this.exceptionHandler = exceptionHandler;
+			return this;
+		}
+
+		/**
+		 * @param logTag
+		 *            the tag every jar logs with
+		 * @return a reference to this Builder
+		 */
+		public Builder logWithTag(String logTag) {
+			if (null == logTag) {
+				throw new IllegalArgumentException("Log tag cannot be null");
+			}
+			this.logTag = logTag;
+			return this;
+		}
+
+		/**
+		 * @param debounceMillis
+		 *            quiet period after a jar's last mutation before writing
+		 * @param maxDelayMillis
+		 *            upper bound on how long a mutation may stay unwritten
+		 * @return a reference to this Builder
+		 * @see PersistentCookieStore.Builder#writeBehind(java.util.concurrent.Executor,
+		 *      long, long)
+		 */
+		public Builder writeBehind(long debounceMillis, long maxDelayMillis) {
+			if (debounceMillis < 0 || maxDelayMillis < debounceMillis) {
+				throw new IllegalArgumentException(
+						"Require 0 <= debounceMillis <= maxDelayMillis");
+			}
+			this.debounceMillis = debounceMillis;
+			this.maxDelayMillis = maxDelayMillis;
+			return this;
+		}
+
+		/**
+		 * @param idleMillis
+		 *            how long a jar may go unused before its cookies are
+		 *            dropped from memory
+		 * @return a reference to this Builder
+		 */
+		public Builder evictAfterIdle(long idleMillis) {
+			if (idleMillis <= 0) {
+				throw new IllegalArgumentException(
+						"Idle time must be positive");
+			}
+			this.idleMillis = idleMillis;
+			return this;
+		}
+
+		/**
+		 * Creates a {@link CookieJarRegistry} with the arguments supplied to
+		 * this {@link Builder}
+		 * 
+		 * @return the constructed {@link CookieJarRegistry}
+		 */
+		public CookieJarRegistry build() {
+			if (null == storage) {
+				throw new IllegalStateException("JarStorage cannot be null.");
+			}
+			if (null == scheduler) {
+				throw new IllegalStateException("Scheduler cannot be null.");
+			}
+			return new CookieJarRegistry(this);
+		}
+	}
+
+	/**
+	 * @param namespace
+	 *            the name of the jar
+	 * @return the named jar. Nothing is loaded until it is first used.
+	 */
+	public Jar get(String namespace) {
+		if (null == namespace) {
+			throw new IllegalArgumentException("Namespace cannot be null");
+		}
+		return new Jar(namespace);
+	}
+
+	/**
+	 * @return the number of jars currently held in memory
+	 */
+	public int getLoadedJarCount() {
+		return entries.size();
+	}
+
+	/**
+	 * Writes out every loaded jar's pending changes.
+	 */
+	public void flush() {
+		for (Entry entry : entries.values()) {
+			synchronized (entry) {
+				if (null != entry.store) {
+					entry.store.flush();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the idle sweep, then writes out and drops every loaded jar. Jars
+	 * can no longer be used afterwards.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		idleSweep.cancel(false);
+		for (Entry entry : entries.values()) {
+			evict(entry, true);
+		}
+	}
+
+	/**
+	 * Creates the store holding a jar when it is loaded. Subclasses may
+	 * override this to configure jars differently, such as to limit their
+	 * size; the returned builder only needs to be built.
+	 * 
+	 * @param namespace
+	 *            the name of the jar
+	 * @param persister
+	 *            the jar's {@link Persister}, from the {@link JarStorage}
+	 * @return a configured {@link PersistentCookieStore.Builder}
+	 */
+	protected PersistentCookieStore.Builder newStoreBuilder(String namespace,
+			Persister persister) {
+		return new PersistentCookieStore.Builder()
+				.useCookieStore(new IndexedCookieStore())
+				.usePersister(persister).throwTo(exceptionHandler)
+				.logWithTag(logTag)
+				.writeBehind(scheduler, debounceMillis, maxDelayMillis)
+				.restoreAsync(scheduler);
+	}
+
+	/**
+	 * Loads the named jar if needed and pins it in memory until
+	 * {@link #release(Entry)}.
+	 */
+	private Entry acquire(String namespace) {
+		while (true) {
+			if (closed) {
+				throw new IllegalStateException("Registry closed.");
+			}
+			Entry entry = entries.get(namespace);
+			if (null == entry) {
+				Entry created = new Entry(namespace);
+				entry = entries.putIfAbsent(namespace, created);
+				if (null == entry) {
+					entry = created;
+				}
+			}
+			synchronized (entry) {
+				if (entry.evicted) {
+					// Written out and dropped meanwhile; load it afresh
+					continue;
+				}
+				if (null == entry.store) {
+					entry.store = newStoreBuilder(namespace,
+							storage.open(namespace)).build();
+				}
+				entry.users++;
+			}
+			return entry;
+		}
+	}
+
+	private void release(Entry entry) {
+		synchronized (entry) {
+			entry.users--;
+			entry.lastUsed = System.currentTimeMillis();
+		}
+	}
+
+	private void evictIdle() {
+		for (Entry entry : entries.values()) {
+			evict(entry, false);
+		}
+	}
+
+	/**
+	 * Writes out and drops a jar which is not in use. The jar stays in
+	 * {@link #entries} until it is written out, so that loading it again
+	 * waits for the write instead of reading a stale file.
+	 */
+	private void evict(Entry entry, boolean force) {
+		synchronized (entry) {
+			if (entry.evicted) {
+				return;
+			}
+			if (!force
+					&& (0 != entry.users || System.currentTimeMillis()
+							- entry.lastUsed < idleMillis)) {
+				return;
+			}
+			if (null != entry.store) {
+				// Finishes the restore first, so nothing is written after
+				entry.store.flush();
+				entry.store.close();
+				entry.store = null;
+			}
+			entry.evicted = true;
+			entries.remove(entry.namespace, entry);
+		}
+	}
+
+	private static final class Entry {
+
+		final String namespace;
+		PersistentCookieStore store;
+		int users;
+		long lastUsed = System.currentTimeMillis();
+		boolean evicted;
+
+		Entry(String namespace) {
+			this.namespace = namespace;
+		}
+	}
+
+	/**
+	 * A handle on one jar of the registry. Handles are cheap and stay valid
+	 * while the jar is evicted and loaded again; each call loads the jar if
+	 * it is not in memory.
+	 * 
+	 * @author brianmelton
+	 * 
+	 */
+	public final class Jar implements CookieStore {
+
+		private final String namespace;
+
+		private Jar(String namespace) {
+			this.namespace = namespace;
+		}
+
+		/**
+		 * @return the name of this jar
+		 */
+		public String getNamespace() {
+			return namespace;
+		}
+
+		@Override
+		public void add(URI uri, HttpCookie cookie) {
+			Entry entry = acquire(namespace);
+			try {
+				entry.store.add(uri, cookie);
+			} finally {
+				release(entry);
+			}
+		}
+
+		@Override
+		public List<HttpCookie> get(URI uri) {
+			Entry entry = acquire(namespace);
+			try {
+				return entry.store.get(uri);
+			} finally {
+				release(entry);
+			}
+		}
+
+		@Override
+		public List<HttpCookie> getCookies() {
+			Entry entry = acquire(namespace);
+			try {
+				return entry.store.getCookies();
+			} finally {
+				release(entry);
+			}
+		}
+
+		@Override
+		public List<URI> getURIs() {
+			Entry entry = acquire(namespace);
+			try {
+				return entry.store.getURIs();
+			} finally {
+				release(entry);
+			}
+		}
+
+		@Override
+		public boolean remove(URI uri, HttpCookie cookie) {
+			Entry entry = acquire(namespace);
+			try {
+				return entry.store.remove(uri, cookie);
+			} finally {
+				release(entry);
+			}
+		}
+
+		@Override
+		public boolean removeAll() {
+			Entry entry = acquire(namespace);
+			try {
+				return entry.store.removeAll();
+			} finally {
+				release(entry);
+			}
+		}
+
+		/**
+		 * Writes out this jar's pending changes, if it is loaded.
+		 */
+		public void flush() {
+			Entry entry = entries.get(namespace);
+			if (null != entry) {
+				synchronized (entry) {
+					if (null != entry.store) {
+						entry.store.flush();
+					}
+				}
+			}
+		}
+	}
+
+}
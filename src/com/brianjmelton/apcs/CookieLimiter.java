@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.brianjmelton.apcs.vo.EvictionStats;
+
+/**
+ * Keeps a cookie jar within a global and a per-domain count, choosing the
+ * least recently used cookie to evict. Recency lives in access-ordered
+ * {@link LinkedHashMap}s, one over the whole jar and one per registrable
+ * domain, so adding, touching and choosing a victim are all constant time.
+ * <p>
+ * Victims are only chosen here; the store removes them from the wrapped
+ * {@link java.net.CookieStore} after taking the victim's own stripe.
+ *
+ * @author brianmelton
+ *
+ */
+final class CookieLimiter {
+
+	private final int maxCookies, maxCookiesPerDomain;
+	private final LinkedHashMap<HttpCookie, Tracked> all = new LinkedHashMap<HttpCookie, Tracked>(
+			16, 0.75f, true);
+	private final Map<String, LinkedHashMap<HttpCookie, Tracked>> byDomain = new HashMap<String, LinkedHashMap<HttpCookie, Tracked>>();
+	private List<Tracked> victims = new ArrayList<Tracked>();
+
+	private long domainEvictions, globalEvictions;
+
+	CookieLimiter(int maxCookies, int maxCookiesPerDomain) {
+		this.maxCookies = maxCookies;
+		this.maxCookiesPerDomain = maxCookiesPerDomain;
+	}
+
+	/**
+	 * Counts a cookie just added to the store as its most recently used, and
+	 * queues whatever has to go to make room for it.
+	 *
+	 * @param uri
+	 *            the URI it was added under
+	 * @param domain
+	 *            its registrable domain
+	 */
+	synchronized void track(URI uri, HttpCookie cookie, String domain) {
+		untrack(cookie);
+		Tracked tracked = new Tracked(uri, cookie, domain);
+		all.put(cookie, tracked);
+		LinkedHashMap<HttpCookie, Tracked> domainCookies = byDomain
+				.get(domain);
+		if (null == domainCookies) {
+			domainCookies = new LinkedHashMap<HttpCookie, Tracked>(8, 0.75f,
+					true);
+			byDomain.put(domain, domainCookies);
+		}
+		domainCookies.put(cookie, tracked);
+
+		if (domainCookies.size() > maxCookiesPerDomain) {
+			evictEldest(domainCookies.values().iterator());
+			domainEvictions++;
+		}
+		while (all.size() > maxCookies) {
+			evictEldest(all.values().iterator());
+			globalEvictions++;
+		}
+	}
+
+	/**
+	 * Marks the cookies as used, so they are evicted last
+	 */
+	synchronized void touch(List<HttpCookie> cookies) {
+		for (int i = 0, n = cookies.size(); i < n; i++) {
+			Tracked tracked = all.get(cookies.get(i));
+			if (null != tracked) {
+				byDomain.get(tracked.domain).get(tracked.cookie);
+			}
+		}
+	}
+
+	synchronized void untrack(HttpCookie cookie) {
+		Tracked tracked = all.remove(cookie);
+		if (null != tracked) {
+			removeFromDomain(tracked);
+		}
+	}
+
+	synchronized boolean isTracked(HttpCookie cookie) {
+		return all.containsKey(cookie);
+	}
+
+	synchronized void clear() {
+		all.clear();
+		byDomain.clear();
+		victims.clear();
+	}
+
+	/**
+	 * @return the cookies queued for eviction since the last call
+	 */
+	synchronized List<Tracked> pollVictims() {
+		if (victims.isEmpty()) {
+			return Collections.emptyList();
+		}
+		List<Tracked> polled = victims;
+		victims = new ArrayList<Tracked>();
+		return polled;
+	}
+
+	synchronized EvictionStats stats() {
+		return new EvictionStats(domainEvictions, globalEvictions,
+				all.size());
+	}
+
+	private void evictEldest(Iterator<Tracked> it) {
+		Tracked eldest = it.next();
+		all.remove(eldest.cookie);
+		removeFromDomain(eldest);
+		victims.add(eldest);
+	}
+
+	private void removeFromDomain(Tracked tracked) {
+		LinkedHashMap<HttpCookie, Tracked> domainCookies = byDomain
+				.get(tracked.domain);
+		if (null != domainCookies) {
+			domainCookies.remove(tracked.cookie);
+			if (domainCookies.isEmpty()) {
+				byDomain.remove(tracked.domain);
+			}
+		}
+	}
+
+	static final class Tracked {
+
+		final URI uri;
+		final HttpCookie cookie;
+		final String domain;
+
+		Tracked(URI uri, HttpCookie cookie, String domain) {
+			this.uri = uri;
+			this.cookie = cookie;
+			this.domain = domain;
+		}
+	}
+
+}
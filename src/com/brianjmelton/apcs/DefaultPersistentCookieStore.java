@@ -21,6 +21,7 @@ import java.net.CookieManager;
 import java.net.CookieStore;
 
 import com.brianjmelton.apcs.api.BasicCookieStoreSerializer;
+import com.brianjmelton.apcs.api.SharedCookieStoreSerializer;
 import com.brianjmelton.apcs.api.StubPersistenceExceptionHandler;
 import com.brianjmelton.apcs.vo.SerializableCookie;
 
@@ -41,8 +42,28 @@ public class DefaultPersistentCookieStore extends PersistentCookieStore {
 	 *            created.
 	 */
 	public DefaultPersistentCookieStore(File pathToCookieFile) {
+		this(pathToCookieFile, false);
+	}
+
+	/**
+	 * Constructs a new instance of DefaultPersistsCookieStore, optionally
+	 * sharing the cookie file with other processes.
+	 * 
+	 * @param pathToCookieFile
+	 *            the path to the {@link SerializableCookie} storage file you
+	 *            would like to use. If this file doesn't exist it will be
+	 *            created.
+	 * @param multiProcess
+	 *            whether other processes, such as a sync service, use the
+	 *            same file. If so, changes are logged next to it through a
+	 *            {@link SharedCookieStoreSerializer}, and each process picks
+	 *            up the others' changes. Every process must pass true.
+	 */
+	public DefaultPersistentCookieStore(File pathToCookieFile,
+			boolean multiProcess) {
 		super(new CookieManager().getCookieStore(),
-				new BasicCookieStoreSerializer(pathToCookieFile),
+				multiProcess ? new SharedCookieStoreSerializer(pathToCookieFile)
+						: new BasicCookieStoreSerializer(pathToCookieFile),
 				new StubPersistenceExceptionHandler(),
 				"DefaultPersistentCookieStore", false, true);
 	}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.brianjmelton.apcs.vo.TierStats;
+
+/**
+ * Keeps the cookies held in memory by a tiered store within a budget of
+ * estimated heap bytes, choosing the least recently used registrable domains
+ * to move to the {@link ColdSegment}. Recency lives in an access-ordered
+ * {@link LinkedHashMap} of domains. Memory-only cookies count against the
+ * budget but are never spilled, as they must not reach the disk.
+ * <p>
+ * Domains are only chosen here; the store writes them out and removes their
+ * cookies from the wrapped {@link java.net.CookieStore} after taking the
+ * domain's stripe.
+ *
+ * @author brianmelton
+ *
+ */
+final class DomainTiers {
+
+	/**
+	 * Rough heap cost of a cookie besides its strings: the {@link HttpCookie}
+	 * itself and its entries in the wrapped store and the store's indexes
+	 */
+	private static final int COOKIE_OVERHEAD_BYTES = 320;
+	private static final int STRING_OVERHEAD_BYTES = 40;
+
+	private final long maxResidentBytes;
+	private final Map<HttpCookie, Tracked> all = new HashMap<HttpCookie, Tracked>();
+	private final LinkedHashMap<String, Domain> domains = new LinkedHashMap<String, Domain>(
+			16, 0.75f, true);
+	private long residentBytes;
+	private long hits, misses, spills;
+
+	DomainTiers(long maxResidentBytes) {
+		this.maxResidentBytes = maxResidentBytes;
+	}
+
+	/**
+	 * Counts a cookie just added to the store, making its domain the most
+	 * recently used
+	 *
+	 * @param uri
+	 *            the URI it was added under
+	 * @param domain
+	 *            its registrable domain
+	 * @param pinned
+	 *            whether it has to stay in memory
+	 */
+	synchronized void track(URI uri, HttpCookie cookie, String domain,
+			boolean pinned) {
+		untrack(cookie);
+		Domain resident = domains.get(domain);
+		if (null == resident) {
+			resident = new Domain(domain);
+			domains.put(domain, resident);
+		}
+		Tracked tracked = new Tracked(uri, cookie, resident, pinned,
+				estimateBytes(cookie));
+		all.put(cookie, tracked);
+		resident.add(tracked);
+		residentBytes += tracked.bytes;
+	}
+
+	synchronized void untrack(HttpCookie cookie) {
+		Tracked tracked = all.remove(cookie);
+		if (null != tracked) {
+			removeFromDomain(tracked);
+		}
+	}
+
+	/**
+	 * Marks a domain as used by a lookup which found it in memory
+	 */
+	synchronized void touch(String domain) {
+		domains.get(domain);
+		hits++;
+	}
+
+	/**
+	 * Counts a lookup which had to page its domain in
+	 */
+	synchronized void recordMiss() {
+		misses++;
+	}
+
+	/**
+	 * @return the least recently used domains which have to go to bring the
+	 *         store within its budget. The most recently used domain is never
+	 *         chosen, so that a domain bigger than the budget by itself is not
+	 *         paged out right after being paged in.
+	 */
+	synchronized List<String> pollColdDomains() {
+		long excess = residentBytes - maxResidentBytes;
+		if (excess <= 0) {
+			return Collections.emptyList();
+		}
+		List<String> cold = new ArrayList<String>();
+		Iterator<Map.Entry<String, Domain>> it = domains.entrySet()
+				.iterator();
+		while (excess > 0 && it.hasNext()) {
+			Map.Entry<String, Domain> entry = it.next();
+			if (!it.hasNext()) {
+				break;
+			}
+			if (entry.getValue().spillableBytes > 0) {
+				cold.add(entry.getKey());
+				excess -= entry.getValue().spillableBytes;
+			}
+		}
+		return cold;
+	}
+
+	/**
+	 * Stops counting the cookies of a domain which may be spilled, unless the
+	 * store has come within its budget since the domain was chosen
+	 *
+	 * @return the cookies to spill, possibly none
+	 */
+	synchronized List<Tracked> take(String domain) {
+		Domain resident = domains.get(domain);
+		if (residentBytes <= maxResidentBytes || null == resident
+				|| 0 == resident.spillableBytes) {
+			return Collections.emptyList();
+		}
+		List<Tracked> taken = new ArrayList<Tracked>();
+		for (Tracked tracked : new ArrayList<Tracked>(
+				resident.cookies.values())) {
+			if (!tracked.pinned) {
+				all.remove(tracked.cookie);
+				removeFromDomain(tracked);
+				taken.add(tracked);
+			}
+		}
+		spills++;
+		return taken;
+	}
+
+	synchronized void clear() {
+		all.clear();
+		domains.clear();
+		residentBytes = 0;
+	}
+
+	synchronized TierStats stats(int coldDomains, long segmentBytes) {
+		return new TierStats(hits, misses, spills, residentBytes,
+				domains.size(), coldDomains, segmentBytes);
+	}
+
+	private void removeFromDomain(Tracked tracked) {
+		// Looked up through the entry, as getting it would count as a use
+		Domain resident = tracked.domain;
+		resident.remove(tracked);
+		if (resident.cookies.isEmpty()) {
+			domains.remove(resident.name);
+		}
+		residentBytes -= tracked.bytes;
+	}
+
+	private static int estimateBytes(HttpCookie cookie) {
+		return COOKIE_OVERHEAD_BYTES + estimateBytes(cookie.getName())
+				+ estimateBytes(cookie.getValue())
+				+ estimateBytes(cookie.getDomain())
+				+ estimateBytes(cookie.getPath());
+	}
+
+	private static int estimateBytes(String s) {
+		return null == s ? 0 : STRING_OVERHEAD_BYTES + 2 * s.length();
+	}
+
+	private static final class Domain {
+
+		final String name;
+		final Map<HttpCookie, Tracked> cookies = new HashMap<HttpCookie, Tracked>(
+				8);
+		long spillableBytes;
+
+		Domain(String name) {
+			this.name = name;
+		}
+
+		void add(Tracked tracked) {
+			cookies.put(tracked.cookie, tracked);
+			if (!tracked.pinned) {
+				spillableBytes += tracked.bytes;
+			}
+		}
+
+		void remove(Tracked tracked) {
+			cookies.remove(tracked.cookie);
+			if (!tracked.pinned) {
+				spillableBytes -= tracked.bytes;
+			}
+		}
+	}
+
+	static final class Tracked {
+
+		final URI uri;
+		final HttpCookie cookie;
+		private final Domain domain;
+		final boolean pinned;
+		final int bytes;
+
+		Tracked(URI uri, HttpCookie cookie, Domain domain, boolean pinned,
+				int bytes) {
+			this.uri = uri;
+			this.cookie = cookie;
+			this.domain = domain;
+			this.pinned = pinned;
+			this.bytes = bytes;
+		}
+	}
+
+}
@@ -0,0 +1,297 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.brianjmelton.apcs.util.HashTrieMap;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Absolute expiry instants of the cookies in a store, kept in a min-heap so
+ * that finding the cookies which have expired costs O(log n) per expired
+ * cookie and checking whether any have costs a single volatile read. Session
+ * cookies are tracked but kept out of the heap. Each entry also notes whether
+ * its cookie is persisted, so the store can tell a change to the memory-only
+ * tier from a change to the persisted jar, and a fingerprint of what was last
+ * persisted, so re-setting a cookie unchanged can skip the write.
+ * <p>
+ * The entries live in an immutable {@link HashTrieMap}, replaced on every
+ * change, so {@link #snapshot()} is a single volatile read and lookups take
+ * no lock. The store persists from such a snapshot: an entry has everything
+ * the persisted form of a cookie needs.
+ * <p>
+ * Replacing or removing a cookie leaves its old deadline in the heap, where
+ * it is skipped once it surfaces; the heap is rebuilt when such stale
+ * deadlines outnumber the live ones.
+ *
+ * @author brianmelton
+ *
+ */
+final class ExpiryIndex {
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	/** Replaced while holding this object's monitor */
+	private volatile HashTrieMap<HttpCookie, Deadline> live = HashTrieMap
+			.empty();
+	private PriorityQueue<Deadline> heap = new PriorityQueue<Deadline>();
+	private volatile long nextDeadline = Long.MAX_VALUE;
+
+	/**
+	 * Records when a cookie just added to the store expires
+	 *
+	 * @param uri
+	 *            the URI it was added under
+	 * @param cookie
+	 * @param expiresAt
+	 *            its expiry instant, or
+	 *            {@link SerializableCookie#NEVER_EXPIRES}
+	 * @param memoryOnly
+	 *            whether the cookie is kept out of the persisted jar
+	 */
+	synchronized void track(URI uri, HttpCookie cookie, long expiresAt,
+			boolean memoryOnly) {
+		track(uri, cookie, expiresAt, memoryOnly, 0, -1);
+	}
+
+	/**
+	 * Records when a cookie just added to the store expires, and whether the
+	 * persisted jar already holds it as it is
+	 *
+	 * @param fingerprint
+	 *            {@link #fingerprintOf(URI, HttpCookie)}, or 0 if not
+	 *            tracking changes
+	 * @param toleranceMillis
+	 *            how far the expiry may move forward and still count as
+	 *            unchanged, negative if not tracking changes
+	 * @return whether an equal cookie with the same fingerprint, and an
+	 *         expiry no more than toleranceMillis earlier, was already
+	 *         persisted, so re-writing the jar would change nothing of note
+	 */
+	synchronized boolean track(URI uri, HttpCookie cookie, long expiresAt,
+			boolean memoryOnly, long fingerprint, long toleranceMillis) {
+		Deadline previous = live.get(cookie);
+		boolean unchanged = toleranceMillis >= 0 && 0 != fingerprint
+				&& null != previous && previous.fingerprint == fingerprint
+				&& previous.memoryOnly == memoryOnly
+				&& isWithin(previous.persistedExpiresAt, expiresAt,
+						toleranceMillis);
+		Deadline deadline = new Deadline(uri, cookie, expiresAt, memoryOnly,
+				fingerprint, unchanged ? previous.persistedExpiresAt
+						: expiresAt);
+		live = live.plus(cookie, deadline);
+		if (expiresAt >= 0) {
+			heap.add(deadline);
+			if (heap.size() > 2 * live.size() + 64) {
+				rebuildHeap();
+			}
+			nextDeadline = heap.peek().expiresAt;
+		}
+		return unchanged;
+	}
+
+	synchronized void untrack(HttpCookie cookie) {
+		live = live.minus(cookie);
+	}
+
+	synchronized void clear() {
+		live = HashTrieMap.empty();
+		heap.clear();
+		nextDeadline = Long.MAX_VALUE;
+	}
+
+	/**
+	 * A hash of every field of the cookie which is persisted, apart from its
+	 * expiry, and of the scheme and host it was set for. Cookie stores list
+	 * cookies by scheme and host, so the rest of the URI doesn't matter.
+	 *
+	 * @return the fingerprint, never 0
+	 */
+	static long fingerprintOf(URI uri, HttpCookie cookie) {
+		long hash = FNV_OFFSET;
+		hash = mix(hash, null == uri ? null : uri.getScheme());
+		hash = mix(hash, null == uri ? null : uri.getHost());
+		hash = mix(hash, cookie.getName());
+		hash = mix(hash, cookie.getValue());
+		hash = mix(hash, cookie.getDomain());
+		hash = mix(hash, cookie.getPath());
+		hash = mix(hash, cookie.getPortlist());
+		hash = mix(hash, cookie.getComment());
+		hash = mix(hash, cookie.getCommentURL());
+		int flags = cookie.getVersion() << 3;
+		if (cookie.getSecure()) {
+			flags |= 1;
+		}
+		if (cookie.getDiscard()) {
+			flags |= 2;
+		}
+		if (cookie.getMaxAge() < 0) {
+			flags |= 4;
+		}
+		hash = (hash ^ flags) * FNV_PRIME;
+		return 0 == hash ? 1 : hash;
+	}
+
+	private static long mix(long hash, String s) {
+		if (null != s) {
+			for (int i = 0, n = s.length(); i < n; i++) {
+				hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+			}
+		}
+		// Separates fields, and tells null from empty
+		return (hash ^ (null == s ? 0x10000 : 0x10001)) * FNV_PRIME;
+	}
+
+	private static boolean isWithin(long persisted, long expiresAt,
+			long toleranceMillis) {
+		if (persisted < 0 || expiresAt < 0) {
+			return persisted == expiresAt;
+		}
+		return expiresAt >= persisted && expiresAt - persisted <= toleranceMillis;
+	}
+
+	private void rebuildHeap() {
+		PriorityQueue<Deadline> rebuilt = new PriorityQueue<Deadline>(
+				Math.max(1, live.size()));
+		for (Deadline deadline : live.values()) {
+			if (deadline.expiresAt >= 0) {
+				rebuilt.add(deadline);
+			}
+		}
+		heap = rebuilt;
+	}
+
+	/**
+	 * @return whether a tracked cookie may have expired by now. Stale
+	 *         deadlines can make this true when nothing has.
+	 */
+	boolean isDue(long now) {
+		return nextDeadline <= now;
+	}
+
+	/**
+	 * @return every tracked cookie's entry as of now, by cookie. Costs a
+	 *         volatile read, and stays as it is while tracking goes on.
+	 */
+	HashTrieMap<HttpCookie, Deadline> snapshot() {
+		return live;
+	}
+
+	/**
+	 * @return whether the cookie is tracked, that is, was added since it was
+	 *         last polled or untracked
+	 */
+	boolean isTracked(HttpCookie cookie) {
+		return live.containsKey(cookie);
+	}
+
+	/**
+	 * @return whether the cookie is tracked and persisted, that is, whether
+	 *         the jar on disk may hold it
+	 */
+	boolean isPersistent(HttpCookie cookie) {
+		Deadline deadline = live.get(cookie);
+		return null != deadline && !deadline.memoryOnly;
+	}
+
+	/**
+	 * @return the expiry instant of the cookie; for a cookie which was never
+	 *         tracked, the one its max age gives at the supplied time
+	 */
+	long expiresAt(HttpCookie cookie, long now) {
+		return expiresAt(live, cookie, now);
+	}
+
+	private static long expiresAt(HashTrieMap<HttpCookie, Deadline> live,
+			HttpCookie cookie, long now) {
+		Deadline deadline = live.get(cookie);
+		return null == deadline ? SerializableCookie.expiresAt(
+				cookie.getMaxAge(), now) : deadline.expiresAt;
+	}
+
+	/**
+	 * @return the earliest expiry instant among the cookies, Long.MAX_VALUE
+	 *         if none of them expires
+	 */
+	long earliestExpiry(List<HttpCookie> cookies, long now) {
+		HashTrieMap<HttpCookie, Deadline> live = this.live;
+		long earliest = Long.MAX_VALUE;
+		for (int i = 0, n = cookies.size(); i < n; i++) {
+			long expiresAt = expiresAt(live, cookies.get(i), now);
+			if (expiresAt >= 0 && expiresAt < earliest) {
+				earliest = expiresAt;
+			}
+		}
+		return earliest;
+	}
+
+	/**
+	 * Removes and returns every tracked cookie which has expired by the
+	 * supplied time
+	 */
+	synchronized List<Deadline> pollExpired(long now) {
+		List<Deadline> expired = null;
+		while (!heap.isEmpty() && heap.peek().expiresAt <= now) {
+			Deadline deadline = heap.poll();
+			if (live.get(deadline.cookie) == deadline) {
+				live = live.minus(deadline.cookie);
+				if (null == expired) {
+					expired = new ArrayList<Deadline>();
+				}
+				expired.add(deadline);
+			}
+		}
+		nextDeadline = heap.isEmpty() ? Long.MAX_VALUE : heap.peek().expiresAt;
+		if (null == expired) {
+			return Collections.emptyList();
+		}
+		return expired;
+	}
+
+	static final class Deadline implements Comparable<Deadline> {
+
+		final URI uri;
+		final HttpCookie cookie;
+		final long expiresAt;
+		final boolean memoryOnly;
+		final long fingerprint, persistedExpiresAt;
+
+		Deadline(URI uri, HttpCookie cookie, long expiresAt,
+				boolean memoryOnly, long fingerprint, long persistedExpiresAt) {
+			this.uri = uri;
+			this.cookie = cookie;
+			this.expiresAt = expiresAt;
+			this.memoryOnly = memoryOnly;
+			this.fingerprint = fingerprint;
+			this.persistedExpiresAt = persistedExpiresAt;
+		}
+
+		@Override
+		public int compareTo(Deadline other) {
+			return expiresAt < other.expiresAt ? -1
+					: (expiresAt == other.expiresAt ? 0 : 1);
+		}
+	}
+
+}
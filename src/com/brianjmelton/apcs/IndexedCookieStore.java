@@ -0,0 +1,339 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * An in-memory {@link CookieStore} indexing cookies in a trie of reversed
+ * host labels ("com" &rarr; "example" &rarr; "www"), with the cookies at each
+ * node bucketed by path. {@link #get(URI)} walks one node per label of the
+ * host, so its cost depends on the depth of the host name and the number of
+ * matching cookies, not on the size of the jar.
+ * <p>
+ * A cookie with a domain attribute matches that domain and every host below
+ * it, at any depth, as in Android's platform store; a cookie without one
+ * matches only the host it was set by. The JDK's store differs for version 1
+ * cookies, which it matches only one label below their domain. Secure
+ * cookies are only returned for https URIs, and when the URI has a path only
+ * cookies whose path is a prefix of it are returned.
+ *
+ * @author brianmelton
+ *
+ */
+public class IndexedCookieStore implements CookieStore {
+
+	private final Node root = new Node(null, null);
+	private final Map<HttpCookie, Entry> cookies = new HashMap<HttpCookie, Entry>();
+	private final Map<URI, Integer> uris = new LinkedHashMap<URI, Integer>();
+
+	@Override
+	public synchronized void add(URI uri, HttpCookie cookie) {
+		if (null == cookie) {
+			throw new NullPointerException("cookie is null");
+		}
+		Entry existing = cookies.remove(cookie);
+		if (null != existing) {
+			unindex(existing);
+		}
+		if (0 == cookie.getMaxAge()) {
+			return;
+		}
+
+		String domain = cookie.getDomain();
+		boolean hostOnly = null == domain;
+		String key = normalize(hostOnly ? (null == uri ? null : uri.getHost())
+				: domain);
+		Entry entry = new Entry(cookie, effectiveURI(uri), key, hostOnly);
+		cookies.put(cookie, entry);
+
+		Node node = root;
+		for (int end = key.length(); end > 0;) {
+			int dot = key.lastIndexOf('.', end - 1);
+			node = node.child(key.substring(dot + 1, end));
+			end = dot;
+		}
+		node.bucket(hostOnly, cookie.getPath(), true).add(entry);
+
+		if (null != entry.uri) {
+			Integer count = uris.get(entry.uri);
+			uris.put(entry.uri, null == count ? 1 : count + 1);
+		}
+	}
+
+	@Override
+	public synchronized List<HttpCookie> get(URI uri) {
+		if (null == uri) {
+			throw new NullPointerException("uri is null");
+		}
+		String host = normalize(uri.getHost());
+		String path = uri.getPath();
+		boolean matchAllPaths = null == path || 0 == path.length();
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+
+		List<HttpCookie> matches = new ArrayList<HttpCookie>();
+		List<Entry> expired = null;
+		Node node = root;
+		for (int end = host.length(); end > 0 && null != node;) {
+			int dot = host.lastIndexOf('.', end - 1);
+			node = node.children.get(host.substring(dot + 1, end));
+			end = dot;
+			if (null == node) {
+				break;
+			}
+			expired = collect(node.domainCookies, path, matchAllPaths, secure,
+					matches, expired);
+			if (end <= 0) {
+				expired = collect(node.hostCookies, path, matchAllPaths,
+						secure, matches, expired);
+			}
+		}
+		if (null != expired) {
+			for (Entry entry : expired) {
+				cookies.remove(entry.cookie);
+				unindex(entry);
+			}
+		}
+		return Collections.unmodifiableList(matches);
+	}
+
+	@Override
+	public synchronized List<HttpCookie> getCookies() {
+		List<HttpCookie> all = new ArrayList<HttpCookie>(cookies.size());
+		List<Entry> expired = null;
+		for (Entry entry : cookies.values()) {
+			if (entry.cookie.hasExpired()) {
+				if (null == expired) {
+					expired = new ArrayList<Entry>();
+				}
+				expired.add(entry);
+			} else {
+				all.add(entry.cookie);
+			}
+		}
+		if (null != expired) {
+			for (Entry entry : expired) {
+				cookies.remove(entry.cookie);
+				unindex(entry);
+			}
+		}
+		return Collections.unmodifiableList(all);
+	}
+
+	@Override
+	public synchronized List<URI> getURIs() {
+		return Collections.unmodifiableList(new ArrayList<URI>(uris.keySet()));
+	}
+
+	@Override
+	public synchronized boolean remove(URI uri, HttpCookie cookie) {
+		if (null == cookie) {
+			throw new NullPointerException("cookie is null");
+		}
+		Entry entry = cookies.remove(cookie);
+		if (null == entry) {
+			return false;
+		}
+		unindex(entry);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean removeAll() {
+		boolean hadCookies = !cookies.isEmpty();
+		cookies.clear();
+		uris.clear();
+		root.children.clear();
+		root.domainCookies.clear();
+		root.hostCookies.clear();
+		return hadCookies;
+	}
+
+	/**
+	 * @return the number of cookies held, expired ones included until they
+	 *         are next encountered
+	 */
+	public synchronized int size() {
+		return cookies.size();
+	}
+
+	private static List<Entry> collect(Map<String, List<Entry>> buckets,
+			String path, boolean matchAllPaths, boolean secure,
+			List<HttpCookie> matches, List<Entry> expired) {
+		if (buckets.isEmpty()) {
+			return expired;
+		}
+		for (Map.Entry<String, List<Entry>> bucket : buckets.entrySet()) {
+			String cookiePath = bucket.getKey();
+			if (!matchAllPaths && 0 != cookiePath.length()
+					&& !path.startsWith(cookiePath)) {
+				continue;
+			}
+			for (Entry entry : bucket.getValue()) {
+				if (entry.cookie.hasExpired()) {
+					if (null == expired) {
+						expired = new ArrayList<Entry>();
+					}
+					expired.add(entry);
+				} else if (secure || !entry.cookie.getSecure()) {
+					matches.add(entry.cookie);
+				}
+			}
+		}
+		return expired;
+	}
+
+	/**
+	 * Removes an entry, already taken out of {@link #cookies}, from the trie
+	 * and the URI index, pruning nodes left empty.
+	 */
+	private void unindex(Entry entry) {
+		Node node = root;
+		String key = entry.key;
+		for (int end = key.length(); end > 0 && null != node;) {
+			int dot = key.lastIndexOf('.', end - 1);
+			node = node.children.get(key.substring(dot + 1, end));
+			end = dot;
+		}
+		if (null != node) {
+			List<Entry> bucket = node.bucket(entry.hostOnly,
+					entry.cookie.getPath(), false);
+			if (null != bucket) {
+				bucket.remove(entry);
+				if (bucket.isEmpty()) {
+					Map<String, List<Entry>> buckets = entry.hostOnly ? node.hostCookies
+							: node.domainCookies;
+					buckets.remove(pathKey(entry.cookie.getPath()));
+				}
+			}
+			while (null != node.parent && node.isEmpty()) {
+				node.parent.children.remove(node.label);
+				node = node.parent;
+			}
+		}
+
+		if (null != entry.uri) {
+			Integer count = uris.get(entry.uri);
+			if (null != count) {
+				if (count <= 1) {
+					uris.remove(entry.uri);
+				} else {
+					uris.put(entry.uri, count - 1);
+				}
+			}
+		}
+	}
+
+	static String normalize(String host) {
+		if (null == host) {
+			return "";
+		}
+		int start = 0;
+		while (start < host.length() && host.charAt(start) == '.') {
+			start++;
+		}
+		return host.substring(start).toLowerCase(Locale.US);
+	}
+
+	private static String pathKey(String path) {
+		return null == path ? "" : path;
+	}
+
+	/**
+	 * The URI a cookie is listed under in {@link #getURIs()}: scheme and host
+	 * only, so that one entry covers every page of a site.
+	 */
+	static URI effectiveURI(URI uri) {
+		if (null == uri) {
+			return null;
+		}
+		try {
+			return new URI(null == uri.getScheme() ? "http" : uri.getScheme(),
+					uri.getHost(), null, null);
+		} catch (URISyntaxException e) {
+			return uri;
+		}
+	}
+
+	private static final class Entry {
+
+		final HttpCookie cookie;
+		final URI uri;
+		final String key;
+		final boolean hostOnly;
+
+		Entry(HttpCookie cookie, URI uri, String key, boolean hostOnly) {
+			this.cookie = cookie;
+			this.uri = uri;
+			this.key = key;
+			this.hostOnly = hostOnly;
+		}
+	}
+
+	private static final class Node {
+
+		final Node parent;
+		final String label;
+		final Map<String, Node> children = new HashMap<String, Node>(4);
+		final Map<String, List<Entry>> domainCookies = new HashMap<String, List<Entry>>(
+				2);
+		final Map<String, List<Entry>> hostCookies = new HashMap<String, List<Entry>>(
+				2);
+
+		Node(Node parent, String label) {
+			this.parent = parent;
+			this.label = label;
+		}
+
+		Node child(String label) {
+			Node child = children.get(label);
+			if (null == child) {
+				child = new Node(this, label);
+				children.put(label, child);
+			}
+			return child;
+		}
+
+		List<Entry> bucket(boolean hostOnly, String path, boolean create) {
+			Map<String, List<Entry>> buckets = hostOnly ? hostCookies
+					: domainCookies;
+			String key = pathKey(path);
+			List<Entry> bucket = buckets.get(key);
+			if (null == bucket && create) {
+				bucket = new ArrayList<Entry>(2);
+				buckets.put(key, bucket);
+			}
+			return bucket;
+		}
+
+		boolean isEmpty() {
+			return children.isEmpty() && domainCookies.isEmpty()
+					&& hostCookies.isEmpty();
+		}
+	}
+
+}
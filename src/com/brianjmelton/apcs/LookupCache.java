@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import com.brianjmelton.apcs.vo.CacheStats;
+
+/**
+ * Bounded, least-recently-used cache of {@link PersistentCookieStore#get(URI)}
+ * results, keyed by scheme, host and path. Entries are indexed by registrable
+ * domain so a change to one domain drops exactly that domain's entries. Each
+ * entry also carries the earliest expiry instant of its cookies, so a hit
+ * costs one comparison however many cookies it returns.
+ * <p>
+ * A lookup may be filled under one lock stripe while a change under another
+ * invalidates it, for instance a cookie set for another domain under the
+ * looked-up URI. Fills therefore take the {@link #generation()} before
+ * reading the store, and {@link #put(String, String, List, long, long)}
+ * drops a result if anything was invalidated since.
+ * 
+ * @author brianmelton
+ * 
+ */
+final class LookupCache {
+
+	private final int maxEntries;
+	private final Map<String, Set<String>> keysByDomain = new HashMap<String, Set<String>>();
+	private final LinkedHashMap<String, CachedLookup> entries;
+
+	private long hits, misses, invalidations, expirations;
+	/** Bumped by every invalidation */
+	private long generation;
+
+	LookupCache(int maxEntries) {
+		this.maxEntries = maxEntries;
+		this.entries = new LinkedHashMap<String, CachedLookup>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CachedLookup> eldest) {
+				if (size() > LookupCache.this.maxEntries) {
+					unindex(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * @param now
+	 *            wall clock time in milliseconds
+	 * @return the cached, immutable list, or null on a miss
+	 */
+	synchronized List<HttpCookie> get(String key, long now) {
+		CachedLookup entry = entries.get(key);
+		if (null == entry) {
+			misses++;
+			return null;
+		}
+		if (entry.expiresAt <= now) {
+			entries.remove(key);
+			unindex(key, entry);
+			expirations++;
+			misses++;
+			return null;
+		}
+		hits++;
+		return entry.cookies;
+	}
+
+	/**
+	 * @return the current generation, to be taken before reading the store
+	 *         for a {@link #put(String, String, List, long, long)}
+	 */
+	synchronized long generation() {
+		return generation;
+	}
+
+	/**
+	 * @param cookies
+	 *            an immutable list
+	 * @param expiresAt
+	 *            the earliest expiry instant of cookies, Long.MAX_VALUE if
+	 *            none of them expires
+	 * @param generation
+	 *            the {@link #generation()} taken before cookies were looked
+	 *            up. If it has moved on since, cookies may be stale and are
+	 *            not cached.
+	 */
+	synchronized void put(String key, String domain, List<HttpCookie> cookies,
+			long expiresAt, long generation) {
+		if (generation != this.generation) {
+			return;
+		}
+		CachedLookup previous = entries.put(key, new CachedLookup(domain,
+				cookies, expiresAt));
+		if (null != previous) {
+			unindex(key, previous);
+		}
+		Set<String> keys = keysByDomain.get(domain);
+		if (null == keys) {
+			keys = new HashSet<String>();
+			keysByDomain.put(domain, keys);
+		}
+		keys.add(key);
+	}
+
+	synchronized void invalidateDomain(String domain) {
+		generation++;
+		Set<String> keys = keysByDomain.remove(domain);
+		if (null != keys) {
+			for (String key : keys) {
+				entries.remove(key);
+			}
+			invalidations += keys.size();
+		}
+	}
+
+	synchronized void clear() {
+		generation++;
+		invalidations += entries.size();
+		entries.clear();
+		keysByDomain.clear();
+	}
+
+	synchronized CacheStats stats() {
+		return new CacheStats(hits, misses, invalidations, expirations,
+				entries.size());
+	}
+
+	static String keyOf(URI uri) {
+		String scheme = uri.getScheme();
+		String host = uri.getHost();
+		String path = uri.getPath();
+		StringBuilder key = new StringBuilder(64);
+		key.append(null == scheme ? "" : scheme.toLowerCase(Locale.US))
+				.append("://")
+				.append(null == host ? "" : host.toLowerCase(Locale.US))
+				.append(null == path ? "" : path);
+		return key.toString();
+	}
+
+	private void unindex(String key, CachedLookup entry) {
+		Set<String> keys = keysByDomain.get(entry.domain);
+		if (null != keys) {
+			keys.remove(key);
+			if (keys.isEmpty()) {
+				keysByDomain.remove(entry.domain);
+			}
+		}
+	}
+
+	private static final class CachedLookup {
+
+		final String domain;
+		final List<HttpCookie> cookies;
+		final long expiresAt;
+
+		CachedLookup(String domain, List<HttpCookie> cookies, long expiresAt) {
+			this.domain = domain;
+			this.cookies = cookies;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+}
@@ -0,0 +1,592 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * An in-memory {@link CookieStore} for very large jars, holding cookies in
+ * parallel primitive arrays rather than as objects. Each cookie is a slot:
+ * indices into a table of the names, domains, paths and other strings it
+ * shares with other cookies, its value, its absolute expiry instant and a
+ * byte of flags, some 60 bytes plus the value instead of an
+ * {@link HttpCookie} and strings of its own. {@link HttpCookie}s are only
+ * created when cookies are handed out, by {@link #get(URI)} and
+ * {@link #getCookies()}.
+ * <p>
+ * Cookies are bucketed by the domain they apply to, so {@link #get(URI)}
+ * looks up one bucket per label of the host and its cost depends on the
+ * number of matching cookies, not on the size of the jar. Matching follows
+ * {@link IndexedCookieStore}, as does identity: cookies equal by
+ * {@link HttpCookie#equals(Object)} replace each other.
+ * 
+ * @author brianmelton
+ * 
+ */
+public class PackedCookieStore implements CookieStore {
+
+	private static final int NONE = -1;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static final byte LIVE = 1;
+	private static final byte SECURE = 2;
+	private static final byte DISCARD = 4;
+	private static final byte HOST_ONLY = 8;
+	private static final byte VERSION_1 = 16;
+
+	private final Table<String> strings = new Table<String>();
+	private final Table<URI> uris = new Table<URI>();
+	private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+
+	// One element per slot. Free slots are chained through keys.
+	private int[] names, domains, paths, portlists, comments, commentURLs,
+			keys, uriIndices, hashes;
+	private String[] values;
+	private long[] expiresAt;
+	private byte[] flags;
+	private int used, size, firstFree;
+
+	/**
+	 * Slots by identity, open-addressed with linear probing; each element is
+	 * a slot plus one, 0 when empty
+	 */
+	private int[] identity;
+
+	public PackedCookieStore() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	@Override
+	public synchronized void add(URI uri, HttpCookie cookie) {
+		if (null == cookie) {
+			throw new NullPointerException("cookie is null");
+		}
+		String name = cookie.getName(), domain = cookie.getDomain(), path = cookie
+				.getPath();
+		int hash = hashOf(name, domain, path);
+		int existing = find(name, domain, path, hash);
+		if (NONE != existing) {
+			release(existing);
+		}
+		if (0 == cookie.getMaxAge()) {
+			return;
+		}
+
+		boolean hostOnly = null == domain;
+		String key = IndexedCookieStore.normalize(hostOnly ? (null == uri ? null
+				: uri.getHost())
+				: domain);
+		int slot = nextSlot();
+		names[slot] = strings.acquire(name);
+		domains[slot] = strings.acquire(domain);
+		paths[slot] = strings.acquire(path);
+		portlists[slot] = strings.acquire(cookie.getPortlist());
+		comments[slot] = strings.acquire(cookie.getComment());
+		commentURLs[slot] = strings.acquire(cookie.getCommentURL());
+		keys[slot] = strings.acquire(key);
+		uriIndices[slot] = uris.acquire(IndexedCookieStore.effectiveURI(uri));
+		hashes[slot] = hash;
+		values[slot] = cookie.getValue();
+		expiresAt[slot] = SerializableCookie.expiresAt(cookie.getMaxAge(),
+				System.currentTimeMillis());
+		byte f = LIVE;
+		if (cookie.getSecure()) {
+			f |= SECURE;
+		}
+		if (cookie.getDiscard()) {
+			f |= DISCARD;
+		}
+		if (hostOnly) {
+			f |= HOST_ONLY;
+		}
+		if (1 == cookie.getVersion()) {
+			f |= VERSION_1;
+		}
+		flags[slot] = f;
+
+		key = strings.get(keys[slot]);
+		Bucket bucket = buckets.get(key);
+		if (null == bucket) {
+			bucket = new Bucket();
+			buckets.put(key, bucket);
+		}
+		bucket.add(slot);
+		insertIdentity(slot);
+		size++;
+	}
+
+	@Override
+	public synchronized List<HttpCookie> get(URI uri) {
+		if (null == uri) {
+			throw new NullPointerException("uri is null");
+		}
+		String host = IndexedCookieStore.normalize(uri.getHost());
+		if (0 == host.length()) {
+			return Collections.emptyList();
+		}
+		String path = uri.getPath();
+		boolean matchAllPaths = null == path || 0 == path.length();
+		boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+		long now = System.currentTimeMillis();
+
+		List<HttpCookie> matches = new ArrayList<HttpCookie>();
+		Bucket expired = null;
+		for (int start = 0;;) {
+			Bucket bucket = buckets.get(0 == start ? host : host
+					.substring(start));
+			if (null != bucket) {
+				for (int i = 0; i < bucket.size; i++) {
+					int slot = bucket.slots[i];
+					if (0 != start && 0 != (flags[slot] & HOST_ONLY)) {
+						continue;
+					}
+					if (hasExpired(slot, now)) {
+						if (null == expired) {
+							expired = new Bucket();
+						}
+						expired.add(slot);
+						continue;
+					}
+					String cookiePath = strings.get(paths[slot]);
+					if (!matchAllPaths && null != cookiePath
+							&& 0 != cookiePath.length()
+							&& !path.startsWith(cookiePath)) {
+						continue;
+					}
+					if (secure || 0 == (flags[slot] & SECURE)) {
+						matches.add(view(slot, now));
+					}
+				}
+			}
+			int dot = host.indexOf('.', start);
+			if (dot < 0) {
+				break;
+			}
+			start = dot + 1;
+		}
+		releaseAll(expired);
+		return Collections.unmodifiableList(matches);
+	}
+
+	@Override
+	public synchronized List<HttpCookie> getCookies() {
+		long now = System.currentTimeMillis();
+		List<HttpCookie> all = new ArrayList<HttpCookie>(size);
+		Bucket expired = null;
+		for (int slot = 0; slot < used; slot++) {
+			if (0 == (flags[slot] & LIVE)) {
+				continue;
+			}
+			if (hasExpired(slot, now)) {
+				if (null == expired) {
+					expired = new Bucket();
+				}
+				expired.add(slot);
+			} else {
+				all.add(view(slot, now));
+			}
+		}
+		releaseAll(expired);
+		return Collections.unmodifiableList(all);
+	}
+
+	@Override
+	public synchronized List<URI> getURIs() {
+		return Collections.unmodifiableList(uris.values());
+	}
+
+	@Override
+	public synchronized boolean remove(URI uri, HttpCookie cookie) {
+		if (null == cookie) {
+			throw new NullPointerException("cookie is null");
+		}
+		String name = cookie.getName(), domain = cookie.getDomain(), path = cookie
+				.getPath();
+		int slot = find(name, domain, path, hashOf(name, domain, path));
+		if (NONE == slot) {
+			return false;
+		}
+		release(slot);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean removeAll() {
+		boolean hadCookies = 0 != size;
+		strings.clear();
+		uris.clear();
+		buckets.clear();
+		allocate(INITIAL_CAPACITY);
+		return hadCookies;
+	}
+
+	/**
+	 * @return the number of cookies held, expired ones included until they
+	 *         are next encountered
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * A cookie equal to the supplied one, made of the strings this store
+	 * already holds and without a value, for callers that need to keep
+	 * cookies in hand without keeping a second copy of the jar.
+	 * 
+	 * @return the key, or the cookie itself if this store doesn't hold it
+	 */
+	synchronized HttpCookie keyOf(HttpCookie cookie) {
+		String name = cookie.getName(), domain = cookie.getDomain(), path = cookie
+				.getPath();
+		int slot = find(name, domain, path, hashOf(name, domain, path));
+		if (NONE == slot) {
+			return cookie;
+		}
+		HttpCookie key = new HttpCookie(strings.get(names[slot]), "");
+		key.setDomain(strings.get(domains[slot]));
+		key.setPath(strings.get(paths[slot]));
+		return key;
+	}
+
+	private boolean hasExpired(int slot, long now) {
+		long expiry = expiresAt[slot];
+		return expiry >= 0 && expiry <= now;
+	}
+
+	/**
+	 * Creates the {@link HttpCookie} for a slot, with a max age of whatever
+	 * remains of its lifetime
+	 */
+	private HttpCookie view(int slot, long now) {
+		HttpCookie cookie = new HttpCookie(strings.get(names[slot]),
+				values[slot]);
+		byte f = flags[slot];
+		cookie.setDomain(strings.get(domains[slot]));
+		cookie.setPath(strings.get(paths[slot]));
+		cookie.setPortlist(strings.get(portlists[slot]));
+		cookie.setComment(strings.get(comments[slot]));
+		cookie.setCommentURL(strings.get(commentURLs[slot]));
+		cookie.setSecure(0 != (f & SECURE));
+		cookie.setDiscard(0 != (f & DISCARD));
+		cookie.setVersion(0 != (f & VERSION_1) ? 1 : 0);
+		long expiry = expiresAt[slot];
+		if (expiry < 0) {
+			cookie.setMaxAge(-1);
+		} else {
+			// round up, so a cookie with time left is not handed out expired
+			long remaining = expiry - now;
+			cookie.setMaxAge(remaining / 1000
+					+ (0 == remaining % 1000 ? 0 : 1));
+		}
+		return cookie;
+	}
+
+	private void releaseAll(Bucket slots) {
+		if (null != slots) {
+			for (int i = 0; i < slots.size; i++) {
+				release(slots.slots[i]);
+			}
+		}
+	}
+
+	/**
+	 * Empties a slot, dropping its strings and URI from the tables once no
+	 * other cookie uses them
+	 */
+	private void release(int slot) {
+		removeIdentity(slot);
+		String key = strings.get(keys[slot]);
+		Bucket bucket = buckets.get(key);
+		if (null != bucket) {
+			bucket.remove(slot);
+			if (0 == bucket.size) {
+				buckets.remove(key);
+			}
+		}
+		strings.release(names[slot]);
+		strings.release(domains[slot]);
+		strings.release(paths[slot]);
+		strings.release(portlists[slot]);
+		strings.release(comments[slot]);
+		strings.release(commentURLs[slot]);
+		strings.release(keys[slot]);
+		uris.release(uriIndices[slot]);
+		values[slot] = null;
+		flags[slot] = 0;
+		keys[slot] = firstFree;
+		firstFree = slot;
+		size--;
+	}
+
+	private int nextSlot() {
+		if (NONE != firstFree) {
+			int slot = firstFree;
+			firstFree = keys[slot];
+			return slot;
+		}
+		if (used == flags.length) {
+			grow(used + (used >> 1) + 1);
+		}
+		return used++;
+	}
+
+	private void allocate(int capacity) {
+		names = new int[capacity];
+		domains = new int[capacity];
+		paths = new int[capacity];
+		portlists = new int[capacity];
+		comments = new int[capacity];
+		commentURLs = new int[capacity];
+		keys = new int[capacity];
+		uriIndices = new int[capacity];
+		hashes = new int[capacity];
+		values = new String[capacity];
+		expiresAt = new long[capacity];
+		flags = new byte[capacity];
+		identity = new int[2 * capacity];
+		used = 0;
+		size = 0;
+		firstFree = NONE;
+	}
+
+	private void grow(int capacity) {
+		names = Arrays.copyOf(names, capacity);
+		domains = Arrays.copyOf(domains, capacity);
+		paths = Arrays.copyOf(paths, capacity);
+		portlists = Arrays.copyOf(portlists, capacity);
+		comments = Arrays.copyOf(comments, capacity);
+		commentURLs = Arrays.copyOf(commentURLs, capacity);
+		keys = Arrays.copyOf(keys, capacity);
+		uriIndices = Arrays.copyOf(uriIndices, capacity);
+		hashes = Arrays.copyOf(hashes, capacity);
+		values = Arrays.copyOf(values, capacity);
+		expiresAt = Arrays.copyOf(expiresAt, capacity);
+		flags = Arrays.copyOf(flags, capacity);
+	}
+
+	/**
+	 * @return the slot of the cookie equal, by
+	 *         {@link HttpCookie#equals(Object)}, to one with the supplied
+	 *         name, domain and path, or {@link #NONE}
+	 */
+	private int find(String name, String domain, String path, int hash) {
+		int mask = identity.length - 1;
+		for (int i = spread(hash) & mask; 0 != identity[i]; i = (i + 1) & mask) {
+			int slot = identity[i] - 1;
+			if (hashes[slot] == hash
+					&& equalsIgnoreCase(strings.get(names[slot]), name)
+					&& equalsIgnoreCase(strings.get(domains[slot]), domain)
+					&& equals(strings.get(paths[slot]), path)) {
+				return slot;
+			}
+		}
+		return NONE;
+	}
+
+	private void insertIdentity(int slot) {
+		if (2 * (size + 1) > identity.length) {
+			int[] old = identity;
+			identity = new int[2 * old.length];
+			for (int entry : old) {
+				if (0 != entry) {
+					probe(entry - 1);
+				}
+			}
+		}
+		probe(slot);
+	}
+
+	private void probe(int slot) {
+		int mask = identity.length - 1;
+		int i = spread(hashes[slot]) & mask;
+		while (0 != identity[i]) {
+			i = (i + 1) & mask;
+		}
+		identity[i] = slot + 1;
+	}
+
+	/**
+	 * Removes a slot from {@link #identity}, shifting back the entries after
+	 * it so that no probe sequence is broken
+	 */
+	private void removeIdentity(int slot) {
+		int mask = identity.length - 1;
+		int hole = spread(hashes[slot]) & mask;
+		while (identity[hole] != slot + 1) {
+			hole = (hole + 1) & mask;
+		}
+		identity[hole] = 0;
+		for (int i = (hole + 1) & mask; 0 != identity[i]; i = (i + 1) & mask) {
+			int home = spread(hashes[identity[i] - 1]) & mask;
+			// Move the entry unless its home lies after the hole
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				identity[hole] = identity[i];
+				identity[i] = 0;
+				hole = i;
+			}
+		}
+	}
+
+	/**
+	 * A hash consistent with {@link HttpCookie#equals(Object)}: names and
+	 * domains compared ignoring case, paths exactly
+	 */
+	private static int hashOf(String name, String domain, String path) {
+		int hash = hashIgnoreCase(name);
+		hash = 31 * hash + hashIgnoreCase(domain);
+		return 31 * hash + (null == path ? 0 : path.hashCode());
+	}
+
+	private static int hashIgnoreCase(String s) {
+		int hash = 0;
+		if (null != s) {
+			for (int i = 0, n = s.length(); i < n; i++) {
+				hash = 31
+						* hash
+						+ Character.toLowerCase(Character.toUpperCase(s
+								.charAt(i)));
+			}
+		}
+		return hash;
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		return hash ^ (hash >>> 13);
+	}
+
+	private static boolean equalsIgnoreCase(String a, String b) {
+		return null == a ? null == b : a.equalsIgnoreCase(b);
+	}
+
+	private static boolean equals(String a, String b) {
+		return null == a ? null == b : a.equals(b);
+	}
+
+	/**
+	 * The slots of the cookies applying to one domain or host
+	 */
+	private static final class Bucket {
+
+		int[] slots = new int[4];
+		int size;
+
+		void add(int slot) {
+			if (size == slots.length) {
+				slots = Arrays.copyOf(slots, 2 * size);
+			}
+			slots[size++] = slot;
+		}
+
+		void remove(int slot) {
+			for (int i = 0; i < size; i++) {
+				if (slots[i] == slot) {
+					slots[i] = slots[--size];
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Distinct values, each stored once and reference counted by the slots
+	 * using it. Free entries are chained through their counts.
+	 */
+	private static final class Table<T> {
+
+		private final Map<T, Integer> indices = new HashMap<T, Integer>();
+		private Object[] values = new Object[INITIAL_CAPACITY];
+		private int[] counts = new int[INITIAL_CAPACITY];
+		private int used;
+		private int firstFree = NONE;
+
+		/**
+		 * @return the index of the value, counting one more use of it;
+		 *         {@link #NONE} for null
+		 */
+		int acquire(T value) {
+			if (null == value) {
+				return NONE;
+			}
+			Integer index = indices.get(value);
+			if (null != index) {
+				counts[index]++;
+				return index;
+			}
+			int i;
+			if (NONE != firstFree) {
+				i = firstFree;
+				firstFree = counts[i];
+			} else {
+				if (used == values.length) {
+					values = Arrays.copyOf(values, 2 * used);
+					counts = Arrays.copyOf(counts, 2 * used);
+				}
+				i = used++;
+			}
+			values[i] = value;
+			counts[i] = 1;
+			indices.put(value, i);
+			return i;
+		}
+
+		void release(int index) {
+			if (NONE != index && 0 == --counts[index]) {
+				indices.remove(values[index]);
+				values[index] = null;
+				counts[index] = firstFree;
+				firstFree = index;
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		T get(int index) {
+			return NONE == index ? null : (T) values[index];
+		}
+
+		@SuppressWarnings("unchecked")
+		List<T> values() {
+			List<T> live = new ArrayList<T>(indices.size());
+			for (int i = 0; i < used; i++) {
+				if (null != values[i]) {
+					live.add((T) values[i]);
+				}
+			}
+			return live;
+		}
+
+		void clear() {
+			indices.clear();
+			values = new Object[INITIAL_CAPACITY];
+			counts = new int[INITIAL_CAPACITY];
+			used = 0;
+			firstFree = NONE;
+		}
+	}
+
+}
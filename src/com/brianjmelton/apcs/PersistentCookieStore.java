@@ -16,20 +16,57 @@
 
 package com.brianjmelton.apcs;
 
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
 import java.net.CookieStore;
 import java.net.HttpCookie;
 import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
 import android.util.Log;
 
+import com.brianjmelton.apcs.api.CookieStoreMetrics;
+import com.brianjmelton.apcs.api.CookieStoreMetrics.Operation;
+import com.brianjmelton.apcs.api.CookieVisitor;
+import com.brianjmelton.apcs.api.IncrementalPersister;
 import com.brianjmelton.apcs.api.PersistenceExceptionHandler;
 import com.brianjmelton.apcs.api.Persister;
+import com.brianjmelton.apcs.api.SharedPersister;
+import com.brianjmelton.apcs.api.SizedPersister;
+import com.brianjmelton.apcs.api.StreamingPersister;
 import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.util.Domains;
+import com.brianjmelton.apcs.util.HashTrieMap;
 import com.brianjmelton.apcs.util.SerializableHttpCookieAdapter;
+import com.brianjmelton.apcs.util.StringPool;
+import com.brianjmelton.apcs.vo.CacheStats;
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.EvictionStats;
 import com.brianjmelton.apcs.vo.SerializableCookie;
+import com.brianjmelton.apcs.vo.TierStats;
 
 /**
  * Thread-safe Binder to an instance of {@link CookieStore}, delegates to a
@@ -38,24 +75,159 @@ import com.brianjmelton.apcs.vo.SerializableCookie;
  * @author brianmelton
  * 
  */
-public class PersistentCookieStore implements CookieStore {
+public class PersistentCookieStore implements CookieStore, Closeable {
 
 	private final CookieStore store;
 	private final Persister persister;
 	private final PersistenceExceptionHandler exceptionHandler;
 	private final String LOG_TAG;
 	private final boolean logVerbose, logErrors;
+	private final WriteBehindWriter writeBehind;
+	private final IncrementalPersister incrementalPersister;
+	private final SharedPersister sharedPersister;
+
+	/**
+	 * Changes not yet handed to the {@link IncrementalPersister}, guarded by
+	 * this object's monitor
+	 */
+	private List<CookieDelta> pendingDeltas;
+	/**
+	 * {@link CookieDelta#identityOf(URI, SerializableCookie)} of each cookie
+	 * with a pending delta, and whether a clear is pending, guarded by this
+	 * object's monitor
+	 */
+	private Set<String> pendingIdentities;
+	private boolean pendingClear;
+	private boolean needsFullPersist;
+
+	/**
+	 * Restored cookies not yet imported, grouped by
+	 * {@link Domains#registrableDomain(String)}. Published by the restore
+	 * worker before {@link #restoreParsed} opens, guarded by this object's
+	 * monitor afterwards.
+	 */
+	private Map<String, Map<URI, List<SerializableCookie>>> pendingRestore;
+	private final CountDownLatch restoreParsed;
+	private final FutureTask<Void> restoreTask;
+	private volatile boolean restoreComplete;
+	private boolean persistAfterRestore;
+
+	private final StripedLock locks;
+	private final LookupCache lookupCache;
+	private final ExpiryIndex expiry = new ExpiryIndex();
+	/**
+	 * Names, domains, paths and port lists of restored cookies, so that the
+	 * cookies of a domain share one copy of each
+	 */
+	private final StringPool strings = new StringPool();
+	private final CookieLimiter limiter;
+	private final DomainTiers tiers;
+	private final ColdSegment segment;
+	private final boolean memoryOnlySessions;
+	private final long unchangedToleranceMillis;
+	private final AtomicLong skippedWrites = new AtomicLong();
+	private final CookieStoreMetrics metrics;
+	private final ScheduledFuture<?> expirySweep;
+	private final Object persistLock = new Object();
+	/** Guarded by this object's monitor */
+	private long mutationCount;
+	/** Guarded by {@link #persistLock} */
+	private long persistedCount;
 
 	protected PersistentCookieStore(CookieStore store, Persister persister,
 			PersistenceExceptionHandler exceptionHandler, String LOG_TAG,
 			boolean logVerbose, boolean logErrors) {
-		this.store = store;
-		this.persister = persister;
-		this.exceptionHandler = exceptionHandler;
-		this.LOG_TAG = LOG_TAG;
-		this.logVerbose = logVerbose;
-		this.logErrors = logErrors;
-		restore();
+		this(Builder.of(store, persister, exceptionHandler, LOG_TAG,
+				logVerbose, logErrors));
+	}
+
+	/**
+	 * Constructs a new PersistentCookieStore from an already validated
+	 * {@link Builder}
+	 * 
+	 * @param builder
+	 */
+	protected PersistentCookieStore(Builder builder) {
+		this.store = builder.store;
+		this.persister = builder.persister;
+		this.exceptionHandler = builder.exceptionHandler;
+		this.LOG_TAG = builder.logTag;
+		this.logVerbose = builder.logVerbose;
+		this.logErrors = builder.logErrors;
+		this.locks = new StripedLock(builder.lockStripes);
+		this.lookupCache = builder.lookupCacheSize > 0 ? new LookupCache(
+				builder.lookupCacheSize) : null;
+		this.metrics = builder.metrics;
+		this.memoryOnlySessions = builder.memoryOnlySessions;
+		this.unchangedToleranceMillis = builder.unchangedToleranceMillis;
+		this.limiter = builder.maxCookies > 0 ? new CookieLimiter(
+				builder.maxCookies, builder.maxCookiesPerDomain) : null;
+		if (null != builder.segmentFile) {
+			this.tiers = new DomainTiers(builder.maxResidentBytes);
+			this.segment = new ColdSegment(builder.segmentFile);
+		} else {
+			this.tiers = null;
+			this.segment = null;
+		}
+		if (null != builder.writeBehindExecutor) {
+			this.writeBehind = new WriteBehindWriter(this,
+					builder.writeBehindExecutor, builder.debounceMillis,
+					builder.maxDelayMillis);
+		} else {
+			this.writeBehind = null;
+		}
+		if (persister instanceof IncrementalPersister) {
+			this.incrementalPersister = (IncrementalPersister) persister;
+			this.pendingDeltas = new ArrayList<CookieDelta>();
+			this.pendingIdentities = new HashSet<String>();
+		} else {
+			this.incrementalPersister = null;
+		}
+		this.sharedPersister = persister instanceof SharedPersister ? (SharedPersister) persister
+				: null;
+		if (adoptStoredCookies() && null != incrementalPersister) {
+			// The journal knows nothing of them
+			needsFullPersist = true;
+		}
+		if (null != builder.restoreExecutor) {
+			this.restoreParsed = new CountDownLatch(1);
+			this.restoreTask = new FutureTask<Void>(new Callable<Void>() {
+				@Override
+				public Void call() {
+					restoreInBackground();
+					return null;
+				}
+			});
+			builder.restoreExecutor.execute(restoreTask);
+		} else {
+			this.restoreParsed = new CountDownLatch(0);
+			this.restoreTask = new FutureTask<Void>(new Runnable() {
+				@Override
+				public void run() {
+					restore();
+				}
+			}, null);
+			restoreTask.run();
+			this.restoreComplete = true;
+			// The limits may have been lowered since the jar was persisted
+			long eviction = evictOverflow();
+			if (0 != eviction) {
+				onMutation(eviction);
+			}
+			spillColdDomains();
+		}
+		if (null != builder.expiryScheduler) {
+			this.expirySweep = builder.expiryScheduler.scheduleWithFixedDelay(
+					new Runnable() {
+						@Override
+						public void run() {
+							expireCookies();
+						}
+					}, builder.expiryPeriodMillis, builder.expiryPeriodMillis,
+					TimeUnit.MILLISECONDS);
+		} else {
+			this.expirySweep = null;
+		}
 	}
 
 	/**
@@ -69,6 +241,32 @@ public class PersistentCookieStore implements CookieStore {
 		private PersistenceExceptionHandler exceptionHandler;
 		private String logTag;
 		private boolean logVerbose, logErrors;
+		private Executor writeBehindExecutor;
+		private long debounceMillis, maxDelayMillis;
+		private Executor restoreExecutor;
+		private int lockStripes = 1;
+		private int lookupCacheSize;
+		private int maxCookies, maxCookiesPerDomain;
+		private File segmentFile;
+		private long maxResidentBytes;
+		private boolean memoryOnlySessions;
+		private long unchangedToleranceMillis = -1;
+		private CookieStoreMetrics metrics;
+		private ScheduledExecutorService expiryScheduler;
+		private long expiryPeriodMillis;
+
+		private static Builder of(CookieStore store, Persister persister,
+				PersistenceExceptionHandler exceptionHandler, String logTag,
+				boolean logVerbose, boolean logErrors) {
+			Builder builder = new Builder();
+			builder.store = store;
+			builder.persister = persister;
+			builder.exceptionHandler = exceptionHandler;
+			builder.logTag = logTag;
+			builder.logVerbose = logVerbose;
+			builder.logErrors = logErrors;
+			return builder;
+		}
 
 		/**
 		 * The in-memory CookieStore this PersistentCookieStore will bind to in
@@ -154,6 +352,241 @@ public class PersistentCookieStore implements CookieStore {
 			return this;
 		}
 
+		/**
+		 * Persist in the background instead of on every mutating call.
+		 * Mutations only mark the store dirty; a worker on the supplied
+		 * {@link Executor} writes a single snapshot once no mutation has
+		 * happened for debounceMillis, or at the latest maxDelayMillis after
+		 * the first unwritten mutation. Call
+		 * {@link PersistentCookieStore#flush()} or
+		 * {@link PersistentCookieStore#close()} to force pending changes out.
+		 * 
+		 * @param executor
+		 *            the {@link Executor} the writer runs on. A worker holds
+		 *            one of its threads for the length of a debounce window,
+		 *            unless it is a {@link ScheduledExecutorService}, which
+		 *            runs the worker again at the end of the window instead.
+		 * @param debounceMillis
+		 *            quiet period after the last mutation before writing
+		 * @param maxDelayMillis
+		 *            upper bound on how long a mutation may stay unwritten
+		 * @return a reference to this Builder
+		 */
+		public Builder writeBehind(Executor executor, long debounceMillis,
+				long maxDelayMillis) {
+			if (null == executor) {
+				throw new IllegalArgumentException("Executor cannot be null");
+			}
+			if (debounceMillis < 0 || maxDelayMillis < debounceMillis) {
+				throw new IllegalArgumentException(
+						"Require 0 <= debounceMillis <= maxDelayMillis");
+			}
+			this.writeBehindExecutor = executor;
+			this.debounceMillis = debounceMillis;
+			this.maxDelayMillis = maxDelayMillis;
+			return this;
+		}
+
+		/**
+		 * Restore on the supplied {@link Executor} instead of in the
+		 * constructor, so the store can be handed out immediately. Until the
+		 * restore finishes, a call touching a domain which has not been
+		 * loaded yet loads that domain first; calls needing every cookie,
+		 * such as {@link PersistentCookieStore#getCookies()}, finish the
+		 * restore on the calling thread.
+		 * 
+		 * @param executor
+		 * @return a reference to this Builder
+		 * @see PersistentCookieStore#getRestoreFuture()
+		 */
+		public Builder restoreAsync(Executor executor) {
+			if (null == executor) {
+				throw new IllegalArgumentException("Executor cannot be null");
+			}
+			this.restoreExecutor = executor;
+			return this;
+		}
+
+		/**
+		 * Split the store's lock into stripes by registrable domain, so that
+		 * mutations of unrelated domains don't wait for each other. Reads of
+		 * a single domain share its stripe; reads of the whole store and
+		 * persist snapshots take every stripe shared, and so see a consistent
+		 * view. The wrapped {@link CookieStore} must be safe for concurrent
+		 * use by itself, as the {@link CookieStore} contract requires, and
+		 * only scales as far as its own locking does.
+		 * 
+		 * @param stripes
+		 *            the number of stripes, 1 by default
+		 * @return a reference to this Builder
+		 */
+		public Builder lockStripes(int stripes) {
+			if (stripes < 1) {
+				throw new IllegalArgumentException(
+						"Stripe count must be positive");
+			}
+			this.lockStripes = stripes;
+			return this;
+		}
+
+		/**
+		 * Cache the results of {@link PersistentCookieStore#get(URI)} by
+		 * scheme, host and path. An entry is dropped when a cookie of its
+		 * registrable domain is added or removed, or when one of its cookies
+		 * expires. Cached lists are immutable and shared between callers.
+		 * 
+		 * @param maxEntries
+		 *            the least recently used entries beyond this are evicted
+		 * @return a reference to this Builder
+		 * @see PersistentCookieStore#getLookupCacheStats()
+		 */
+		public Builder cacheLookups(int maxEntries) {
+			if (maxEntries < 1) {
+				throw new IllegalArgumentException(
+						"Cache size must be positive");
+			}
+			this.lookupCacheSize = maxEntries;
+			return this;
+		}
+
+		/**
+		 * Bound the jar. Adding a cookie to a domain already holding
+		 * maxCookiesPerDomain cookies evicts the domain's least recently used
+		 * cookie; adding one to a jar already holding maxCookies evicts the
+		 * least recently used cookie overall. A cookie counts as used when it
+		 * is set or returned by {@link PersistentCookieStore#get(URI)}.
+		 * Domains are registrable domains. RFC 6265 asks for room for at
+		 * least 3000 cookies, and 50 per domain.
+		 * 
+		 * @param maxCookies
+		 * @param maxCookiesPerDomain
+		 * @return a reference to this Builder
+		 * @see PersistentCookieStore#getEvictionStats()
+		 */
+		public Builder limitCookies(int maxCookies, int maxCookiesPerDomain) {
+			if (maxCookies < 1 || maxCookiesPerDomain < 1) {
+				throw new IllegalArgumentException(
+						"Cookie limits must be positive");
+			}
+			this.maxCookies = maxCookies;
+			this.maxCookiesPerDomain = maxCookiesPerDomain;
+			return this;
+		}
+
+		/**
+		 * Keep only the most recently used registrable domains in memory, up
+		 * to an estimate of the heap their cookies take, and move the others
+		 * to an indexed segment file. A lookup of a domain which is on disk
+		 * reads it back in on the calling thread; a write spills domains on
+		 * the calling thread. Reading the whole jar, or persisting it other
+		 * than through an {@link IncrementalPersister}, reads the segment as
+		 * well. The segment is scratch space, discarded when a store starts:
+		 * the {@link Persister} still holds every cookie. Memory-only cookies
+		 * are never spilled. Restore with {@link #restoreAsync(Executor)} to
+		 * keep the restore itself within the budget.
+		 * <p>
+		 * Can't be combined with {@link #limitCookies(int, int)} or with a
+		 * {@link PackedCookieStore}, which doesn't keep cookies as objects.
+		 * 
+		 * @param segmentFile
+		 *            the scratch file to keep cold domains in
+		 * @param maxResidentBytes
+		 *            the budget for the cookies held in memory
+		 * @return a reference to this Builder
+		 * @see PersistentCookieStore#getTierStats()
+		 */
+		public Builder tierColdDomains(File segmentFile, long maxResidentBytes) {
+			if (null == segmentFile) {
+				throw new IllegalArgumentException(
+						"Segment file cannot be null");
+			}
+			if (maxResidentBytes <= 0) {
+				throw new IllegalArgumentException(
+						"Memory budget must be positive");
+			}
+			this.segmentFile = segmentFile;
+			this.maxResidentBytes = maxResidentBytes;
+			return this;
+		}
+
+		/**
+		 * Keep session cookies, those without a max age or marked discard, in
+		 * memory only. They are never handed to the {@link Persister}, and
+		 * adding or removing one writes nothing, unless it replaces a
+		 * persisted cookie of the same name, domain and path.
+		 * 
+		 * @return a reference to this Builder
+		 */
+		public Builder keepSessionCookiesInMemory() {
+			this.memoryOnlySessions = true;
+			return this;
+		}
+
+		/**
+		 * Don't persist when a cookie is set again exactly as it was, as
+		 * servers tend to do on every response. Re-setting a cookie with a
+		 * max age moves its expiry forward, so an otherwise identical cookie
+		 * still counts as unchanged while its expiry stays within
+		 * toleranceMillis of the one last persisted; after a restart it then
+		 * expires up to that much early.
+		 * 
+		 * @param toleranceMillis
+		 *            0 to only skip cookies whose expiry has not moved at all
+		 * @return a reference to this Builder
+		 * @see PersistentCookieStore#getSkippedWriteCount()
+		 */
+		public Builder skipUnchangedCookies(long toleranceMillis) {
+			if (toleranceMillis < 0) {
+				throw new IllegalArgumentException(
+						"Tolerance cannot be negative");
+			}
+			this.unchangedToleranceMillis = toleranceMillis;
+			return this;
+		}
+
+		/**
+		 * Report operation timings and jar sizes to the supplied
+		 * {@link CookieStoreMetrics}. Nothing is measured by default. Jar
+		 * sizes are reported on restore and on full snapshots only, not when
+		 * an {@link IncrementalPersister} appends deltas.
+		 * 
+		 * @param metrics
+		 * @return a reference to this Builder
+		 * @see com.brianjmelton.apcs.api.HistogramCookieStoreMetrics
+		 */
+		public Builder reportMetricsTo(CookieStoreMetrics metrics) {
+			if (null == metrics) {
+				throw new IllegalArgumentException("Metrics cannot be null");
+			}
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * Also remove expired cookies on the supplied scheduler, rather than
+		 * only when the store is next used. Either way a sweep only visits
+		 * the cookies which have expired.
+		 * 
+		 * @param scheduler
+		 * @param periodMillis
+		 *            delay between sweeps
+		 * @return a reference to this Builder
+		 */
+		public Builder expireInBackground(ScheduledExecutorService scheduler,
+				long periodMillis) {
+			if (null == scheduler) {
+				throw new IllegalArgumentException(
+						"Scheduler cannot be null");
+			}
+			if (periodMillis <= 0) {
+				throw new IllegalArgumentException(
+						"Sweep period must be positive");
+			}
+			this.expiryScheduler = scheduler;
+			this.expiryPeriodMillis = periodMillis;
+			return this;
+		}
+
 		/**
 		 * Creates a {@link PersistentCookieStore} with the arguments supplied
 		 * to this {@link Builder}
@@ -165,8 +598,7 @@ public class PersistentCookieStore implements CookieStore {
 			if (logVerbose) {
 				Log.v(logTag, "Creating new PersistentCookieStore...");
 			}
-			return new PersistentCookieStore(store, persister,
-					exceptionHandler, logTag, logVerbose, logErrors);
+			return new PersistentCookieStore(this);
 		}
 
 		/**
@@ -182,6 +614,10 @@ public class PersistentCookieStore implements CookieStore {
 				msg = "ExceptionHandler ";
 			} else if (null == logTag) {
 				msg = "LOG_TAG ";
+			} else if (null != segmentFile
+					&& (maxCookies > 0 || store instanceof PackedCookieStore)) {
+				throw new IllegalStateException(
+						"Tiering cannot be combined with cookie limits or a PackedCookieStore.");
 			} else {
 				return;
 			}
@@ -190,19 +626,78 @@ public class PersistentCookieStore implements CookieStore {
 	}
 
 	@Override
-	public synchronized void add(URI uri, HttpCookie cookie) {
+	public void add(URI uri, HttpCookie cookie) {
 		if (logVerbose) {
 			Log.i(LOG_TAG, "add(URI " + uri + ", HttpCookie " + cookie + ")");
 		}
 
-		store.add(uri, cookie);
-
-		persist();
+		long start = startTimer();
+		mergeSharedChanges();
+		expireCookies();
+		long mutation;
+		long fingerprint = fingerprintOf(uri, cookie);
+		String domain = Domains.registrableDomain(uri, cookie);
+		Lock lock = locks.writeLock(domain);
+		lock.lock();
+		try {
+			mutation = addLocked(uri, cookie, domain, fingerprint);
+		} finally {
+			lock.unlock();
+		}
+		mutation = Math.max(mutation, evictOverflow());
+		if (0 != mutation) {
+			onMutation(mutation);
+		}
+		spillColdDomains();
+		stopTimer(Operation.ADD, start);
 	}
 
 	@Override
 	public List<HttpCookie> get(URI uri) {
-		List<HttpCookie> cookies = store.get(uri);
+		long start = startTimer();
+		ensureRestored(uri, null);
+		mergeSharedChanges();
+		expireCookies();
+		List<HttpCookie> cookies;
+		String domain = Domains.registrableDomain(uri);
+		Lock lock = locks.readLock(domain);
+		while (true) {
+			if (null != tiers) {
+				pageIn(domain);
+			}
+			lock.lock();
+			if (null == segment || !segment.contains(domain)) {
+				break;
+			}
+			// Spilled again before the stripe could be taken
+			lock.unlock();
+		}
+		try {
+			if (null == lookupCache) {
+				cookies = store.get(uri);
+			} else {
+				// The stripe keeps out mutations of this domain only; the
+				// generation catches those under other stripes, such as a
+				// cookie for another domain set under this URI
+				String key = LookupCache.keyOf(uri);
+				long now = System.currentTimeMillis();
+				cookies = lookupCache.get(key, now);
+				if (null == cookies) {
+					long generation = lookupCache.generation();
+					cookies = Collections
+							.unmodifiableList(new ArrayList<HttpCookie>(store
+									.get(uri)));
+					lookupCache.put(key, domain, cookies,
+							expiry.earliestExpiry(cookies, now), generation);
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (null != limiter) {
+			limiter.touch(cookies);
+		}
+		stopTimer(Operation.GET, start);
 
 		if (logVerbose) {
 			Log.i(LOG_TAG, "get(URI " + uri + ") - " + cookies);
@@ -213,7 +708,19 @@ public class PersistentCookieStore implements CookieStore {
 
 	@Override
 	public List<HttpCookie> getCookies() {
-		List<HttpCookie> cookies = store.getCookies();
+		ensureRestored();
+		mergeSharedChanges();
+		expireCookies();
+		List<HttpCookie> cookies;
+		locks.lockAllShared();
+		try {
+			cookies = store.getCookies();
+			if (null != segment && 0 != segment.size()) {
+				cookies = withColdCookies(cookies);
+			}
+		} finally {
+			locks.unlockAllShared();
+		}
 
 		if (logVerbose) {
 			Log.i(LOG_TAG, "getCookies() - " + cookies);
@@ -224,7 +731,19 @@ public class PersistentCookieStore implements CookieStore {
 
 	@Override
 	public List<URI> getURIs() {
-		List<URI> uris = store.getURIs();
+		ensureRestored();
+		mergeSharedChanges();
+		expireCookies();
+		List<URI> uris;
+		locks.lockAllShared();
+		try {
+			uris = store.getURIs();
+			if (null != segment && 0 != segment.size()) {
+				uris = withColdURIs(uris);
+			}
+		} finally {
+			locks.unlockAllShared();
+		}
 
 		if (logVerbose) {
 			Log.i(LOG_TAG, "getURIs() - " + uris.toString());
@@ -234,84 +753,1407 @@ public class PersistentCookieStore implements CookieStore {
 	}
 
 	@Override
-	public synchronized boolean remove(URI uri, HttpCookie cookie) {
-		boolean removed = store.remove(uri, cookie);
+	public boolean remove(URI uri, HttpCookie cookie) {
+		long start = startTimer();
+		mergeSharedChanges();
+		long mutation;
+		String domain = Domains.registrableDomain(uri, cookie);
+		Lock lock = locks.writeLock(domain);
+		lock.lock();
+		try {
+			mutation = removeLocked(uri, cookie, domain);
+		} finally {
+			lock.unlock();
+		}
+		boolean removed = mutation >= 0;
 
 		if (logVerbose) {
 			Log.i(LOG_TAG, "remove(URI " + uri + ", HttpCookie " + cookie
 					+ ") - " + removed);
 		}
 
-		if (removed) {
-			persist();
+		if (0 < mutation) {
+			onMutation(mutation);
 		}
+		stopTimer(Operation.REMOVE, start);
 
 		return removed;
 	}
 
-	@Override
-	public synchronized boolean removeAll() {
-		boolean allRemoved = store.removeAll();
-
-		if (logVerbose) {
-			Log.i(LOG_TAG, "removeAll() - " + allRemoved);
+	/**
+	 * Sets every cookie of the map as {@link #add(URI, HttpCookie)} would, but
+	 * taking the locks and persisting once for all of them
+	 * 
+	 * @param cookies
+	 *            the cookies to set, by the URI each was received from
+	 */
+	public void addAll(Map<URI, List<HttpCookie>> cookies) {
+		Batch batch = beginBatch();
+		for (Map.Entry<URI, List<HttpCookie>> entry : cookies.entrySet()) {
+			for (HttpCookie cookie : entry.getValue()) {
+				batch.add(entry.getKey(), cookie);
+			}
 		}
+		batch.commit();
+	}
 
-		if (allRemoved) {
-			persist();
+	/**
+	 * Starts an edit whose changes are applied together and persisted once,
+	 * on {@link Batch#commit()}
+	 * 
+	 * @return an empty {@link Batch}
+	 */
+	public Batch beginBatch() {
+		return new Batch();
+	}
+
+	/**
+	 * Changes to a {@link PersistentCookieStore}, queued until
+	 * {@link #commit()} applies them in order while holding every stripe, then
+	 * persists once. Importing a whole session this way costs one write
+	 * instead of one per cookie. Not thread safe, and good for one commit.
+	 */
+	public final class Batch {
+
+		private final List<URI> uris = new ArrayList<URI>();
+		private final List<HttpCookie> cookies = new ArrayList<HttpCookie>();
+		private final BitSet removals = new BitSet();
+		private boolean committed;
+
+		private Batch() {
 		}
 
-		return allRemoved;
-	}
+		/**
+		 * Queues setting a cookie, as {@link PersistentCookieStore#add(URI,
+		 * HttpCookie)} would
+		 * 
+		 * @return this
+		 */
+		public Batch add(URI uri, HttpCookie cookie) {
+			return queue(uri, cookie, false);
+		}
 
-	private void persist() {
-		try {
-			persister.persist(exportCookies());
-		} catch (PersistenceException e) {
+		/**
+		 * Queues removing a cookie, as
+		 * {@link PersistentCookieStore#remove(URI, HttpCookie)} would
+		 * 
+		 * @return this
+		 */
+		public Batch remove(URI uri, HttpCookie cookie) {
+			return queue(uri, cookie, true);
+		}
 
-			if (logErrors) {
-				e.printStackTrace();
+		/**
+		 * Applies the queued changes and persists them
+		 */
+		public void commit() {
+			if (committed) {
+				throw new IllegalStateException("Batch already committed.");
 			}
+			committed = true;
+			apply(this);
+		}
 
-			exceptionHandler.onPersistFailure(new PersistenceException(e));
+		private Batch queue(URI uri, HttpCookie cookie, boolean removal) {
+			if (committed) {
+				throw new IllegalStateException("Batch already committed.");
+			}
+			if (null == cookie) {
+				throw new IllegalArgumentException("Cookie cannot be null");
+			}
+			if (removal) {
+				removals.set(cookies.size());
+			}
+			uris.add(uri);
+			cookies.add(cookie);
+			return this;
 		}
 	}
 
-	private void restore() {
+	private void apply(Batch batch) {
+		if (logVerbose) {
+			Log.i(LOG_TAG, "commit() - " + batch.cookies.size() + " changes");
+		}
+
+		long start = startTimer();
+		mergeSharedChanges();
+		expireCookies();
+		long mutation = 0;
+		locks.lockAllExclusive();
 		try {
-			importCookies(persister.restore());
-		} catch (PersistenceException e) {
+			for (int i = 0, n = batch.cookies.size(); i < n; i++) {
+				URI uri = batch.uris.get(i);
+				HttpCookie cookie = batch.cookies.get(i);
+				String domain = Domains.registrableDomain(uri, cookie);
+				long applied = batch.removals.get(i) ? removeLocked(uri,
+						cookie, domain) : addLocked(uri, cookie, domain,
+						fingerprintOf(uri, cookie));
+				mutation = Math.max(mutation, applied);
+			}
+		} finally {
+			locks.unlockAllExclusive();
+		}
+		mutation = Math.max(mutation, evictOverflow());
+		if (0 != mutation) {
+			onMutation(mutation);
+		}
+		spillColdDomains();
+		stopTimer(Operation.ADD, start);
+	}
 
-			if (logErrors) {
-				e.printStackTrace();
+	/**
+	 * Sets a cookie in the wrapped store and queues the change for
+	 * persisting. Called holding the cookie's stripe.
+	 * 
+	 * @param fingerprint
+	 *            {@link #fingerprintOf(URI, HttpCookie)}
+	 * @return the mutation's sequence number, 0 if nothing persisted changed
+	 */
+	private long addLocked(URI uri, HttpCookie cookie, String domain,
+			long fingerprint) {
+		ensureRestored(uri, cookie);
+		pageInLocked(domain);
+		boolean memoryOnly = isMemoryOnly(cookie);
+		boolean unchanged = false;
+		boolean wasPersisted = isPersisted(cookie);
+		store.add(uri, cookie);
+		if (0 == cookie.getMaxAge()) {
+			// Setting an expired cookie deletes it
+			expiry.untrack(cookie);
+			if (null != limiter) {
+				limiter.untrack(cookie);
+			}
+			if (null != tiers) {
+				tiers.untrack(cookie);
+			}
+		} else {
+			HttpCookie tracked = trackedCookie(cookie);
+			unchanged = expiry.track(uri, tracked, SerializableCookie
+					.expiresAt(cookie.getMaxAge(), System.currentTimeMillis()),
+					memoryOnly, fingerprint, unchangedToleranceMillis);
+			if (null != limiter) {
+				limiter.track(uri, tracked, domain);
+			}
+			if (null != tiers) {
+				tiers.track(uri, tracked, domain, memoryOnly);
 			}
+		}
+		invalidateLookups(domain, uri);
 
-			exceptionHandler.onRestoreFailure(e);
+		if (unchanged && !memoryOnly) {
+			skippedWrites.incrementAndGet();
+		} else if (0 == cookie.getMaxAge() ? wasPersisted : !memoryOnly) {
+			return recordMutation(null == incrementalPersister ? null
+					: CookieDelta.add(uri, SerializableCookie.serialize(cookie)));
+		} else if (memoryOnly && wasPersisted) {
+			// A persisted cookie became a session cookie
+			return recordMutation(null == incrementalPersister ? null
+					: CookieDelta.remove(uri,
+							SerializableCookie.serialize(cookie)));
 		}
+		return 0;
 	}
 
-	private void importCookies(
-			Map<URI, List<SerializableCookie>> cookiesToRestore) {
-		Map<URI, List<HttpCookie>> restoredCookies = new HashMap<URI, List<HttpCookie>>();
-		if (null != cookiesToRestore) {
-			for (URI uri : cookiesToRestore.keySet()) {
-				restoredCookies.put(uri, SerializableHttpCookieAdapter
-						.deserialize(cookiesToRestore.get(uri)));
-			}
-			for (URI uri : restoredCookies.keySet()) {
-				for (HttpCookie cookie : restoredCookies.get(uri)) {
-					store.add(uri, cookie);
+	/**
+	 * Removes a cookie from the wrapped store and queues the change for
+	 * persisting. Called holding the cookie's stripe.
+	 * 
+	 * @return the mutation's sequence number, 0 if nothing persisted changed,
+	 *         or -1 if the store held no such cookie
+	 */
+	private long removeLocked(URI uri, HttpCookie cookie, String domain) {
+		ensureRestored(uri, cookie);
+		pageInLocked(domain);
+		boolean wasPersisted = isPersisted(cookie);
+		if (!store.remove(uri, cookie)) {
+			return -1;
+		}
+		expiry.untrack(cookie);
+		if (null != limiter) {
+			limiter.untrack(cookie);
+		}
+		if (null != tiers) {
+			tiers.untrack(cookie);
+		}
+		invalidateLookups(domain, uri);
+		if (!wasPersisted) {
+			return 0;
+		}
+		return recordMutation(null == incrementalPersister ? null
+				: CookieDelta.remove(uri, SerializableCookie.serialize(cookie)));
+	}
+
+	/**
+	 * @return {@link ExpiryIndex#fingerprintOf(URI, HttpCookie)}, or 0 unless
+	 *         {@link Builder#skipUnchangedCookies(long)} was used
+	 */
+	private long fingerprintOf(URI uri, HttpCookie cookie) {
+		return unchangedToleranceMillis < 0 ? 0 : ExpiryIndex.fingerprintOf(
+				uri, cookie);
+	}
+
+	@Override
+	public boolean removeAll() {
+		long start = startTimer();
+		boolean allRemoved;
+		long mutation = 0;
+		locks.lockAllExclusive();
+		try {
+			boolean discardedPending = false;
+			if (!restoreComplete) {
+				// Whatever has not been imported yet is removed as well
+				awaitRestoreParsed();
+				synchronized (this) {
+					if (null != pendingRestore && !pendingRestore.isEmpty()) {
+						pendingRestore.clear();
+						discardedPending = true;
+					}
 				}
 			}
+			if (null != segment && 0 != segment.size()) {
+				segment.clear();
+				discardedPending = true;
+			}
+			allRemoved = store.removeAll() || discardedPending;
+			expiry.clear();
+			if (null != limiter) {
+				limiter.clear();
+			}
+			if (null != tiers) {
+				tiers.clear();
+			}
+			if (null != lookupCache) {
+				lookupCache.clear();
+			}
+
+			if (allRemoved) {
+				mutation = recordMutation(null == incrementalPersister ? null
+						: CookieDelta.clear());
+			}
+		} finally {
+			locks.unlockAllExclusive();
+		}
+
+		if (logVerbose) {
+			Log.i(LOG_TAG, "removeAll() - " + allRemoved);
+		}
+
+		if (allRemoved) {
+			onMutation(mutation);
 		}
+		stopTimer(Operation.REMOVE, start);
 
+		return allRemoved;
 	}
 
-	private Map<URI, List<SerializableCookie>> exportCookies() {
-		Map<URI, List<SerializableCookie>> preserializedCookies = new HashMap<URI, List<SerializableCookie>>();
-		for (URI uri : store.getURIs()) {
-			preserializedCookies.put(uri,
-					SerializableHttpCookieAdapter.serialize(store.get(uri)));
+	/**
+	 * @return the lookup cache's counters, or null unless
+	 *         {@link Builder#cacheLookups(int)} was used
+	 */
+	public CacheStats getLookupCacheStats() {
+		return null == lookupCache ? null : lookupCache.stats();
+	}
+
+	/**
+	 * @return the eviction counters, or null unless
+	 *         {@link Builder#limitCookies(int, int)} was used
+	 */
+	public EvictionStats getEvictionStats() {
+		return null == limiter ? null : limiter.stats();
+	}
+
+	/**
+	 * @return the tiering counters, or null unless
+	 *         {@link Builder#tierColdDomains(File, long)} was used
+	 */
+	public TierStats getTierStats() {
+		return null == tiers ? null : tiers.stats(segment.size(),
+				segment.length());
+	}
+
+	/**
+	 * @return how many times setting a cookie skipped persisting because
+	 *         nothing persisted had changed. Always 0 unless
+	 *         {@link Builder#skipUnchangedCookies(long)} was used.
+	 */
+	public long getSkippedWriteCount() {
+		return skippedWrites.get();
+	}
+
+	/**
+	 * @return a {@link Future} completing once every persisted cookie has been
+	 *         restored. Already complete unless
+	 *         {@link Builder#restoreAsync(Executor)} was used.
+	 */
+	public Future<Void> getRestoreFuture() {
+		return restoreTask;
+	}
+
+	/**
+	 * Writes out any changes still pending in write-behind mode. Does nothing
+	 * when persisting synchronously.
+	 */
+	public void flush() {
+		awaitRestore();
+		if (null != writeBehind) {
+			writeBehind.flush();
+		}
+	}
+
+	/**
+	 * Flushes pending changes and stops the write-behind worker and background
+	 * expiry, then closes the {@link Persister} if it is {@link Closeable},
+	 * which syncs writes its sync policy left unsynced. Mutations made
+	 * after closing are persisted synchronously.
+	 */
+	@Override
+	public void close() {
+		if (null != expirySweep) {
+			expirySweep.cancel(false);
+		}
+		if (null != writeBehind) {
+			writeBehind.close();
+		}
+		if (persister instanceof Closeable) {
+			synchronized (persistLock) {
+				try {
+					((Closeable) persister).close();
+				} catch (IOException e) {
+					PersistenceException failure = new PersistenceException(e);
+
+					if (logErrors) {
+						failure.printStackTrace();
+					}
+
+					exceptionHandler.onPersistFailure(failure);
+				}
+			}
+		}
+	}
+
+	private long startTimer() {
+		return null == metrics ? 0 : System.nanoTime();
+	}
+
+	private void stopTimer(Operation operation, long start) {
+		if (null != metrics) {
+			metrics.onOperation(operation, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Removes the cookies which have expired from the wrapped store. Costs a
+	 * single volatile read when none has. Expiring a cookie is not persisted
+	 * by itself: the persisted form carries each cookie's expiry instant, so
+	 * restore skips it, and the next write leaves it out.
+	 */
+	private void expireCookies() {
+		long now = System.currentTimeMillis();
+		if (!expiry.isDue(now)) {
+			return;
+		}
+		for (ExpiryIndex.Deadline deadline : expiry.pollExpired(now)) {
+			String domain = Domains.registrableDomain(deadline.uri,
+					deadline.cookie);
+			Lock lock = locks.writeLock(domain);
+			lock.lock();
+			try {
+				// Set again since it was polled, with a fresh expiry
+				if (expiry.isTracked(deadline.cookie)) {
+					continue;
+				}
+				if (store.remove(deadline.uri, deadline.cookie)) {
+					if (null != limiter) {
+						limiter.untrack(deadline.cookie);
+					}
+					if (null != tiers) {
+						tiers.untrack(deadline.cookie);
+					}
+					invalidateLookups(domain, deadline.uri);
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Applies the changes other processes sharing the persisted jar have made
+	 * since the last check, the way restored cookies are: none of them is
+	 * persisted again. Costs a volatile read until the
+	 * {@link SharedPersister} next looks at its files.
+	 * <p>
+	 * Persisting is held off meanwhile, so every change this store hasn't
+	 * logged yet is still pending, and will land after the polled ones. The
+	 * polled ones never override those.
+	 */
+	private void mergeSharedChanges() {
+		if (null == sharedPersister || !restoreComplete
+				|| !sharedPersister.hasChanges()) {
+			return;
+		}
+		synchronized (persistLock) {
+			List<CookieDelta> changes;
+			try {
+				changes = sharedPersister.pollChanges();
+			} catch (PersistenceException e) {
+
+				if (logErrors) {
+					e.printStackTrace();
+				}
+
+				exceptionHandler.onRestoreFailure(e);
+				return;
+			}
+			if (changes.isEmpty()) {
+				return;
+			}
+			long now = System.currentTimeMillis();
+			for (CookieDelta change : changes) {
+				switch (change.getType()) {
+				case CLEAR:
+					dropPersistedCookies();
+					break;
+				case ADD:
+				case REMOVE:
+					mergeCookie(change, now);
+					break;
+				}
+			}
+			if (logVerbose) {
+				Log.i(LOG_TAG, "mergeSharedChanges() - " + changes.size()
+						+ " changes");
+			}
+		}
+		long eviction = evictOverflow();
+		if (0 != eviction) {
+			onMutation(eviction);
+		}
+		spillColdDomains();
+	}
+
+	private void mergeCookie(CookieDelta change, long now) {
+		URI uri = change.getUri();
+		SerializableCookie cookie = change.getCookie();
+		String domain = null != cookie.getDomain() ? Domains
+				.registrableDomain(cookie.getDomain()) : Domains
+				.registrableDomain(uri);
+		Lock lock = locks.writeLock(domain);
+		lock.lock();
+		try {
+			if (isUnlogged(uri, cookie)) {
+				return;
+			}
+			pageInLocked(domain);
+			if (CookieDelta.Type.ADD == change.getType()
+					&& !cookie.isExpired() && !cookie.hasExpired(now)) {
+				importCookie(uri, cookie, now);
+			} else {
+				// Removed, or set expired, which deletes it
+				HttpCookie httpCookie = SerializableHttpCookieAdapter
+						.deserialize(cookie, now);
+				if (store.remove(uri, httpCookie)) {
+					expiry.untrack(httpCookie);
+					if (null != limiter) {
+						limiter.untrack(httpCookie);
+					}
+					if (null != tiers) {
+						tiers.untrack(httpCookie);
+					}
+				}
+			}
+			invalidateLookups(domain, uri);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return whether a change to the cookie, or a clear, is waiting to be
+	 *         logged. Called holding the cookie's stripe, so none can be
+	 *         recorded meanwhile.
+	 */
+	private synchronized boolean isUnlogged(URI uri, SerializableCookie cookie) {
+		return pendingClear
+				|| pendingIdentities.contains(CookieDelta.identityOf(uri,
+						cookie));
+	}
+
+	/**
+	 * Removes every cookie the persisted jar may hold, keeping the
+	 * memory-only tier and cookies with changes waiting to be logged
+	 */
+	private void dropPersistedCookies() {
+		locks.lockAllExclusive();
+		try {
+			Set<HttpCookie> unlogged = new HashSet<HttpCookie>();
+			Set<String> unloggedDomains = new HashSet<String>();
+			synchronized (this) {
+				long now = System.currentTimeMillis();
+				for (CookieDelta delta : pendingDeltas) {
+					if (CookieDelta.Type.CLEAR == delta.getType()) {
+						// The jar is cleared after the polled changes anyway
+						return;
+					}
+					HttpCookie cookie = SerializableHttpCookieAdapter
+							.deserialize(delta.getCookie(), now);
+					unlogged.add(cookie);
+					unloggedDomains.add(Domains.registrableDomain(
+							delta.getUri(), cookie));
+				}
+			}
+			if (null != segment) {
+				// Cold domains hold nothing but persisted cookies
+				for (String domain : unloggedDomains) {
+					pageInLocked(domain);
+				}
+				segment.clear();
+			}
+			// Some stores hand out a live view
+			for (HttpCookie cookie : new ArrayList<HttpCookie>(
+					store.getCookies())) {
+				if (isPersisted(cookie) && !unlogged.contains(cookie)
+						&& store.remove(null, cookie)) {
+					expiry.untrack(cookie);
+					if (null != limiter) {
+						limiter.untrack(cookie);
+					}
+					if (null != tiers) {
+						tiers.untrack(cookie);
+					}
+				}
+			}
+			if (null != lookupCache) {
+				lookupCache.clear();
+			}
+		} finally {
+			locks.unlockAllExclusive();
+		}
+	}
+
+	/**
+	 * @return the cookie to keep in the {@link ExpiryIndex} and
+	 *         {@link CookieLimiter}: the one added, or for a
+	 *         {@link PackedCookieStore}, which doesn't keep cookies as
+	 *         objects, an equal key sharing the store's strings
+	 */
+	private HttpCookie trackedCookie(HttpCookie cookie) {
+		return store instanceof PackedCookieStore ? ((PackedCookieStore) store)
+				.keyOf(cookie) : cookie;
+	}
+
+	/**
+	 * @return whether the cookie belongs in the memory-only tier
+	 */
+	private boolean isMemoryOnly(HttpCookie cookie) {
+		return memoryOnlySessions && 0 != cookie.getMaxAge()
+				&& (cookie.getDiscard() || cookie.getMaxAge() < 0);
+	}
+
+	/**
+	 * @return whether the persisted jar may hold a cookie equal to the
+	 *         supplied one. Called holding its stripe.
+	 */
+	private boolean isPersisted(HttpCookie cookie) {
+		return !memoryOnlySessions || expiry.isPersistent(cookie);
+	}
+
+	/**
+	 * Reads a cold domain back in for a lookup, or counts the lookup as a hit.
+	 * Called without any stripe held.
+	 */
+	private void pageIn(String domain) {
+		if (!segment.contains(domain)) {
+			tiers.touch(domain);
+			return;
+		}
+		Lock lock = locks.writeLock(domain);
+		lock.lock();
+		try {
+			if (pageInLocked(domain)) {
+				tiers.recordMiss();
+			}
+		} finally {
+			lock.unlock();
+		}
+		spillColdDomains();
+	}
+
+	/**
+	 * Moves a domain's cookies from the {@link ColdSegment} back to the
+	 * wrapped store, if they are on disk. Called holding the domain's stripe
+	 * exclusively.
+	 * 
+	 * @return whether the domain was on disk
+	 */
+	private boolean pageInLocked(String domain) {
+		if (null == segment || !segment.contains(domain)) {
+			return false;
+		}
+		try {
+			importCookies(segment.take(domain));
+		} catch (IOException e) {
+
+			if (logErrors) {
+				e.printStackTrace();
+			}
+
+			exceptionHandler.onRestoreFailure(new PersistenceException(e));
+		}
+		return true;
+	}
+
+	/**
+	 * Moves the least recently used domains to the {@link ColdSegment} until
+	 * the cookies in memory are within budget. Called without any stripe
+	 * held, as the domains chosen may be any.
+	 */
+	private void spillColdDomains() {
+		if (null == tiers) {
+			return;
+		}
+		for (String domain : tiers.pollColdDomains()) {
+			Lock lock = locks.writeLock(domain);
+			lock.lock();
+			try {
+				spillLocked(domain);
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes a domain's cookies to the {@link ColdSegment}, then drops them
+	 * from the wrapped store. Not persisted, as the {@link Persister} still
+	 * holds them. Called holding the domain's stripe exclusively.
+	 */
+	private void spillLocked(String domain) {
+		// Cookies grouped under another domain's URI can land here while
+		// this one is on disk; the segment holds one extent per domain
+		pageInLocked(domain);
+		List<DomainTiers.Tracked> cookies = tiers.take(domain);
+		if (cookies.isEmpty()) {
+			return;
+		}
+		Map<URI, List<SerializableCookie>> serialized = new HashMap<URI, List<SerializableCookie>>();
+		long now = System.currentTimeMillis();
+		for (DomainTiers.Tracked tracked : cookies) {
+			long expiresAt = expiry.expiresAt(tracked.cookie, now);
+			if (expiresAt >= 0 && expiresAt <= now) {
+				continue;
+			}
+			SerializableCookie serializable = SerializableCookie
+					.serialize(tracked.cookie);
+			serializable.setExpiresAt(expiresAt);
+			List<SerializableCookie> list = serialized.get(tracked.uri);
+			if (null == list) {
+				list = new ArrayList<SerializableCookie>();
+				serialized.put(tracked.uri, list);
+			}
+			list.add(serializable);
+		}
+		try {
+			segment.put(domain, serialized);
+		} catch (IOException e) {
+			// Kept in memory instead
+			for (DomainTiers.Tracked tracked : cookies) {
+				tiers.track(tracked.uri, tracked.cookie, domain, false);
+			}
+
+			if (logErrors) {
+				e.printStackTrace();
+			}
+
+			exceptionHandler.onPersistFailure(new PersistenceException(e));
+			return;
+		}
+		for (DomainTiers.Tracked tracked : cookies) {
+			store.remove(tracked.uri, tracked.cookie);
+			expiry.untrack(tracked.cookie);
+			invalidateLookups(domain, tracked.uri);
+		}
+	}
+
+	/**
+	 * @return the cookies in memory followed by those of cold domains, which
+	 *         are read from the {@link ColdSegment} without paging them in.
+	 *         Called holding every stripe.
+	 */
+	private List<HttpCookie> withColdCookies(List<HttpCookie> resident) {
+		final List<HttpCookie> all = new ArrayList<HttpCookie>(resident);
+		final long now = System.currentTimeMillis();
+		readColdCookies(new CookieVisitor() {
+			@Override
+			public void visit(URI uri, SerializableCookie cookie) {
+				all.add(SerializableHttpCookieAdapter.deserialize(cookie, now));
+			}
+		});
+		return Collections.unmodifiableList(all);
+	}
+
+	/**
+	 * @return the URIs of the cookies in memory and of those of cold domains.
+	 *         Cold ones are listed by scheme and host, as stores list theirs,
+	 *         and left out if the store already lists their host: the
+	 *         platform store keeps listing a URI once its cookies are gone,
+	 *         always as http. Called holding every stripe.
+	 */
+	private List<URI> withColdURIs(List<URI> resident) {
+		final Set<URI> all = new LinkedHashSet<URI>(resident);
+		final Set<String> hosts = new HashSet<String>();
+		for (URI uri : resident) {
+			if (null != uri) {
+				hosts.add(IndexedCookieStore.normalize(uri.getHost()));
+			}
+		}
+		readColdCookies(new CookieVisitor() {
+			@Override
+			public void visit(URI uri, SerializableCookie cookie) {
+				if (null != uri
+						&& !hosts.contains(IndexedCookieStore.normalize(uri
+								.getHost()))) {
+					all.add(IndexedCookieStore.effectiveURI(uri));
+				}
+			}
+		});
+		return Collections.unmodifiableList(new ArrayList<URI>(all));
+	}
+
+	/**
+	 * @return whether every cold cookie was read
+	 */
+	private boolean readColdCookies(CookieVisitor visitor) {
+		try {
+			segment.read(visitor);
+			return true;
+		} catch (IOException e) {
+
+			if (logErrors) {
+				e.printStackTrace();
+			}
+
+			exceptionHandler.onRestoreFailure(new PersistenceException(e));
+			return false;
+		}
+	}
+
+	/**
+	 * Removes the cookies the {@link CookieLimiter} chose for eviction. Called
+	 * without any stripe held, as victims may belong to any domain. Unlike
+	 * expiry, eviction is persisted, or restoring would bring the cookies
+	 * back.
+	 * 
+	 * @return the sequence number of the last eviction, 0 if there was none
+	 */
+	private long evictOverflow() {
+		if (null == limiter) {
+			return 0;
+		}
+		long mutation = 0;
+		for (CookieLimiter.Tracked victim : limiter.pollVictims()) {
+			Lock lock = locks.writeLock(victim.domain);
+			lock.lock();
+			try {
+				// Set again since it was chosen
+				if (limiter.isTracked(victim.cookie)) {
+					continue;
+				}
+				boolean wasPersisted = isPersisted(victim.cookie);
+				if (store.remove(victim.uri, victim.cookie)) {
+					expiry.untrack(victim.cookie);
+					invalidateLookups(victim.domain, victim.uri);
+					if (wasPersisted) {
+						mutation = recordMutation(null == incrementalPersister ? null
+								: CookieDelta.remove(victim.uri,
+										SerializableCookie
+												.serialize(victim.cookie)));
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+		return mutation;
+	}
+
+	/**
+	 * Drops cached lookups the mutation may have changed. Called holding the
+	 * mutated domain's stripe.
+	 */
+	private void invalidateLookups(String domain, URI uri) {
+		if (null != lookupCache) {
+			lookupCache.invalidateDomain(domain);
+			String uriDomain = Domains.registrableDomain(uri);
+			if (!uriDomain.equals(domain)) {
+				lookupCache.invalidateDomain(uriDomain);
+			}
+		}
+	}
+
+	/**
+	 * Numbers a mutation and queues its delta, if any. Called holding the
+	 * mutated domain's stripe.
+	 * 
+	 * @return the mutation's sequence number
+	 */
+	private synchronized long recordMutation(CookieDelta delta) {
+		if (null != delta) {
+			pendingDeltas.add(delta);
+			if (CookieDelta.Type.CLEAR == delta.getType()) {
+				pendingClear = true;
+			} else {
+				pendingIdentities.add(CookieDelta.identityOf(delta.getUri(),
+						delta.getCookie()));
+			}
+		}
+		return ++mutationCount;
+	}
+
+	/**
+	 * Empties the queue of pending deltas. Called holding this object's
+	 * monitor.
+	 * 
+	 * @return the deltas queued until now
+	 */
+	private List<CookieDelta> takePendingDeltas() {
+		List<CookieDelta> deltas = pendingDeltas;
+		pendingDeltas = new ArrayList<CookieDelta>();
+		pendingIdentities.clear();
+		pendingClear = false;
+		return deltas;
+	}
+
+	/**
+	 * Called, without any stripe held, after the wrapped store has changed.
+	 * When persisting synchronously, a caller which finds its mutation already
+	 * written by another thread's snapshot returns without writing again, so
+	 * concurrent writers share one write instead of queueing for one each.
+	 */
+	private void onMutation(long mutation) {
+		if (null == writeBehind || !writeBehind.markDirty()) {
+			synchronized (persistLock) {
+				if (persistedCount < mutation) {
+					persistLocked();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Takes the pending deltas when the {@link Persister} accepts them, or else
+	 * a snapshot of the {@link ExpiryIndex}, which is immutable and costs a
+	 * volatile read, and serializes it without holding any lock. Tiered and
+	 * packed stores are still serialized while holding every stripe shared.
+	 * Either way the result is handed to the {@link Persister} without any
+	 * stripe held, so that neither readers nor writers wait for I/O. Writes
+	 * are serialized so that an older snapshot never lands after a newer one.
+	 */
+	void persistSnapshot() {
+		synchronized (persistLock) {
+			persistLocked();
+		}
+	}
+
+	private void persistLocked() {
+		List<CookieDelta> deltas = null;
+		long upTo;
+		synchronized (this) {
+			upTo = mutationCount;
+			if (!restoreComplete
+					&& (null == incrementalPersister || needsFullPersist)) {
+				// A snapshot now would drop every domain not imported yet
+				persistAfterRestore = true;
+				return;
+			}
+			if (null != incrementalPersister && !needsFullPersist) {
+				if (pendingDeltas.isEmpty()) {
+					return;
+				}
+				deltas = takePendingDeltas();
+			}
+		}
+		if (null != deltas) {
+			long start = startTimer();
+			append(deltas);
+			stopTimer(Operation.PERSIST, start);
+			persistedCount = upTo;
+			return;
+		}
+
+		Map<URI, List<SerializableCookie>> snapshot;
+		if (store instanceof PackedCookieStore || null != segment) {
+			// A packed store's index holds bare keys, and spills move cookies
+			// between the index and the segment, so read under the stripes
+			locks.lockAllShared();
+			try {
+				// Mutators hold a stripe while recording, so every mutation
+				// numbered by now is already part of the snapshot
+				synchronized (this) {
+					upTo = mutationCount;
+					if (null != incrementalPersister) {
+						takePendingDeltas();
+					}
+				}
+				snapshot = store instanceof PackedCookieStore ? exportStore()
+						: exportCookies(expiry.snapshot());
+			} finally {
+				locks.unlockAllShared();
+			}
+		} else {
+			HashTrieMap<HttpCookie, ExpiryIndex.Deadline> tracked;
+			synchronized (this) {
+				// Mutators update the index before recording, so every
+				// mutation numbered by now is already part of the snapshot
+				upTo = mutationCount;
+				if (null != incrementalPersister) {
+					takePendingDeltas();
+				}
+				tracked = expiry.snapshot();
+			}
+			snapshot = exportCookies(tracked);
+		}
+		if (null == snapshot) {
+			return;
+		}
+		long start = startTimer();
+		write(snapshot);
+		stopTimer(Operation.PERSIST, start);
+		if (null != metrics) {
+			int cookies = 0;
+			for (List<SerializableCookie> list : snapshot.values()) {
+				cookies += list.size();
+			}
+			metrics.onJarSize(cookies, snapshot.size());
+			if (persister instanceof SizedPersister) {
+				metrics.onSnapshotBytes(((SizedPersister) persister)
+						.getLastSnapshotBytes());
+			}
+		}
+		persistedCount = upTo;
+	}
+
+	private void append(List<CookieDelta> deltas) {
+		try {
+			incrementalPersister.append(deltas);
+		} catch (PersistenceException e) {
+
+			if (logErrors) {
+				e.printStackTrace();
+			}
+
+			// The journal no longer matches the store, start over from a full
+			// snapshot next time
+			synchronized (this) {
+				needsFullPersist = true;
+			}
+
+			exceptionHandler.onPersistFailure(new PersistenceException(e));
+		}
+	}
+
+	private void write(Map<URI, List<SerializableCookie>> snapshot) {
+		try {
+			persister.persist(snapshot);
+			if (null != incrementalPersister) {
+				synchronized (this) {
+					needsFullPersist = false;
+				}
+			}
+		} catch (PersistenceException e) {
+
+			if (logErrors) {
+				e.printStackTrace();
+			}
+
+			exceptionHandler.onPersistFailure(new PersistenceException(e));
+		}
+	}
+
+	/**
+	 * Makes sure the persisted cookies which could match the supplied URI and
+	 * cookie have been imported.
+	 */
+	private void ensureRestored(URI uri, HttpCookie cookie) {
+		if (restoreComplete) {
+			return;
+		}
+		awaitRestoreParsed();
+		synchronized (this) {
+			if (null != pendingRestore) {
+				importDomain(Domains.registrableDomain(uri));
+				if (null != cookie) {
+					importDomain(Domains.registrableDomain(uri, cookie));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Imports everything still pending on the calling thread.
+	 */
+	private void ensureRestored() {
+		if (restoreComplete) {
+			return;
+		}
+		awaitRestoreParsed();
+		synchronized (this) {
+			if (null != pendingRestore) {
+				for (Map<URI, List<SerializableCookie>> group : pendingRestore
+						.values()) {
+					importCookies(group);
+				}
+				pendingRestore.clear();
+			}
+		}
+	}
+
+	/**
+	 * Finishes an asynchronous restore on the calling thread and waits for the
+	 * restore worker to wrap up.
+	 */
+	private void awaitRestore() {
+		if (restoreComplete) {
+			return;
+		}
+		ensureRestored();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				restoreTask.get();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			} catch (ExecutionException e) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void awaitRestoreParsed() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				restoreParsed.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Called holding the monitor while a restore is in progress.
+	 */
+	private void importDomain(String domain) {
+		Map<URI, List<SerializableCookie>> group = pendingRestore
+				.remove(domain);
+		if (null != group) {
+			importCookies(group);
+		}
+	}
+
+	/**
+	 * Body of the asynchronous restore: reads everything from the
+	 * {@link Persister}, then imports it a domain at a time, releasing the
+	 * monitor in between so callers can get at domains already imported.
+	 */
+	private void restoreInBackground() {
+		long start = startTimer();
+		Map<String, Map<URI, List<SerializableCookie>>> grouped = new LinkedHashMap<String, Map<URI, List<SerializableCookie>>>();
+		try {
+			Map<URI, List<SerializableCookie>> restored = persister.restore();
+			if (null != restored) {
+				for (Map.Entry<URI, List<SerializableCookie>> entry : restored
+						.entrySet()) {
+					String domain = Domains.registrableDomain(entry.getKey());
+					Map<URI, List<SerializableCookie>> group = grouped
+							.get(domain);
+					if (null == group) {
+						group = new HashMap<URI, List<SerializableCookie>>();
+						grouped.put(domain, group);
+					}
+					group.put(entry.getKey(), entry.getValue());
+				}
+			}
+		} catch (PersistenceException e) {
+
+			if (logErrors) {
+				e.printStackTrace();
+			}
+
+			exceptionHandler.onRestoreFailure(e);
+		} finally {
+			// Never leave callers waiting, even on an unexpected failure
+			pendingRestore = grouped;
+			restoreParsed.countDown();
+		}
+
+		try {
+			while (true) {
+				synchronized (this) {
+					Iterator<Map<URI, List<SerializableCookie>>> it = pendingRestore
+							.values().iterator();
+					if (!it.hasNext()) {
+						break;
+					}
+					importCookies(it.next());
+					it.remove();
+				}
+				spillColdDomains();
+			}
+		} finally {
+			boolean persistNow;
+			synchronized (this) {
+				pendingRestore = null;
+				restoreComplete = true;
+				persistNow = persistAfterRestore;
+				persistAfterRestore = false;
+			}
+			onRestored(start);
+			if (persistNow) {
+				if (null == writeBehind || !writeBehind.markDirty()) {
+					persistSnapshot();
+				}
+			}
+			long eviction = evictOverflow();
+			if (0 != eviction) {
+				onMutation(eviction);
+			}
+			spillColdDomains();
+		}
+	}
+
+	/**
+	 * Tracks the cookies the wrapped store already holds when it is handed
+	 * over, which would otherwise be left out of every snapshot. Each is
+	 * listed under a URI the store lists it under, or else under its domain.
+	 * As a {@link CookieStore} doesn't tell when a cookie was set, its max
+	 * age counts from now. A cookie the persisted jar also holds is replaced
+	 * by the persisted copy on restore. Called from the constructor.
+	 * 
+	 * @return whether the store held any cookie
+	 */
+	private boolean adoptStoredCookies() {
+		List<HttpCookie> cookies = store.getCookies();
+		if (cookies.isEmpty()) {
+			return false;
+		}
+		Map<HttpCookie, URI> uris = new HashMap<HttpCookie, URI>();
+		for (URI uri : store.getURIs()) {
+			for (HttpCookie cookie : store.get(uri)) {
+				if (!uris.containsKey(cookie)) {
+					uris.put(cookie, uri);
+				}
+			}
+		}
+		long now = System.currentTimeMillis();
+		for (HttpCookie cookie : cookies) {
+			URI uri = uris.get(cookie);
+			if (null == uri) {
+				uri = uriOfDomain(cookie.getDomain());
+			}
+			if (null == uri || 0 == cookie.getMaxAge()) {
+				continue;
+			}
+			HttpCookie tracked = trackedCookie(cookie);
+			boolean memoryOnly = isMemoryOnly(cookie);
+			expiry.track(uri, tracked, SerializableCookie.expiresAt(
+					cookie.getMaxAge(), now), memoryOnly);
+			String domain = Domains.registrableDomain(uri, cookie);
+			if (null != limiter) {
+				limiter.track(uri, tracked, domain);
+			}
+			if (null != tiers) {
+				tiers.track(uri, tracked, domain, memoryOnly);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the URI a cookie for the supplied domain can be listed under,
+	 *         null if there is none
+	 */
+	private static URI uriOfDomain(String domain) {
+		String host = IndexedCookieStore.normalize(domain);
+		if (host.length() == 0) {
+			return null;
+		}
+		try {
+			return new URI("http", host, null, null);
+		} catch (URISyntaxException e) {
+			return null;
+		}
+	}
+
+	private void restore() {
+		long start = startTimer();
+		try {
+			if (persister instanceof StreamingPersister) {
+				((StreamingPersister) persister).restore(new CookieVisitor() {
+					@Override
+					public void visit(URI uri, SerializableCookie cookie) {
+						importCookie(uri, cookie, System.currentTimeMillis());
+					}
+				});
+			} else {
+				importCookies(persister.restore());
+			}
+		} catch (PersistenceException e) {
+
+			if (logErrors) {
+				e.printStackTrace();
+			}
+
+			exceptionHandler.onRestoreFailure(e);
+		}
+		onRestored(start);
+	}
+
+	private void onRestored(long start) {
+		stopTimer(Operation.RESTORE, start);
+		if (null != metrics) {
+			metrics.onJarSize(store.getCookies().size(), store.getURIs()
+					.size());
+		}
+	}
+
+	private void importCookies(
+			Map<URI, List<SerializableCookie>> cookiesToRestore) {
+		if (null != cookiesToRestore) {
+			long now = System.currentTimeMillis();
+			for (Map.Entry<URI, List<SerializableCookie>> entry : cookiesToRestore
+					.entrySet()) {
+				for (SerializableCookie cookie : entry.getValue()) {
+					importCookie(entry.getKey(), cookie, now);
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * Adds a restored cookie to the wrapped store with whatever remains of its
+	 * lifetime, unless it has expired in the meantime.
+	 */
+	private void importCookie(URI uri, SerializableCookie cookie, long now) {
+		if (cookie.hasExpired(now)) {
+			return;
+		}
+		if (memoryOnlySessions
+				&& (cookie.getDiscard() || cookie.getMaxAge() < 0)) {
+			// Persisted before session cookies were kept in memory
+			return;
+		}
+		HttpCookie httpCookie = SerializableHttpCookieAdapter.deserialize(
+				cookie, now, strings);
+		store.add(uri, httpCookie);
+		HttpCookie tracked = trackedCookie(httpCookie);
+		long expiresAt = cookie.getExpiresAt();
+		expiry.track(uri, tracked, expiresAt != 0 ? expiresAt
+				: SerializableCookie.expiresAt(httpCookie.getMaxAge(), now),
+				false, unchangedToleranceMillis < 0 ? 0 : ExpiryIndex
+						.fingerprintOf(uri, httpCookie),
+				unchangedToleranceMillis);
+		if (null != limiter) {
+			// Anything over the limits is evicted once the restore is done
+			limiter.track(uri, tracked,
+					Domains.registrableDomain(uri, httpCookie));
+		}
+		if (null != tiers) {
+			tiers.track(uri, tracked,
+					Domains.registrableDomain(uri, httpCookie), false);
+		}
+	}
+
+	/**
+	 * Serializes a snapshot of the {@link ExpiryIndex}, which holds each
+	 * cookie of the wrapped store with its expiry instant, leaving out
+	 * memory-only cookies and those which have expired but not been swept
+	 * yet. Cookies are listed under the scheme and host they were set for, as
+	 * stores list them. Cold domains are copied from the {@link ColdSegment}
+	 * as they are, which has to be done holding every stripe; otherwise no
+	 * lock is needed.
+	 * 
+	 * @return the snapshot, or null if the {@link ColdSegment} could not be
+	 *         read
+	 */
+	private Map<URI, List<SerializableCookie>> exportCookies(
+			HashTrieMap<HttpCookie, ExpiryIndex.Deadline> tracked) {
+		final Map<URI, List<SerializableCookie>> preserializedCookies = new HashMap<URI, List<SerializableCookie>>();
+		long now = System.currentTimeMillis();
+		for (ExpiryIndex.Deadline deadline : tracked.values()) {
+			if (deadline.memoryOnly || null == deadline.uri
+					|| (deadline.expiresAt >= 0 && deadline.expiresAt <= now)) {
+				continue;
+			}
+			URI uri = IndexedCookieStore.effectiveURI(deadline.uri);
+			List<SerializableCookie> serialized = preserializedCookies
+					.get(uri);
+			if (null == serialized) {
+				serialized = new ArrayList<SerializableCookie>();
+				preserializedCookies.put(uri, serialized);
+			}
+			SerializableCookie serializable = SerializableCookie
+					.serialize(deadline.cookie);
+			serializable.setExpiresAt(deadline.expiresAt);
+			serialized.add(serializable);
+		}
+		if (null != segment && 0 != segment.size()
+				&& !readColdCookies(new CookieVisitor() {
+					@Override
+					public void visit(URI uri, SerializableCookie cookie) {
+						List<SerializableCookie> list = preserializedCookies
+								.get(uri);
+						if (null == list) {
+							list = new ArrayList<SerializableCookie>();
+							preserializedCookies.put(uri, list);
+						}
+						list.add(cookie);
+					}
+				})) {
+			// Writing the rest would drop the cold domains from the jar
+			return null;
+		}
+		return preserializedCookies;
+	}
+
+	/**
+	 * Serializes the wrapped store by walking it, recording each cookie's
+	 * expiry instant and leaving out cookies which have expired but not been
+	 * swept yet. For a {@link PackedCookieStore}, whose cookies the
+	 * {@link ExpiryIndex} only knows by key. Called holding every stripe.
+	 */
+	private Map<URI, List<SerializableCookie>> exportStore() {
+		Map<URI, List<SerializableCookie>> preserializedCookies = new HashMap<URI, List<SerializableCookie>>();
+		long now = System.currentTimeMillis();
+		for (URI uri : store.getURIs()) {
+			List<HttpCookie> cookies = store.get(uri);
+			List<SerializableCookie> serialized = new ArrayList<SerializableCookie>(
+					cookies.size());
+			for (HttpCookie cookie : cookies) {
+				if (isMemoryOnly(cookie)) {
+					continue;
+				}
+				long expiresAt = expiry.expiresAt(cookie, now);
+				if (expiresAt >= 0 && expiresAt <= now) {
+					continue;
+				}
+				SerializableCookie serializable = SerializableCookie
+						.serialize(cookie);
+				serializable.setExpiresAt(expiresAt);
+				serialized.add(serializable);
+			}
+			if (!serialized.isEmpty()) {
+				preserializedCookies.put(uri, serialized);
+			}
 		}
 		return preserializedCookies;
 	}
@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed set of read/write locks, one of which guards each registrable
+ * domain. Operations on a single domain take its stripe; operations on the
+ * whole store take every stripe, always in index order.
+ * 
+ * @author brianmelton
+ * 
+ */
+final class StripedLock {
+
+	private final ReentrantReadWriteLock[] stripes;
+
+	StripedLock(int count) {
+		stripes = new ReentrantReadWriteLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	Lock readLock(String domain) {
+		return stripeFor(domain).readLock();
+	}
+
+	Lock writeLock(String domain) {
+		return stripeFor(domain).writeLock();
+	}
+
+	void lockAllShared() {
+		for (ReentrantReadWriteLock stripe : stripes) {
+			stripe.readLock().lock();
+		}
+	}
+
+	void unlockAllShared() {
+		for (int i = stripes.length - 1; i >= 0; i--) {
+			stripes[i].readLock().unlock();
+		}
+	}
+
+	void lockAllExclusive() {
+		for (ReentrantReadWriteLock stripe : stripes) {
+			stripe.writeLock().lock();
+		}
+	}
+
+	void unlockAllExclusive() {
+		for (int i = stripes.length - 1; i >= 0; i--) {
+			stripes[i].writeLock().unlock();
+		}
+	}
+
+	private ReentrantReadWriteLock stripeFor(String domain) {
+		if (1 == stripes.length) {
+			return stripes[0];
+		}
+		int h = domain.hashCode();
+		h ^= (h >>> 16);
+		return stripes[(h & 0x7fffffff) % stripes.length];
+	}
+
+}
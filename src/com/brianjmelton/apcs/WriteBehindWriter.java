@@ -0,0 +1,213 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces mutations of a {@link PersistentCookieStore} into one snapshot
+ * write per debounce window. The write itself runs on the supplied
+ * {@link Executor}, never on the mutating thread. A worker waits out the
+ * window on its thread, unless the {@link Executor} is a
+ * {@link ScheduledExecutorService}, in which case it is scheduled again for
+ * the end of the window, so that many stores can share a few threads. An
+ * {@link Executor} which runs the worker on the calling thread, directly or
+ * as a fallback when saturated, gets no debouncing: the worker writes right
+ * away rather than hold the mutating thread up for the window.
+ *
+ * @author brianmelton
+ *
+ */
+final class WriteBehindWriter implements Runnable {
+
+	private final PersistentCookieStore owner;
+	private final Executor executor;
+	private final ScheduledExecutorService scheduler;
+	private final long debounceMillis, maxDelayMillis;
+
+	private final Object stateLock = new Object();
+	private final Object writeLock = new Object();
+
+	private boolean dirty, scheduled, flushRequested, closed;
+	/** The thread handing a worker to the executor, while it does */
+	private Thread scheduling;
+	private long firstDirtyAt, lastDirtyAt;
+
+	WriteBehindWriter(PersistentCookieStore owner, Executor executor,
+			long debounceMillis, long maxDelayMillis) {
+		this.owner = owner;
+		this.executor = executor;
+		this.scheduler = executor instanceof ScheduledExecutorService ? (ScheduledExecutorService) executor
+				: null;
+		this.debounceMillis = debounceMillis;
+		this.maxDelayMillis = maxDelayMillis;
+	}
+
+	/**
+	 * Records that the store has changed and makes sure a worker is on its way
+	 * to write it out.
+	 *
+	 * @return false if this writer has been closed, or its {@link Executor}
+	 *         rejected the worker, and the caller should persist
+	 *         synchronously instead
+	 */
+	boolean markDirty() {
+		synchronized (stateLock) {
+			if (closed) {
+				return false;
+			}
+			long now = System.currentTimeMillis();
+			if (!dirty) {
+				dirty = true;
+				firstDirtyAt = now;
+			}
+			lastDirtyAt = now;
+			if (scheduled) {
+				return true;
+			}
+			scheduled = true;
+			scheduling = Thread.currentThread();
+		}
+		// Outside the lock, as a caller-runs executor writes from here
+		try {
+			executor.execute(this);
+		} catch (RejectedExecutionException e) {
+			synchronized (stateLock) {
+				// The caller's write covers everything marked so far
+				scheduled = false;
+				dirty = false;
+			}
+			return false;
+		} finally {
+			synchronized (stateLock) {
+				scheduling = null;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Writes any pending changes on the calling thread and waits for an
+	 * in-flight background write to finish.
+	 */
+	void flush() {
+		synchronized (stateLock) {
+			flushRequested = true;
+			stateLock.notifyAll();
+		}
+		writePending();
+	}
+
+	/**
+	 * Flushes pending changes and stops accepting new ones.
+	 */
+	void close() {
+		synchronized (stateLock) {
+			closed = true;
+		}
+		flush();
+	}
+
+	@Override
+	public void run() {
+		boolean inline;
+		synchronized (stateLock) {
+			// Run by the executor on the mutating thread
+			inline = Thread.currentThread() == scheduling;
+			if (inline) {
+				scheduled = false;
+			}
+		}
+		if (inline) {
+			writePending();
+			return;
+		}
+		while (true) {
+			synchronized (stateLock) {
+				long remaining = remaining();
+				if (null != scheduler && dirty && !flushRequested
+						&& remaining > 0) {
+					try {
+						scheduler.schedule(this, remaining,
+								TimeUnit.MILLISECONDS);
+						return;
+					} catch (RejectedExecutionException e) {
+						// Shut down, so write now rather than never
+						flushRequested = true;
+					}
+				}
+				if (!awaitDeadline()) {
+					scheduled = false;
+					return;
+				}
+			}
+			writePending();
+		}
+	}
+
+	/**
+	 * Blocks until the debounce window or maximum delay has elapsed, or until
+	 * a flush is requested. Must be called holding {@link #stateLock}.
+	 *
+	 * @return true if there is something to write
+	 */
+	private boolean awaitDeadline() {
+		while (dirty && !flushRequested) {
+			long remaining = remaining();
+			if (remaining <= 0) {
+				break;
+			}
+			try {
+				stateLock.wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		return dirty;
+	}
+
+	/**
+	 * @return how long until the debounce window or maximum delay elapses.
+	 *         Must be called holding {@link #stateLock}.
+	 */
+	private long remaining() {
+		return Math.min(lastDirtyAt + debounceMillis, firstDirtyAt
+				+ maxDelayMillis)
+				- System.currentTimeMillis();
+	}
+
+	/**
+	 * Takes and writes a snapshot if the store is dirty. Writes are serialized
+	 * so that an older snapshot can never land on disk after a newer one.
+	 */
+	private void writePending() {
+		synchronized (writeLock) {
+			synchronized (stateLock) {
+				flushRequested = false;
+				if (!dirty) {
+					return;
+				}
+				dirty = false;
+			}
+			owner.persistSnapshot();
+		}
+	}
+}
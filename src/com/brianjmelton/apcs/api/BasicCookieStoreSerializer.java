@@ -16,9 +16,11 @@
 
 package com.brianjmelton.apcs.api;
 
+import java.io.BufferedInputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -30,6 +32,7 @@ import java.util.Map;
 import org.apache.commons.io.IOUtils;
 
 import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.util.AtomicFile;
 import com.brianjmelton.apcs.vo.SerializableCookie;
 
 /**
@@ -38,34 +41,71 @@ import com.brianjmelton.apcs.vo.SerializableCookie;
  * @author brianmelton
  * @since July 2014
  */
-public class BasicCookieStoreSerializer implements Persister {
+public class BasicCookieStoreSerializer implements SizedPersister, Closeable {
 
     private final File cookieFile;
+    private final AtomicFile atomicFile;
 
     /**
-     * Constructs a new BasicCookieStoreSerializer
+     * Constructs a new BasicCookieStoreSerializer that leaves syncing to the
+     * operating system
      * 
      * @param pathToCookieFile
      *            the path to the cookie file you would like to create. This
      *            file may or may not exist beforehand.
      */
     public BasicCookieStoreSerializer(File pathToCookieFile) {
+        this(pathToCookieFile, SyncPolicy.never());
+    }
+
+    /**
+     * Constructs a new BasicCookieStoreSerializer
+     * 
+     * @param pathToCookieFile
+     *            the path to the cookie file you would like to create. This
+     *            file may or may not exist beforehand.
+     * @param syncPolicy
+     *            how often writes are forced to disk
+     */
+    public BasicCookieStoreSerializer(File pathToCookieFile,
+            SyncPolicy syncPolicy) {
+        if (null == syncPolicy) {
+            throw new IllegalArgumentException("SyncPolicy cannot be null");
+        }
         this.cookieFile = pathToCookieFile;
+        this.atomicFile = new AtomicFile(pathToCookieFile, syncPolicy);
     }
 
     @Override
-    public void persist(Map<URI, List<SerializableCookie>> cookies)
+    public synchronized void persist(Map<URI, List<SerializableCookie>> cookies)
             throws PersistenceException {
+        OutputStream out = null;
         try {
-            OutputStream fout = new FileOutputStream(cookieFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fout);
+            out = atomicFile.startWrite();
+            ObjectOutputStream oos = new ObjectOutputStream(out);
             oos.writeObject(cookies);
-            IOUtils.closeQuietly(oos);
+            oos.flush();
+            atomicFile.finishWrite(out);
         } catch (Throwable t) {
+            atomicFile.failWrite(out);
             throw new PersistenceException(t);
         }
     }
 
+    @Override
+    public long getLastSnapshotBytes() {
+        return atomicFile.getLastWriteLength();
+    }
+
+    /**
+     * Syncs the last snapshot if the {@link SyncPolicy} left it unsynced. This
+     * serializer stays usable afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        atomicFile.sync();
+    }
+
     @SuppressWarnings("unchecked")
     @Override
     public Map<URI, List<SerializableCookie>> restore()
@@ -73,7 +113,8 @@ public class BasicCookieStoreSerializer implements Persister {
         try {
             Map<URI, List<SerializableCookie>> map = null;
             if (cookieFile.exists()) {
-                InputStream in = new FileInputStream(cookieFile);
+                InputStream in = new BufferedInputStream(new FileInputStream(
+                        cookieFile));
                 ObjectInputStream ois = new ObjectInputStream(in);
                 map = (Map<URI, List<SerializableCookie>>) ois.readObject();
                 IOUtils.closeQuietly(ois);
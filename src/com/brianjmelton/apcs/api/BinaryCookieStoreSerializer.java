@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.util.AtomicFile;
+import com.brianjmelton.apcs.util.BinaryCookieCodec;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * A {@link Persister} writing the compact {@link BinaryCookieCodec} format
+ * instead of Java serialization. Files written by
+ * {@link BasicCookieStoreSerializer} are still read, so switching an existing
+ * install over is transparent; the next persist rewrites the file in the new
+ * format.
+ *
+ * @author brianmelton
+ * @since July 2014
+ */
+public class BinaryCookieStoreSerializer implements StreamingPersister,
+        SizedPersister, Closeable {
+
+    private static final int OBJECT_STREAM_MAGIC = 0xaced;
+
+    private final File cookieFile;
+    private final AtomicFile atomicFile;
+    private final BasicCookieStoreSerializer legacy;
+
+    /**
+     * Constructs a new BinaryCookieStoreSerializer that leaves syncing to the
+     * operating system
+     *
+     * @param pathToCookieFile
+     *            the path to the cookie file you would like to create. This
+     *            file may or may not exist beforehand.
+     */
+    public BinaryCookieStoreSerializer(File pathToCookieFile) {
+        this(pathToCookieFile, SyncPolicy.never());
+    }
+
+    /**
+     * Constructs a new BinaryCookieStoreSerializer
+     *
+     * @param pathToCookieFile
+     *            the path to the cookie file you would like to create. This
+     *            file may or may not exist beforehand.
+     * @param syncPolicy
+     *            how often writes are forced to disk
+     */
+    public BinaryCookieStoreSerializer(File pathToCookieFile,
+            SyncPolicy syncPolicy) {
+        if (null == syncPolicy) {
+            throw new IllegalArgumentException("SyncPolicy cannot be null");
+        }
+        this.cookieFile = pathToCookieFile;
+        this.atomicFile = new AtomicFile(pathToCookieFile, syncPolicy);
+        this.legacy = new BasicCookieStoreSerializer(pathToCookieFile);
+    }
+
+    @Override
+    public synchronized void persist(Map<URI, List<SerializableCookie>> cookies)
+            throws PersistenceException {
+        OutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            DataOutputStream dos = new DataOutputStream(out);
+            BinaryCookieCodec.write(dos, cookies);
+            dos.flush();
+            atomicFile.finishWrite(out);
+        } catch (Throwable t) {
+            atomicFile.failWrite(out);
+            throw new PersistenceException(t);
+        }
+    }
+
+    @Override
+    public long getLastSnapshotBytes() {
+        return atomicFile.getLastWriteLength();
+    }
+
+    /**
+     * Syncs the last snapshot if the {@link SyncPolicy} left it unsynced. This
+     * serializer stays usable afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        atomicFile.sync();
+    }
+
+    @Override
+    public Map<URI, List<SerializableCookie>> restore()
+            throws PersistenceException {
+        if (!cookieFile.exists()) {
+            return null;
+        }
+        if (isLegacyFile()) {
+            return legacy.restore();
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(cookieFile)));
+            return BinaryCookieCodec.read(in);
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    @Override
+    public void restore(CookieVisitor visitor) throws PersistenceException {
+        if (!cookieFile.exists()) {
+            return;
+        }
+        if (isLegacyFile()) {
+            // Java serialization can only be read whole
+            Map<URI, List<SerializableCookie>> cookies = legacy.restore();
+            if (null != cookies) {
+                for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                        .entrySet()) {
+                    for (SerializableCookie cookie : entry.getValue()) {
+                        visitor.visit(entry.getKey(), cookie);
+                    }
+                }
+            }
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(cookieFile)));
+            BinaryCookieCodec.read(in, visitor);
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private boolean isLegacyFile() throws PersistenceException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(cookieFile);
+            int magic = (in.read() << 8) | in.read();
+            return OBJECT_STREAM_MAGIC == magic;
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+}
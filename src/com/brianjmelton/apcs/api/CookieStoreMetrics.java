@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+/**
+ * Receives timings and sizes from a
+ * {@link com.brianjmelton.apcs.PersistentCookieStore}. Callbacks are made on
+ * the thread doing the work, often while it serves a request, so
+ * implementations must be thread-safe, fast and should not allocate.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * @see HistogramCookieStoreMetrics
+ */
+public interface CookieStoreMetrics {
+
+    public enum Operation {
+        /** a call to add(), including any synchronous persist */
+        ADD,
+        /** a call to get() */
+        GET,
+        /** a call to remove() or removeAll(), including any persist */
+        REMOVE,
+        /** handing a snapshot or deltas to the {@link Persister} */
+        PERSIST,
+        /** reading and importing the persisted jar */
+        RESTORE
+    }
+
+    /**
+     * Called once an operation has completed
+     * 
+     * @param operation
+     * @param durationNanos
+     *            how long it took
+     */
+    public void onOperation(Operation operation, long durationNanos);
+
+    /**
+     * Called with the size of the persisted jar whenever a full snapshot is
+     * taken or a restore finishes. An {@link IncrementalPersister} only takes
+     * full snapshots now and then, so between them the size reported last
+     * can be stale; counting the jar on every append would cost as much as
+     * the snapshot the deltas save.
+     * 
+     * @param cookieCount
+     * @param uriCount
+     */
+    public void onJarSize(int cookieCount, int uriCount);
+
+    /**
+     * Called after a snapshot is written by a {@link SizedPersister}
+     * 
+     * @param bytes
+     *            the size of the snapshot
+     */
+    public void onSnapshotBytes(long bytes);
+
+}
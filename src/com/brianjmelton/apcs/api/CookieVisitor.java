@@ -0,0 +1,43 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.net.URI;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Receives persisted cookies one at a time from a
+ * {@link StreamingPersister}.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public interface CookieVisitor {
+
+    /**
+     * Called once per persisted cookie which has not expired.
+     * 
+     * @param uri
+     *            the URI the cookie was stored under
+     * @param cookie
+     *            the cookie. Implementations must not hold on to it past the
+     *            call unless they own it from then on.
+     */
+    public void visit(URI uri, SerializableCookie cookie);
+
+}
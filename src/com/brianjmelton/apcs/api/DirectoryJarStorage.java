@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.io.File;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link JarStorage} keeping each jar in its own
+ * {@link BinaryCookieStoreSerializer} file in one directory. File names are
+ * the namespace with every character other than letters, digits, '-' and '_'
+ * escaped as %XX of its UTF-8 bytes, so any namespace maps to a distinct, valid file name.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class DirectoryJarStorage implements JarStorage {
+
+    private static final String SUFFIX = ".jar";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private final File directory;
+    private final SyncPolicy syncPolicy;
+
+    /**
+     * Constructs a new DirectoryJarStorage that leaves syncing to the
+     * operating system
+     * 
+     * @param directory
+     *            the directory to keep the jars in. It is created when the
+     *            first jar is opened if it doesn't exist.
+     */
+    public DirectoryJarStorage(File directory) {
+        this(directory, SyncPolicy.never());
+    }
+
+    /**
+     * Constructs a new DirectoryJarStorage
+     * 
+     * @param directory
+     *            the directory to keep the jars in. It is created when the
+     *            first jar is opened if it doesn't exist.
+     * @param syncPolicy
+     *            how often writes are forced to disk
+     */
+    public DirectoryJarStorage(File directory, SyncPolicy syncPolicy) {
+        if (null == directory) {
+            throw new IllegalArgumentException("Directory cannot be null");
+        }
+        if (null == syncPolicy) {
+            throw new IllegalArgumentException("SyncPolicy cannot be null");
+        }
+        this.directory = directory;
+        this.syncPolicy = syncPolicy;
+    }
+
+    @Override
+    public Persister open(String namespace) {
+        if (!directory.isDirectory()) {
+            // A failure shows up as a PersistenceException on the first write
+            directory.mkdirs();
+        }
+        return new BinaryCookieStoreSerializer(getFile(namespace), syncPolicy);
+    }
+
+    /**
+     * @param namespace
+     * @return the file the named jar is kept in
+     */
+    public File getFile(String namespace) {
+        byte[] bytes = namespace.getBytes(UTF_8);
+        StringBuilder name = new StringBuilder(bytes.length + SUFFIX.length());
+        for (byte b : bytes) {
+            if ((b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+                    || (b >= '0' && b <= '9') || b == '-' || b == '_') {
+                name.append((char) b);
+            } else {
+                name.append('%').append(HEX[(b >> 4) & 0xf])
+                        .append(HEX[b & 0xf]);
+            }
+        }
+        return new File(directory, name.append(SUFFIX).toString());
+    }
+
+}
@@ -0,0 +1,700 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+import org.apache.commons.io.IOUtils;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.util.AtomicFile;
+import com.brianjmelton.apcs.util.BinaryCookieCodec;
+import com.brianjmelton.apcs.util.CookieReplay;
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * An {@link IncrementalPersister} keeping the jar encrypted at rest with
+ * AES-GCM, under keys from a {@link KeyProvider}. Each batch of changes is
+ * appended to a journal as one encrypted record, so setting a cookie
+ * encrypts and writes that cookie alone rather than the whole jar.
+ * <p>
+ * The snapshot spreads the jar over a fixed number of blocks by registrable
+ * domain, like {@link ShardedCookieStoreSerializer}, each encrypted on its
+ * own. When the journal is folded in, only the blocks it touched are
+ * decrypted and encrypted again; the others are copied over as they are. A
+ * full {@link #persist(Map)} likewise re-encrypts only the blocks whose
+ * cookies changed. Every block is bound to its place, a final tag over the
+ * tags of all blocks seals the snapshot, and every journal record is bound
+ * to its snapshot and position, so that records and blocks can be neither
+ * moved nor swapped for older ones. A torn record at the end of the journal
+ * is taken to be a crash, and dropped.
+ * <p>
+ * A new key id from the {@link KeyProvider} re-encrypts the whole jar on the
+ * next write; until then, restoring needs the previous key.
+ * <p>
+ * AES-GCM needs Android 4.4 (API level 19), above the library's
+ * minSdkVersion of 9. On older platforms the constructors throw an
+ * {@link UnsupportedOperationException}; check {@link #isSupported()} first
+ * and fall back to an unencrypted {@link Persister} there.
+ *
+ * @author brianmelton
+ * @since July 2014
+ */
+public class EncryptedCookieStoreSerializer implements IncrementalPersister,
+        SizedPersister, Closeable {
+
+    public static final int DEFAULT_BLOCK_COUNT = 32;
+
+    private static final int MAGIC = 0x41504345;
+    private static final int JOURNAL_MAGIC = 0x4150434a;
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 21, JOURNAL_HEADER_LENGTH = 13;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12, TAG_LENGTH = 16;
+    private static final byte AAD_BLOCK = 1, AAD_SEAL = 2, AAD_RECORD = 3;
+    /** No snapshot has been read or written. */
+    private static final long NO_SNAPSHOT = 0;
+
+    private static Boolean supported;
+
+    private final AtomicFile snapshot;
+    private final File journalFile;
+    private final KeyProvider keys;
+    private final int blockCount;
+    private final long maxJournalBytes;
+    private final SecureRandom random = new SecureRandom();
+
+    private Cipher cipher;
+    private long snapshotId = NO_SNAPSHOT;
+    private int keyId, snapshotBlockCount;
+    private SecretKey key;
+    /** Of the cookies in each block of the snapshot */
+    private long[] fingerprints;
+    /** Where the ciphertext of each block lies in the snapshot file */
+    private long[] offsets;
+    private int[] lengths;
+    /** Changes journaled since the snapshot, and the blocks they touch */
+    private final List<CookieDelta> journaled = new ArrayList<CookieDelta>();
+    private final BitSet touched = new BitSet();
+    private long journalBytes;
+    private int journalRecords;
+    private volatile long lastSnapshotBytes = -1;
+
+    /**
+     * Constructs a new EncryptedCookieStoreSerializer with
+     * {@link #DEFAULT_BLOCK_COUNT} blocks and the default journal limit,
+     * leaving syncing to the operating system
+     *
+     * @param pathToCookieFile
+     *            the path to the snapshot. The journal lives next to it with
+     *            a ".journal" suffix.
+     * @param keys
+     *            supplies the encryption keys
+     */
+    public EncryptedCookieStoreSerializer(File pathToCookieFile,
+            KeyProvider keys) {
+        this(pathToCookieFile, new File(pathToCookieFile.getPath()
+                + ".journal"), keys, DEFAULT_BLOCK_COUNT,
+                JournalingCookieStoreSerializer.DEFAULT_MAX_JOURNAL_BYTES,
+                SyncPolicy.never());
+    }
+
+    /**
+     * Constructs a new EncryptedCookieStoreSerializer
+     *
+     * @param snapshotFile
+     *            the file holding the encrypted blocks. This file may or may
+     *            not exist beforehand.
+     * @param journalFile
+     *            the file changes are appended to. This file may or may not
+     *            exist beforehand.
+     * @param keys
+     *            supplies the encryption keys
+     * @param blockCount
+     *            how many blocks to spread the jar over. Changing it between
+     *            runs is allowed; the next write re-encrypts every block.
+     * @param maxJournalBytes
+     *            fold the journal into the snapshot once it reaches this many
+     *            bytes
+     * @param syncPolicy
+     *            how often snapshot writes are forced to disk
+     */
+    public EncryptedCookieStoreSerializer(File snapshotFile, File journalFile,
+            KeyProvider keys, int blockCount, long maxJournalBytes,
+            SyncPolicy syncPolicy) {
+        if (null == snapshotFile || null == journalFile || null == keys
+                || null == syncPolicy) {
+            throw new IllegalArgumentException(
+                    "Files, KeyProvider and SyncPolicy cannot be null");
+        }
+        if (blockCount < 1 || maxJournalBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "Block count and journal limit must be positive");
+        }
+        if (!isSupported()) {
+            throw new UnsupportedOperationException(
+                    "AES-GCM needs Android 4.4 (API level 19) or later");
+        }
+        this.snapshot = new AtomicFile(snapshotFile, syncPolicy);
+        this.journalFile = journalFile;
+        this.keys = keys;
+        this.blockCount = blockCount;
+        this.maxJournalBytes = maxJournalBytes;
+    }
+
+    /**
+     * @return whether this platform provides AES-GCM with additional
+     *         authenticated data: Android 4.4 (API level 19) or later, or a
+     *         Java 7 desktop JVM
+     */
+    public static synchronized boolean isSupported() {
+        if (null == supported) {
+            boolean available;
+            try {
+                Class.forName("javax.crypto.spec.GCMParameterSpec");
+                Cipher.class.getMethod("updateAAD", byte[].class);
+                Cipher.getInstance(TRANSFORMATION);
+                available = true;
+            } catch (Exception e) {
+                available = false;
+            }
+            supported = available;
+        }
+        return supported;
+    }
+
+    @Override
+    public synchronized void persist(Map<URI, List<SerializableCookie>> cookies)
+            throws PersistenceException {
+        BitSet all = new BitSet();
+        all.set(0, blockCount);
+        writeSnapshot(cookies, all, keys.getCurrentKeyId());
+    }
+
+    @Override
+    public synchronized void append(List<CookieDelta> deltas)
+            throws PersistenceException {
+        int currentKeyId = keys.getCurrentKeyId();
+        if (NO_SNAPSHOT == snapshotId) {
+            if (snapshot.getBaseFile().exists()) {
+                // Appending would lose whatever the snapshot holds
+                throw new PersistenceException(new IOException(
+                        "Cannot append before a successful restore"));
+            }
+            persist(new HashMap<URI, List<SerializableCookie>>());
+        } else if (!isReusable(currentKeyId)) {
+            fold(currentKeyId);
+        }
+
+        try {
+            ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+            for (CookieDelta delta : deltas) {
+                JournalingCookieStoreSerializer.writeRecord(plaintext, delta);
+            }
+            byte[] record = encrypt(key, recordAad(journalRecords),
+                    plaintext.toByteArray());
+            RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+            try {
+                // Drops a torn record a crash left behind
+                if (journal.length() != journalBytes) {
+                    journal.setLength(journalBytes);
+                }
+                journal.seek(journalBytes);
+                journal.write(ByteBuffer.allocate(4 + record.length)
+                        .putInt(record.length).put(record).array());
+            } finally {
+                journal.close();
+            }
+            journalBytes += 4 + record.length;
+            journalRecords++;
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        }
+        for (CookieDelta delta : deltas) {
+            track(delta);
+        }
+
+        if (journalBytes >= maxJournalBytes) {
+            fold(currentKeyId);
+        }
+    }
+
+    /**
+     * @return the size of the snapshot after the last persist or restore, -1
+     *         before either
+     */
+    @Override
+    public long getLastSnapshotBytes() {
+        return lastSnapshotBytes;
+    }
+
+    /**
+     * Syncs the last snapshot if the {@link SyncPolicy} left it unsynced. This
+     * serializer stays usable afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        snapshot.sync();
+    }
+
+    @Override
+    public synchronized Map<URI, List<SerializableCookie>> restore()
+            throws PersistenceException {
+        snapshotId = NO_SNAPSHOT;
+        File file = snapshot.getBaseFile();
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            byte[] data = readFile(file);
+            Map<URI, List<SerializableCookie>> cookies = readSnapshot(data);
+            // Blocks folded before deltas replaced a re-set cookie under
+            // every URI may hold several copies of it, which replay drops
+            CookieReplay replay = new CookieReplay(cookies);
+            readJournal(replay);
+            replay.finish();
+            lastSnapshotBytes = data.length;
+            return cookies;
+        } catch (PersistenceException e) {
+            snapshotId = NO_SNAPSHOT;
+            throw e;
+        } catch (Throwable t) {
+            snapshotId = NO_SNAPSHOT;
+            throw new PersistenceException(t);
+        }
+    }
+
+    /**
+     * Decrypts every block of a snapshot and checks its seal
+     */
+    private Map<URI, List<SerializableCookie>> readSnapshot(byte[] data)
+            throws IOException, GeneralSecurityException, PersistenceException {
+        ByteBuffer in = ByteBuffer.wrap(data);
+        if (data.length < HEADER_LENGTH || in.getInt() != MAGIC
+                || in.get() != VERSION) {
+            throw new IOException("Not an encrypted cookie file");
+        }
+        int count = in.getInt();
+        int fileKeyId = in.getInt();
+        long id = in.getLong();
+        SecretKey fileKey = keys.getKey(fileKeyId);
+
+        Map<URI, List<SerializableCookie>> cookies = new LinkedHashMap<URI, List<SerializableCookie>>();
+        long[] blockFingerprints = new long[count];
+        long[] blockOffsets = new long[count];
+        int[] blockLengths = new int[count];
+        ByteArrayOutputStream seal = new ByteArrayOutputStream();
+        seal.write(AAD_SEAL);
+        seal.write(data, 0, HEADER_LENGTH);
+        for (int i = 0; i < count; i++) {
+            int length = in.getInt();
+            int offset = in.position();
+            if (length > 0) {
+                Map<URI, List<SerializableCookie>> block = decode(decrypt(
+                        fileKey, blockAad(i, count), data, offset, length));
+                blockFingerprints[i] = ShardedCookieStoreSerializer
+                        .fingerprintOf(block);
+                ShardedCookieStoreSerializer.merge(block, cookies);
+            } else {
+                blockFingerprints[i] = ShardedCookieStoreSerializer
+                        .fingerprint(0, 0);
+            }
+            blockOffsets[i] = offset;
+            blockLengths[i] = length;
+            addToSeal(seal, data, offset, length);
+            in.position(offset + length);
+        }
+        decrypt(fileKey, seal.toByteArray(), data, in.position(), IV_LENGTH
+                + TAG_LENGTH);
+
+        snapshotId = id;
+        keyId = fileKeyId;
+        key = fileKey;
+        snapshotBlockCount = count;
+        fingerprints = blockFingerprints;
+        offsets = blockOffsets;
+        lengths = blockLengths;
+        return cookies;
+    }
+
+    /**
+     * Replays the journal of the snapshot just read onto its cookies, and
+     * starts a new journal if there is none
+     */
+    private void readJournal(CookieReplay replay)
+            throws IOException, GeneralSecurityException {
+        journaled.clear();
+        touched.clear();
+        byte[] data = journalFile.exists() ? readFile(journalFile) : null;
+        ByteBuffer in = null == data ? null : ByteBuffer.wrap(data);
+        if (null == in || data.length < JOURNAL_HEADER_LENGTH
+                || in.getInt() != JOURNAL_MAGIC || in.get() != VERSION
+                || in.getLong() != snapshotId) {
+            // Missing, or left from before the snapshot was last replaced
+            // and so already folded into it
+            startJournal();
+            return;
+        }
+        int position = JOURNAL_HEADER_LENGTH;
+        int records = 0;
+        while (data.length - position >= 4) {
+            int length = in.getInt(position);
+            if (length < IV_LENGTH + TAG_LENGTH
+                    || length > data.length - position - 4) {
+                break;
+            }
+            for (CookieDelta delta : decodeRecords(decrypt(key,
+                    recordAad(records), data, position + 4, length))) {
+                replay.apply(delta);
+                track(delta);
+            }
+            position += 4 + length;
+            records++;
+        }
+        journalBytes = position;
+        journalRecords = records;
+    }
+
+    /**
+     * Folds the journal into a new snapshot. Only the blocks the journal
+     * touched are decrypted, unless the key or block count changed.
+     */
+    private void fold(int newKeyId) throws PersistenceException {
+        boolean reusable = isReusable(newKeyId);
+        BitSet covered = new BitSet();
+        Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(snapshot.getBaseFile(), "r");
+            for (int i = 0; i < snapshotBlockCount; i++) {
+                if ((!reusable || touched.get(i)) && lengths[i] > 0) {
+                    byte[] block = new byte[lengths[i]];
+                    file.seek(offsets[i]);
+                    file.readFully(block);
+                    ShardedCookieStoreSerializer.merge(decode(decrypt(key,
+                            blockAad(i, snapshotBlockCount), block, 0,
+                            block.length)), cookies);
+                }
+            }
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        } finally {
+            IOUtils.closeQuietly(file);
+        }
+        JournalingCookieStoreSerializer.applyAll(cookies, journaled);
+        JournalingCookieStoreSerializer.dropExpired(cookies,
+                System.currentTimeMillis());
+        if (reusable) {
+            covered.or(touched);
+        } else {
+            covered.set(0, blockCount);
+        }
+        writeSnapshot(cookies, covered, newKeyId);
+    }
+
+    /**
+     * Writes a new snapshot and starts its journal
+     *
+     * @param cookies
+     *            the cookies of the covered blocks
+     * @param covered
+     *            the blocks whose cookies are supplied. Blocks not covered
+     *            keep the ciphertext they have, as do covered blocks whose
+     *            cookies haven't changed.
+     */
+    private void writeSnapshot(Map<URI, List<SerializableCookie>> cookies,
+            BitSet covered, int newKeyId) throws PersistenceException {
+        boolean reusable = isReusable(newKeyId);
+        SecretKey newKey = reusable ? key : keys.getKey(newKeyId);
+
+        List<Map<URI, List<SerializableCookie>>> partitions = new ArrayList<Map<URI, List<SerializableCookie>>>(
+                blockCount);
+        long[] sums = new long[blockCount];
+        int[] counts = new int[blockCount];
+        for (int i = 0; i < blockCount; i++) {
+            partitions.add(null);
+        }
+        for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                .entrySet()) {
+            URI uri = entry.getKey();
+            String uriString = null == uri ? null : uri.toString();
+            for (SerializableCookie cookie : entry.getValue()) {
+                int block = ShardedCookieStoreSerializer.shardOf(uri, cookie,
+                        blockCount);
+                Map<URI, List<SerializableCookie>> partition = partitions
+                        .get(block);
+                if (null == partition) {
+                    partition = new LinkedHashMap<URI, List<SerializableCookie>>();
+                    partitions.set(block, partition);
+                }
+                List<SerializableCookie> list = partition.get(uri);
+                if (null == list) {
+                    list = new ArrayList<SerializableCookie>();
+                    partition.put(uri, list);
+                }
+                list.add(cookie);
+                sums[block] += ShardedCookieStoreSerializer.hash(uriString,
+                        cookie);
+                counts[block]++;
+            }
+        }
+
+        long id = nextSnapshotId();
+        long[] newFingerprints = new long[blockCount];
+        long[] newOffsets = new long[blockCount];
+        int[] newLengths = new int[blockCount];
+        OutputStream out = null;
+        RandomAccessFile previous = null;
+        try {
+            out = snapshot.startWrite();
+            DataOutputStream dos = new DataOutputStream(out);
+            byte[] header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC)
+                    .put(VERSION).putInt(blockCount).putInt(newKeyId)
+                    .putLong(id).array();
+            dos.write(header);
+            ByteArrayOutputStream seal = new ByteArrayOutputStream();
+            seal.write(AAD_SEAL);
+            seal.write(header);
+            for (int i = 0; i < blockCount; i++) {
+                long fingerprint = covered.get(i) ? ShardedCookieStoreSerializer
+                        .fingerprint(sums[i], counts[i]) : fingerprints[i];
+                byte[] block;
+                if (reusable && fingerprint == fingerprints[i]) {
+                    if (null == previous) {
+                        previous = new RandomAccessFile(
+                                snapshot.getBaseFile(), "r");
+                    }
+                    block = new byte[lengths[i]];
+                    previous.seek(offsets[i]);
+                    previous.readFully(block);
+                } else if (0 == counts[i]) {
+                    block = new byte[0];
+                } else {
+                    ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+                    BinaryCookieCodec.write(new DataOutputStream(plaintext),
+                            partitions.get(i));
+                    block = encrypt(newKey, blockAad(i, blockCount),
+                            plaintext.toByteArray());
+                }
+                dos.writeInt(block.length);
+                newOffsets[i] = dos.size();
+                newLengths[i] = block.length;
+                newFingerprints[i] = fingerprint;
+                dos.write(block);
+                addToSeal(seal, block, 0, block.length);
+            }
+            dos.write(encrypt(newKey, seal.toByteArray(), new byte[0]));
+            dos.flush();
+            snapshot.finishWrite(out);
+        } catch (Throwable t) {
+            snapshot.failWrite(out);
+            throw new PersistenceException(t);
+        } finally {
+            IOUtils.closeQuietly(previous);
+        }
+
+        snapshotId = id;
+        keyId = newKeyId;
+        key = newKey;
+        snapshotBlockCount = blockCount;
+        fingerprints = newFingerprints;
+        offsets = newOffsets;
+        lengths = newLengths;
+        lastSnapshotBytes = snapshot.getLastWriteLength();
+        try {
+            // A crash before this leaves a journal of the old snapshot,
+            // which restore ignores
+            startJournal();
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        }
+    }
+
+    private void startJournal() throws IOException {
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        try {
+            journal.setLength(0);
+            journal.write(ByteBuffer.allocate(JOURNAL_HEADER_LENGTH)
+                    .putInt(JOURNAL_MAGIC).put(VERSION).putLong(snapshotId)
+                    .array());
+        } finally {
+            journal.close();
+        }
+        journalBytes = JOURNAL_HEADER_LENGTH;
+        journalRecords = 0;
+        journaled.clear();
+        touched.clear();
+    }
+
+    /**
+     * @return whether blocks of the current snapshot can be carried into one
+     *         encrypted with the supplied key
+     */
+    private boolean isReusable(int newKeyId) {
+        return NO_SNAPSHOT != snapshotId && newKeyId == keyId
+                && snapshotBlockCount == blockCount;
+    }
+
+    private void track(CookieDelta delta) {
+        journaled.add(delta);
+        if (CookieDelta.Type.CLEAR == delta.getType()) {
+            touched.set(0, blockCount);
+        } else {
+            touched.set(ShardedCookieStoreSerializer.shardOf(delta.getUri(),
+                    delta.getCookie(), blockCount));
+        }
+    }
+
+    private long nextSnapshotId() {
+        long id;
+        do {
+            id = random.nextLong();
+        } while (NO_SNAPSHOT == id || snapshotId == id);
+        return id;
+    }
+
+    private byte[] encrypt(SecretKey key, byte[] aad, byte[] plaintext)
+            throws GeneralSecurityException {
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = cipher();
+        cipher.init(Cipher.ENCRYPT_MODE, key, Gcm.parameters(iv, 0));
+        cipher.updateAAD(aad);
+        byte[] out = new byte[IV_LENGTH
+                + cipher.getOutputSize(plaintext.length)];
+        System.arraycopy(iv, 0, out, 0, IV_LENGTH);
+        cipher.doFinal(plaintext, 0, plaintext.length, out, IV_LENGTH);
+        return out;
+    }
+
+    /**
+     * @throws javax.crypto.AEADBadTagException
+     *             if the data was altered, or encrypted with another key or
+     *             in another place
+     */
+    private byte[] decrypt(SecretKey key, byte[] aad, byte[] data,
+            int offset, int length) throws GeneralSecurityException {
+        Cipher cipher = cipher();
+        cipher.init(Cipher.DECRYPT_MODE, key, Gcm.parameters(data, offset));
+        cipher.updateAAD(aad);
+        return cipher.doFinal(data, offset + IV_LENGTH, length - IV_LENGTH);
+    }
+
+    private Cipher cipher() throws GeneralSecurityException {
+        if (null == cipher) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+        }
+        return cipher;
+    }
+
+    private byte[] recordAad(int record) {
+        return ByteBuffer.allocate(13).put(AAD_RECORD).putLong(snapshotId)
+                .putInt(record).array();
+    }
+
+    private static byte[] blockAad(int block, int count) {
+        return ByteBuffer.allocate(9).put(AAD_BLOCK).putInt(count)
+                .putInt(block).array();
+    }
+
+    /**
+     * Adds a block's length and tag to what the seal authenticates
+     */
+    private static void addToSeal(ByteArrayOutputStream seal, byte[] data,
+            int offset, int length) {
+        seal.write(ByteBuffer.allocate(4).putInt(length).array(), 0, 4);
+        if (length > 0) {
+            seal.write(data, offset + length - TAG_LENGTH, TAG_LENGTH);
+        }
+    }
+
+    private static Map<URI, List<SerializableCookie>> decode(byte[] plaintext)
+            throws IOException {
+        return BinaryCookieCodec.read(new DataInputStream(
+                new ByteArrayInputStream(plaintext)));
+    }
+
+    private static List<CookieDelta> decodeRecords(byte[] plaintext)
+            throws IOException {
+        List<CookieDelta> deltas = new ArrayList<CookieDelta>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                plaintext));
+        while (in.available() > 0) {
+            int length = in.readInt();
+            // The CRC; the record is already authenticated
+            in.readInt();
+            if (length < 0
+                    || length > JournalingCookieStoreSerializer.MAX_RECORD_LENGTH) {
+                throw new IOException("Bad journal record length " + length);
+            }
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            deltas.add(JournalingCookieStoreSerializer.readRecord(payload,
+                    true));
+        }
+        return deltas;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) in.length()];
+            in.readFully(data);
+            return data;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Keeps every reference to the API level 19 class in a class of its own,
+     * which older platforms never load, since the constructors refuse to run
+     * there
+     */
+    private static final class Gcm {
+
+        static AlgorithmParameterSpec parameters(byte[] iv, int offset) {
+            return new GCMParameterSpec(TAG_LENGTH * 8, iv, offset,
+                    IV_LENGTH);
+        }
+    }
+
+}
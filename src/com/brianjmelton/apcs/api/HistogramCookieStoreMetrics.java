@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link CookieStoreMetrics} keeping a count, a total and a latency histogram
+ * per {@link CookieStoreMetrics.Operation}, plus the latest jar size and
+ * snapshot size. Histogram buckets are powers of two nanoseconds, so
+ * recording is a few atomic increments and never allocates; percentiles are
+ * accurate to within a factor of two.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class HistogramCookieStoreMetrics implements CookieStoreMetrics {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts, totals, histograms;
+    private volatile int cookieCount, uriCount;
+    private final AtomicLong snapshotBytes = new AtomicLong(-1);
+
+    public HistogramCookieStoreMetrics() {
+        int operations = Operation.values().length;
+        this.counts = new AtomicLongArray(operations);
+        this.totals = new AtomicLongArray(operations);
+        this.histograms = new AtomicLongArray(operations * BUCKETS);
+    }
+
+    @Override
+    public void onOperation(Operation operation, long durationNanos) {
+        int index = operation.ordinal();
+        long nanos = Math.max(0, durationNanos);
+        counts.incrementAndGet(index);
+        totals.addAndGet(index, nanos);
+        histograms.incrementAndGet(index * BUCKETS + bucketOf(nanos));
+    }
+
+    @Override
+    public void onJarSize(int cookieCount, int uriCount) {
+        this.cookieCount = cookieCount;
+        this.uriCount = uriCount;
+    }
+
+    @Override
+    public void onSnapshotBytes(long bytes) {
+        snapshotBytes.set(bytes);
+    }
+
+    /**
+     * @return how many times the operation completed
+     */
+    public long getCount(Operation operation) {
+        return counts.get(operation.ordinal());
+    }
+
+    /**
+     * @return the time spent in the operation altogether, in nanoseconds
+     */
+    public long getTotalNanos(Operation operation) {
+        return totals.get(operation.ordinal());
+    }
+
+    /**
+     * Estimates a latency percentile of the operation
+     * 
+     * @param operation
+     * @param percentile
+     *            between 0 and 100
+     * @return the upper bound of the histogram bucket the percentile falls
+     *         in, in nanoseconds, or 0 if the operation never completed
+     */
+    public long getPercentileNanos(Operation operation, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(
+                    "Percentile must be between 0 and 100");
+        }
+        int base = operation.ordinal() * BUCKETS;
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = histograms.get(base + i);
+            count += buckets[i];
+        }
+        if (0 == count) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return upperBoundOf(i);
+            }
+        }
+        return upperBoundOf(BUCKETS - 1);
+    }
+
+    /**
+     * @return the persisted jar's cookie count as of the last snapshot or
+     *         restore
+     */
+    public int getCookieCount() {
+        return cookieCount;
+    }
+
+    /**
+     * @return the persisted jar's URI count as of the last snapshot or
+     *         restore
+     */
+    public int getUriCount() {
+        return uriCount;
+    }
+
+    /**
+     * @return the size of the last snapshot written, -1 if unknown
+     */
+    public long getSnapshotBytes() {
+        return snapshotBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("HistogramCookieStoreMetrics [");
+        for (Operation operation : Operation.values()) {
+            long count = getCount(operation);
+            sb.append(operation).append("=").append(count);
+            if (count > 0) {
+                sb.append(" (mean ")
+                        .append(getTotalNanos(operation) / count / 1000)
+                        .append("us, p99 ")
+                        .append(getPercentileNanos(operation, 99) / 1000)
+                        .append("us)");
+            }
+            sb.append(", ");
+        }
+        return sb.append("cookies=").append(cookieCount).append(", uris=")
+                .append(uriCount).append(", snapshotBytes=")
+                .append(getSnapshotBytes()).append("]").toString();
+    }
+
+    /**
+     * Bucket i holds durations below 2^i nanoseconds and at least 2^(i-1)
+     */
+    private static int bucketOf(long nanos) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos));
+    }
+
+    private static long upperBoundOf(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.net.CookieStore;
+import java.util.List;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.CookieDelta;
+
+/**
+ * A {@link Persister} that can record individual changes instead of a full
+ * snapshot. A {@link CookieStore} bound to one of these hands it each change
+ * through {@link #append(List)}, and only falls back to
+ * {@link #persist(java.util.Map)} when an append has failed.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public interface IncrementalPersister extends Persister {
+
+    /**
+     * Called when the {@link CookieStore} responsible for this Persister
+     * commits / removes one or more cookies.
+     * 
+     * @param deltas
+     *            the changes, oldest first
+     * @throws PersistenceException
+     */
+    public void append(List<CookieDelta> deltas) throws PersistenceException;
+
+}
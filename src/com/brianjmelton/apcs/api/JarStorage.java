@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import com.brianjmelton.apcs.CookieJarRegistry;
+
+/**
+ * Where a {@link CookieJarRegistry} keeps its jars. Implementations map a
+ * namespace to the {@link Persister} holding that jar's cookies.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public interface JarStorage {
+
+    /**
+     * Called each time the registry loads the named jar, which may happen
+     * many times over the life of the registry as idle jars are evicted.
+     * Registries may hold thousands of jars, so the returned
+     * {@link Persister} should only hold files open while it reads or
+     * writes.
+     * 
+     * @param namespace
+     *            the name of the jar, as passed to
+     *            {@link CookieJarRegistry#get(String)}
+     * @return the {@link Persister} for the named jar
+     */
+    public Persister open(String namespace);
+
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.util.CookieReplay;
+import com.brianjmelton.apcs.util.SerializableCookieIO;
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * An {@link IncrementalPersister} that appends each change to a journal file
+ * next to a base snapshot. Restoring replays the journal onto the base. Once
+ * the journal grows past a size or ratio threshold it is folded into a new
+ * base snapshot on a background {@link Executor}.
+ *
+ * @author brianmelton
+ * @since July 2014
+ */
+public class JournalingCookieStoreSerializer implements IncrementalPersister,
+        SizedPersister, Closeable {
+
+    private static final int MAGIC = 0x41504a31;
+    private static final byte VERSION = 2;
+    /** Journals written before records carried an expiry instant. */
+    private static final byte VERSION_NO_EXPIRY = 1;
+    private static final int HEADER_LENGTH = 5;
+    static final int MAX_RECORD_LENGTH = 1 << 20;
+    private static final byte RECORD_ADD = 1, RECORD_REMOVE = 2,
+            RECORD_CLEAR = 3;
+
+    /** Don't bother compacting journals shorter than this. */
+    private static final int MIN_COMPACTION_RECORDS = 64;
+
+    public static final long DEFAULT_MAX_JOURNAL_BYTES = 256 * 1024;
+    public static final float DEFAULT_MAX_JOURNAL_RATIO = 1.0f;
+
+    private final Persister base;
+    private final File journalFile, compactingFile;
+    private final Executor compactionExecutor;
+    private final long maxJournalBytes;
+    private final float maxJournalRatio;
+
+    private final Object baseLock = new Object();
+
+    private long journalBytes;
+    private int journalRecords;
+    private volatile int baseCookieCount;
+    private volatile boolean compacting;
+    private int baseGeneration;
+    private boolean replayedOldVersion;
+
+    /**
+     * Constructs a new JournalingCookieStoreSerializer with a
+     * {@link BasicCookieStoreSerializer} base and default compaction
+     * thresholds
+     *
+     * @param pathToCookieFile
+     *            the path to the base snapshot. The journal lives next to it
+     *            with a ".journal" suffix.
+     * @param compactionExecutor
+     *            where compaction runs
+     */
+    public JournalingCookieStoreSerializer(File pathToCookieFile,
+            Executor compactionExecutor) {
+        this(new BasicCookieStoreSerializer(pathToCookieFile), new File(
+                pathToCookieFile.getPath() + ".journal"), compactionExecutor,
+                DEFAULT_MAX_JOURNAL_BYTES, DEFAULT_MAX_JOURNAL_RATIO);
+    }
+
+    /**
+     * Constructs a new JournalingCookieStoreSerializer
+     *
+     * @param base
+     *            the {@link Persister} holding the base snapshot
+     * @param journalFile
+     *            the file changes are appended to. This file may or may not
+     *            exist beforehand.
+     * @param compactionExecutor
+     *            where compaction runs
+     * @param maxJournalBytes
+     *            compact once the journal reaches this many bytes
+     * @param maxJournalRatio
+     *            compact once the journal holds this many records per cookie
+     *            in the base snapshot
+     */
+    public JournalingCookieStoreSerializer(Persister base, File journalFile,
+            Executor compactionExecutor, long maxJournalBytes,
+            float maxJournalRatio) {
+        if (null == base || null == journalFile || null == compactionExecutor) {
+            throw new IllegalArgumentException(
+                    "Base, journal file and executor cannot be null");
+        }
+        if (maxJournalBytes <= 0 || maxJournalRatio <= 0) {
+            throw new IllegalArgumentException(
+                    "Compaction thresholds must be positive");
+        }
+        this.base = base;
+        this.journalFile = journalFile;
+        this.compactingFile = new File(journalFile.getPath() + ".compacting");
+        this.compactionExecutor = compactionExecutor;
+        this.maxJournalBytes = maxJournalBytes;
+        this.maxJournalRatio = maxJournalRatio;
+    }
+
+    @Override
+    public synchronized void append(List<CookieDelta> deltas)
+            throws PersistenceException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (journalBytes < HEADER_LENGTH) {
+                writeHeader(bytes);
+            }
+            for (CookieDelta delta : deltas) {
+                writeRecord(bytes, delta);
+            }
+            OutputStream out = new FileOutputStream(journalFile, true);
+            try {
+                bytes.writeTo(out);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            journalBytes += bytes.size();
+            journalRecords += deltas.size();
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Replaces the base snapshot and discards the journal.
+     */
+    @Override
+    public synchronized void persist(Map<URI, List<SerializableCookie>> cookies)
+            throws PersistenceException {
+        synchronized (baseLock) {
+            base.persist(cookies);
+            baseGeneration++;
+        }
+        compactingFile.delete();
+        truncateJournal(0);
+        baseCookieCount = count(cookies);
+    }
+
+    /**
+     * @return the size of the last base snapshot, if the base can tell
+     */
+    @Override
+    public long getLastSnapshotBytes() {
+        return base instanceof SizedPersister ? ((SizedPersister) base)
+                .getLastSnapshotBytes() : -1;
+    }
+
+    /**
+     * Closes the base {@link Persister}, if it is {@link Closeable}.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (baseLock) {
+            if (base instanceof Closeable) {
+                ((Closeable) base).close();
+            }
+        }
+    }
+
+    @Override
+    public synchronized Map<URI, List<SerializableCookie>> restore()
+            throws PersistenceException {
+        Map<URI, List<SerializableCookie>> cookies;
+        CookieReplay replay;
+        replayedOldVersion = false;
+        synchronized (baseLock) {
+            cookies = mutableCopy(base.restore());
+            replay = new CookieReplay(cookies);
+            baseCookieCount = replay.size();
+            replay(compactingFile, replay);
+        }
+        long validLength = replay(journalFile, replay);
+        replay.finish();
+        dropExpired(cookies, System.currentTimeMillis());
+        if (replayedOldVersion) {
+            // New records can't be appended under an old header, so fold the
+            // old journal into the base once, now
+            persist(cookies);
+            return cookies;
+        }
+        if (journalFile.length() != validLength) {
+            truncateJournal(validLength);
+        }
+        journalBytes = validLength;
+        return cookies;
+    }
+
+    /**
+     * Rotates the journal aside and schedules folding it into the base once
+     * it has grown past either threshold, or right away if a rotated journal
+     * is left over from a failed compaction. Called holding this object's
+     * monitor.
+     */
+    private void maybeCompact() {
+        if (compacting) {
+            return;
+        }
+        // A leftover from a failed compaction is retried before rotating
+        // again, so that no journal is ever overwritten.
+        if (!compactingFile.exists()) {
+            long recordLimit = Math.max(MIN_COMPACTION_RECORDS,
+                    (long) (maxJournalRatio * baseCookieCount));
+            if (journalRecords < recordLimit
+                    && journalBytes < maxJournalBytes) {
+                return;
+            }
+            if (!journalFile.renameTo(compactingFile)) {
+                return;
+            }
+            journalBytes = 0;
+            journalRecords = 0;
+        }
+        compacting = true;
+        final int generation = baseGeneration;
+        compactionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compact(generation);
+            }
+        });
+    }
+
+    private void compact(int generation) {
+        try {
+            synchronized (baseLock) {
+                // A full persist since scheduling already superseded us
+                if (generation != baseGeneration) {
+                    return;
+                }
+                Map<URI, List<SerializableCookie>> cookies = mutableCopy(base
+                        .restore());
+                CookieReplay replay = new CookieReplay(cookies);
+                replay(compactingFile, replay);
+                replay.finish();
+                dropExpired(cookies, System.currentTimeMillis());
+                base.persist(cookies);
+                compactingFile.delete();
+                baseCookieCount = count(cookies);
+            }
+        } catch (PersistenceException e) {
+            // The rotated journal stays on disk; restore still replays it and
+            // the next append retries the compaction.
+        } finally {
+            compacting = false;
+        }
+    }
+
+    /**
+     * Applies every intact record in the supplied journal to the replay.
+     *
+     * @return the length of the intact prefix of the journal
+     */
+    private long replay(File journal, CookieReplay replay)
+            throws PersistenceException {
+        if (!journal.exists()) {
+            return 0;
+        }
+        DataInputStream in = null;
+        long validLength = 0;
+        int records = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(journal)));
+            if (in.readInt() != MAGIC) {
+                return 0;
+            }
+            byte version = in.readByte();
+            if (VERSION_NO_EXPIRY == version) {
+                replayedOldVersion = true;
+            } else if (VERSION != version) {
+                return 0;
+            }
+            validLength = HEADER_LENGTH;
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_LENGTH) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                replay.apply(readRecord(payload, VERSION_NO_EXPIRY != version));
+                validLength += 8 + length;
+                records++;
+            }
+        } catch (EOFException e) {
+            // A torn final record; everything before it is intact
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (journal == journalFile) {
+            journalRecords = records;
+        }
+        return validLength;
+    }
+
+    private void truncateJournal(long length) throws PersistenceException {
+        try {
+            if (0 == length) {
+                if (journalFile.exists() && !journalFile.delete()) {
+                    throw new IOException("Could not delete " + journalFile);
+                }
+                journalRecords = 0;
+            } else {
+                RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+                try {
+                    raf.setLength(length);
+                } finally {
+                    raf.close();
+                }
+            }
+            journalBytes = length;
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        }
+    }
+
+    private static void writeHeader(OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(out);
+        dos.writeInt(MAGIC);
+        dos.writeByte(VERSION);
+        dos.flush();
+    }
+
+    static void writeRecord(OutputStream out, CookieDelta delta)
+            throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(payload);
+        switch (delta.getType()) {
+        case ADD:
+            dos.writeByte(RECORD_ADD);
+            break;
+        case REMOVE:
+            dos.writeByte(RECORD_REMOVE);
+            break;
+        case CLEAR:
+            dos.writeByte(RECORD_CLEAR);
+            break;
+        }
+        if (CookieDelta.Type.CLEAR != delta.getType()) {
+            SerializableCookieIO.writeURI(dos, delta.getUri());
+            SerializableCookieIO.writeCookie(dos, delta.getCookie());
+        }
+        dos.flush();
+
+        CRC32 crc = new CRC32();
+        byte[] bytes = payload.toByteArray();
+        crc.update(bytes, 0, bytes.length);
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(bytes.length);
+        header.writeInt((int) crc.getValue());
+        header.write(bytes);
+        header.flush();
+    }
+
+    static CookieDelta readRecord(byte[] payload, boolean hasExpiresAt)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                payload));
+        byte type = in.readByte();
+        if (RECORD_CLEAR == type) {
+            return CookieDelta.clear();
+        }
+        URI uri = SerializableCookieIO.readURI(in);
+        SerializableCookie cookie = SerializableCookieIO.readCookie(in,
+                hasExpiresAt);
+        switch (type) {
+        case RECORD_ADD:
+            return CookieDelta.add(uri, cookie);
+        case RECORD_REMOVE:
+            return CookieDelta.remove(uri, cookie);
+        default:
+            throw new IOException("Unknown journal record type " + type);
+        }
+    }
+
+    static Map<URI, List<SerializableCookie>> mutableCopy(
+            Map<URI, List<SerializableCookie>> cookies) {
+        Map<URI, List<SerializableCookie>> copy = new HashMap<URI, List<SerializableCookie>>();
+        if (null != cookies) {
+            for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                    .entrySet()) {
+                copy.put(entry.getKey(), new ArrayList<SerializableCookie>(
+                        entry.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Removes cookies which have expired by the supplied time, so that
+     * neither compaction nor restore carries them forward.
+     */
+    static void dropExpired(
+            Map<URI, List<SerializableCookie>> cookies, long now) {
+        Iterator<List<SerializableCookie>> lists = cookies.values().iterator();
+        while (lists.hasNext()) {
+            List<SerializableCookie> list = lists.next();
+            Iterator<SerializableCookie> it = list.iterator();
+            while (it.hasNext()) {
+                if (it.next().hasExpired(now)) {
+                    it.remove();
+                }
+            }
+            if (list.isEmpty()) {
+                lists.remove();
+            }
+        }
+    }
+
+    /**
+     * Keeps one copy of each cookie, by
+     * {@link CookieDelta#identityOf(URI, SerializableCookie)}, listed under
+     * several URIs. Jars written before deltas replaced a re-set cookie under
+     * every URI can hold such copies. The copy expiring last is kept, which
+     * for a cookie re-set with the same max age is the newest one.
+     */
+    static void dropDuplicates(Map<URI, List<SerializableCookie>> cookies) {
+        new CookieReplay(cookies).finish();
+    }
+
+    /**
+     * Applies the supplied deltas to cookies in order, dropping duplicates as
+     * {@link #dropDuplicates(Map)} does
+     */
+    static void applyAll(Map<URI, List<SerializableCookie>> cookies,
+            List<CookieDelta> deltas) {
+        CookieReplay replay = new CookieReplay(cookies);
+        for (CookieDelta delta : deltas) {
+            replay.apply(delta);
+        }
+        replay.finish();
+    }
+
+    private static int count(Map<URI, List<SerializableCookie>> cookies) {
+        int count = 0;
+        if (null != cookies) {
+            for (List<SerializableCookie> list : cookies.values()) {
+                count += list.size();
+            }
+        }
+        return count;
+    }
+
+}
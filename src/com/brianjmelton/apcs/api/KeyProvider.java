@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import javax.crypto.SecretKey;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+
+/**
+ * Supplies the AES keys an {@link EncryptedCookieStoreSerializer} encrypts
+ * the jar with, such as keys held by the platform key store. Keys are named
+ * by an id stored with the data, so a key can be rotated by handing out a
+ * new id while the old key can still be fetched.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public interface KeyProvider {
+
+    /**
+     * Called on every write, so should be cheap.
+     * 
+     * @return the id of the key new data should be encrypted with
+     * @throws PersistenceException
+     */
+    public int getCurrentKeyId() throws PersistenceException;
+
+    /**
+     * @param keyId
+     *            an id {@link #getCurrentKeyId()} returned, now or before
+     * @return the 128, 192 or 256 bit AES key with that id
+     * @throws PersistenceException
+     *             if the key is gone, which makes data encrypted with it
+     *             unreadable
+     */
+    public SecretKey getKey(int keyId) throws PersistenceException;
+
+}
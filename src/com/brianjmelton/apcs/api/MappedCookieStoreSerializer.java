@@ -0,0 +1,430 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.util.AtomicFile;
+import com.brianjmelton.apcs.util.SerializableCookieIO;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * A {@link Persister} whose file is read in place through
+ * {@link FileChannel#map}. Restoring costs one mapping plus a read of the URI
+ * index; each cookie is decoded from its fixed-size record, strings included,
+ * only the first time it is fetched from the returned lists.
+ * <p>
+ * Layout (all integers big-endian):
+ *
+ * <pre>
+ * header   int magic, int version, int uriCount, int cookieCount,
+ *          int stringAreaLength
+ * URIs     uriCount x (int uriString, int firstCookie, int cookieCount)
+ * cookies  cookieCount x (byte flags, 3 bytes padding, int version,
+ *          long maxAge, long expiresAt, int name, value, domain, path,
+ *          portlist, comment, commentURL)
+ * strings  (int byteLength, UTF-8 bytes)*
+ * </pre>
+ *
+ * String fields are offsets into the string area, -1 meaning null. Equal
+ * strings are stored once. Version 1 files, whose records lack expiresAt,
+ * are still read.
+ *
+ * @author brianmelton
+ * @since July 2014
+ */
+public class MappedCookieStoreSerializer implements StreamingPersister,
+        SizedPersister, Closeable {
+
+    private static final int MAGIC = 0x4150434d;
+    private static final int VERSION = 2;
+    private static final int VERSION_NO_EXPIRY = 1;
+    private static final int HEADER_LENGTH = 20;
+    private static final int URI_RECORD_LENGTH = 12;
+    private static final int COOKIE_RECORD_LENGTH = 52;
+    private static final int COOKIE_RECORD_LENGTH_NO_EXPIRY = 44;
+    private static final int NULL_STRING = -1;
+
+    private final File cookieFile;
+    private final AtomicFile atomicFile;
+
+    /**
+     * Constructs a new MappedCookieStoreSerializer that leaves syncing to the
+     * operating system
+     *
+     * @param pathToCookieFile
+     *            the path to the cookie file you would like to create. This
+     *            file may or may not exist beforehand.
+     */
+    public MappedCookieStoreSerializer(File pathToCookieFile) {
+        this(pathToCookieFile, SyncPolicy.never());
+    }
+
+    /**
+     * Constructs a new MappedCookieStoreSerializer
+     *
+     * @param pathToCookieFile
+     *            the path to the cookie file you would like to create. This
+     *            file may or may not exist beforehand.
+     * @param syncPolicy
+     *            how often writes are forced to disk
+     */
+    public MappedCookieStoreSerializer(File pathToCookieFile,
+            SyncPolicy syncPolicy) {
+        if (null == syncPolicy) {
+            throw new IllegalArgumentException("SyncPolicy cannot be null");
+        }
+        this.cookieFile = pathToCookieFile;
+        this.atomicFile = new AtomicFile(pathToCookieFile, syncPolicy);
+    }
+
+    /**
+     * Replaces the file atomically, so mappings handed out by earlier
+     * restores keep seeing the old contents.
+     */
+    @Override
+    public synchronized void persist(Map<URI, List<SerializableCookie>> cookies)
+            throws PersistenceException {
+        OutputStream out = null;
+        try {
+            // First pass lays out the string area so the header can carry
+            // its length
+            Map<String, Integer> offsets = new HashMap<String, Integer>();
+            ByteArrayOutputStream strings = new ByteArrayOutputStream();
+            DataOutputStream stringOut = new DataOutputStream(strings);
+            int cookieCount = 0;
+            for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                    .entrySet()) {
+                offsetOf(offsets, stringOut, entry.getKey().toString());
+                for (SerializableCookie cookie : entry.getValue()) {
+                    offsetOf(offsets, stringOut, cookie.getName());
+                    offsetOf(offsets, stringOut, cookie.getValue());
+                    offsetOf(offsets, stringOut, cookie.getDomain());
+                    offsetOf(offsets, stringOut, cookie.getPath());
+                    offsetOf(offsets, stringOut, cookie.getPortlist());
+                    offsetOf(offsets, stringOut, cookie.getComment());
+                    offsetOf(offsets, stringOut, cookie.getCommentURL());
+                    cookieCount++;
+                }
+            }
+            stringOut.flush();
+
+            out = atomicFile.startWrite();
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(cookies.size());
+            dos.writeInt(cookieCount);
+            dos.writeInt(strings.size());
+
+            int firstCookie = 0;
+            for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                    .entrySet()) {
+                dos.writeInt(offsets.get(entry.getKey().toString()));
+                dos.writeInt(firstCookie);
+                dos.writeInt(entry.getValue().size());
+                firstCookie += entry.getValue().size();
+            }
+            for (List<SerializableCookie> list : cookies.values()) {
+                for (SerializableCookie cookie : list) {
+                    dos.writeByte(SerializableCookieIO.flagsOf(cookie));
+                    dos.writeByte(0);
+                    dos.writeShort(0);
+                    dos.writeInt(cookie.getVersion());
+                    dos.writeLong(cookie.getMaxAge());
+                    dos.writeLong(cookie.getExpiresAt());
+                    dos.writeInt(offsetOf(offsets, stringOut,
+                            cookie.getName()));
+                    dos.writeInt(offsetOf(offsets, stringOut,
+                            cookie.getValue()));
+                    dos.writeInt(offsetOf(offsets, stringOut,
+                            cookie.getDomain()));
+                    dos.writeInt(offsetOf(offsets, stringOut,
+                            cookie.getPath()));
+                    dos.writeInt(offsetOf(offsets, stringOut,
+                            cookie.getPortlist()));
+                    dos.writeInt(offsetOf(offsets, stringOut,
+                            cookie.getComment()));
+                    dos.writeInt(offsetOf(offsets, stringOut,
+                            cookie.getCommentURL()));
+                }
+            }
+            strings.writeTo(dos);
+            dos.flush();
+            atomicFile.finishWrite(out);
+        } catch (Throwable t) {
+            atomicFile.failWrite(out);
+            throw new PersistenceException(t);
+        }
+    }
+
+    @Override
+    public long getLastSnapshotBytes() {
+        return atomicFile.getLastWriteLength();
+    }
+
+    /**
+     * Syncs the last snapshot if the {@link SyncPolicy} left it unsynced. This
+     * serializer stays usable afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        atomicFile.sync();
+    }
+
+    /**
+     * Maps the cookie file and reads its URI index. The returned lists decode
+     * their cookies on first access and stay valid after later persists.
+     */
+    @Override
+    public Map<URI, List<SerializableCookie>> restore()
+            throws PersistenceException {
+        if (!cookieFile.exists()) {
+            return null;
+        }
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(cookieFile, "r");
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a mapped cookie file");
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION && version != VERSION_NO_EXPIRY) {
+                throw new IOException("Unsupported mapped cookie version "
+                        + version);
+            }
+            boolean hasExpiresAt = VERSION_NO_EXPIRY != version;
+            int recordLength = hasExpiresAt ? COOKIE_RECORD_LENGTH
+                    : COOKIE_RECORD_LENGTH_NO_EXPIRY;
+            int uriCount = buffer.getInt(8);
+            int cookieCount = buffer.getInt(12);
+            int stringAreaLength = buffer.getInt(16);
+            long cookiesStart = HEADER_LENGTH + (long) uriCount
+                    * URI_RECORD_LENGTH;
+            long stringsStart = cookiesStart + (long) cookieCount
+                    * recordLength;
+            if (uriCount < 0 || cookieCount < 0 || stringAreaLength < 0
+                    || stringsStart + stringAreaLength != buffer.limit()) {
+                throw new IOException("Corrupt mapped cookie file");
+            }
+
+            Layout layout = new Layout(buffer, hasExpiresAt,
+                    (int) cookiesStart, (int) stringsStart, stringAreaLength);
+            Map<URI, List<SerializableCookie>> cookies = new LinkedHashMap<URI, List<SerializableCookie>>(
+                    Math.max(16, uriCount * 4 / 3 + 1));
+            for (int i = 0; i < uriCount; i++) {
+                int record = HEADER_LENGTH + i * URI_RECORD_LENGTH;
+                int first = buffer.getInt(record + 4);
+                int count = buffer.getInt(record + 8);
+                if (first < 0 || count < 0 || first + count > cookieCount) {
+                    throw new IOException("Corrupt mapped cookie file");
+                }
+                cookies.put(new URI(layout.string(buffer.getInt(record))),
+                        new LazyCookieList(layout, first, count));
+            }
+            return cookies;
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        } finally {
+            // The mapping outlives the channel
+            IOUtils.closeQuietly(raf);
+        }
+    }
+
+    /**
+     * Visits each record in file order. Expired records are recognized from
+     * their fixed fields and never decoded.
+     */
+    @Override
+    public void restore(CookieVisitor visitor) throws PersistenceException {
+        Map<URI, List<SerializableCookie>> cookies = restore();
+        if (null == cookies) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                .entrySet()) {
+            LazyCookieList list = (LazyCookieList) entry.getValue();
+            for (int i = 0; i < list.size(); i++) {
+                if (!list.isExpired(i, now)) {
+                    visitor.visit(entry.getKey(), list.decode(i));
+                }
+            }
+        }
+    }
+
+    private static int offsetOf(Map<String, Integer> offsets,
+            DataOutputStream strings, String s) throws IOException {
+        if (null == s) {
+            return NULL_STRING;
+        }
+        Integer offset = offsets.get(s);
+        if (null == offset) {
+            offset = strings.size();
+            byte[] bytes = s.getBytes("UTF-8");
+            strings.writeInt(bytes.length);
+            strings.write(bytes);
+            offsets.put(s, offset);
+        }
+        return offset;
+    }
+
+    /**
+     * Read-only view of a mapped cookie file
+     */
+    private static final class Layout {
+
+        private final ByteBuffer buffer;
+        private final boolean hasExpiresAt;
+        private final int recordLength, stringsRecordOffset;
+        private final int cookiesStart, stringsStart, stringAreaLength;
+
+        Layout(ByteBuffer buffer, boolean hasExpiresAt, int cookiesStart,
+                int stringsStart, int stringAreaLength) {
+            this.buffer = buffer;
+            this.hasExpiresAt = hasExpiresAt;
+            this.recordLength = hasExpiresAt ? COOKIE_RECORD_LENGTH
+                    : COOKIE_RECORD_LENGTH_NO_EXPIRY;
+            this.stringsRecordOffset = hasExpiresAt ? 24 : 16;
+            this.cookiesStart = cookiesStart;
+            this.stringsStart = stringsStart;
+            this.stringAreaLength = stringAreaLength;
+        }
+
+        boolean isExpired(int index, long now) {
+            int record = cookiesStart + index * recordLength;
+            return SerializableCookieIO.isExpired(buffer.get(record),
+                    buffer.getLong(record + 8), expiresAt(record), now);
+        }
+
+        SerializableCookie cookie(int index) {
+            int record = cookiesStart + index * recordLength;
+            int strings = record + stringsRecordOffset;
+            SerializableCookie cookie = new SerializableCookie(
+                    string(buffer.getInt(strings)),
+                    string(buffer.getInt(strings + 4)));
+            SerializableCookieIO.applyFlags(cookie, buffer.get(record));
+            cookie.setVersion(buffer.getInt(record + 4));
+            cookie.setMaxAge(buffer.getLong(record + 8));
+            cookie.setExpiresAt(expiresAt(record));
+            cookie.setDomain(string(buffer.getInt(strings + 8)));
+            cookie.setPath(string(buffer.getInt(strings + 12)));
+            cookie.setPortlist(string(buffer.getInt(strings + 16)));
+            cookie.setComment(string(buffer.getInt(strings + 20)));
+            cookie.setCommentURL(string(buffer.getInt(strings + 24)));
+            return cookie;
+        }
+
+        private long expiresAt(int record) {
+            return hasExpiresAt ? buffer.getLong(record + 16) : 0;
+        }
+
+        String string(int offset) {
+            if (NULL_STRING == offset) {
+                return null;
+            }
+            if (offset < 0 || offset > stringAreaLength - 4) {
+                throw new IllegalStateException("Corrupt string offset "
+                        + offset);
+            }
+            int length = buffer.getInt(stringsStart + offset);
+            if (length < 0 || offset + 4 + length > stringAreaLength) {
+                throw new IllegalStateException("Corrupt string length "
+                        + length);
+            }
+            byte[] bytes = new byte[length];
+            // Absolute reads only, so concurrent readers don't share a
+            // position
+            ByteBuffer view = buffer.duplicate();
+            view.position(stringsStart + offset + 4);
+            view.get(bytes);
+            try {
+                return new String(bytes, "UTF-8");
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * The cookies of one URI, decoded and cached on first access
+     */
+    private static final class LazyCookieList extends
+            AbstractList<SerializableCookie> {
+
+        private final Layout layout;
+        private final int first;
+        private final SerializableCookie[] decoded;
+
+        LazyCookieList(Layout layout, int first, int count) {
+            this.layout = layout;
+            this.first = first;
+            this.decoded = new SerializableCookie[count];
+        }
+
+        @Override
+        public synchronized SerializableCookie get(int index) {
+            if (index < 0 || index >= decoded.length) {
+                throw new IndexOutOfBoundsException("Index: " + index
+                        + ", Size: " + decoded.length);
+            }
+            if (null == decoded[index]) {
+                decoded[index] = layout.cookie(first + index);
+            }
+            return decoded[index];
+        }
+
+        @Override
+        public int size() {
+            return decoded.length;
+        }
+
+        boolean isExpired(int index, long now) {
+            return layout.isExpired(first + index, now);
+        }
+
+        /**
+         * Decodes without caching, for callers that read each cookie once
+         */
+        SerializableCookie decode(int index) {
+            return layout.cookie(first + index);
+        }
+    }
+
+}
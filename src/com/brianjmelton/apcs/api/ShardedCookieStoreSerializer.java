@@ -0,0 +1,483 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+import org.apache.commons.io.IOUtils;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.util.AtomicFile;
+import com.brianjmelton.apcs.util.BinaryCookieCodec;
+import com.brianjmelton.apcs.util.Domains;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * A {@link Persister} spreading the jar over a fixed number of shard files in
+ * a directory, each cookie going to the shard its registrable domain hashes
+ * to. A persist fingerprints every shard and rewrites only those whose
+ * contents changed, so the bytes written follow the size of the shards
+ * touched rather than of the whole jar. A restore reads the shards in
+ * parallel when given an {@link Executor}.
+ * <p>
+ * Each shard is a {@link BinaryCookieCodec} file. A small manifest, replaced
+ * after the shards, records the shard count and the fingerprint and length
+ * of each shard. A restore reads every shard file there is and fingerprints
+ * what it read, so that the first persist after it can skip shards which
+ * haven't changed, and a crash between writing the shards and the manifest
+ * loses nothing.
+ *
+ * @author brianmelton
+ * @since July 2014
+ */
+public class ShardedCookieStoreSerializer implements SizedPersister,
+        Closeable {
+
+    public static final int DEFAULT_SHARD_COUNT = 32;
+
+    private static final int MAGIC = 0x41504353;
+    private static final int VERSION = 1;
+    private static final String MANIFEST_NAME = "manifest";
+    private static final String SHARD_PREFIX = "shard-";
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    // Never the fingerprint of a shard, so the shard is always rewritten
+    private static final long UNKNOWN = 0;
+
+    private final File directory;
+    private final int shardCount;
+    private final Executor restoreExecutor;
+    private final AtomicFile manifest;
+    private final AtomicFile[] shards;
+
+    private final long[] fingerprints, lengths;
+    // Shard count found in an older manifest, if it differs from shardCount
+    private int staleShardCount;
+    private volatile long lastSnapshotBytes = -1;
+
+    /**
+     * Constructs a new ShardedCookieStoreSerializer with
+     * {@link #DEFAULT_SHARD_COUNT} shards, restoring them on the calling
+     * thread and leaving syncing to the operating system
+     *
+     * @param directory
+     *            the directory to keep the shards in. It may or may not exist
+     *            beforehand.
+     */
+    public ShardedCookieStoreSerializer(File directory) {
+        this(directory, DEFAULT_SHARD_COUNT, null, SyncPolicy.never());
+    }
+
+    /**
+     * Constructs a new ShardedCookieStoreSerializer
+     *
+     * @param directory
+     *            the directory to keep the shards in. It may or may not exist
+     *            beforehand.
+     * @param shardCount
+     *            how many shard files to spread the jar over. Changing it
+     *            between runs is allowed; the first persist after restoring
+     *            rewrites every shard.
+     * @param restoreExecutor
+     *            where shards are read during a restore, or null to read
+     *            them one after another on the calling thread
+     * @param syncPolicy
+     *            how often writes are forced to disk, counted per shard
+     */
+    public ShardedCookieStoreSerializer(File directory, int shardCount,
+            Executor restoreExecutor, SyncPolicy syncPolicy) {
+        if (null == directory || null == syncPolicy) {
+            throw new IllegalArgumentException(
+                    "Directory and SyncPolicy cannot be null");
+        }
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be positive");
+        }
+        this.directory = directory;
+        this.shardCount = shardCount;
+        this.restoreExecutor = restoreExecutor;
+        this.manifest = new AtomicFile(new File(directory, MANIFEST_NAME),
+                syncPolicy);
+        this.shards = new AtomicFile[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new AtomicFile(shardFile(i), syncPolicy);
+        }
+        this.fingerprints = new long[shardCount];
+        this.lengths = new long[shardCount];
+        Arrays.fill(fingerprints, UNKNOWN);
+    }
+
+    @Override
+    public synchronized void persist(Map<URI, List<SerializableCookie>> cookies)
+            throws PersistenceException {
+        List<Map<URI, List<SerializableCookie>>> partitions = new ArrayList<Map<URI, List<SerializableCookie>>>(
+                shardCount);
+        long[] sums = new long[shardCount];
+        int[] counts = new int[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            partitions.add(null);
+        }
+        for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                .entrySet()) {
+            URI uri = entry.getKey();
+            String uriString = null == uri ? null : uri.toString();
+            for (SerializableCookie cookie : entry.getValue()) {
+                int shard = shardOf(uri, cookie, shardCount);
+                Map<URI, List<SerializableCookie>> partition = partitions
+                        .get(shard);
+                if (null == partition) {
+                    partition = new LinkedHashMap<URI, List<SerializableCookie>>();
+                    partitions.set(shard, partition);
+                }
+                List<SerializableCookie> list = partition.get(uri);
+                if (null == list) {
+                    list = new ArrayList<SerializableCookie>();
+                    partition.put(uri, list);
+                }
+                list.add(cookie);
+                // Summed, so the order cookies come in doesn't matter
+                sums[shard] += hash(uriString, cookie);
+                counts[shard]++;
+            }
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new PersistenceException(new IOException("Cannot create "
+                    + directory));
+        }
+        boolean changed = false;
+        for (int i = 0; i < shardCount; i++) {
+            long fingerprint = fingerprint(sums[i], counts[i]);
+            if (fingerprint == fingerprints[i]) {
+                continue;
+            }
+            if (0 == counts[i]) {
+                File file = shards[i].getBaseFile();
+                if (file.exists() && !file.delete()) {
+                    throw new PersistenceException(new IOException(
+                            "Cannot delete " + file));
+                }
+                lengths[i] = 0;
+            } else {
+                writeShard(shards[i], partitions.get(i));
+                lengths[i] = shards[i].getLastWriteLength();
+            }
+            fingerprints[i] = fingerprint;
+            changed = true;
+        }
+        for (int i = shardCount; i < staleShardCount; i++) {
+            shardFile(i).delete();
+        }
+        staleShardCount = 0;
+        if (changed) {
+            writeManifest();
+        }
+        lastSnapshotBytes = sum(lengths);
+    }
+
+    /**
+     * @return the combined size of the shards after the last persist or
+     *         restore, -1 before either
+     */
+    @Override
+    public long getLastSnapshotBytes() {
+        return lastSnapshotBytes;
+    }
+
+    /**
+     * Syncs the shards and manifest the {@link SyncPolicy} left unsynced.
+     * This serializer stays usable afterwards.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        for (AtomicFile shard : shards) {
+            shard.sync();
+        }
+        manifest.sync();
+    }
+
+    @Override
+    public synchronized Map<URI, List<SerializableCookie>> restore()
+            throws PersistenceException {
+        if (!manifest.getBaseFile().exists()) {
+            return null;
+        }
+        int count;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(manifest.getBaseFile())));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a shard manifest");
+            }
+            // The shards may be newer than the fingerprints and lengths that
+            // follow, if a persist was cut short, so only the count is used
+            count = in.readInt();
+        } catch (Throwable t) {
+            throw new PersistenceException(t);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        List<FutureTask<Map<URI, List<SerializableCookie>>>> reads = new ArrayList<FutureTask<Map<URI, List<SerializableCookie>>>>(
+                count);
+        for (int i = 0; i < count; i++) {
+            final File file = shardFile(i);
+            if (!file.exists()) {
+                reads.add(null);
+                continue;
+            }
+            FutureTask<Map<URI, List<SerializableCookie>>> read = new FutureTask<Map<URI, List<SerializableCookie>>>(
+                    new Callable<Map<URI, List<SerializableCookie>>>() {
+                        @Override
+                        public Map<URI, List<SerializableCookie>> call()
+                                throws IOException {
+                            return readShard(file);
+                        }
+                    });
+            reads.add(read);
+            if (null == restoreExecutor) {
+                read.run();
+            } else {
+                restoreExecutor.execute(read);
+            }
+        }
+
+        Map<URI, List<SerializableCookie>> cookies = new LinkedHashMap<URI, List<SerializableCookie>>();
+        long[] readFingerprints = new long[count];
+        long[] readLengths = new long[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                FutureTask<Map<URI, List<SerializableCookie>>> read = reads
+                        .get(i);
+                if (null == read) {
+                    readFingerprints[i] = fingerprint(0, 0);
+                    continue;
+                }
+                Map<URI, List<SerializableCookie>> shard = read.get();
+                // Before merging, which may add to the shard's lists
+                readFingerprints[i] = fingerprintOf(shard);
+                readLengths[i] = shardFile(i).length();
+                merge(shard, cookies);
+            }
+        } catch (ExecutionException e) {
+            throw new PersistenceException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PersistenceException(e);
+        } finally {
+            for (FutureTask<Map<URI, List<SerializableCookie>>> read : reads) {
+                if (null != read) {
+                    read.cancel(true);
+                }
+            }
+        }
+
+        if (count == shardCount) {
+            System.arraycopy(readFingerprints, 0, fingerprints, 0, count);
+            System.arraycopy(readLengths, 0, lengths, 0, count);
+            staleShardCount = 0;
+        } else {
+            // Cookies hash to other shards now; rewrite them all
+            Arrays.fill(fingerprints, UNKNOWN);
+            Arrays.fill(lengths, 0);
+            staleShardCount = count;
+        }
+        lastSnapshotBytes = sum(readLengths);
+        return cookies;
+    }
+
+    private File shardFile(int shard) {
+        return new File(directory, SHARD_PREFIX + shard);
+    }
+
+    /**
+     * @return the shard of the cookie's registrable domain. String hashes are
+     *         fixed by the language, so shards stay put between runs.
+     */
+    static int shardOf(URI uri, SerializableCookie cookie, int shardCount) {
+        String domain = cookie.getDomain();
+        int h = (null != domain ? Domains.registrableDomain(domain) : Domains
+                .registrableDomain(uri)).hashCode();
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % shardCount;
+    }
+
+    private void writeShard(AtomicFile shard,
+            Map<URI, List<SerializableCookie>> cookies)
+            throws PersistenceException {
+        OutputStream out = null;
+        try {
+            out = shard.startWrite();
+            DataOutputStream dos = new DataOutputStream(out);
+            BinaryCookieCodec.write(dos, cookies);
+            dos.flush();
+            shard.finishWrite(out);
+        } catch (Throwable t) {
+            shard.failWrite(out);
+            throw new PersistenceException(t);
+        }
+    }
+
+    private void writeManifest() throws PersistenceException {
+        OutputStream out = null;
+        try {
+            out = manifest.startWrite();
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeInt(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                dos.writeLong(fingerprints[i]);
+                dos.writeLong(lengths[i]);
+            }
+            dos.flush();
+            manifest.finishWrite(out);
+        } catch (Throwable t) {
+            manifest.failWrite(out);
+            throw new PersistenceException(t);
+        }
+    }
+
+    private static Map<URI, List<SerializableCookie>> readShard(File file)
+            throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+        try {
+            return BinaryCookieCodec.read(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Adds a shard's cookies to the jar. A URI can have cookies in more than
+     * one shard when it was sent cookies for a parent domain.
+     */
+    static void merge(Map<URI, List<SerializableCookie>> shard,
+            Map<URI, List<SerializableCookie>> cookies) {
+        for (Map.Entry<URI, List<SerializableCookie>> entry : shard.entrySet()) {
+            List<SerializableCookie> list = cookies.get(entry.getKey());
+            if (null == list) {
+                cookies.put(entry.getKey(), entry.getValue());
+            } else {
+                list.addAll(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * A hash of every persisted field of the cookie and the URI it is listed
+     * under, spread so that sums of them rarely collide. The max age is left
+     * out: a restored cookie is persisted again with what remains of it, so
+     * it changes on every restart, while the expiry instant does not.
+     */
+    static long hash(String uri, SerializableCookie cookie) {
+        long hash = FNV_OFFSET;
+        hash = mix(hash, uri);
+        hash = mix(hash, cookie.getName());
+        hash = mix(hash, cookie.getValue());
+        hash = mix(hash, cookie.getDomain());
+        hash = mix(hash, cookie.getPath());
+        hash = mix(hash, cookie.getPortlist());
+        hash = mix(hash, cookie.getComment());
+        hash = mix(hash, cookie.getCommentURL());
+        hash = (hash ^ cookie.getExpiresAt()) * FNV_PRIME;
+        int flags = cookie.getVersion() << 3;
+        if (cookie.isSecure()) {
+            flags |= 1;
+        }
+        if (cookie.getDiscard()) {
+            flags |= 2;
+        }
+        if (cookie.isExpired()) {
+            flags |= 4;
+        }
+        hash = (hash ^ flags) * FNV_PRIME;
+        // Finalizer from MurmurHash3
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+
+    private static long mix(long hash, String s) {
+        if (null != s) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                hash = (hash ^ s.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // Separates fields, and tells null from empty
+        return (hash ^ (null == s ? 0x10000 : 0x10001)) * FNV_PRIME;
+    }
+
+    /**
+     * @return the fingerprint of a shard holding the supplied cookies
+     */
+    static long fingerprintOf(Map<URI, List<SerializableCookie>> shard) {
+        long sum = 0;
+        int count = 0;
+        for (Map.Entry<URI, List<SerializableCookie>> entry : shard.entrySet()) {
+            URI uri = entry.getKey();
+            String uriString = null == uri ? null : uri.toString();
+            for (SerializableCookie cookie : entry.getValue()) {
+                sum += hash(uriString, cookie);
+                count++;
+            }
+        }
+        return fingerprint(sum, count);
+    }
+
+    /**
+     * @return the fingerprint of a shard holding count cookies whose hashes
+     *         sum to sum, never {@link #UNKNOWN}
+     */
+    static long fingerprint(long sum, int count) {
+        if (0 == count) {
+            return 1;
+        }
+        long fingerprint = (sum ^ count) * FNV_PRIME;
+        return UNKNOWN == fingerprint || 1 == fingerprint ? 2 : fingerprint;
+    }
+
+    private static long sum(long[] values) {
+        long sum = 0;
+        for (long value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+}
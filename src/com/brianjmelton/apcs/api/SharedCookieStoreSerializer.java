@@ -0,0 +1,556 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.util.AtomicFile;
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * A {@link SharedPersister} for a jar that several processes persist to, such
+ * as an app's main process and a sync service. Like
+ * {@link JournalingCookieStoreSerializer} it appends each change to a log
+ * next to a base snapshot, but every access to the files happens under a
+ * {@link FileChannel#lock} on a lock file next to them, shared for reads and
+ * exclusive for writes.
+ * <p>
+ * The log header carries a generation, which changes whenever the base
+ * snapshot is replaced. Each process remembers the generation and offset it
+ * has read the log up to. {@link #pollChanges()} compares the log's length
+ * and modification time with what it last saw, and only when they differ,
+ * or when the log had changed too recently for its modification time to
+ * tell a later change apart, reads the records appended since. A process which falls behind one
+ * compaction catches up from the previous log, kept aside for the purpose;
+ * one which falls further behind, or behind a full {@link #persist(Map)},
+ * reloads the whole jar.
+ * <p>
+ * File locks are held on behalf of the whole process, so use a single
+ * instance per file in each process. Compaction runs on the writing thread,
+ * holding the exclusive lock.
+ *
+ * @author brianmelton
+ * @since July 2014
+ */
+public class SharedCookieStoreSerializer implements SharedPersister,
+        SizedPersister, Closeable {
+
+    public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+
+    private static final int MAGIC = 0x41505331;
+    private static final byte VERSION = 1;
+    private static final int HEADER_LENGTH = 13;
+    /** No log has been read. */
+    private static final long NO_GENERATION = 0;
+    /** The coarsest modification time a file system keeps, FAT's */
+    private static final long MTIME_RESOLUTION_MILLIS = 2000;
+
+    private final Persister base;
+    private final File logFile, previousLogFile, lockFile;
+    private final long checkIntervalMillis, maxLogBytes;
+
+    private RandomAccessFile lockAccess;
+
+    private long generation = NO_GENERATION, offset;
+    private long knownLength = -1, knownModified = -1, knownAt;
+    private List<CookieDelta> pending = new ArrayList<CookieDelta>();
+    private volatile boolean hasPending;
+    private volatile long nextCheck;
+
+    /**
+     * Constructs a new SharedCookieStoreSerializer with a
+     * {@link BasicCookieStoreSerializer} base, which reads an existing cookie
+     * file as is
+     *
+     * @param pathToCookieFile
+     *            the path to the base snapshot. The log and lock file live
+     *            next to it with ".log" and ".log.lock" suffixes.
+     */
+    public SharedCookieStoreSerializer(File pathToCookieFile) {
+        this(new BasicCookieStoreSerializer(pathToCookieFile), new File(
+                pathToCookieFile.getPath() + ".log"),
+                DEFAULT_CHECK_INTERVAL_MILLIS,
+                JournalingCookieStoreSerializer.DEFAULT_MAX_JOURNAL_BYTES);
+    }
+
+    /**
+     * Constructs a new SharedCookieStoreSerializer
+     *
+     * @param base
+     *            the {@link Persister} holding the base snapshot
+     * @param logFile
+     *            the file changes are appended to. This file may or may not
+     *            exist beforehand.
+     * @param checkIntervalMillis
+     *            how long {@link #pollChanges()} goes without looking at the
+     *            log. 0 looks on every call.
+     * @param maxLogBytes
+     *            compact once the log reaches this many bytes
+     */
+    public SharedCookieStoreSerializer(Persister base, File logFile,
+            long checkIntervalMillis, long maxLogBytes) {
+        if (null == base || null == logFile) {
+            throw new IllegalArgumentException(
+                    "Base and log file cannot be null");
+        }
+        if (checkIntervalMillis < 0 || maxLogBytes <= 0) {
+            throw new IllegalArgumentException(
+                    "Check interval cannot be negative, nor the log limit less than one byte");
+        }
+        this.base = base;
+        this.logFile = logFile;
+        this.previousLogFile = new File(logFile.getPath() + ".prev");
+        this.lockFile = new File(logFile.getPath() + ".lock");
+        this.checkIntervalMillis = checkIntervalMillis;
+        this.maxLogBytes = maxLogBytes;
+    }
+
+    /**
+     * Reads the base and log, and starts a log if there is none, so that
+     * every later change to the base shows as a new generation.
+     */
+    @Override
+    public synchronized Map<URI, List<SerializableCookie>> restore()
+            throws PersistenceException {
+        FileLock lock = null;
+        try {
+            lock = lock(false);
+            Map<URI, List<SerializableCookie>> cookies = JournalingCookieStoreSerializer
+                    .mutableCopy(base.restore());
+            generation = NO_GENERATION;
+            List<CookieDelta> records = new ArrayList<CookieDelta>();
+            if (logFile.exists()) {
+                RandomAccessFile log = new RandomAccessFile(logFile, "r");
+                try {
+                    generation = readGeneration(log);
+                    if (NO_GENERATION != generation) {
+                        offset = readRecords(log, HEADER_LENGTH, records);
+                    }
+                } finally {
+                    log.close();
+                }
+            }
+            JournalingCookieStoreSerializer.applyAll(cookies, records);
+            if (NO_GENERATION == generation) {
+                createLog();
+            }
+            pending.clear();
+            hasPending = false;
+            remember();
+            return cookies;
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        } finally {
+            release(lock);
+        }
+    }
+
+    @Override
+    public synchronized void append(List<CookieDelta> deltas)
+            throws PersistenceException {
+        FileLock lock = null;
+        try {
+            lock = lock(false);
+            catchUp();
+            supersede(deltas);
+            if (NO_GENERATION == generation) {
+                createLog();
+            }
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (CookieDelta delta : deltas) {
+                JournalingCookieStoreSerializer.writeRecord(bytes, delta);
+            }
+            RandomAccessFile log = new RandomAccessFile(logFile, "rw");
+            try {
+                // Drops a torn record a crashed writer left behind
+                if (log.length() != offset) {
+                    log.setLength(offset);
+                }
+                log.seek(offset);
+                log.write(bytes.toByteArray());
+            } finally {
+                log.close();
+            }
+            offset += bytes.size();
+
+            if (offset >= maxLogBytes) {
+                compact();
+            }
+            remember();
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Replaces the base snapshot and starts a new log generation, so that
+     * other processes reload. Changes other processes persisted since the
+     * last poll are kept, and are still returned by the next poll.
+     */
+    @Override
+    public synchronized void persist(Map<URI, List<SerializableCookie>> cookies)
+            throws PersistenceException {
+        FileLock lock = null;
+        try {
+            lock = lock(false);
+            catchUp();
+            Map<URI, List<SerializableCookie>> merged = JournalingCookieStoreSerializer
+                    .mutableCopy(cookies);
+            JournalingCookieStoreSerializer.applyAll(merged, pending);
+            base.persist(merged);
+            previousLogFile.delete();
+            createLog();
+            remember();
+        } catch (IOException e) {
+            throw new PersistenceException(e);
+        } finally {
+            release(lock);
+        }
+    }
+
+    @Override
+    public boolean hasChanges() {
+        return hasPending || System.currentTimeMillis() >= nextCheck;
+    }
+
+    @Override
+    public List<CookieDelta> pollChanges() throws PersistenceException {
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            nextCheck = now + checkIntervalMillis;
+            // A change within the same tick as the one last seen, such as a
+            // new generation's log replacing an empty one, keeps the length
+            // and modification time
+            if (logFile.length() != knownLength
+                    || logFile.lastModified() != knownModified
+                    || knownModified > knownAt - MTIME_RESOLUTION_MILLIS) {
+                FileLock lock = null;
+                try {
+                    lock = lock(true);
+                    catchUp();
+                    remember();
+                } catch (IOException e) {
+                    throw new PersistenceException(e);
+                } finally {
+                    release(lock);
+                }
+            }
+            if (pending.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<CookieDelta> changes = pending;
+            pending = new ArrayList<CookieDelta>();
+            hasPending = false;
+            return changes;
+        }
+    }
+
+    /**
+     * @return the size of the last base snapshot, if the base can tell
+     */
+    @Override
+    public long getLastSnapshotBytes() {
+        return base instanceof SizedPersister ? ((SizedPersister) base)
+                .getLastSnapshotBytes() : -1;
+    }
+
+    /**
+     * Closes the base {@link Persister}, if it is {@link Closeable}.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (base instanceof Closeable) {
+            ((Closeable) base).close();
+        }
+    }
+
+    /**
+     * Queues the changes other processes have logged since this one last
+     * looked. Called holding a file lock.
+     */
+    private void catchUp() throws IOException, PersistenceException {
+        long current = NO_GENERATION, end = 0;
+        List<CookieDelta> records = new ArrayList<CookieDelta>();
+        if (logFile.exists()) {
+            RandomAccessFile log = new RandomAccessFile(logFile, "r");
+            try {
+                current = readGeneration(log);
+                if (NO_GENERATION != current && current == generation) {
+                    offset = readRecords(log, offset, pending);
+                    hasPending = !pending.isEmpty();
+                    return;
+                }
+                if (NO_GENERATION != current) {
+                    end = readRecords(log, HEADER_LENGTH, records);
+                }
+            } finally {
+                log.close();
+            }
+        }
+        if (current == generation) {
+            return;
+        }
+
+        if (!readPreviousLog()) {
+            // Fell behind a full persist, or more than one compaction
+            pending.clear();
+            pending.add(CookieDelta.clear());
+            Map<URI, List<SerializableCookie>> cookies = JournalingCookieStoreSerializer
+                    .mutableCopy(base.restore());
+            JournalingCookieStoreSerializer.applyAll(cookies, records);
+            for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                    .entrySet()) {
+                for (SerializableCookie cookie : entry.getValue()) {
+                    pending.add(CookieDelta.add(entry.getKey(), cookie));
+                }
+            }
+        } else {
+            pending.addAll(records);
+        }
+        generation = current;
+        offset = end;
+        hasPending = !pending.isEmpty();
+    }
+
+    /**
+     * Queues the rest of the log another process compacted, if it is the one
+     * this process was reading
+     *
+     * @return whether it was
+     */
+    private boolean readPreviousLog() throws IOException {
+        if (NO_GENERATION == generation || !previousLogFile.exists()) {
+            return false;
+        }
+        RandomAccessFile log = new RandomAccessFile(previousLogFile, "r");
+        try {
+            if (readGeneration(log) != generation) {
+                return false;
+            }
+            readRecords(log, offset, pending);
+            return true;
+        } finally {
+            log.close();
+        }
+    }
+
+    /**
+     * Drops queued changes from other processes which the supplied ones,
+     * logged after them, override. When a reload is queued its clear would
+     * also drop the supplied changes from the caller's store, so they are
+     * queued again after it.
+     */
+    private void supersede(List<CookieDelta> deltas) {
+        // The last of the supplied changes to each cookie, in the order of
+        // those last changes
+        Map<String, CookieDelta> latest = new LinkedHashMap<String, CookieDelta>();
+        for (CookieDelta delta : deltas) {
+            if (CookieDelta.Type.CLEAR == delta.getType()) {
+                // Overrides everything queued, and leaves no reload queued
+                pending.clear();
+                hasPending = false;
+                return;
+            }
+            String identity = identityOf(delta);
+            latest.remove(identity);
+            latest.put(identity, delta);
+        }
+        boolean reloading = false;
+        List<CookieDelta> kept = new ArrayList<CookieDelta>(pending.size());
+        for (CookieDelta queued : pending) {
+            if (CookieDelta.Type.CLEAR == queued.getType()) {
+                reloading = true;
+                kept.add(queued);
+            } else if (!latest.containsKey(identityOf(queued))) {
+                kept.add(queued);
+            }
+        }
+        pending.clear();
+        pending.addAll(kept);
+        if (reloading) {
+            pending.addAll(latest.values());
+        }
+        hasPending = !pending.isEmpty();
+    }
+
+    private static String identityOf(CookieDelta delta) {
+        return CookieDelta.identityOf(delta.getUri(), delta.getCookie());
+    }
+
+    /**
+     * Folds the log into the base and starts the next generation, keeping
+     * the folded log for processes which haven't read all of it. Called
+     * holding the exclusive lock, caught up.
+     */
+    private void compact() throws IOException, PersistenceException {
+        Map<URI, List<SerializableCookie>> cookies = JournalingCookieStoreSerializer
+                .mutableCopy(base.restore());
+        List<CookieDelta> records = new ArrayList<CookieDelta>();
+        RandomAccessFile log = new RandomAccessFile(logFile, "r");
+        try {
+            readRecords(log, HEADER_LENGTH, records);
+        } finally {
+            log.close();
+        }
+        JournalingCookieStoreSerializer.applyAll(cookies, records);
+        JournalingCookieStoreSerializer.dropExpired(cookies,
+                System.currentTimeMillis());
+        base.persist(cookies);
+        // A crash from here on only replays the log onto a base which
+        // already holds it, which changes nothing
+        previousLogFile.delete();
+        if (!logFile.renameTo(previousLogFile)) {
+            throw new IOException("Could not rotate " + logFile);
+        }
+        createLog();
+    }
+
+    /**
+     * Replaces the log with an empty one of a generation no process has
+     * seen. Called holding the exclusive lock.
+     */
+    private void createLog() throws IOException {
+        long next = Math.max(System.currentTimeMillis(), generation + 1);
+        if (previousLogFile.exists()) {
+            RandomAccessFile previous = new RandomAccessFile(previousLogFile,
+                    "r");
+            try {
+                next = Math.max(next, readGeneration(previous) + 1);
+            } finally {
+                previous.close();
+            }
+        }
+        AtomicFile atomicFile = new AtomicFile(logFile, SyncPolicy.never());
+        OutputStream out = null;
+        try {
+            out = atomicFile.startWrite();
+            DataOutputStream dos = new DataOutputStream(out);
+            dos.writeInt(MAGIC);
+            dos.writeByte(VERSION);
+            dos.writeLong(next);
+            dos.flush();
+            atomicFile.finishWrite(out);
+        } catch (IOException e) {
+            atomicFile.failWrite(out);
+            throw e;
+        }
+        generation = next;
+        offset = HEADER_LENGTH;
+    }
+
+    private void remember() {
+        knownAt = System.currentTimeMillis();
+        knownLength = logFile.length();
+        knownModified = logFile.lastModified();
+    }
+
+    private FileLock lock(boolean shared) throws IOException {
+        if (null == lockAccess) {
+            lockAccess = new RandomAccessFile(lockFile, "rw");
+        }
+        return lockAccess.getChannel().lock(0, Long.MAX_VALUE, shared);
+    }
+
+    private static void release(FileLock lock) {
+        if (null != lock) {
+            try {
+                lock.release();
+            } catch (IOException e) {
+                // Released anyway when the channel closes
+            }
+        }
+    }
+
+    /**
+     * @return the generation in the log's header, {@link #NO_GENERATION} if
+     *         it has none
+     */
+    private static long readGeneration(RandomAccessFile log)
+            throws IOException {
+        if (log.length() < HEADER_LENGTH) {
+            return NO_GENERATION;
+        }
+        log.seek(0);
+        if (log.readInt() != MAGIC || log.readByte() != VERSION) {
+            return NO_GENERATION;
+        }
+        return log.readLong();
+    }
+
+    /**
+     * Reads the intact records from an offset on
+     *
+     * @return the offset just past the last intact record
+     */
+    private static long readRecords(RandomAccessFile log, long from,
+            List<CookieDelta> out) throws IOException {
+        log.seek(from);
+        // Not closed: that would close the log's channel under the caller
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(log.getChannel())));
+        long validLength = from;
+        CRC32 crc = new CRC32();
+        try {
+            while (true) {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0
+                        || length > JournalingCookieStoreSerializer.MAX_RECORD_LENGTH) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                out.add(JournalingCookieStoreSerializer.readRecord(payload,
+                        true));
+                validLength += 8 + length;
+            }
+        } catch (EOFException e) {
+            // A torn final record, left by a crashed writer
+        }
+        return validLength;
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.net.CookieStore;
+import java.util.List;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.CookieDelta;
+
+/**
+ * An {@link IncrementalPersister} whose persisted jar other processes may
+ * change too. A {@link CookieStore} bound to one of these polls it for their
+ * changes and applies them, so that neither process overwrites or misses
+ * what the other has set.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public interface SharedPersister extends IncrementalPersister {
+
+    /**
+     * Called when the {@link CookieStore} responsible for this Persister is
+     * about to read or change cookies, so must be cheap. Returning true when
+     * nothing has changed only costs a call to {@link #pollChanges()}.
+     * 
+     * @return whether {@link #pollChanges()} may return anything
+     */
+    public boolean hasChanges();
+
+    /**
+     * Called after {@link #hasChanges()} returned true, while the
+     * {@link CookieStore} holds off persisting, so that changes it has yet
+     * to log are not mistaken for older ones.
+     * 
+     * @return the changes other processes have persisted since the last call
+     *         or the last restore, oldest first. A
+     *         {@link CookieDelta.Type#CLEAR} followed by additions replaces
+     *         the persisted jar wholesale.
+     * @throws PersistenceException
+     */
+    public List<CookieDelta> pollChanges() throws PersistenceException;
+
+}
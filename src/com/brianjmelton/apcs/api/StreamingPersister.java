@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import java.net.CookieStore;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+
+/**
+ * A {@link Persister} that can restore record by record instead of building
+ * the whole map first, so a restore never holds more than one cookie beyond
+ * what the {@link CookieStore} itself keeps.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public interface StreamingPersister extends Persister {
+
+    /**
+     * Called when the {@link CookieStore} responsible for this Persister wishes
+     * to restore itself from a previous instance. Expired cookies are skipped
+     * without being decoded where the format allows it.
+     * 
+     * @param visitor
+     *            receives each restored cookie
+     * @throws PersistenceException
+     */
+    public void restore(CookieVisitor visitor) throws PersistenceException;
+
+}
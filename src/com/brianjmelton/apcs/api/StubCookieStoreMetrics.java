@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+/**
+ * Stub implementation
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class StubCookieStoreMetrics implements CookieStoreMetrics {
+
+    @Override
+    public void onOperation(Operation operation, long durationNanos) {}
+
+    @Override
+    public void onJarSize(int cookieCount, int uriCount) {}
+
+    @Override
+    public void onSnapshotBytes(long bytes) {}
+
+}
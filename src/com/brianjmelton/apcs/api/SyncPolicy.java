@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+/**
+ * How often a file-backed {@link Persister} forces its writes to the storage
+ * device. Every snapshot is replaced atomically regardless; syncing decides
+ * how many of the most recent snapshots a power loss may take with it.
+ * <p>
+ * Only the snapshot's contents are synced. The rename putting it in place is
+ * left to the file system, as there is no way to sync a directory on the
+ * platform, so even {@link #always()} may lose the last snapshot, though
+ * never tear it. Writes a policy leaves unsynced are synced when the
+ * {@link Persister} is closed, which {@link java.io.Closeable} persisters
+ * are when their PersistentCookieStore is.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public final class SyncPolicy {
+
+    private static final SyncPolicy NEVER = new SyncPolicy(Integer.MAX_VALUE,
+            Long.MAX_VALUE);
+    private static final SyncPolicy ALWAYS = new SyncPolicy(1, 0);
+
+    private final int everyWrites;
+    private final long everyMillis;
+
+    private SyncPolicy(int everyWrites, long everyMillis) {
+        this.everyWrites = everyWrites;
+        this.everyMillis = everyMillis;
+    }
+
+    /**
+     * Leave flushing to the operating system. Cheapest, and what
+     * {@link BasicCookieStoreSerializer} has always done.
+     * 
+     * @return the policy
+     */
+    public static SyncPolicy never() {
+        return NEVER;
+    }
+
+    /**
+     * Sync every write before it replaces the previous snapshot.
+     * 
+     * @return the policy
+     */
+    public static SyncPolicy always() {
+        return ALWAYS;
+    }
+
+    /**
+     * Sync every n-th write
+     * 
+     * @param n
+     * @return the policy
+     */
+    public static SyncPolicy everyWrites(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be positive");
+        }
+        return new SyncPolicy(n, Long.MAX_VALUE);
+    }
+
+    /**
+     * Group commit: sync the first write made at least millis after the last
+     * synced one. The last writes of a burst stay unsynced until another
+     * write comes along, or the {@link Persister} is closed.
+     * 
+     * @param millis
+     * @return the policy
+     */
+    public static SyncPolicy everyMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("millis cannot be negative");
+        }
+        return new SyncPolicy(Integer.MAX_VALUE, millis);
+    }
+
+    /**
+     * @param writesSinceSync
+     *            unsynced writes so far, including the current one
+     * @param millisSinceSync
+     *            time since the last sync
+     * @return whether the current write should be synced
+     */
+    public boolean shouldSync(int writesSinceSync, long millisSinceSync) {
+        return writesSinceSync >= everyWrites || millisSinceSync >= everyMillis;
+    }
+
+}
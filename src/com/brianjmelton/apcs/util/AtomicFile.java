@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+import org.apache.commons.io.IOUtils;
+
+import com.brianjmelton.apcs.api.SyncPolicy;
+
+/**
+ * Replaces a file atomically: data is written to a sibling temp file which is
+ * then renamed over the original, so readers and crashes only ever see the
+ * old or the new contents. Whether the temp file is forced to disk first is
+ * up to a {@link SyncPolicy}. The rename itself is never synced, as the
+ * platform offers no way to sync a directory, so a power loss just after it
+ * may bring back the previous contents; never torn ones.
+ * 
+ * <pre>
+ * OutputStream out = atomicFile.startWrite();
+ * try {
+ * 	write(out);
+ * 	atomicFile.finishWrite(out);
+ * } catch (IOException e) {
+ * 	atomicFile.failWrite(out);
+ * }
+ * </pre>
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class AtomicFile {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private final File file, tmpFile;
+	private final SyncPolicy syncPolicy;
+
+	private FileOutputStream pending;
+	private int writesSinceSync;
+	private long lastSync = System.currentTimeMillis();
+	private volatile long lastWriteLength = -1;
+
+	public AtomicFile(File file, SyncPolicy syncPolicy) {
+		this.file = file;
+		this.tmpFile = new File(file.getPath() + ".tmp");
+		this.syncPolicy = syncPolicy;
+	}
+
+	/**
+	 * @return the file being replaced
+	 */
+	public File getBaseFile() {
+		return file;
+	}
+
+	/**
+	 * @return the length of the last successful write, -1 before the first
+	 */
+	public long getLastWriteLength() {
+		return lastWriteLength;
+	}
+
+	/**
+	 * Opens a buffered stream onto the temp file. Callers must serialize
+	 * writes; only one may be in progress at a time.
+	 * 
+	 * @return the stream to write the new contents to
+	 * @throws IOException
+	 */
+	public OutputStream startWrite() throws IOException {
+		pending = new FileOutputStream(tmpFile);
+		return new BufferedOutputStream(pending, BUFFER_SIZE);
+	}
+
+	/**
+	 * Flushes, syncs if the policy says so, and renames the temp file into
+	 * place
+	 * 
+	 * @param out
+	 *            the stream returned by {@link #startWrite()}
+	 * @throws IOException
+	 */
+	public void finishWrite(OutputStream out) throws IOException {
+		out.flush();
+		long length = pending.getChannel().position();
+		long now = System.currentTimeMillis();
+		writesSinceSync++;
+		if (syncPolicy.shouldSync(writesSinceSync, now - lastSync)) {
+			pending.getChannel().force(true);
+			writesSinceSync = 0;
+			lastSync = now;
+		}
+		out.close();
+		pending = null;
+		if (!tmpFile.renameTo(file)) {
+			tmpFile.delete();
+			throw new IOException("Could not replace " + file);
+		}
+		lastWriteLength = length;
+	}
+
+	/**
+	 * Forces the current contents to disk if the {@link SyncPolicy} left a
+	 * write unsynced, for instance the last one of a burst under
+	 * {@link SyncPolicy#everyMillis(long)}. Callers must serialize this with
+	 * writes.
+	 * 
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		if (0 == writesSinceSync || !file.exists()) {
+			return;
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.getFD().sync();
+		} finally {
+			raf.close();
+		}
+		writesSinceSync = 0;
+		lastSync = System.currentTimeMillis();
+	}
+
+	/**
+	 * Abandons a write, leaving the previous contents in place
+	 * 
+	 * @param out
+	 *            the stream returned by {@link #startWrite()}
+	 */
+	public void failWrite(OutputStream out) {
+		IOUtils.closeQuietly(out);
+		pending = null;
+		tmpFile.delete();
+	}
+
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.brianjmelton.apcs.api.CookieVisitor;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Versioned binary encoding of a persisted cookie map.
+ * <p>
+ * Layout (version 2):
+ *
+ * <pre>
+ * int     magic
+ * byte    version
+ * varint  string count, then each string as modified UTF-8
+ * varint  URI count, then for each URI:
+ *   UTF     the URI
+ *   varint  cookie count, then for each cookie:
+ *     byte    flags
+ *     varlong maxAge (zig-zag)
+ *     varlong expiresAt (zig-zag), absent in version 1
+ *     varint  version
+ *     varint  name, domain, path, portlist, comment, commentURL as
+ *             string table index + 1, 0 meaning null
+ *     UTF     value, preceded by a presence byte
+ * </pre>
+ *
+ * Domains, paths and names repeat across most of a jar, so they are written
+ * once in the string table and referred to by index. Version 1 data, which
+ * lacks the expiry instant, is still read.
+ *
+ * @author brianmelton
+ * @since July 2014
+ */
+public class BinaryCookieCodec {
+
+	public static final int MAGIC = 0x41504342;
+	public static final byte VERSION = 2;
+	private static final byte VERSION_NO_EXPIRY = 1;
+
+	/**
+	 * Writes the supplied cookies
+	 *
+	 * @param out
+	 * @param cookies
+	 * @throws IOException
+	 */
+	public static void write(DataOutput out,
+			Map<URI, List<SerializableCookie>> cookies) throws IOException {
+		Map<String, Integer> indices = new HashMap<String, Integer>();
+		List<String> table = new ArrayList<String>();
+		for (List<SerializableCookie> list : cookies.values()) {
+			for (SerializableCookie cookie : list) {
+				intern(indices, table, cookie.getName());
+				intern(indices, table, cookie.getDomain());
+				intern(indices, table, cookie.getPath());
+				intern(indices, table, cookie.getPortlist());
+				intern(indices, table, cookie.getComment());
+				intern(indices, table, cookie.getCommentURL());
+			}
+		}
+
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		writeVarInt(out, table.size());
+		for (String s : table) {
+			out.writeUTF(s);
+		}
+		writeVarInt(out, cookies.size());
+		for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+				.entrySet()) {
+			out.writeUTF(entry.getKey().toString());
+			writeVarInt(out, entry.getValue().size());
+			for (SerializableCookie cookie : entry.getValue()) {
+				out.writeByte(SerializableCookieIO.flagsOf(cookie));
+				writeVarLong(out, zigZag(cookie.getMaxAge()));
+				writeVarLong(out, zigZag(cookie.getExpiresAt()));
+				writeVarInt(out, cookie.getVersion());
+				writeRef(out, indices, cookie.getName());
+				writeRef(out, indices, cookie.getDomain());
+				writeRef(out, indices, cookie.getPath());
+				writeRef(out, indices, cookie.getPortlist());
+				writeRef(out, indices, cookie.getComment());
+				writeRef(out, indices, cookie.getCommentURL());
+				SerializableCookieIO.writeNullableString(out,
+						cookie.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Reads cookies previously written by {@link #write(DataOutput, Map)}
+	 *
+	 * @param in
+	 * @return the cookies which have not expired
+	 * @throws IOException
+	 *             if the data is not in a version this codec understands
+	 */
+	public static Map<URI, List<SerializableCookie>> read(DataInput in)
+			throws IOException {
+		final Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		read(in, new CookieVisitor() {
+			@Override
+			public void visit(URI uri, SerializableCookie cookie) {
+				List<SerializableCookie> list = cookies.get(uri);
+				if (null == list) {
+					list = new ArrayList<SerializableCookie>();
+					cookies.put(uri, list);
+				}
+				list.add(cookie);
+			}
+		});
+		return cookies;
+	}
+
+	/**
+	 * Streams cookies previously written by {@link #write(DataOutput, Map)}
+	 * to the supplied visitor, one record at a time. Expired records are
+	 * skipped without being decoded.
+	 *
+	 * @param in
+	 * @param visitor
+	 * @throws IOException
+	 *             if the data is not in a version this codec understands
+	 */
+	public static void read(DataInput in, CookieVisitor visitor)
+			throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Not a binary cookie file");
+		}
+		byte version = in.readByte();
+		if (version != VERSION && version != VERSION_NO_EXPIRY) {
+			throw new IOException("Unsupported binary cookie version "
+					+ version);
+		}
+		String[] table = new String[readVarInt(in)];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = in.readUTF();
+		}
+		boolean hasExpiresAt = VERSION_NO_EXPIRY != version;
+		long now = System.currentTimeMillis();
+		int uriCount = readVarInt(in);
+		for (int u = 0; u < uriCount; u++) {
+			URI uri;
+			String uriString = in.readUTF();
+			try {
+				uri = new URI(uriString);
+			} catch (URISyntaxException e) {
+				throw new IOException("Malformed URI " + uriString);
+			}
+			int cookieCount = readVarInt(in);
+			for (int c = 0; c < cookieCount; c++) {
+				int flags = in.readByte();
+				long maxAge = unZigZag(readVarLong(in));
+				long expiresAt = hasExpiresAt ? unZigZag(readVarLong(in)) : 0;
+				if (SerializableCookieIO.isExpired(flags, maxAge, expiresAt,
+						now)) {
+					skipCookie(in);
+					continue;
+				}
+				int cookieVersion = readVarInt(in);
+				String name = readRef(in, table);
+				String domain = readRef(in, table);
+				String path = readRef(in, table);
+				String portlist = readRef(in, table);
+				String comment = readRef(in, table);
+				String commentURL = readRef(in, table);
+				SerializableCookie cookie = new SerializableCookie(name,
+						SerializableCookieIO.readNullableString(in));
+				cookie.setMaxAge(maxAge);
+				cookie.setExpiresAt(expiresAt);
+				cookie.setVersion(cookieVersion);
+				cookie.setDomain(domain);
+				cookie.setPath(path);
+				cookie.setPortlist(portlist);
+				cookie.setComment(comment);
+				cookie.setCommentURL(commentURL);
+				SerializableCookieIO.applyFlags(cookie, flags);
+				visitor.visit(uri, cookie);
+			}
+		}
+	}
+
+	/**
+	 * Skips the remainder of a cookie record after its flags, max age and
+	 * expiry instant
+	 */
+	private static void skipCookie(DataInput in) throws IOException {
+		// version plus six string references
+		for (int i = 0; i < 7; i++) {
+			readVarInt(in);
+		}
+		if (in.readBoolean()) {
+			int length = in.readUnsignedShort();
+			if (in.skipBytes(length) != length) {
+				throw new IOException("Truncated cookie record");
+			}
+		}
+	}
+
+	private static void intern(Map<String, Integer> indices,
+			List<String> table, String s) {
+		if (null != s && !indices.containsKey(s)) {
+			indices.put(s, table.size());
+			table.add(s);
+		}
+	}
+
+	private static void writeRef(DataOutput out,
+			Map<String, Integer> indices, String s) throws IOException {
+		writeVarInt(out, null == s ? 0 : indices.get(s) + 1);
+	}
+
+	private static String readRef(DataInput in, String[] table)
+			throws IOException {
+		int ref = readVarInt(in);
+		if (ref > table.length) {
+			throw new IOException("String table index out of range: " + ref);
+		}
+		return 0 == ref ? null : table[ref - 1];
+	}
+
+	public static void writeVarInt(DataOutput out, int value)
+			throws IOException {
+		writeVarLong(out, value & 0xffffffffL);
+	}
+
+	public static int readVarInt(DataInput in) throws IOException {
+		long value = readVarLong(in);
+		if (value > 0xffffffffL) {
+			throw new IOException("Malformed varint");
+		}
+		return (int) value;
+	}
+
+	public static void writeVarLong(DataOutput out, long value)
+			throws IOException {
+		while ((value & ~0x7fL) != 0) {
+			out.writeByte((int) ((value & 0x7f) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	public static long readVarLong(DataInput in) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = in.readByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varlong");
+	}
+
+	private static long zigZag(long value) {
+		return (value << 1) ^ (value >> 63);
+	}
+
+	private static long unZigZag(long value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
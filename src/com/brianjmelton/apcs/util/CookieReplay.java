@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Replays a sequence of {@link CookieDelta}s onto a persisted cookie map,
+ * with the same outcome as {@link CookieDelta#applyTo(Map)} for each in turn.
+ * The map is indexed by cookie identity once, so each delta costs constant
+ * time instead of a scan of every cookie. Copies of one cookie listed under
+ * several URIs are collapsed while indexing, keeping the copy expiring last.
+ * Call {@link #finish()} to write the result back into the map.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class CookieReplay {
+
+	private final Map<URI, List<SerializableCookie>> target;
+	private final Map<URI, Map<String, SerializableCookie>> cookies = new LinkedHashMap<URI, Map<String, SerializableCookie>>();
+	private final Map<String, URI> uris = new HashMap<String, URI>();
+
+	/**
+	 * @param target
+	 *            the map to replay onto. It is only read until
+	 *            {@link #finish()}.
+	 */
+	public CookieReplay(Map<URI, List<SerializableCookie>> target) {
+		this.target = target;
+		for (Map.Entry<URI, List<SerializableCookie>> entry : target
+				.entrySet()) {
+			for (SerializableCookie cookie : entry.getValue()) {
+				String identity = CookieDelta
+						.identityOf(entry.getKey(), cookie);
+				SerializableCookie other = get(identity);
+				if (null == other
+						|| other.getExpiresAt() <= cookie.getExpiresAt()) {
+					remove(identity);
+					put(entry.getKey(), identity, cookie);
+				}
+			}
+		}
+	}
+
+	public void apply(CookieDelta delta) {
+		switch (delta.getType()) {
+		case CLEAR:
+			cookies.clear();
+			uris.clear();
+			break;
+		case REMOVE:
+			remove(CookieDelta.identityOf(delta.getUri(), delta.getCookie()));
+			break;
+		case ADD:
+			String identity = CookieDelta.identityOf(delta.getUri(),
+					delta.getCookie());
+			remove(identity);
+			if (!delta.getCookie().isExpired()) {
+				put(delta.getUri(), identity, delta.getCookie());
+			}
+			break;
+		}
+	}
+
+	/**
+	 * @return the number of cookies the map holds so far
+	 */
+	public int size() {
+		return uris.size();
+	}
+
+	/**
+	 * Replaces the contents of the map supplied at construction with the
+	 * replayed cookies, leaving out URIs with none.
+	 * 
+	 * @return that map
+	 */
+	public Map<URI, List<SerializableCookie>> finish() {
+		target.clear();
+		for (Map.Entry<URI, Map<String, SerializableCookie>> entry : cookies
+				.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				target.put(entry.getKey(), new ArrayList<SerializableCookie>(
+						entry.getValue().values()));
+			}
+		}
+		return target;
+	}
+
+	private SerializableCookie get(String identity) {
+		URI uri = uris.get(identity);
+		return null == uri ? null : cookies.get(uri).get(identity);
+	}
+
+	private void remove(String identity) {
+		URI uri = uris.remove(identity);
+		if (null != uri) {
+			cookies.get(uri).remove(identity);
+		}
+	}
+
+	private void put(URI uri, String identity, SerializableCookie cookie) {
+		Map<String, SerializableCookie> list = cookies.get(uri);
+		if (null == list) {
+			list = new LinkedHashMap<String, SerializableCookie>();
+			cookies.put(uri, list);
+		}
+		list.put(identity, cookie);
+		uris.put(identity, uri);
+	}
+
+}
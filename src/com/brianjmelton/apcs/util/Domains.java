@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.Locale;
+
+/**
+ * Utility methods for grouping hosts and cookie domains
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class Domains {
+
+	/**
+	 * The key a host or cookie domain is grouped under: its last two labels,
+	 * lower-cased. Without a public suffix list this over-groups hosts under
+	 * suffixes like "co.uk", which is safe: every cookie that can apply to a
+	 * host is always found under that host's key.
+	 * 
+	 * @param host
+	 *            a host name, cookie domain, or null
+	 * @return the key, "" for null
+	 */
+	public static String registrableDomain(String host) {
+		if (null == host) {
+			return "";
+		}
+		int start = 0, end = host.length();
+		while (start < end && host.charAt(start) == '.') {
+			start++;
+		}
+		while (end > start && host.charAt(end - 1) == '.') {
+			end--;
+		}
+		if (host.indexOf(':') >= 0 || isNumeric(host, start, end)) {
+			return host.substring(start, end).toLowerCase(Locale.US);
+		}
+		int last = host.lastIndexOf('.', end - 1);
+		if (last <= start) {
+			return host.substring(start, end).toLowerCase(Locale.US);
+		}
+		int previous = host.lastIndexOf('.', last - 1);
+		return host.substring(previous < start ? start : previous + 1, end)
+				.toLowerCase(Locale.US);
+	}
+
+	/**
+	 * @param uri
+	 * @return the key of the URI's host
+	 */
+	public static String registrableDomain(URI uri) {
+		return registrableDomain(null == uri ? null : uri.getHost());
+	}
+
+	/**
+	 * @param uri
+	 * @param cookie
+	 * @return the key of the cookie's domain attribute, or of the URI's host
+	 *         when the cookie has none
+	 */
+	public static String registrableDomain(URI uri, HttpCookie cookie) {
+		String domain = null == cookie ? null : cookie.getDomain();
+		return null != domain ? registrableDomain(domain)
+				: registrableDomain(uri);
+	}
+
+	private static boolean isNumeric(String host, int start, int end) {
+		for (int i = start; i < end; i++) {
+			char c = host.charAt(i);
+			if ((c < '0' || c > '9') && c != '.') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
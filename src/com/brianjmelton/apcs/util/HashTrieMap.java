@@ -0,0 +1,411 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable hash map: a hash array mapped trie branching 32 ways on five
+ * bits of the key's hash at a time. {@link #plus(Object, Object)} and
+ * {@link #minus(Object)} return a new map which shares every node off the
+ * changed path with the old one, so an update copies a handful of small
+ * arrays, and holding on to an old version, a snapshot, costs nothing until
+ * it is updated. Any number of threads may read a version while another
+ * derives new ones. Keys may not be null.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public final class HashTrieMap<K, V> {
+
+	private static final HashTrieMap<Object, Object> EMPTY = new HashTrieMap<Object, Object>(
+			null, 0);
+
+	private final Node root;
+	private final int size;
+
+	private HashTrieMap(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * @return the map without any entries
+	 */
+	@SuppressWarnings("unchecked")
+	public static <K, V> HashTrieMap<K, V> empty() {
+		return (HashTrieMap<K, V>) EMPTY;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return 0 == size;
+	}
+
+	/**
+	 * @return the value mapped to the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(Object key) {
+		return null == root ? null : (V) root.get(key, hash(key), 0);
+	}
+
+	public boolean containsKey(Object key) {
+		return null != get(key);
+	}
+
+	/**
+	 * @return a map which also maps the key to the value, replacing the key
+	 *         and value of any equal key; this map if they are already there
+	 */
+	public HashTrieMap<K, V> plus(K key, V value) {
+		if (null == key || null == value) {
+			throw new NullPointerException();
+		}
+		boolean[] added = new boolean[1];
+		int hash = hash(key);
+		Node node = null == root ? BitmapNode.EMPTY.plus(key, value, hash, 0,
+				added) : root.plus(key, value, hash, 0, added);
+		return node == root ? this : new HashTrieMap<K, V>(node, added[0] ? size + 1
+				: size);
+	}
+
+	/**
+	 * @return a map without the key; this map if it isn't there
+	 */
+	public HashTrieMap<K, V> minus(Object key) {
+		if (null == root) {
+			return this;
+		}
+		Node node = root.minus(key, hash(key), 0);
+		if (node == root) {
+			return this;
+		}
+		return null == node ? HashTrieMap.<K, V> empty() : new HashTrieMap<K, V>(
+				node, size - 1);
+	}
+
+	/**
+	 * @return the values, in no particular order
+	 */
+	public Iterable<V> values() {
+		return new Iterable<V>() {
+			@Override
+			public Iterator<V> iterator() {
+				return new ValueIterator<V>(root);
+			}
+		};
+	}
+
+	private static int hash(Object key) {
+		int h = key.hashCode();
+		// The low bits pick the first branch, so fold the high ones in
+		return h ^ (h >>> 16);
+	}
+
+	private static int bitCount(int bitmap) {
+		return Integer.bitCount(bitmap);
+	}
+
+	private abstract static class Node {
+
+		abstract Object get(Object key, int hash, int shift);
+
+		abstract Node plus(Object key, Object value, int hash, int shift,
+				boolean[] added);
+
+		/**
+		 * @return the node without the key, null if that leaves it empty
+		 */
+		abstract Node minus(Object key, int hash, int shift);
+
+		/**
+		 * @return alternating keys and values; a null key marks a child node
+		 *         in place of the value
+		 */
+		abstract Object[] array();
+	}
+
+	/**
+	 * Up to 32 entries or children, one per five-bit hash fragment present,
+	 * packed in bit order
+	 */
+	private static final class BitmapNode extends Node {
+
+		static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+		final int bitmap;
+		final Object[] array;
+
+		BitmapNode(int bitmap, Object[] array) {
+			this.bitmap = bitmap;
+			this.array = array;
+		}
+
+		@Override
+		Object get(Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if (0 == (bitmap & bit)) {
+				return null;
+			}
+			int i = 2 * bitCount(bitmap & (bit - 1));
+			Object k = array[i];
+			if (null == k) {
+				return ((Node) array[i + 1]).get(key, hash, shift + 5);
+			}
+			return key.equals(k) ? array[i + 1] : null;
+		}
+
+		@Override
+		Node plus(Object key, Object value, int hash, int shift,
+				boolean[] added) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			int i = 2 * bitCount(bitmap & (bit - 1));
+			if (0 == (bitmap & bit)) {
+				Object[] copy = new Object[array.length + 2];
+				System.arraycopy(array, 0, copy, 0, i);
+				copy[i] = key;
+				copy[i + 1] = value;
+				System.arraycopy(array, i, copy, i + 2, array.length - i);
+				added[0] = true;
+				return new BitmapNode(bitmap | bit, copy);
+			}
+			Object k = array[i];
+			Object v = array[i + 1];
+			if (null == k) {
+				Node child = (Node) v;
+				Node updated = child.plus(key, value, hash, shift + 5, added);
+				return updated == child ? this : with(i + 1, null, updated);
+			}
+			if (key.equals(k)) {
+				return k == key && v == value ? this : with(i, key, value);
+			}
+			added[0] = true;
+			return with(i, null, pair(shift + 5, hash(k), k, v, hash, key,
+					value));
+		}
+
+		@Override
+		Node minus(Object key, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & 31);
+			if (0 == (bitmap & bit)) {
+				return this;
+			}
+			int i = 2 * bitCount(bitmap & (bit - 1));
+			Object k = array[i];
+			if (null == k) {
+				Node child = (Node) array[i + 1];
+				Node updated = child.minus(key, hash, shift + 5);
+				if (updated == child) {
+					return this;
+				}
+				return null != updated ? with(i + 1, null, updated) : without(
+						bit, i);
+			}
+			return key.equals(k) ? without(bit, i) : this;
+		}
+
+		@Override
+		Object[] array() {
+			return array;
+		}
+
+		/**
+		 * @return a copy with the slot at i set, the value at i + 1 for a
+		 *         child
+		 */
+		private BitmapNode with(int i, Object key, Object value) {
+			Object[] copy = array.clone();
+			if (null == key) {
+				// A child replaces whatever entry the slot held
+				i &= ~1;
+			}
+			copy[i] = key;
+			copy[i + 1] = value;
+			return new BitmapNode(bitmap, copy);
+		}
+
+		private BitmapNode without(int bit, int i) {
+			if (bitmap == bit) {
+				return null;
+			}
+			Object[] copy = new Object[array.length - 2];
+			System.arraycopy(array, 0, copy, 0, i);
+			System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+			return new BitmapNode(bitmap & ~bit, copy);
+		}
+
+		/**
+		 * @return a node holding two entries of different keys
+		 */
+		private static Node pair(int shift, int hash1, Object key1,
+				Object value1, int hash2, Object key2, Object value2) {
+			if (hash1 == hash2) {
+				return new CollisionNode(hash1, new Object[] { key1, value1,
+						key2, value2 });
+			}
+			boolean[] added = new boolean[1];
+			return EMPTY.plus(key1, value1, hash1, shift, added).plus(key2,
+					value2, hash2, shift, added);
+		}
+	}
+
+	/**
+	 * Entries whose keys have the same hash, compared one by one
+	 */
+	private static final class CollisionNode extends Node {
+
+		final int hash;
+		final Object[] array;
+
+		CollisionNode(int hash, Object[] array) {
+			this.hash = hash;
+			this.array = array;
+		}
+
+		@Override
+		Object get(Object key, int hash, int shift) {
+			int i = indexOf(key);
+			return i < 0 ? null : array[i + 1];
+		}
+
+		@Override
+		Node plus(Object key, Object value, int hash, int shift,
+				boolean[] added) {
+			if (hash != this.hash) {
+				// Branch on the fragment where the hashes differ
+				Node branch = new BitmapNode(1 << ((this.hash >>> shift) & 31),
+						new Object[] { null, this });
+				return branch.plus(key, value, hash, shift, added);
+			}
+			int i = indexOf(key);
+			Object[] copy;
+			if (i < 0) {
+				copy = new Object[array.length + 2];
+				System.arraycopy(array, 0, copy, 0, array.length);
+				i = array.length;
+				added[0] = true;
+			} else if (array[i] == key && array[i + 1] == value) {
+				return this;
+			} else {
+				copy = array.clone();
+			}
+			copy[i] = key;
+			copy[i + 1] = value;
+			return new CollisionNode(hash, copy);
+		}
+
+		@Override
+		Node minus(Object key, int hash, int shift) {
+			int i = indexOf(key);
+			if (i < 0) {
+				return this;
+			}
+			if (2 == array.length) {
+				return null;
+			}
+			Object[] copy = new Object[array.length - 2];
+			System.arraycopy(array, 0, copy, 0, i);
+			System.arraycopy(array, i + 2, copy, i, array.length - i - 2);
+			return new CollisionNode(hash, copy);
+		}
+
+		@Override
+		Object[] array() {
+			return array;
+		}
+
+		private int indexOf(Object key) {
+			for (int i = 0; i < array.length; i += 2) {
+				if (key.equals(array[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Walks the trie depth first, keeping the path in a small stack; the trie
+	 * is at most seven bitmap nodes and a collision node deep
+	 */
+	private static final class ValueIterator<V> implements Iterator<V> {
+
+		private final Object[][] arrays = new Object[8][];
+		private final int[] indices = new int[8];
+		private int depth = -1;
+		private Object next;
+
+		ValueIterator(Node root) {
+			if (null != root) {
+				push(root);
+				advance();
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return null != next;
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public V next() {
+			if (null == next) {
+				throw new NoSuchElementException();
+			}
+			Object value = next;
+			advance();
+			return (V) value;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		private void push(Node node) {
+			depth++;
+			arrays[depth] = node.array();
+			indices[depth] = 0;
+		}
+
+		private void advance() {
+			next = null;
+			while (depth >= 0) {
+				Object[] array = arrays[depth];
+				int i = indices[depth];
+				if (i >= array.length) {
+					arrays[depth--] = null;
+					continue;
+				}
+				indices[depth] = i + 2;
+				if (null == array[i]) {
+					push((Node) array[i + 1]);
+				} else {
+					next = array[i + 1];
+					return;
+				}
+			}
+		}
+	}
+
+}
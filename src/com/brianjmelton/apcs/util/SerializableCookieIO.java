@@ -0,0 +1,183 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Utility methods for writing {@link SerializableCookie}s to a
+ * {@link DataOutput} field by field, without Java serialization.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class SerializableCookieIO {
+
+	private static final int FLAG_DISCARD = 1;
+	private static final int FLAG_SECURE = 1 << 1;
+	private static final int FLAG_EXPIRED = 1 << 2;
+
+	/**
+	 * Writes every field of the supplied cookie
+	 * 
+	 * @param out
+	 * @param cookie
+	 * @throws IOException
+	 */
+	public static void writeCookie(DataOutput out, SerializableCookie cookie)
+			throws IOException {
+		out.writeByte(flagsOf(cookie));
+		out.writeLong(cookie.getMaxAge());
+		out.writeLong(cookie.getExpiresAt());
+		out.writeInt(cookie.getVersion());
+		writeNullableString(out, cookie.getName());
+		writeNullableString(out, cookie.getValue());
+		writeNullableString(out, cookie.getDomain());
+		writeNullableString(out, cookie.getPath());
+		writeNullableString(out, cookie.getPortlist());
+		writeNullableString(out, cookie.getComment());
+		writeNullableString(out, cookie.getCommentURL());
+	}
+
+	/**
+	 * Reads a cookie previously written by
+	 * {@link #writeCookie(DataOutput, SerializableCookie)}
+	 * 
+	 * @param in
+	 * @return the cookie
+	 * @throws IOException
+	 */
+	public static SerializableCookie readCookie(DataInput in)
+			throws IOException {
+		return readCookie(in, true);
+	}
+
+	/**
+	 * Reads a cookie record, which may predate the expiry instant being
+	 * written
+	 * 
+	 * @param in
+	 * @param hasExpiresAt
+	 *            false for records written before the expiry instant was
+	 *            added, which are read with an expiry instant of 0
+	 * @return the cookie
+	 * @throws IOException
+	 */
+	public static SerializableCookie readCookie(DataInput in,
+			boolean hasExpiresAt) throws IOException {
+		int flags = in.readByte();
+		long maxAge = in.readLong();
+		long expiresAt = hasExpiresAt ? in.readLong() : 0;
+		int version = in.readInt();
+		SerializableCookie cookie = new SerializableCookie(
+				readNullableString(in), readNullableString(in));
+		cookie.setMaxAge(maxAge);
+		cookie.setExpiresAt(expiresAt);
+		cookie.setVersion(version);
+		cookie.setDomain(readNullableString(in));
+		cookie.setPath(readNullableString(in));
+		cookie.setPortlist(readNullableString(in));
+		cookie.setComment(readNullableString(in));
+		cookie.setCommentURL(readNullableString(in));
+		applyFlags(cookie, flags);
+		return cookie;
+	}
+
+	public static int flagsOf(SerializableCookie cookie) {
+		int flags = 0;
+		if (cookie.getDiscard()) {
+			flags |= FLAG_DISCARD;
+		}
+		if (cookie.isSecure()) {
+			flags |= FLAG_SECURE;
+		}
+		if (cookie.isExpired()) {
+			flags |= FLAG_EXPIRED;
+		}
+		return flags;
+	}
+
+	/**
+	 * Whether a record with the supplied flags and max age describes a cookie
+	 * that is already gone, so it can be skipped before it is decoded
+	 * 
+	 * @param flags
+	 * @param maxAge
+	 * @return true if the record need not be restored
+	 */
+	public static boolean isExpired(int flags, long maxAge) {
+		return (flags & FLAG_EXPIRED) != 0 || 0 == maxAge;
+	}
+
+	/**
+	 * Whether a record with the supplied flags, max age and expiry instant
+	 * describes a cookie that is gone by the supplied time
+	 * 
+	 * @param flags
+	 * @param maxAge
+	 * @param expiresAt
+	 *            0 if the record has no expiry instant
+	 * @param now
+	 *            wall clock time in milliseconds
+	 * @return true if the record need not be restored
+	 */
+	public static boolean isExpired(int flags, long maxAge, long expiresAt,
+			long now) {
+		return isExpired(flags, maxAge) || (expiresAt > 0 && expiresAt <= now);
+	}
+
+	public static void applyFlags(SerializableCookie cookie, int flags) {
+		cookie.setDiscard((flags & FLAG_DISCARD) != 0);
+		cookie.setSecure((flags & FLAG_SECURE) != 0);
+		cookie.setExpired((flags & FLAG_EXPIRED) != 0);
+	}
+
+	public static void writeURI(DataOutput out, URI uri) throws IOException {
+		writeNullableString(out, null == uri ? null : uri.toString());
+	}
+
+	public static URI readURI(DataInput in) throws IOException {
+		String uri = readNullableString(in);
+		if (null == uri) {
+			return null;
+		}
+		try {
+			return new URI(uri);
+		} catch (URISyntaxException e) {
+			throw new IOException("Malformed URI in cookie record: " + uri);
+		}
+	}
+
+	public static void writeNullableString(DataOutput out, String s)
+			throws IOException {
+		out.writeBoolean(null != s);
+		if (null != s) {
+			out.writeUTF(s);
+		}
+	}
+
+	public static String readNullableString(DataInput in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+}
@@ -31,26 +31,81 @@ import com.brianjmelton.apcs.vo.SerializableCookie;
 public class SerializableHttpCookieAdapter {
 
 	public static HttpCookie deserialize(SerializableCookie sCookie) {
+		return deserialize(sCookie, System.currentTimeMillis());
+	}
+
+	/**
+	 * Deserializes a cookie, giving it a max age of whatever remained of its
+	 * lifetime at the supplied time rather than the max age it was set with
+	 * 
+	 * @param sCookie
+	 * @param now
+	 *            wall clock time in milliseconds
+	 * @return the cookie
+	 */
+	public static HttpCookie deserialize(SerializableCookie sCookie, long now) {
+		return deserialize(sCookie, now, null);
+	}
+
+	/**
+	 * Deserializes a cookie as {@link #deserialize(SerializableCookie, long)}
+	 * does, taking its name, domain, path and port list from a
+	 * {@link StringPool} so that cookies restored together share them
+	 * 
+	 * @param sCookie
+	 * @param now
+	 *            wall clock time in milliseconds
+	 * @param strings
+	 *            the pool, or null to keep the cookie's own strings
+	 * @return the cookie
+	 */
+	public static HttpCookie deserialize(SerializableCookie sCookie, long now,
+			StringPool strings) {
 		if (null == sCookie) {
 			throw new IllegalArgumentException(
 					"Cannot deserialize a null Cookie");
 		}
-		HttpCookie realCookie = new HttpCookie(sCookie.getName(),
-				sCookie.getValue());
+		HttpCookie realCookie = new HttpCookie(canonicalize(strings,
+				sCookie.getName()), sCookie.getValue());
 
 		realCookie.setDiscard(sCookie.getDiscard());
 		realCookie.setSecure(sCookie.isSecure());
-		realCookie.setMaxAge(sCookie.getMaxAge());
+		realCookie.setMaxAge(remainingMaxAge(sCookie, now));
 		realCookie.setVersion(sCookie.getVersion());
 		realCookie.setComment(sCookie.getComment());
 		realCookie.setCommentURL(sCookie.getCommentURL());
-		realCookie.setDomain(sCookie.getDomain());
-		realCookie.setPath(sCookie.getPath());
-		realCookie.setPortlist(sCookie.getPortlist());
+		realCookie.setDomain(canonicalize(strings, sCookie.getDomain()));
+		realCookie.setPath(canonicalize(strings, sCookie.getPath()));
+		realCookie.setPortlist(canonicalize(strings, sCookie.getPortlist()));
 
 		return realCookie;
 	}
 
+	private static String canonicalize(StringPool strings, String s) {
+		return null == strings ? s : strings.canonicalize(s);
+	}
+
+	/**
+	 * The max age, in seconds, left to a cookie at the supplied time. Cookies
+	 * persisted without an expiry instant keep their original max age.
+	 * 
+	 * @param sCookie
+	 * @param now
+	 * @return the remaining max age, 0 if the cookie has expired
+	 */
+	public static long remainingMaxAge(SerializableCookie sCookie, long now) {
+		long expiresAt = sCookie.getExpiresAt();
+		if (expiresAt <= 0 || sCookie.getMaxAge() <= 0) {
+			return sCookie.getMaxAge();
+		}
+		if (expiresAt <= now) {
+			return 0;
+		}
+		// round up, so a cookie with time left is not restored as expired
+		long remaining = expiresAt - now;
+		return remaining / 1000 + (0 == remaining % 1000 ? 0 : 1);
+	}
+
 	/**
 	 * Transformer method for derserializing {@link SerializableCookie}s into
 	 * {@link HttpCookie}s
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/**
+ * Canonical instances of equal strings, for cookie fields such as domain,
+ * path and name which repeat across thousands of cookies but take only a few
+ * hundred distinct values. Unlike {@link String#intern()} the pool is scoped
+ * to its owner, and holds its strings weakly: a string no cookie refers to
+ * any more drops out of the pool at the next collection.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class StringPool {
+
+	private final WeakHashMap<String, WeakReference<String>> strings = new WeakHashMap<String, WeakReference<String>>();
+
+	/**
+	 * @param s
+	 *            a string, or null
+	 * @return the pooled string equal to s, or s itself once pooled; null for
+	 *         null
+	 */
+	public synchronized String canonicalize(String s) {
+		if (null == s) {
+			return null;
+		}
+		WeakReference<String> ref = strings.get(s);
+		String canonical = null == ref ? null : ref.get();
+		if (null == canonical) {
+			strings.put(s, new WeakReference<String>(s));
+			return s;
+		}
+		return canonical;
+	}
+
+	/**
+	 * @return the number of strings pooled, including any collected but not
+	 *         yet purged
+	 */
+	public synchronized int size() {
+		return strings.size();
+	}
+
+}
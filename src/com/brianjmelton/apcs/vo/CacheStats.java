@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.vo;
+
+/**
+ * A point-in-time copy of a cache's counters.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class CacheStats {
+
+	private final long hitCount, missCount, invalidationCount,
+			expirationCount;
+	private final int size;
+
+	public CacheStats(long hitCount, long missCount, long invalidationCount,
+			long expirationCount, int size) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.invalidationCount = invalidationCount;
+		this.expirationCount = expirationCount;
+		this.size = size;
+	}
+
+	/**
+	 * @return lookups answered from the cache
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return lookups that had to go to the store
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return entries dropped because a cookie of their domain changed
+	 */
+	public long getInvalidationCount() {
+		return invalidationCount;
+	}
+
+	/**
+	 * @return entries dropped because one of their cookies expired
+	 */
+	public long getExpirationCount() {
+		return expirationCount;
+	}
+
+	/**
+	 * @return entries currently cached
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "CacheStats [hits=" + hitCount + ", misses=" + missCount
+				+ ", invalidations=" + invalidationCount + ", expirations="
+				+ expirationCount + ", size=" + size + "]";
+	}
+
+}
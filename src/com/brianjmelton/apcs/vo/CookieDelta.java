@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.vo;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A single change to a cookie store: a cookie added, a cookie removed, or
+ * every cookie cleared.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class CookieDelta {
+
+	public enum Type {
+		ADD, REMOVE, CLEAR
+	}
+
+	private final Type type;
+	private final URI uri;
+	private final SerializableCookie cookie;
+
+	private CookieDelta(Type type, URI uri, SerializableCookie cookie) {
+		this.type = type;
+		this.uri = uri;
+		this.cookie = cookie;
+	}
+
+	public static CookieDelta add(URI uri, SerializableCookie cookie) {
+		return new CookieDelta(Type.ADD, uri, cookie);
+	}
+
+	public static CookieDelta remove(URI uri, SerializableCookie cookie) {
+		return new CookieDelta(Type.REMOVE, uri, cookie);
+	}
+
+	public static CookieDelta clear() {
+		return new CookieDelta(Type.CLEAR, null, null);
+	}
+
+	/**
+	 * @return the type
+	 */
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * @return the uri, null for {@link Type#CLEAR}
+	 */
+	public URI getUri() {
+		return uri;
+	}
+
+	/**
+	 * @return the cookie, null for {@link Type#CLEAR}
+	 */
+	public SerializableCookie getCookie() {
+		return cookie;
+	}
+
+	/**
+	 * Replays this change onto a persisted cookie map. Replaying is
+	 * idempotent: applying the same sequence of deltas twice leaves the map as
+	 * applying it once would. As in a CookieStore, a cookie is identified by
+	 * name, domain and path alone, so adding one replaces any copy listed
+	 * under another URI, and lists left empty are dropped. See
+	 * {@link #identityOf(URI, SerializableCookie)}. This scans the whole map;
+	 * replay a sequence of deltas through
+	 * {@link com.brianjmelton.apcs.util.CookieReplay} instead.
+	 * 
+	 * @param cookies
+	 *            the map to modify
+	 */
+	public void applyTo(Map<URI, List<SerializableCookie>> cookies) {
+		switch (type) {
+		case CLEAR:
+			cookies.clear();
+			break;
+		case REMOVE:
+			removeSame(cookies, identityOf(uri, cookie));
+			break;
+		case ADD:
+			removeSame(cookies, identityOf(uri, cookie));
+			if (!cookie.isExpired()) {
+				List<SerializableCookie> list = cookies.get(uri);
+				if (null == list) {
+					list = new ArrayList<SerializableCookie>();
+					cookies.put(uri, list);
+				}
+				list.add(cookie);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * @return a key equal for the same cookie listed under any URI: its name
+	 *         and domain, ignoring case, and its path. A host-only cookie,
+	 *         with no domain, is keyed by the host of the URI it was set for
+	 *         instead, as stores keep one per host.
+	 */
+	public static String identityOf(URI uri, SerializableCookie cookie) {
+		String domain = cookie.getDomain();
+		if (null == domain) {
+			domain = null == uri || null == uri.getHost() ? "" : uri
+					.getHost();
+			// Cannot clash with a domain, which never starts with a space
+			domain = " " + domain;
+		}
+		return lowerCase(cookie.getName()) + '\u0000' + lowerCase(domain)
+				+ '\u0000' + cookie.getPath();
+	}
+
+	private static String lowerCase(String string) {
+		return null == string ? null : string.toLowerCase(Locale.US);
+	}
+
+	private static void removeSame(
+			Map<URI, List<SerializableCookie>> cookies, String identity) {
+		for (Iterator<Map.Entry<URI, List<SerializableCookie>>> lists = cookies
+				.entrySet().iterator(); lists.hasNext();) {
+			Map.Entry<URI, List<SerializableCookie>> entry = lists.next();
+			List<SerializableCookie> list = entry.getValue();
+			for (Iterator<SerializableCookie> it = list.iterator(); it
+					.hasNext();) {
+				if (identity.equals(identityOf(entry.getKey(), it.next()))) {
+					it.remove();
+				}
+			}
+			if (list.isEmpty()) {
+				lists.remove();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.vo;
+
+/**
+ * A point-in-time copy of a bounded cookie jar's eviction counters.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class EvictionStats {
+
+	private final long domainEvictionCount, globalEvictionCount;
+	private final int size;
+
+	public EvictionStats(long domainEvictionCount, long globalEvictionCount,
+			int size) {
+		this.domainEvictionCount = domainEvictionCount;
+		this.globalEvictionCount = globalEvictionCount;
+		this.size = size;
+	}
+
+	/**
+	 * @return cookies evicted because their domain was over its limit
+	 */
+	public long getDomainEvictionCount() {
+		return domainEvictionCount;
+	}
+
+	/**
+	 * @return cookies evicted because the jar was over its limit
+	 */
+	public long getGlobalEvictionCount() {
+		return globalEvictionCount;
+	}
+
+	/**
+	 * @return cookies currently counted against the limits
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	@Override
+	public String toString() {
+		return "EvictionStats [domainEvictions=" + domainEvictionCount
+				+ ", globalEvictions=" + globalEvictionCount + ", size="
+				+ size + "]";
+	}
+
+}
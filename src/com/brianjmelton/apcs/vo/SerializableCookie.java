@@ -30,8 +30,20 @@ public class SerializableCookie implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * {@link #getExpiresAt()} of a cookie without a max age, which lasts until
+	 * the session ends
+	 */
+	public static final long NEVER_EXPIRES = -1L;
+
 	private boolean discard, secure, expired;
 	private long maxAge;
+	/**
+	 * Wall clock time, in milliseconds, at which the cookie expires;
+	 * {@link #NEVER_EXPIRES} for session cookies and 0 for cookies persisted
+	 * before the expiry instant was recorded
+	 */
+	private long expiresAt;
 	private int version;
 	private String comment, commentURL, domain, name, path, portlist, value;
 
@@ -45,6 +57,7 @@ public class SerializableCookie implements Serializable {
 		this.secure = cookie.getSecure();
 		this.expired = cookie.hasExpired();
 		this.maxAge = cookie.getMaxAge();
+		this.expiresAt = expiresAt(maxAge, System.currentTimeMillis());
 		this.version = cookie.getVersion();
 		this.comment = cookie.getComment();
 		this.commentURL = cookie.getCommentURL();
@@ -55,6 +68,18 @@ public class SerializableCookie implements Serializable {
 		this.value = cookie.getValue();
 	}
 
+	/**
+	 * Constructs a new, otherwise empty, {@link SerializableCookie}. Used when
+	 * reading cookies back from a non-serialized representation.
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	public SerializableCookie(String name, String value) {
+		this.name = name;
+		this.value = value;
+	}
+
 	/**
 	 * @return the discard
 	 */
@@ -115,6 +140,57 @@ public class SerializableCookie implements Serializable {
 		this.maxAge = maxAge;
 	}
 
+	/**
+	 * @return the wall clock time at which the cookie expires,
+	 *         {@link #NEVER_EXPIRES} if it lasts for the session, or 0 if it
+	 *         was persisted without one and only {@link #getMaxAge()} is known
+	 */
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	/**
+	 * @param expiresAt
+	 *            the expiresAt to set
+	 */
+	public void setExpiresAt(long expiresAt) {
+		this.expiresAt = expiresAt;
+	}
+
+	/**
+	 * Whether this cookie has expired by the supplied time
+	 * 
+	 * @param now
+	 *            wall clock time in milliseconds
+	 * @return true if the cookie should no longer be sent or stored
+	 */
+	public boolean hasExpired(long now) {
+		if (expired || 0 == maxAge) {
+			return true;
+		}
+		return expiresAt > 0 && expiresAt <= now;
+	}
+
+	/**
+	 * The expiry instant of a cookie with the supplied max age, received at
+	 * the supplied time
+	 * 
+	 * @param maxAge
+	 *            in seconds, -1 for a session cookie
+	 * @param now
+	 *            wall clock time in milliseconds
+	 * @return the expiry instant, or {@link #NEVER_EXPIRES}
+	 */
+	public static long expiresAt(long maxAge, long now) {
+		if (maxAge < 0) {
+			return NEVER_EXPIRES;
+		}
+		if (maxAge > (Long.MAX_VALUE - now) / 1000) {
+			return Long.MAX_VALUE;
+		}
+		return now + maxAge * 1000;
+	}
+
 	/**
 	 * @return the version
 	 */
@@ -235,6 +311,23 @@ public class SerializableCookie implements Serializable {
 		this.value = value;
 	}
 
+	/**
+	 * Whether this and the supplied cookie identify the same cookie, using the
+	 * same name, domain and path rules as {@link HttpCookie#equals(Object)}.
+	 * 
+	 * @param other
+	 * @return true if other would replace this cookie in a CookieStore
+	 */
+	public boolean isSameCookie(SerializableCookie other) {
+		return null != other && equalsIgnoreCase(name, other.name)
+				&& equalsIgnoreCase(domain, other.domain)
+				&& (null == path ? null == other.path : path.equals(other.path));
+	}
+
+	private static boolean equalsIgnoreCase(String a, String b) {
+		return null == a ? null == b : a.equalsIgnoreCase(b);
+	}
+
 	/**
 	 * Static constructor for {@link SerializableCookie}s
 	 * 
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.vo;
+
+/**
+ * A point-in-time copy of a tiered cookie jar's counters.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class TierStats {
+
+	private final long hitCount, missCount, spillCount;
+	private final long residentBytes, segmentBytes;
+	private final int residentDomains, coldDomains;
+
+	public TierStats(long hitCount, long missCount, long spillCount,
+			long residentBytes, int residentDomains, int coldDomains,
+			long segmentBytes) {
+		this.hitCount = hitCount;
+		this.missCount = missCount;
+		this.spillCount = spillCount;
+		this.residentBytes = residentBytes;
+		this.residentDomains = residentDomains;
+		this.coldDomains = coldDomains;
+		this.segmentBytes = segmentBytes;
+	}
+
+	/**
+	 * @return lookups whose domain was in memory
+	 */
+	public long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * @return lookups which paged their domain in from disk
+	 */
+	public long getMissCount() {
+		return missCount;
+	}
+
+	/**
+	 * @return domains moved out to disk
+	 */
+	public long getSpillCount() {
+		return spillCount;
+	}
+
+	/**
+	 * @return the estimated heap held by the cookies in memory
+	 */
+	public long getResidentBytes() {
+		return residentBytes;
+	}
+
+	/**
+	 * @return domains with cookies in memory
+	 */
+	public int getResidentDomains() {
+		return residentDomains;
+	}
+
+	/**
+	 * @return domains whose cookies are on disk
+	 */
+	public int getColdDomains() {
+		return coldDomains;
+	}
+
+	/**
+	 * @return the length of the on-disk segment, including space freed by
+	 *         paging domains in which has not been reclaimed yet
+	 */
+	public long getSegmentBytes() {
+		return segmentBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "TierStats [hits=" + hitCount + ", misses=" + missCount
+				+ ", spills=" + spillCount + ", residentBytes="
+				+ residentBytes + ", residentDomains=" + residentDomains
+				+ ", coldDomains=" + coldDomains + ", segmentBytes="
+				+ segmentBytes + "]";
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.api.Persister;
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link PersistentCookieStore.Builder#restoreAsync(java.util.concurrent.Executor)}
+ * 
+ * @author brianmelton
+ * 
+ */
+public class AsyncRestoreTest {
+
+	private static final URI A = uri("http://a.com/");
+	private static final URI B = uri("http://b.com/");
+
+	private final RecordingHandler handler = new RecordingHandler();
+	private final MemoryPersister persisted = new MemoryPersister();
+	private final CountDownLatch gate = new CountDownLatch(1);
+	private ExecutorService executor;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newSingleThreadExecutor();
+		PersistentCookieStore store = builder(persisted, handler).build();
+		store.add(A, cookie("sid", "old", "a.com"));
+		store.add(A, cookie("lang", "en", "a.com"));
+		store.add(B, cookie("pref", "1", "b.com"));
+	}
+
+	@After
+	public void tearDown() {
+		gate.countDown();
+		executor.shutdownNow();
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	@Test
+	public void buildDoesNotWaitForRestore() throws Exception {
+		final PersistentCookieStore store = builder(new Gated(), handler)
+				.restoreAsync(executor).build();
+		assertFalse(store.getRestoreFuture().isDone());
+		final List<?>[] got = new List<?>[1];
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				got[0] = store.get(B);
+			}
+		};
+		reader.start();
+		reader.join(100);
+		assertTrue("get() must wait for the jar to be read",
+				reader.isAlive());
+		gate.countDown();
+		reader.join(5000);
+		assertEquals(1, got[0].size());
+		store.getRestoreFuture().get(5, TimeUnit.SECONDS);
+		assertEquals(3, store.getCookies().size());
+	}
+
+	@Test
+	public void addDuringRestoreWinsOverPersistedCopy() throws Exception {
+		PersistentCookieStore store = builder(new Gated(), handler)
+				.restoreAsync(executor).build();
+		releaseSoon();
+		store.add(A, cookie("sid", "new", "a.com"));
+		Set<String> cookies = describe(store.getCookies());
+		assertTrue(cookies.toString(), cookies.contains("sid=new@a.com"));
+		assertFalse(cookies.contains("sid=old@a.com"));
+		assertEquals(3, cookies.size());
+
+		store.getRestoreFuture().get(5, TimeUnit.SECONDS);
+		store.close();
+		assertEquals(cookies, describe(builder(persisted, handler).build()
+				.getCookies()));
+	}
+
+	@Test
+	public void removeAllDuringRestoreDropsPendingCookies() throws Exception {
+		PersistentCookieStore store = builder(new Gated(), handler)
+				.restoreAsync(executor).build();
+		releaseSoon();
+		store.removeAll();
+		store.getRestoreFuture().get(5, TimeUnit.SECONDS);
+		assertTrue(store.getCookies().isEmpty());
+		store.close();
+		assertTrue(builder(persisted, handler).build().getCookies().isEmpty());
+	}
+
+	@Test
+	public void removeDuringRestoreSticks() throws Exception {
+		PersistentCookieStore store = builder(new Gated(), handler)
+				.restoreAsync(executor).build();
+		releaseSoon();
+		HttpCookie sid = cookie("sid", "old", "a.com");
+		assertTrue(store.remove(A, sid));
+		store.getRestoreFuture().get(5, TimeUnit.SECONDS);
+		assertEquals(2, store.getCookies().size());
+		store.close();
+		assertEquals(2, builder(persisted, handler).build().getCookies()
+				.size());
+	}
+
+	private void releaseSoon() {
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					// Released now
+				}
+				gate.countDown();
+			}
+		}.start();
+	}
+
+	/**
+	 * Reads the persisted jar once the gate opens
+	 */
+	private final class Gated implements Persister {
+
+		@Override
+		public void persist(Map<URI, List<SerializableCookie>> cookies) {
+			persisted.persist(cookies);
+		}
+
+		@Override
+		public Map<URI, List<SerializableCookie>> restore()
+				throws PersistenceException {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				throw new PersistenceException(e);
+			}
+			return persisted.restore();
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.api.JournalingCookieStoreSerializer;
+
+/**
+ * {@link PersistentCookieStore#addAll(Map)} and
+ * {@link PersistentCookieStore.Batch}
+ * 
+ * @author brianmelton
+ * 
+ */
+public class BatchTest {
+
+	private static final URI A = uri("http://a.com/");
+	private static final URI B = uri("http://b.com/");
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final RecordingHandler handler = new RecordingHandler();
+	private final MemoryPersister persister = new MemoryPersister();
+
+	@After
+	public void tearDown() {
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	@Test
+	public void addAllPersistsOnce() {
+		PersistentCookieStore store = builder(persister, handler).build();
+		int writes = persister.writes.get();
+		Map<URI, List<HttpCookie>> cookies = new LinkedHashMap<URI, List<HttpCookie>>();
+		cookies.put(A, new ArrayList<HttpCookie>());
+		cookies.put(B, new ArrayList<HttpCookie>());
+		for (int i = 0; i < 50; i++) {
+			cookies.get(A).add(cookie("a" + i, "1", "a.com"));
+			cookies.get(B).add(cookie("b" + i, "1", "b.com"));
+		}
+		store.addAll(cookies);
+
+		assertEquals(writes + 1, persister.writes.get());
+		assertEquals(100, store.getCookies().size());
+		assertEquals(100, Fixtures.count(persister.restore()));
+	}
+
+	@Test
+	public void batchAppliesInOrder() {
+		PersistentCookieStore store = builder(persister, handler).build();
+		store.add(A, cookie("old", "1", "a.com"));
+		int writes = persister.writes.get();
+		store.beginBatch().add(A, cookie("sid", "1", "a.com"))
+				.remove(A, cookie("old", "", "a.com"))
+				.add(A, cookie("sid", "2", "a.com"))
+				.remove(B, cookie("missing", "", "b.com"))
+				.add(B, cookie("pref", "x", "b.com")).commit();
+
+		assertEquals(writes + 1, persister.writes.get());
+		assertEquals("[pref=x@b.com, sid=2@a.com]",
+				describe(store.getCookies()).toString());
+		assertEquals(describe(store.getCookies()), describe(builder(
+				persister, handler).build().getCookies()));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void batchCommitsOnce() {
+		PersistentCookieStore.Batch batch = builder(persister, handler)
+				.build().beginBatch().add(A, cookie("sid", "1", "a.com"));
+		batch.commit();
+		batch.commit();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void committedBatchTakesNoMore() {
+		PersistentCookieStore.Batch batch = builder(persister, handler)
+				.build().beginBatch();
+		batch.commit();
+		batch.add(A, cookie("sid", "1", "a.com"));
+	}
+
+	@Test
+	public void batchHonoursLimits() {
+		PersistentCookieStore store = builder(persister, handler)
+				.limitCookies(100, 3).build();
+		PersistentCookieStore.Batch batch = store.beginBatch();
+		for (int i = 0; i < 10; i++) {
+			batch.add(A, cookie("a" + i, "1", "a.com"));
+		}
+		batch.commit();
+		assertEquals("[a7=1@a.com, a8=1@a.com, a9=1@a.com]",
+				describe(store.getCookies()).toString());
+		assertEquals(3, Fixtures.count(persister.restore()));
+	}
+
+	@Test
+	public void journaledBatchSurvivesRestart() throws Exception {
+		File directory = Fixtures.newDirectory("batch");
+		try {
+			File file = new File(directory, "jar.ser");
+			PersistentCookieStore store = builder(
+					new JournalingCookieStoreSerializer(file, DIRECT), handler)
+					.build();
+			store.add(A, cookie("old", "1", "a.com"));
+			PersistentCookieStore.Batch batch = store.beginBatch();
+			for (int i = 0; i < 20; i++) {
+				batch.add(B, cookie("b" + i, "1", "b.com"));
+			}
+			batch.remove(A, cookie("old", "", "a.com")).commit();
+			store.close();
+
+			PersistentCookieStore restarted = builder(
+					new JournalingCookieStoreSerializer(file, DIRECT), handler)
+					.build();
+			assertEquals(describe(store.getCookies()),
+					describe(restarted.getCookies()));
+			assertEquals(20, restarted.getCookies().size());
+		} finally {
+			Fixtures.delete(directory);
+		}
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Paging domains through a {@link ColdSegment}
+ * 
+ * @author brianmelton
+ * 
+ */
+public class ColdSegmentTest {
+
+	private File directory;
+	private File file;
+	private ColdSegment segment;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Fixtures.newDirectory("segment");
+		file = new File(directory, "cold.seg");
+		segment = new ColdSegment(file);
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(directory);
+	}
+
+	@Test
+	public void takeReturnsWhatWasPut() throws Exception {
+		segment.put("a.com", domain("a.com", 3));
+		segment.put("b.com", domain("b.com", 2));
+		assertTrue(segment.contains("a.com"));
+		assertEquals(3, Fixtures.count(segment.take("a.com")));
+		assertFalse(segment.contains("a.com"));
+		assertNull(segment.take("a.com"));
+		assertEquals(2, Fixtures.count(segment.take("b.com")));
+		assertEquals(0, segment.length());
+	}
+
+	@Test
+	public void compactionKeepsLiveDomains() throws Exception {
+		for (int i = 0; i < 300; i++) {
+			segment.put("h" + i + ".com", domain("h" + i + ".com", 40));
+		}
+		long full = segment.length();
+		for (int i = 0; i < 300; i += 3) {
+			segment.take("h" + i + ".com");
+			segment.take("h" + (i + 1) + ".com");
+		}
+		assertTrue(segment.length() < full / 2);
+		assertEquals(segment.length(), file.length());
+		for (int i = 2; i < 300; i += 3) {
+			Map<URI, List<SerializableCookie>> cookies = segment.take("h" + i
+					+ ".com");
+			assertEquals(40, Fixtures.count(cookies));
+			assertEquals("h" + i + ".com", cookies.values().iterator()
+					.next().get(0).getDomain());
+		}
+		assertEquals(1, directory.list().length);
+	}
+
+	private static Map<URI, List<SerializableCookie>> domain(String domain,
+			int count) {
+		List<SerializableCookie> list = new ArrayList<SerializableCookie>();
+		StringBuilder value = new StringBuilder();
+		while (value.length() < 200) {
+			value.append(domain);
+		}
+		for (int i = 0; i < count; i++) {
+			SerializableCookie cookie = new SerializableCookie("c" + i, value
+					.toString());
+			cookie.setDomain(domain);
+			cookie.setPath("/");
+			cookie.setMaxAge(-1);
+			cookie.setExpiresAt(SerializableCookie.NEVER_EXPIRES);
+			list.add(cookie);
+		}
+		Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		cookies.put(URI.create("http://" + domain), list);
+		return cookies;
+	}
+
+}
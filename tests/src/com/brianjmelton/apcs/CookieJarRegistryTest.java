@@ -0,0 +1,139 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.CookieJarRegistry.Jar;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.api.DirectoryJarStorage;
+
+/**
+ * {@link CookieJarRegistry} over a {@link DirectoryJarStorage}
+ * 
+ * @author brianmelton
+ * 
+ */
+public class CookieJarRegistryTest {
+
+	private static final URI A = uri("http://a.com/");
+
+	private final RecordingHandler handler = new RecordingHandler();
+	private ScheduledExecutorService scheduler;
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		scheduler = Executors.newScheduledThreadPool(2);
+		directory = Fixtures.newDirectory("registry");
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdownNow();
+		Fixtures.delete(directory);
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	private CookieJarRegistry.Builder builder() {
+		return new CookieJarRegistry.Builder()
+				.useStorage(new DirectoryJarStorage(directory))
+				.useScheduler(scheduler).throwTo(handler).logWithTag("test");
+	}
+
+	@Test
+	public void jarsAreSeparate() {
+		CookieJarRegistry registry = builder().build();
+		registry.get("alice").add(A, cookie("sid", "alice", "a.com"));
+		registry.get("bob").add(A, cookie("sid", "bob", "a.com"));
+		assertEquals("alice", registry.get("alice").get(A).get(0).getValue());
+		assertEquals("bob", registry.get("bob").get(A).get(0).getValue());
+		assertEquals(2, registry.getLoadedJarCount());
+		registry.close();
+	}
+
+	@Test
+	public void jarsSurviveRestart() {
+		CookieJarRegistry registry = builder().build();
+		for (int i = 0; i < 20; i++) {
+			Jar jar = registry.get("user " + i);
+			jar.add(A, cookie("sid", "" + i, "a.com"));
+			jar.add(A, cookie("pref", "x", "a.com"));
+		}
+		registry.get("user 3").removeAll();
+		registry.close();
+		assertEquals(0, registry.getLoadedJarCount());
+
+		CookieJarRegistry restarted = builder().build();
+		assertEquals("[pref=x@a.com, sid=7@a.com]",
+				describe(restarted.get("user 7").getCookies()).toString());
+		assertTrue(restarted.get("user 3").getCookies().isEmpty());
+		assertTrue(restarted.get("nobody").getCookies().isEmpty());
+		restarted.close();
+	}
+
+	@Test
+	public void idleJarsAreWrittenAndDropped() throws Exception {
+		CookieJarRegistry registry = builder().writeBehind(10000, 60000)
+				.evictAfterIdle(50).build();
+		Jar jar = registry.get("idle");
+		jar.add(A, cookie("sid", "1", "a.com"));
+		assertEquals(1, registry.getLoadedJarCount());
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (0 != registry.getLoadedJarCount()
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, registry.getLoadedJarCount());
+		// Written out on eviction, well before the write-behind was due
+		assertEquals(1, jar.getCookies().size());
+		registry.close();
+	}
+
+	@Test
+	public void flushWritesPendingChanges() throws Exception {
+		CookieJarRegistry registry = builder().writeBehind(10000, 60000)
+				.build();
+		registry.get("pending").add(A, cookie("sid", "1", "a.com"));
+		File file = new DirectoryJarStorage(directory).getFile("pending");
+		registry.flush();
+		assertTrue(file.length() > 0);
+		registry.close();
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void closedRegistryRefusesUse() {
+		CookieJarRegistry registry = builder().build();
+		registry.close();
+		registry.get("late").getCookies();
+	}
+
+}
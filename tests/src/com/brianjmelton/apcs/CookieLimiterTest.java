@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.CookieLimiter.Tracked;
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.vo.EvictionStats;
+
+/**
+ * {@link CookieLimiter}, and limits through the store and across a restart
+ * 
+ * @author brianmelton
+ * 
+ */
+public class CookieLimiterTest {
+
+	private static final URI A = uri("http://a.com/");
+	private static final URI B = uri("http://b.com/");
+
+	@Test
+	public void domainLimitEvictsItsLeastRecentlyUsed() {
+		CookieLimiter limiter = new CookieLimiter(100, 2);
+		HttpCookie first = cookie("1", "1", "a.com");
+		limiter.track(A, first, "a.com");
+		limiter.track(B, cookie("b", "1", "b.com"), "b.com");
+		limiter.track(A, cookie("2", "1", "a.com"), "a.com");
+		assertTrue(limiter.pollVictims().isEmpty());
+
+		limiter.track(A, cookie("3", "1", "a.com"), "a.com");
+		List<Tracked> victims = limiter.pollVictims();
+		assertEquals(1, victims.size());
+		assertSame(first, victims.get(0).cookie);
+		assertFalse(limiter.isTracked(first));
+		assertTrue(limiter.pollVictims().isEmpty());
+
+		EvictionStats stats = limiter.stats();
+		assertEquals(1, stats.getDomainEvictionCount());
+		assertEquals(0, stats.getGlobalEvictionCount());
+		assertEquals(3, stats.getSize());
+	}
+
+	@Test
+	public void globalLimitEvictsLeastRecentlyUsedOverall() {
+		CookieLimiter limiter = new CookieLimiter(3, 10);
+		HttpCookie first = cookie("1", "1", "a.com");
+		HttpCookie second = cookie("2", "1", "b.com");
+		limiter.track(A, first, "a.com");
+		limiter.track(B, second, "b.com");
+		limiter.track(A, cookie("3", "1", "a.com"), "a.com");
+		limiter.touch(Collections.singletonList(first));
+
+		limiter.track(B, cookie("4", "1", "b.com"), "b.com");
+		List<Tracked> victims = limiter.pollVictims();
+		assertEquals(1, victims.size());
+		assertSame(second, victims.get(0).cookie);
+		assertEquals(1, limiter.stats().getGlobalEvictionCount());
+	}
+
+	@Test
+	public void resettingCookieDoesNotCountTwice() {
+		CookieLimiter limiter = new CookieLimiter(2, 2);
+		HttpCookie cookie = cookie("sid", "1", "a.com");
+		for (int i = 0; i < 10; i++) {
+			limiter.track(A, cookie, "a.com");
+		}
+		limiter.track(A, cookie("other", "1", "a.com"), "a.com");
+		assertTrue(limiter.pollVictims().isEmpty());
+		assertEquals(2, limiter.stats().getSize());
+	}
+
+	@Test
+	public void evictionsArePersisted() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		MemoryPersister persister = new MemoryPersister();
+		PersistentCookieStore store = builder(persister, handler)
+				.limitCookies(5, 2).build();
+		for (int i = 0; i < 4; i++) {
+			store.add(A, cookie("a" + i, "1", "a.com"));
+			store.add(B, cookie("b" + i, "1", "b.com"));
+		}
+		assertEquals(4, store.getCookies().size());
+		assertEquals(4, store.getEvictionStats().getDomainEvictionCount());
+
+		PersistentCookieStore restarted = builder(persister, handler)
+				.limitCookies(5, 2).build();
+		assertEquals(describe(store.getCookies()),
+				describe(restarted.getCookies()));
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	@Test
+	public void lowerLimitsApplyOnRestore() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		MemoryPersister persister = new MemoryPersister();
+		PersistentCookieStore store = builder(persister, handler).build();
+		for (int i = 0; i < 6; i++) {
+			store.add(A, cookie("a" + i, "1", "a.com"));
+		}
+
+		PersistentCookieStore restarted = builder(persister, handler)
+				.limitCookies(100, 3).build();
+		assertEquals(3, restarted.getCookies().size());
+		assertEquals(3, Fixtures.count(persister.restore()));
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+}
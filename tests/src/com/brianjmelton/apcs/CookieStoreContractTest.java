@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.CookieManager;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * The in-memory stores checked against the platform's on the same random
+ * operations. Each subclass supplies its store.
+ * 
+ * @author brianmelton
+ * 
+ */
+public abstract class CookieStoreContractTest {
+
+	private static final String[] HOSTS = { "a.com", "www.a.com",
+			"x.www.a.com", "b.org", "shop.b.org" };
+
+	/**
+	 * @return a new, empty store
+	 */
+	protected abstract CookieStore create();
+
+	@Test
+	public void agreesWithPlatformStore() {
+		for (long seed = 0; seed < 20; seed++) {
+			compare(seed, create(), new CookieManager().getCookieStore());
+		}
+	}
+
+	@Test
+	public void secureCookiesOnlyOverHttps() {
+		CookieStore store = create();
+		HttpCookie secure = cookie("s", "1", "a.com");
+		secure.setSecure(true);
+		store.add(URI.create("https://a.com/"), secure);
+		assertTrue(store.get(URI.create("http://a.com/")).isEmpty());
+		assertEquals(1, store.get(URI.create("https://a.com/")).size());
+	}
+
+	@Test
+	public void hostOnlyCookieStaysOnItsHost() {
+		CookieStore store = create();
+		store.add(URI.create("http://a.com/"), cookie("h", "1", null));
+		assertEquals(1, store.get(URI.create("http://a.com/")).size());
+		assertTrue(store.get(URI.create("http://www.a.com/")).isEmpty());
+	}
+
+	@Test
+	public void domainCookieMatchesEveryHostBelow() {
+		CookieStore store = create();
+		store.add(URI.create("http://a.com/"), cookie("d", "1", "a.com"));
+		assertEquals(1, store.get(URI.create("http://x.www.a.com/")).size());
+		assertTrue(store.get(URI.create("http://b.org/")).isEmpty());
+	}
+
+	@Test
+	public void zeroMaxAgeRemoves() {
+		CookieStore store = create();
+		URI uri = URI.create("http://a.com/");
+		store.add(uri, cookie("d", "1", "a.com"));
+		HttpCookie expired = cookie("d", "", "a.com");
+		expired.setMaxAge(0);
+		store.add(uri, expired);
+		assertTrue(store.getCookies().isEmpty());
+	}
+
+	private static void compare(long seed, CookieStore store,
+			CookieStore platform) {
+		Random random = new Random(seed);
+		List<HttpCookie> added = new ArrayList<HttpCookie>();
+		for (int i = 0; i < 300; i++) {
+			int hostIndex = random.nextInt(HOSTS.length);
+			String host = HOSTS[hostIndex];
+			URI uri = URI.create((random.nextInt(4) == 0 ? "https" : "http")
+					+ "://" + host + "/");
+			int op = random.nextInt(10);
+			if (op < 6) {
+				String domain = domainFor(host, random);
+				// The platform store keeps serving a replaced cookie from the
+				// index of the URI it was first set by, and HttpCookie.equals
+				// can't tell host-only cookies of two hosts apart: set each
+				// cookie by one URI, and name host-only cookies by host
+				String name = (null == domain ? "h" + hostIndex : "c")
+						+ random.nextInt(8);
+				HttpCookie cookie = cookie(name, "v" + i, domain);
+				cookie.setSecure(random.nextInt(5) == 0);
+				URI setBy = null == domain ? uri : URI.create(uri.getScheme()
+						+ "://" + domain + "/");
+				store.add(setBy, (HttpCookie) cookie.clone());
+				platform.add(setBy, (HttpCookie) cookie.clone());
+				added.add(cookie);
+			} else if (op < 8 && !added.isEmpty()) {
+				HttpCookie cookie = added.get(random.nextInt(added.size()));
+				assertEquals("seed " + seed + " op " + i,
+						platform.remove(uri, cookie), store.remove(uri, cookie));
+			} else if (op < 9) {
+				assertEquals("seed " + seed + " get " + uri,
+						describe(platform.get(uri)), describe(store.get(uri)));
+			} else if (random.nextInt(10) == 0) {
+				assertEquals(platform.removeAll(), store.removeAll());
+			}
+		}
+		assertEquals("seed " + seed, describe(platform.getCookies()),
+				describe(store.getCookies()));
+	}
+
+	private static String domainFor(String host, Random random) {
+		switch (random.nextInt(3)) {
+		case 0:
+			return null;
+		case 1:
+			return host;
+		default:
+			// The registrable domain, which matches every host below it
+			return host.substring(host.indexOf(host.endsWith("a.com") ? "a.com"
+					: "b.org"));
+		}
+	}
+
+	static HttpCookie cookie(String name, String value, String domain) {
+		HttpCookie cookie = new HttpCookie(name, value);
+		cookie.setDomain(domain);
+		cookie.setPath("/");
+		cookie.setVersion(0);
+		cookie.setMaxAge(3600);
+		return cookie;
+	}
+
+	private static Set<String> describe(List<HttpCookie> cookies) {
+		Set<String> described = new TreeSet<String>();
+		for (HttpCookie cookie : cookies) {
+			described.add(cookie.getName() + "=" + cookie.getValue() + "@"
+					+ cookie.getDomain() + (cookie.getSecure() ? " secure" : ""));
+		}
+		return described;
+	}
+
+}
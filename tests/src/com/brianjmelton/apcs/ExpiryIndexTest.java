@@ -0,0 +1,177 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.ExpiryIndex.Deadline;
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link ExpiryIndex}, and expiry through the store and across a restart
+ * 
+ * @author brianmelton
+ * 
+ */
+public class ExpiryIndexTest {
+
+	private static final URI A = uri("http://a.com/");
+
+	@Test
+	public void pollsInDeadlineOrder() {
+		ExpiryIndex index = new ExpiryIndex();
+		HttpCookie late = cookie("late", "1", "a.com");
+		HttpCookie early = cookie("early", "1", "a.com");
+		HttpCookie later = cookie("later", "1", "a.com");
+		index.track(A, late, 300, false);
+		index.track(A, early, 100, false);
+		index.track(A, later, 900, false);
+
+		assertFalse(index.isDue(99));
+		assertTrue(index.isDue(100));
+		List<Deadline> expired = index.pollExpired(300);
+		assertEquals(2, expired.size());
+		assertSame(early, expired.get(0).cookie);
+		assertSame(late, expired.get(1).cookie);
+		assertFalse(index.isTracked(early));
+		assertTrue(index.isTracked(later));
+		assertFalse(index.isDue(899));
+	}
+
+	@Test
+	public void replacedDeadlineIsSkipped() {
+		ExpiryIndex index = new ExpiryIndex();
+		HttpCookie cookie = cookie("sid", "1", "a.com");
+		index.track(A, cookie, 100, false);
+		index.track(A, cookie, 500, false);
+		assertTrue(index.pollExpired(200).isEmpty());
+		assertTrue(index.isTracked(cookie));
+		assertEquals(500, index.expiresAt(cookie, 0));
+		assertEquals(1, index.pollExpired(500).size());
+	}
+
+	@Test
+	public void untrackedDeadlineIsSkipped() {
+		ExpiryIndex index = new ExpiryIndex();
+		HttpCookie cookie = cookie("sid", "1", "a.com");
+		index.track(A, cookie, 100, false);
+		index.untrack(cookie);
+		assertTrue(index.pollExpired(200).isEmpty());
+	}
+
+	@Test
+	public void sessionCookiesNeverExpire() {
+		ExpiryIndex index = new ExpiryIndex();
+		HttpCookie cookie = cookie("sid", "1", "a.com");
+		index.track(A, cookie, SerializableCookie.NEVER_EXPIRES, true);
+		assertFalse(index.isDue(Long.MAX_VALUE - 1));
+		assertTrue(index.pollExpired(Long.MAX_VALUE - 1).isEmpty());
+		assertTrue(index.isTracked(cookie));
+		assertFalse(index.isPersistent(cookie));
+	}
+
+	@Test
+	public void manyReplacementsKeepOneLiveDeadline() {
+		ExpiryIndex index = new ExpiryIndex();
+		HttpCookie cookie = cookie("sid", "1", "a.com");
+		for (int i = 0; i < 10000; i++) {
+			index.track(A, cookie, 1000 + i, false);
+		}
+		assertTrue(index.pollExpired(10998).isEmpty());
+		List<Deadline> expired = index.pollExpired(10999);
+		assertEquals(1, expired.size());
+		assertEquals(10999, expired.get(0).expiresAt);
+	}
+
+	@Test
+	public void unchangedWithinTolerance() {
+		ExpiryIndex index = new ExpiryIndex();
+		HttpCookie cookie = cookie("sid", "1", "a.com");
+		long fingerprint = ExpiryIndex.fingerprintOf(A, cookie);
+		assertFalse(index.track(A, cookie, 1000, false, fingerprint, 50));
+		assertTrue(index.track(A, cookie, 1040, false, fingerprint, 50));
+		// Measured from what was persisted, so drift can't accumulate
+		assertFalse(index.track(A, cookie, 1080, false, fingerprint, 50));
+
+		HttpCookie changed = cookie("sid", "2", "a.com");
+		assertFalse(fingerprint == ExpiryIndex.fingerprintOf(A, changed));
+	}
+
+	@Test
+	public void expiredCookieIsGoneAfterRestart() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		MemoryPersister persister = new MemoryPersister();
+		PersistentCookieStore store = builder(persister, handler).build();
+		HttpCookie shortLived = cookie("short", "1", "a.com");
+		shortLived.setMaxAge(1);
+		store.add(A, shortLived);
+		store.add(A, cookie("long", "1", "a.com"));
+		Thread.sleep(1100);
+
+		assertEquals(1, store.get(A).size());
+		PersistentCookieStore restarted = builder(persister, handler).build();
+		assertEquals(1, restarted.getCookies().size());
+		assertEquals("long", restarted.getCookies().get(0).getName());
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	@Test
+	public void backgroundSweepRemovesFromWrappedStore() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		MemoryPersister persister = new MemoryPersister();
+		ScheduledExecutorService scheduler = Executors
+				.newSingleThreadScheduledExecutor();
+		try {
+			// getURIs doesn't look at expiry, so only a removal empties it
+			IndexedCookieStore wrapped = new IndexedCookieStore();
+			PersistentCookieStore store = builder(persister, handler)
+					.useCookieStore(wrapped).expireInBackground(scheduler, 50)
+					.build();
+			HttpCookie shortLived = cookie("short", "1", "a.com");
+			shortLived.setMaxAge(1);
+			store.add(A, shortLived);
+			assertEquals(1, wrapped.getURIs().size());
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (!wrapped.getURIs().isEmpty()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(50);
+			}
+			assertTrue(wrapped.getURIs().isEmpty());
+		} finally {
+			scheduler.shutdownNow();
+		}
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+}
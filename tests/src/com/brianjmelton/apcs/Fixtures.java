@@ -0,0 +1,190 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.brianjmelton.apcs.api.PersistenceExceptionHandler;
+import com.brianjmelton.apcs.api.Persister;
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Cookies, stores and persisters shared by the tests
+ * 
+ * @author brianmelton
+ * 
+ */
+public final class Fixtures {
+
+	private Fixtures() {
+	}
+
+	public static URI uri(String uri) {
+		return URI.create(uri);
+	}
+
+	/**
+	 * @return a cookie for the supplied domain, or a host-only one if it is
+	 *         null, lasting an hour
+	 */
+	public static HttpCookie cookie(String name, String value, String domain) {
+		HttpCookie cookie = new HttpCookie(name, value);
+		cookie.setDomain(domain);
+		cookie.setPath("/");
+		cookie.setMaxAge(3600);
+		return cookie;
+	}
+
+	/**
+	 * @return "name=value@domain" for each cookie, sorted, for comparing jars
+	 *         regardless of order
+	 */
+	public static Set<String> describe(Collection<HttpCookie> cookies) {
+		Set<String> described = new TreeSet<String>();
+		for (HttpCookie cookie : cookies) {
+			described.add(cookie.getName() + "=" + cookie.getValue() + "@"
+					+ cookie.getDomain());
+		}
+		return described;
+	}
+
+	/**
+	 * @return "uri name=value" for each persisted cookie, sorted
+	 */
+	public static Set<String> describe(
+			Map<URI, List<SerializableCookie>> persisted) {
+		Set<String> described = new TreeSet<String>();
+		if (null != persisted) {
+			for (Map.Entry<URI, List<SerializableCookie>> entry : persisted
+					.entrySet()) {
+				for (SerializableCookie cookie : entry.getValue()) {
+					described.add(entry.getKey() + " " + cookie.getName()
+							+ "=" + cookie.getValue());
+				}
+			}
+		}
+		return described;
+	}
+
+	public static int count(Map<URI, List<SerializableCookie>> persisted) {
+		int count = 0;
+		if (null != persisted) {
+			for (List<SerializableCookie> list : persisted.values()) {
+				count += list.size();
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * @return a builder wrapping an {@link IndexedCookieStore}, which throws
+	 *         persistence failures to the supplied handler
+	 */
+	public static PersistentCookieStore.Builder builder(Persister persister,
+			RecordingHandler handler) {
+		return new PersistentCookieStore.Builder()
+				.useCookieStore(new IndexedCookieStore())
+				.usePersister(persister).throwTo(handler).logWithTag("test");
+	}
+
+	/**
+	 * @return a new, empty directory in the system temp directory
+	 */
+	public static File newDirectory(String prefix) throws IOException {
+		File directory = File.createTempFile(prefix, "");
+		if (!directory.delete() || !directory.mkdir()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		return directory;
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if (null != children) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+	/**
+	 * Collects persistence failures, which may be reported on any thread, so
+	 * that a test can check there were none
+	 */
+	public static final class RecordingHandler implements
+			PersistenceExceptionHandler {
+
+		public final List<PersistenceException> failures = new CopyOnWriteArrayList<PersistenceException>();
+
+		@Override
+		public void onPersistFailure(PersistenceException e) {
+			failures.add(e);
+		}
+
+		@Override
+		public void onRestoreFailure(PersistenceException e) {
+			failures.add(e);
+		}
+	}
+
+	/**
+	 * Keeps the last snapshot in memory and counts writes
+	 */
+	public static final class MemoryPersister implements Persister {
+
+		public final AtomicInteger writes = new AtomicInteger();
+		private Map<URI, List<SerializableCookie>> snapshot;
+
+		@Override
+		public synchronized void persist(
+				Map<URI, List<SerializableCookie>> cookies) {
+			snapshot = copy(cookies);
+			writes.incrementAndGet();
+		}
+
+		@Override
+		public synchronized Map<URI, List<SerializableCookie>> restore() {
+			return null == snapshot ? null : copy(snapshot);
+		}
+
+		private static Map<URI, List<SerializableCookie>> copy(
+				Map<URI, List<SerializableCookie>> cookies) {
+			Map<URI, List<SerializableCookie>> copy = new HashMap<URI, List<SerializableCookie>>();
+			for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+					.entrySet()) {
+				copy.put(entry.getKey(), new ArrayList<SerializableCookie>(
+						entry.getValue()));
+			}
+			return copy;
+		}
+	}
+
+}
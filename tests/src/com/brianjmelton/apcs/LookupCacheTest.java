@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+
+/**
+ * {@link LookupCache} on its own and behind {@link PersistentCookieStore}
+ * 
+ * @author brianmelton
+ * 
+ */
+public class LookupCacheTest {
+
+	private static final List<HttpCookie> NONE = Collections.emptyList();
+
+	@Test
+	public void invalidationDropsDomainEntries() {
+		LookupCache cache = new LookupCache(10);
+		cache.put("http://a.com/", "a.com", NONE, Long.MAX_VALUE,
+				cache.generation());
+		cache.put("http://b.com/", "b.com", NONE, Long.MAX_VALUE,
+				cache.generation());
+		cache.invalidateDomain("a.com");
+		assertNull(cache.get("http://a.com/", 0));
+		assertNotNull(cache.get("http://b.com/", 0));
+	}
+
+	@Test
+	public void fillStartedBeforeInvalidationIsDropped() {
+		LookupCache cache = new LookupCache(10);
+		long generation = cache.generation();
+		// Another stripe's mutation lands while the store is read
+		cache.invalidateDomain("tracker.net");
+		cache.put("http://a.com/", "a.com", NONE, Long.MAX_VALUE, generation);
+		assertNull(cache.get("http://a.com/", 0));
+	}
+
+	@Test
+	public void expiredEntryMisses() {
+		LookupCache cache = new LookupCache(10);
+		cache.put("http://a.com/", "a.com", NONE, 100, cache.generation());
+		assertNotNull(cache.get("http://a.com/", 99));
+		assertNull(cache.get("http://a.com/", 100));
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsed() {
+		LookupCache cache = new LookupCache(2);
+		cache.put("1", "a.com", NONE, Long.MAX_VALUE, cache.generation());
+		cache.put("2", "a.com", NONE, Long.MAX_VALUE, cache.generation());
+		cache.get("1", 0);
+		cache.put("3", "a.com", NONE, Long.MAX_VALUE, cache.generation());
+		assertNotNull(cache.get("1", 0));
+		assertNull(cache.get("2", 0));
+		assertEquals(2, cache.stats().getSize());
+	}
+
+	/**
+	 * A cookie for another domain, set under the looked-up URI, is changed
+	 * under that domain's stripe while readers fill the URI's lookup under
+	 * its own. Once the writer stops, the cache must agree with the store.
+	 */
+	@Test
+	public void crossStripeChangesNeverLeaveStaleLookups() throws Exception {
+		RecordingHandler handler = new RecordingHandler();
+		final PersistentCookieStore store = new PersistentCookieStore.Builder()
+				.useCookieStore(new CookieManager().getCookieStore())
+				.usePersister(new MemoryPersister()).throwTo(handler)
+				.logWithTag("test").cacheLookups(100).lockStripes(16).build();
+		final URI uri = URI.create("http://example.com/");
+		final AtomicBoolean done = new AtomicBoolean();
+		Thread[] readers = new Thread[3];
+		for (int i = 0; i < readers.length; i++) {
+			readers[i] = new Thread() {
+				@Override
+				public void run() {
+					while (!done.get()) {
+						store.get(uri);
+					}
+				}
+			};
+			readers[i].start();
+		}
+		try {
+			for (int i = 0; i < 20000; i++) {
+				HttpCookie cookie = Fixtures.cookie("t", "" + i, "tracker.net");
+				if (i % 2 == 0) {
+					store.add(uri, cookie);
+				} else {
+					store.remove(uri, cookie);
+				}
+			}
+		} finally {
+			done.set(true);
+			for (Thread reader : readers) {
+				reader.join();
+			}
+		}
+		assertTrue(store.get(uri).isEmpty());
+		assertTrue(handler.failures.isEmpty());
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.api.JournalingCookieStoreSerializer;
+
+/**
+ * Session cookies kept in memory only
+ * 
+ * @author brianmelton
+ * 
+ */
+public class MemoryOnlySessionTest {
+
+	private static final URI A = uri("http://a.com/");
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final RecordingHandler handler = new RecordingHandler();
+	private final MemoryPersister persister = new MemoryPersister();
+	private PersistentCookieStore store;
+
+	@Before
+	public void setUp() {
+		store = builder(persister, handler).keepSessionCookiesInMemory()
+				.build();
+	}
+
+	@After
+	public void tearDown() {
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	@Test
+	public void sessionCookiesAreNeverWritten() {
+		store.add(A, session("sid", "1"));
+		HttpCookie discarded = cookie("tmp", "1", "a.com");
+		discarded.setDiscard(true);
+		store.add(A, discarded);
+
+		assertEquals(2, store.get(A).size());
+		assertEquals(0, persister.writes.get());
+		store.remove(A, session("sid", ""));
+		assertEquals(0, persister.writes.get());
+	}
+
+	@Test
+	public void persistentCookiesAreWrittenAlongside() {
+		store.add(A, session("sid", "1"));
+		store.add(A, cookie("pref", "dark", "a.com"));
+
+		assertEquals(1, Fixtures.count(persister.restore()));
+		PersistentCookieStore restarted = builder(persister, handler)
+				.keepSessionCookiesInMemory().build();
+		assertEquals("pref", restarted.getCookies().get(0).getName());
+		assertEquals(1, restarted.getCookies().size());
+	}
+
+	@Test
+	public void sessionCookieReplacingPersistedOneRemovesIt() {
+		store.add(A, cookie("sid", "persisted", "a.com"));
+		assertEquals(1, Fixtures.count(persister.restore()));
+
+		store.add(A, session("sid", "session"));
+		assertEquals("session", store.get(A).get(0).getValue());
+		assertEquals(0, Fixtures.count(persister.restore()));
+	}
+
+	@Test
+	public void persistedCookieReplacingSessionOneIsWritten() {
+		store.add(A, session("sid", "session"));
+		store.add(A, cookie("sid", "persisted", "a.com"));
+		assertEquals(describe(store.getCookies()), describe(builder(
+				persister, handler).keepSessionCookiesInMemory().build()
+				.getCookies()));
+	}
+
+	@Test
+	public void journaledRestartDropsSessionCookies() throws Exception {
+		File directory = Fixtures.newDirectory("sessions");
+		try {
+			File file = new File(directory, "jar.ser");
+			PersistentCookieStore journaled = builder(
+					new JournalingCookieStoreSerializer(file, DIRECT), handler)
+					.keepSessionCookiesInMemory().build();
+			journaled.add(A, cookie("pref", "dark", "a.com"));
+			journaled.add(A, session("sid", "1"));
+			journaled.add(A, session("pref", "light"));
+			journaled.add(A, cookie("pref", "blue", "a.com"));
+			journaled.removeAll();
+			journaled.add(A, cookie("keep", "1", "a.com"));
+			journaled.add(A, session("sid", "2"));
+			journaled.close();
+
+			PersistentCookieStore restarted = builder(
+					new JournalingCookieStoreSerializer(file, DIRECT), handler)
+					.keepSessionCookiesInMemory().build();
+			assertEquals(1, restarted.getCookies().size());
+			assertEquals("keep", restarted.getCookies().get(0).getName());
+		} finally {
+			Fixtures.delete(directory);
+		}
+	}
+
+	private static HttpCookie session(String name, String value) {
+		HttpCookie cookie = cookie(name, value, "a.com");
+		cookie.setMaxAge(-1);
+		return cookie;
+	}
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+/**
+ * {@link PackedCookieStore}, which has to match {@link IndexedCookieStore}
+ * 
+ * @author brianmelton
+ * 
+ */
+public class PackedCookieStoreTest extends CookieStoreContractTest {
+
+	private static final String[] HOSTS = { "a.com", "www.a.com",
+			"x.www.a.com", "b.org", "localhost" };
+	private static final String[] PATHS = { "/", "/account",
+			"/account/settings", "/shop" };
+
+	@Override
+	protected CookieStore create() {
+		return new PackedCookieStore();
+	}
+
+	@Test
+	public void keepsEveryField() {
+		PackedCookieStore store = new PackedCookieStore();
+		HttpCookie cookie = cookie("pref", "x", "b.org");
+		cookie.setPath("/account");
+		cookie.setSecure(true);
+		cookie.setDiscard(true);
+		cookie.setVersion(1);
+		cookie.setComment("comment");
+		cookie.setCommentURL("http://b.org/why");
+		cookie.setPortlist("443");
+		store.add(URI.create("https://b.org/account"), cookie);
+
+		HttpCookie packed = store.getCookies().get(0);
+		assertEquals(detail(cookie), detail(packed));
+		assertTrue(packed.getMaxAge() > 3590 && packed.getMaxAge() <= 3600);
+	}
+
+	@Test
+	public void matchesIndexedStore() {
+		for (long seed = 0; seed < 20; seed++) {
+			Random random = new Random(seed);
+			CookieStore packed = new PackedCookieStore();
+			CookieStore indexed = new IndexedCookieStore();
+			List<HttpCookie> added = new ArrayList<HttpCookie>();
+			for (int i = 0; i < 500; i++) {
+				String host = HOSTS[random.nextInt(HOSTS.length)];
+				URI uri = URI.create((random.nextBoolean() ? "https" : "http")
+						+ "://" + host + PATHS[random.nextInt(PATHS.length)]);
+				int op = random.nextInt(10);
+				if (op < 6) {
+					HttpCookie cookie = cookie("c" + random.nextInt(10), "v"
+							+ i, random.nextBoolean() ? null : host);
+					cookie.setPath(PATHS[random.nextInt(PATHS.length)]);
+					cookie.setSecure(random.nextInt(4) == 0);
+					cookie.setVersion(random.nextInt(2));
+					if (random.nextInt(10) == 0) {
+						cookie.setMaxAge(0);
+					}
+					packed.add(uri, (HttpCookie) cookie.clone());
+					indexed.add(uri, (HttpCookie) cookie.clone());
+					added.add(cookie);
+				} else if (op < 8 && !added.isEmpty()) {
+					HttpCookie cookie = added.get(random.nextInt(added.size()));
+					assertEquals(indexed.remove(uri, cookie),
+							packed.remove(uri, cookie));
+				} else if (op < 9) {
+					assertEquals("seed " + seed + " get " + uri,
+							details(indexed.get(uri)), details(packed.get(uri)));
+				} else if (random.nextInt(20) == 0) {
+					assertEquals(indexed.removeAll(), packed.removeAll());
+				}
+			}
+			assertEquals("seed " + seed, details(indexed.getCookies()),
+					details(packed.getCookies()));
+			assertEquals(new TreeSet<URI>(indexed.getURIs()),
+					new TreeSet<URI>(packed.getURIs()));
+		}
+	}
+
+	@Test
+	public void reusesFreedSlots() {
+		PackedCookieStore store = new PackedCookieStore();
+		URI uri = URI.create("http://a.com/");
+		for (int round = 0; round < 10; round++) {
+			for (int i = 0; i < 1000; i++) {
+				store.add(uri, cookie("c" + i, "v" + round, "a.com"));
+			}
+			assertEquals(1000, store.size());
+			for (int i = 0; i < 1000; i += 2) {
+				assertTrue(store.remove(uri, cookie("c" + i, "", "a.com")));
+			}
+			assertEquals(500, store.size());
+		}
+		assertFalse(store.remove(uri, cookie("c0", "", "a.com")));
+		assertEquals(500, store.get(uri).size());
+	}
+
+	private static Set<String> details(List<HttpCookie> cookies) {
+		Set<String> details = new TreeSet<String>();
+		for (HttpCookie cookie : cookies) {
+			details.add(detail(cookie));
+		}
+		return details;
+	}
+
+	private static String detail(HttpCookie cookie) {
+		return cookie.getName() + "=" + cookie.getValue() + " domain="
+				+ cookie.getDomain() + " path=" + cookie.getPath()
+				+ " secure=" + cookie.getSecure() + " discard="
+				+ cookie.getDiscard() + " version=" + cookie.getVersion()
+				+ " comment=" + cookie.getComment() + " commentURL="
+				+ cookie.getCommentURL() + " ports=" + cookie.getPortlist();
+	}
+
+}
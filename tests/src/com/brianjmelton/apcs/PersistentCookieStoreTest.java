@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.CookieManager;
+import java.net.CookieStore;
+import java.net.URI;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.api.JournalingCookieStoreSerializer;
+import com.brianjmelton.apcs.api.Persister;
+
+/**
+ * {@link PersistentCookieStore} across restarts
+ * 
+ * @author brianmelton
+ * 
+ */
+public class PersistentCookieStoreTest {
+
+	private static final URI A = uri("http://a.com/");
+	private static final URI B = uri("http://b.com/");
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private final RecordingHandler handler = new RecordingHandler();
+	private File directory;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Fixtures.newDirectory("store");
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(directory);
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	@Test
+	public void cookiesAlreadyInWrappedStoreArePersisted() throws Exception {
+		MemoryPersister persister = new MemoryPersister();
+		CookieStore wrapped = new CookieManager().getCookieStore();
+		wrapped.add(A, cookie("early", "1", "a.com"));
+		PersistentCookieStore store = builder(persister, handler)
+				.useCookieStore(wrapped).build();
+		store.add(B, cookie("late", "2", "b.com"));
+		assertEquals(2, Fixtures.count(persister.restore()));
+	}
+
+	@Test
+	public void cookiesAlreadyInWrappedStoreSurviveJournaledRestart()
+			throws Exception {
+		File file = new File(directory, "jar.ser");
+		Persister persister = new JournalingCookieStoreSerializer(file, DIRECT);
+		CookieStore wrapped = new IndexedCookieStore();
+		wrapped.add(A, cookie("early", "1", "a.com"));
+		PersistentCookieStore store = builder(persister, handler)
+				.useCookieStore(wrapped).build();
+		store.add(B, cookie("late", "2", "b.com"));
+		store.close();
+
+		PersistentCookieStore restarted = builder(
+				new JournalingCookieStoreSerializer(file, DIRECT), handler)
+				.build();
+		assertEquals(describe(store.getCookies()),
+				describe(restarted.getCookies()));
+		assertEquals(2, restarted.getCookies().size());
+	}
+
+	@Test
+	public void persistedCopyReplacesStoredOne() throws Exception {
+		MemoryPersister persister = new MemoryPersister();
+		builder(persister, handler).build().add(A,
+				cookie("sid", "persisted", "a.com"));
+		CookieStore wrapped = new IndexedCookieStore();
+		wrapped.add(A, cookie("sid", "stored", "a.com"));
+		PersistentCookieStore store = builder(persister, handler)
+				.useCookieStore(wrapped).build();
+		assertEquals("persisted", store.get(A).get(0).getValue());
+	}
+
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpCookie;
+import java.net.URI;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+
+/**
+ * Re-setting cookies unchanged without persisting
+ * 
+ * @author brianmelton
+ * 
+ */
+public class SkipUnchangedTest {
+
+	private static final URI A = uri("http://a.com/");
+	private static final URI WWW = uri("http://www.a.com/");
+
+	private final RecordingHandler handler = new RecordingHandler();
+	private final MemoryPersister persister = new MemoryPersister();
+
+	@After
+	public void tearDown() {
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	@Test
+	public void identicalCookieIsSkipped() {
+		PersistentCookieStore store = builder(persister, handler)
+				.skipUnchangedCookies(60000).build();
+		store.add(A, cookie("sid", "1", "a.com"));
+		int writes = persister.writes.get();
+		for (int i = 0; i < 5; i++) {
+			store.add(A, cookie("sid", "1", "a.com"));
+		}
+		assertEquals(writes, persister.writes.get());
+		assertEquals(5, store.getSkippedWriteCount());
+	}
+
+	@Test
+	public void changedValueIsWritten() {
+		PersistentCookieStore store = builder(persister, handler)
+				.skipUnchangedCookies(60000).build();
+		store.add(A, cookie("sid", "1", "a.com"));
+		store.add(A, cookie("sid", "2", "a.com"));
+		assertEquals(0, store.getSkippedWriteCount());
+		assertEquals("[http://a.com sid=2]",
+				Fixtures.describe(persister.restore()).toString());
+	}
+
+	@Test
+	public void changedAttributesAreWritten() {
+		PersistentCookieStore store = builder(persister, handler)
+				.skipUnchangedCookies(60000).build();
+		store.add(A, cookie("sid", "1", "a.com"));
+		HttpCookie secure = cookie("sid", "1", "a.com");
+		secure.setSecure(true);
+		store.add(A, secure);
+		HttpCookie session = cookie("sid", "1", "a.com");
+		session.setMaxAge(-1);
+		store.add(A, session);
+		store.add(WWW, cookie("sid", "1", "a.com"));
+		assertEquals(0, store.getSkippedWriteCount());
+	}
+
+	@Test
+	public void expiryBeyondToleranceIsWritten() throws Exception {
+		PersistentCookieStore store = builder(persister, handler)
+				.skipUnchangedCookies(0).build();
+		store.add(A, cookie("sid", "1", "a.com"));
+		Thread.sleep(5);
+		// The same max age moves the expiry, which a zero tolerance notices
+		store.add(A, cookie("sid", "1", "a.com"));
+		assertEquals(0, store.getSkippedWriteCount());
+	}
+
+	@Test
+	public void skippingIsOffByDefault() {
+		PersistentCookieStore store = builder(persister, handler).build();
+		store.add(A, cookie("sid", "1", "a.com"));
+		store.add(A, cookie("sid", "1", "a.com"));
+		assertEquals(0, store.getSkippedWriteCount());
+		assertEquals(2, persister.writes.get());
+	}
+
+	@Test
+	public void restoredCookieCountsAsPersisted() {
+		builder(persister, handler).build().add(A,
+				cookie("sid", "1", "a.com"));
+		PersistentCookieStore restarted = builder(persister, handler)
+				.skipUnchangedCookies(60000).build();
+		int writes = persister.writes.get();
+		restarted.add(A, cookie("sid", "1", "a.com"));
+		assertEquals(writes, persister.writes.get());
+		assertEquals(1, restarted.getSkippedWriteCount());
+	}
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.api.CookieVisitor;
+import com.brianjmelton.apcs.api.StreamingPersister;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Restoring from a {@link StreamingPersister} straight into the store
+ * 
+ * @author brianmelton
+ * 
+ */
+public class StreamingRestoreTest {
+
+	private static final URI A = uri("http://a.com/");
+
+	private final RecordingHandler handler = new RecordingHandler();
+
+	@Test
+	public void storeRestoresThroughVisitor() {
+		long now = System.currentTimeMillis();
+		Streaming persister = new Streaming();
+		persister.put(A, cookie("kept", 3600, now + 10000L));
+		persister.put(A, cookie("gone", 3600, now - 1));
+		PersistentCookieStore store = builder(persister, handler).build();
+		assertEquals(1, persister.visits);
+		assertEquals(0, persister.mapRestores);
+		List<HttpCookie> cookies = store.get(A);
+		assertEquals(1, cookies.size());
+		assertEquals("kept", cookies.get(0).getName());
+		// What was left of its lifetime, not the max age it was set with
+		assertTrue(cookies.get(0).getMaxAge() <= 10);
+		assertTrue(handler.failures.isEmpty());
+	}
+
+	private static SerializableCookie cookie(String name, long maxAge,
+			long expiresAt) {
+		SerializableCookie cookie = new SerializableCookie(name, "v");
+		cookie.setDomain("a.com");
+		cookie.setPath("/");
+		cookie.setMaxAge(maxAge);
+		cookie.setExpiresAt(expiresAt);
+		return cookie;
+	}
+
+	/**
+	 * Counts how it was restored from
+	 */
+	private static final class Streaming implements StreamingPersister {
+
+		private final Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		int visits, mapRestores;
+
+		void put(URI uri, SerializableCookie cookie) {
+			List<SerializableCookie> list = cookies.get(uri);
+			if (null == list) {
+				list = new ArrayList<SerializableCookie>();
+				cookies.put(uri, list);
+			}
+			list.add(cookie);
+		}
+
+		@Override
+		public void persist(Map<URI, List<SerializableCookie>> cookies) {
+		}
+
+		@Override
+		public Map<URI, List<SerializableCookie>> restore() {
+			mapRestores++;
+			return cookies;
+		}
+
+		@Override
+		public void restore(CookieVisitor visitor) {
+			visits++;
+			for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+					.entrySet()) {
+				for (SerializableCookie cookie : entry.getValue()) {
+					visitor.visit(entry.getKey(), cookie);
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.api.JournalingCookieStoreSerializer;
+
+/**
+ * {@link StripedLock}, and a striped store under concurrent writers
+ * 
+ * @author brianmelton
+ * 
+ */
+public class StripedLockTest {
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	@Test
+	public void domainAlwaysGetsSameStripe() {
+		StripedLock locks = new StripedLock(16);
+		Lock lock = locks.writeLock("a.com");
+		lock.lock();
+		try {
+			assertFalse(tryFromOtherThread(locks.writeLock("a.com")));
+			assertFalse(tryFromOtherThread(locks.readLock("a.com")));
+		} finally {
+			lock.unlock();
+		}
+		assertTrue(tryFromOtherThread(locks.writeLock("a.com")));
+	}
+
+	@Test
+	public void readersShareStripe() {
+		StripedLock locks = new StripedLock(4);
+		Lock lock = locks.readLock("a.com");
+		lock.lock();
+		try {
+			assertTrue(tryFromOtherThread(locks.readLock("a.com")));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Test
+	public void exclusiveKeepsOutEveryDomain() {
+		StripedLock locks = new StripedLock(8);
+		locks.lockAllExclusive();
+		try {
+			for (int i = 0; i < 32; i++) {
+				assertFalse(tryFromOtherThread(locks.readLock("d" + i + ".com")));
+			}
+		} finally {
+			locks.unlockAllExclusive();
+		}
+		assertTrue(tryFromOtherThread(locks.writeLock("d0.com")));
+	}
+
+	@Test
+	public void sharedKeepsOutWritersOnly() {
+		StripedLock locks = new StripedLock(8);
+		locks.lockAllShared();
+		try {
+			assertTrue(tryFromOtherThread(locks.readLock("a.com")));
+			assertFalse(tryFromOtherThread(locks.writeLock("a.com")));
+		} finally {
+			locks.unlockAllShared();
+		}
+		assertTrue(tryFromOtherThread(locks.writeLock("a.com")));
+	}
+
+	@Test
+	public void concurrentWritersAllSurviveRestart() throws Exception {
+		File directory = Fixtures.newDirectory("striped");
+		RecordingHandler handler = new RecordingHandler();
+		try {
+			File file = new File(directory, "jar.ser");
+			final PersistentCookieStore store = builder(
+					new JournalingCookieStoreSerializer(file, DIRECT), handler)
+					.lockStripes(8).build();
+			final int threads = 8;
+			final CountDownLatch start = new CountDownLatch(1);
+			ExecutorService pool = Executors.newFixedThreadPool(threads + 1);
+			List<Future<Void>> futures = new ArrayList<Future<Void>>();
+			for (int t = 0; t < threads; t++) {
+				final String domain = "d" + t + ".com";
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						start.await();
+						for (int i = 0; i < 200; i++) {
+							store.add(uri("http://" + domain + "/"),
+									cookie("c" + (i % 20), "v" + i, domain));
+							if (i % 7 == 0) {
+								store.remove(uri("http://" + domain + "/"),
+										cookie("c" + (i % 20), "", domain));
+							}
+						}
+						return null;
+					}
+				}));
+			}
+			futures.add(pool.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int i = 0; i < 200; i++) {
+						store.getCookies();
+						store.get(uri("http://d" + (i % threads) + ".com/"));
+					}
+					return null;
+				}
+			}));
+			start.countDown();
+			for (Future<Void> future : futures) {
+				future.get(30, TimeUnit.SECONDS);
+			}
+			pool.shutdown();
+			store.close();
+
+			PersistentCookieStore restarted = builder(
+					new JournalingCookieStoreSerializer(file, DIRECT), handler)
+					.lockStripes(8).build();
+			assertEquals(describe(store.getCookies()),
+					describe(restarted.getCookies()));
+			// Each name's last write is one of the final 20, and removed
+			// after it when its index is a multiple of 7
+			int kept = 20;
+			for (int i = 180; i < 200; i++) {
+				if (i % 7 == 0) {
+					kept--;
+				}
+			}
+			assertEquals(threads * kept, restarted.getCookies().size());
+			assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+		} finally {
+			Fixtures.delete(directory);
+		}
+	}
+
+	private static boolean tryFromOtherThread(final Lock lock) {
+		final boolean[] acquired = new boolean[1];
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				acquired[0] = lock.tryLock();
+				if (acquired[0]) {
+					lock.unlock();
+				}
+			}
+		};
+		thread.start();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			throw new AssertionError(e);
+		}
+		return acquired[0];
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.vo.TierStats;
+
+/**
+ * Spilling cold domains through the store
+ * 
+ * @author brianmelton
+ * 
+ */
+public class TieringTest {
+
+	private static final int DOMAINS = 40, PER_DOMAIN = 5;
+	private static final long BUDGET = 4096;
+
+	private final RecordingHandler handler = new RecordingHandler();
+	private final MemoryPersister persister = new MemoryPersister();
+	private File directory;
+	private File segmentFile;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Fixtures.newDirectory("tiers");
+		segmentFile = new File(directory, "cold.seg");
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(directory);
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	private PersistentCookieStore tiered() {
+		return builder(persister, handler).tierColdDomains(segmentFile, BUDGET)
+				.build();
+	}
+
+	private static URI uriOf(int domain) {
+		return uri("http://d" + domain + ".com/");
+	}
+
+	private static void fill(PersistentCookieStore store) {
+		for (int d = 0; d < DOMAINS; d++) {
+			for (int i = 0; i < PER_DOMAIN; i++) {
+				store.add(uriOf(d), cookie("c" + i, "value" + d, "d" + d
+						+ ".com"));
+			}
+		}
+	}
+
+	@Test
+	public void coldDomainsSpillAndComeBack() {
+		PersistentCookieStore store = tiered();
+		fill(store);
+		TierStats stats = store.getTierStats();
+		assertTrue(stats.toString(), stats.getSpillCount() > 0);
+		assertTrue(stats.toString(), stats.getResidentBytes() <= BUDGET);
+		assertTrue(stats.toString(), stats.getResidentDomains() < DOMAINS);
+		assertTrue(segmentFile.length() > 0);
+
+		// The first domains went cold first
+		long misses = stats.getMissCount();
+		assertEquals(PER_DOMAIN, store.get(uriOf(0)).size());
+		assertTrue(store.getTierStats().getMissCount() > misses);
+		long hits = store.getTierStats().getHitCount();
+		assertEquals(PER_DOMAIN, store.get(uriOf(0)).size());
+		assertTrue(store.getTierStats().getHitCount() > hits);
+	}
+
+	@Test
+	public void wholeJarIncludesColdDomains() {
+		PersistentCookieStore store = tiered();
+		fill(store);
+		assertEquals(DOMAINS * PER_DOMAIN, store.getCookies().size());
+		assertEquals(DOMAINS * PER_DOMAIN, Fixtures.count(persister.restore()));
+	}
+
+	@Test
+	public void coldCookiesCanBeReplacedAndRemoved() {
+		PersistentCookieStore store = tiered();
+		fill(store);
+		store.add(uriOf(1), cookie("c0", "new", "d1.com"));
+		assertTrue(store.remove(uriOf(2), cookie("c0", "", "d2.com")));
+		Set<String> d1 = describe(store.get(uriOf(1)));
+		assertTrue(d1.toString(), d1.contains("c0=new@d1.com"));
+		assertEquals(PER_DOMAIN, d1.size());
+		assertEquals(PER_DOMAIN - 1, store.get(uriOf(2)).size());
+		assertEquals(DOMAINS * PER_DOMAIN - 1, store.getCookies().size());
+	}
+
+	@Test
+	public void removeAllEmptiesBothTiers() {
+		PersistentCookieStore store = tiered();
+		fill(store);
+		store.removeAll();
+		assertTrue(store.getCookies().isEmpty());
+		assertTrue(store.get(uriOf(0)).isEmpty());
+		assertEquals(0, Fixtures.count(persister.restore()));
+	}
+
+	@Test
+	public void restartRestoresEveryTier() {
+		PersistentCookieStore store = tiered();
+		fill(store);
+		store.remove(uriOf(3), cookie("c1", "", "d3.com"));
+		Set<String> expected = describe(store.getCookies());
+		store.close();
+
+		PersistentCookieStore restarted = tiered();
+		assertEquals(expected, describe(restarted.getCookies()));
+		assertTrue(restarted.getTierStats().getResidentBytes() <= BUDGET);
+	}
+
+	@Test
+	public void untieredStoreHasNoStats() {
+		assertNull(builder(persister, handler).build().getTierStats());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void tieringRefusesLimits() {
+		builder(persister, handler).tierColdDomains(segmentFile, BUDGET)
+				.limitCookies(100, 10).build();
+	}
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs;
+
+import static com.brianjmelton.apcs.Fixtures.builder;
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.count;
+import static com.brianjmelton.apcs.Fixtures.uri;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+
+/**
+ * Write-behind persistence through {@link PersistentCookieStore}
+ * 
+ * @author brianmelton
+ * 
+ */
+public class WriteBehindWriterTest {
+
+	private static final URI URI = uri("http://example.com/");
+
+	private final MemoryPersister persister = new MemoryPersister();
+	private final RecordingHandler handler = new RecordingHandler();
+	private ExecutorService executor;
+
+	@After
+	public void tearDown() {
+		if (null != executor) {
+			executor.shutdownNow();
+		}
+		assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+	}
+
+	@Test
+	public void burstIsWrittenOnce() throws Exception {
+		executor = Executors.newSingleThreadExecutor();
+		PersistentCookieStore store = builder(persister, handler)
+				.writeBehind(executor, 200, 5000).build();
+		int before = persister.writes.get();
+		for (int i = 0; i < 50; i++) {
+			store.add(URI, cookie("c" + i, "v", "example.com"));
+		}
+		assertEquals(before, persister.writes.get());
+		store.flush();
+		assertEquals(before + 1, persister.writes.get());
+		assertEquals(50, count(persister.restore()));
+	}
+
+	@Test
+	public void windowElapsesWithoutFlush() throws Exception {
+		executor = Executors.newSingleThreadExecutor();
+		PersistentCookieStore store = builder(persister, handler)
+				.writeBehind(executor, 50, 1000).build();
+		store.add(URI, cookie("a", "1", "example.com"));
+		waitForCount(1);
+	}
+
+	@Test
+	public void scheduledExecutorDebounces() throws Exception {
+		ScheduledExecutorService scheduler = Executors
+				.newSingleThreadScheduledExecutor();
+		executor = scheduler;
+		PersistentCookieStore store = builder(persister, handler)
+				.writeBehind(scheduler, 50, 1000).build();
+		for (int i = 0; i < 10; i++) {
+			store.add(URI, cookie("c" + i, "v", "example.com"));
+		}
+		waitForCount(10);
+	}
+
+	@Test
+	public void callerRunsExecutorDoesNotWaitOutTheWindow() throws Exception {
+		Executor callerRuns = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+		PersistentCookieStore store = builder(persister, handler)
+				.writeBehind(callerRuns, 5000, 10000).build();
+		long start = System.nanoTime();
+		store.add(URI, cookie("a", "1", "example.com"));
+		long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime()
+				- start);
+		assertTrue("add blocked for " + elapsedMillis + " ms",
+				elapsedMillis < 2500);
+		assertEquals(1, count(persister.restore()));
+	}
+
+	@Test
+	public void rejectingExecutorPersistsSynchronously() throws Exception {
+		Executor rejecting = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				throw new RejectedExecutionException();
+			}
+		};
+		PersistentCookieStore store = builder(persister, handler)
+				.writeBehind(rejecting, 100, 1000).build();
+		store.add(URI, cookie("a", "1", "example.com"));
+		assertEquals(1, count(persister.restore()));
+		store.add(URI, cookie("b", "2", "example.com"));
+		assertEquals(2, count(persister.restore()));
+	}
+
+	@Test
+	public void closeWritesPendingChanges() throws Exception {
+		executor = Executors.newSingleThreadExecutor();
+		PersistentCookieStore store = builder(persister, handler)
+				.writeBehind(executor, 10000, 20000).build();
+		store.add(URI, cookie("a", "1", "example.com"));
+		store.close();
+		assertEquals(1, count(persister.restore()));
+	}
+
+	private void waitForCount(int expected) throws Exception {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (count(persister.restore()) != expected
+				&& System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, count(persister.restore()));
+	}
+
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link BasicCookieStoreSerializer}, writing atomically and syncing every
+ * write
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class BasicCookieStoreSerializerTest extends PersisterContractTest {
+
+    @Override
+    protected Persister create(File directory) {
+        return new BasicCookieStoreSerializer(new File(directory, "jar.ser"),
+                SyncPolicy.always());
+    }
+
+    @Test
+    public void leavesNoTempFileBehind() throws Exception {
+        Persister persister = open();
+        Map<URI, List<SerializableCookie>> jar = sampleJar();
+        persister.persist(jar);
+        persister.persist(jar);
+        assertEquals(1, directory.list().length);
+        assertEquals(detail(jar), detail(open().restore()));
+    }
+
+}
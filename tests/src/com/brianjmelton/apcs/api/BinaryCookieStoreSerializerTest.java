@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link BinaryCookieStoreSerializer}
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class BinaryCookieStoreSerializerTest extends PersisterContractTest {
+
+    @Override
+    protected Persister create(File directory) {
+        return new BinaryCookieStoreSerializer(new File(directory, "jar.bin"));
+    }
+
+    @Test
+    public void streamedRestoreMatchesMapRestore() throws Exception {
+        Persister persister = open();
+        persister.persist(sampleJar());
+        final Map<URI, List<SerializableCookie>> streamed = new HashMap<URI, List<SerializableCookie>>();
+        ((StreamingPersister) open()).restore(new CookieVisitor() {
+            @Override
+            public void visit(URI uri, SerializableCookie cookie) {
+                List<SerializableCookie> list = streamed.get(uri);
+                if (null == list) {
+                    list = new ArrayList<SerializableCookie>();
+                    streamed.put(uri, list);
+                }
+                list.add(cookie);
+            }
+        });
+        assertEquals(detail(open().restore()), detail(streamed));
+    }
+
+    @Test
+    public void reportsSnapshotSize() throws Exception {
+        BinaryCookieStoreSerializer persister = (BinaryCookieStoreSerializer) open();
+        persister.persist(sampleJar());
+        assertEquals(new File(directory, "jar.bin").length(),
+                persister.getLastSnapshotBytes());
+    }
+
+    @Test
+    public void garbageFailsRestore() throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(directory,
+                "jar.bin"));
+        try {
+            out.write("not a cookie jar".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        try {
+            open().restore();
+            fail();
+        } catch (PersistenceException expected) {
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * {@link DirectoryJarStorage}, and the jars it opens
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class DirectoryJarStorageTest extends PersisterContractTest {
+
+    @Override
+    protected Persister create(File directory) {
+        return new DirectoryJarStorage(new File(directory, "jars"))
+                .open("user@example.com");
+    }
+
+    @Test
+    public void fileNamesAreEscaped() {
+        DirectoryJarStorage storage = new DirectoryJarStorage(directory);
+        assertEquals("plain-name_1.jar", storage.getFile("plain-name_1")
+                .getName());
+        assertEquals("a%2Fb.jar", storage.getFile("a/b").getName());
+        assertEquals("%C3%A9.jar", storage.getFile("\u00e9").getName());
+        assertEquals("%25.jar", storage.getFile("%").getName());
+        assertEquals(directory, storage.getFile("x").getParentFile());
+    }
+
+    @Test
+    public void namespacesNeverShareFile() {
+        DirectoryJarStorage storage = new DirectoryJarStorage(directory);
+        String[] namespaces = { "a", "A", "a.b", "a_b", "a%2Eb", "a/b",
+                "a\\b", "..", ".", "", " ", "\u00e9", "%C3%A9" };
+        Set<String> names = new HashSet<String>();
+        for (String namespace : namespaces) {
+            String name = storage.getFile(namespace).getName();
+            assertFalse(name, name.contains("/") || name.contains("\\"));
+            names.add(name);
+        }
+        assertEquals(namespaces.length, names.size());
+    }
+
+    @Test
+    public void createsDirectoryOnOpen() throws Exception {
+        File jars = new File(directory, "nested/jars");
+        Persister persister = new DirectoryJarStorage(jars).open("x");
+        persister.persist(sampleJar());
+        assertEquals(1, jars.list().length);
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Collapsing copies of one cookie listed under several URIs on restore
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class DropDuplicatesTest {
+
+    private static final URI A = URI.create("http://a.com");
+    private static final URI B = URI.create("http://b.com");
+    private static final URI WWW = URI.create("http://www.a.com");
+
+    @Test
+    public void keepsCopyExpiringLast() {
+        Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+        put(cookies, A, cookie("sid", "old", "a.com", 1000L));
+        put(cookies, WWW, cookie("sid", "new", "a.com", 2000L));
+        JournalingCookieStoreSerializer.dropDuplicates(cookies);
+        assertEquals(1, cookies.size());
+        assertEquals("new", cookies.get(WWW).get(0).getValue());
+    }
+
+    @Test
+    public void keepsHostOnlyCookiesOfEachHost() {
+        Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+        put(cookies, A, cookie("sid", "1", null, 1000L));
+        put(cookies, B, cookie("sid", "2", null, 2000L));
+        JournalingCookieStoreSerializer.dropDuplicates(cookies);
+        assertEquals("1", cookies.get(A).get(0).getValue());
+        assertEquals("2", cookies.get(B).get(0).getValue());
+    }
+
+    private static void put(Map<URI, List<SerializableCookie>> cookies,
+            URI uri, SerializableCookie cookie) {
+        List<SerializableCookie> list = cookies.get(uri);
+        if (null == list) {
+            list = new ArrayList<SerializableCookie>();
+            cookies.put(uri, list);
+        }
+        list.add(cookie);
+    }
+
+    private static SerializableCookie cookie(String name, String value,
+            String domain, long expiresAt) {
+        SerializableCookie cookie = new SerializableCookie(name, value);
+        cookie.setDomain(domain);
+        cookie.setPath("/");
+        cookie.setExpiresAt(expiresAt);
+        return cookie;
+    }
+
+}
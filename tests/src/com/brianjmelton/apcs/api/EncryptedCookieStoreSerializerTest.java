@@ -0,0 +1,184 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.exception.PersistenceException;
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link EncryptedCookieStoreSerializer}, and what encryption adds to the
+ * contract
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class EncryptedCookieStoreSerializerTest extends PersisterContractTest {
+
+    private File file;
+
+    @Override
+    protected Persister create(File directory) {
+        return new EncryptedCookieStoreSerializer(new File(directory,
+                "jar.bin"), new Keys(1));
+    }
+
+    @Before
+    public void setUpFile() {
+        file = new File(directory, "jar.bin");
+    }
+
+    @Test
+    public void supportedOnThisJvm() {
+        assertTrue(EncryptedCookieStoreSerializer.isSupported());
+    }
+
+    @Test
+    public void journalSurvivesRestart() throws Exception {
+        EncryptedCookieStoreSerializer persister = new EncryptedCookieStoreSerializer(
+                file, new Keys(1));
+        persister.restore();
+        persister.persist(jar("a", "1"));
+        persister.append(Arrays.asList(CookieDelta.add(A, cookie("b", "2")),
+                CookieDelta.remove(A, cookie("a", "1"))));
+        Map<URI, List<SerializableCookie>> restored = new EncryptedCookieStoreSerializer(
+                file, new Keys(1)).restore();
+        assertEquals(describe(jar("b", "2")), describe(restored));
+    }
+
+    @Test
+    public void rotatedKeyReencrypts() throws Exception {
+        Keys keys = new Keys(1);
+        EncryptedCookieStoreSerializer persister = new EncryptedCookieStoreSerializer(
+                file, keys);
+        persister.restore();
+        persister.persist(jar("a", "1"));
+        keys.current = 2;
+        persister.persist(jar("a", "2"));
+        keys.retired = 1;
+        assertEquals(describe(jar("a", "2")),
+                describe(new EncryptedCookieStoreSerializer(file, keys)
+                        .restore()));
+    }
+
+    @Test
+    public void wrongKeyFailsRestore() throws Exception {
+        EncryptedCookieStoreSerializer persister = new EncryptedCookieStoreSerializer(
+                file, new Keys(1));
+        persister.restore();
+        persister.persist(jar("a", "1"));
+        Keys other = new Keys(1);
+        other.seed = 7;
+        try {
+            new EncryptedCookieStoreSerializer(file, other).restore();
+            fail();
+        } catch (PersistenceException expected) {
+        }
+    }
+
+    @Test
+    public void tamperedSnapshotFailsRestore() throws Exception {
+        EncryptedCookieStoreSerializer persister = new EncryptedCookieStoreSerializer(
+                file, new Keys(1));
+        persister.restore();
+        persister.persist(jar("a", "1"));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 20);
+            int b = raf.read();
+            raf.seek(raf.length() - 20);
+            raf.write(b ^ 1);
+        } finally {
+            raf.close();
+        }
+        try {
+            new EncryptedCookieStoreSerializer(file, new Keys(1)).restore();
+            fail();
+        } catch (PersistenceException expected) {
+        }
+    }
+
+    private static Map<URI, List<SerializableCookie>> jar(String name,
+            String value) {
+        List<SerializableCookie> list = new ArrayList<SerializableCookie>();
+        list.add(cookie(name, value));
+        Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+        cookies.put(A, list);
+        return cookies;
+    }
+
+    private static SerializableCookie cookie(String name, String value) {
+        SerializableCookie cookie = new SerializableCookie(name, value);
+        cookie.setDomain("a.com");
+        cookie.setPath("/");
+        cookie.setMaxAge(-1);
+        cookie.setExpiresAt(SerializableCookie.NEVER_EXPIRES);
+        return cookie;
+    }
+
+    /**
+     * Derives a key from its id, and refuses ids retired
+     */
+    static final class Keys implements KeyProvider {
+
+        volatile int current;
+        volatile int retired;
+        volatile int seed;
+
+        Keys(int current) {
+            this.current = current;
+        }
+
+        @Override
+        public int getCurrentKeyId() {
+            return current;
+        }
+
+        @Override
+        public SecretKey getKey(int keyId) throws PersistenceException {
+            if (keyId <= retired) {
+                throw new PersistenceException(new IllegalStateException(
+                        "Key " + keyId + " is retired"));
+            }
+            byte[] key = new byte[16];
+            Arrays.fill(key, (byte) (keyId * 31 + seed));
+            return new SecretKeySpec(key, "AES");
+        }
+    }
+
+}
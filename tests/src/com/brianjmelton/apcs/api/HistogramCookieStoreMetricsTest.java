@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.URI;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures;
+import com.brianjmelton.apcs.Fixtures.MemoryPersister;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.PersistentCookieStore;
+import com.brianjmelton.apcs.api.CookieStoreMetrics.Operation;
+
+/**
+ * {@link HistogramCookieStoreMetrics}, and what a store reports to it
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class HistogramCookieStoreMetricsTest {
+
+    private static final URI A = URI.create("http://a.com/");
+
+    @Test
+    public void countsAndTotals() {
+        HistogramCookieStoreMetrics metrics = new HistogramCookieStoreMetrics();
+        metrics.onOperation(Operation.GET, 100);
+        metrics.onOperation(Operation.GET, 300);
+        metrics.onOperation(Operation.ADD, -5);
+        assertEquals(2, metrics.getCount(Operation.GET));
+        assertEquals(400, metrics.getTotalNanos(Operation.GET));
+        assertEquals(1, metrics.getCount(Operation.ADD));
+        assertEquals(0, metrics.getTotalNanos(Operation.ADD));
+        assertEquals(0, metrics.getCount(Operation.RESTORE));
+    }
+
+    @Test
+    public void percentilesWithinFactorOfTwo() {
+        HistogramCookieStoreMetrics metrics = new HistogramCookieStoreMetrics();
+        for (int i = 1; i <= 1000; i++) {
+            metrics.onOperation(Operation.GET, i * 1000L);
+        }
+        assertWithinFactorOfTwo(500000, metrics.getPercentileNanos(
+                Operation.GET, 50));
+        assertWithinFactorOfTwo(990000, metrics.getPercentileNanos(
+                Operation.GET, 99));
+        assertWithinFactorOfTwo(1000, metrics.getPercentileNanos(
+                Operation.GET, 0));
+        assertEquals(0, metrics.getPercentileNanos(Operation.ADD, 50));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void percentileOutOfRange() {
+        new HistogramCookieStoreMetrics().getPercentileNanos(Operation.GET,
+                101);
+    }
+
+    @Test
+    public void longestDurationsFallInLastBucket() {
+        HistogramCookieStoreMetrics metrics = new HistogramCookieStoreMetrics();
+        metrics.onOperation(Operation.PERSIST, Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE,
+                metrics.getPercentileNanos(Operation.PERSIST, 100));
+    }
+
+    @Test
+    public void storeReportsOperationsAndSizes() {
+        HistogramCookieStoreMetrics metrics = new HistogramCookieStoreMetrics();
+        RecordingHandler handler = new RecordingHandler();
+        MemoryPersister persister = new MemoryPersister();
+        PersistentCookieStore store = Fixtures.builder(persister, handler)
+                .reportMetricsTo(metrics).build();
+        assertEquals(1, metrics.getCount(Operation.RESTORE));
+
+        store.add(A, Fixtures.cookie("a", "1", "a.com"));
+        store.add(A, Fixtures.cookie("b", "1", "a.com"));
+        store.get(A);
+        store.remove(A, Fixtures.cookie("a", "", "a.com"));
+        assertEquals(2, metrics.getCount(Operation.ADD));
+        assertEquals(1, metrics.getCount(Operation.GET));
+        assertEquals(1, metrics.getCount(Operation.REMOVE));
+        assertEquals(3, metrics.getCount(Operation.PERSIST));
+        assertEquals(1, metrics.getCookieCount());
+        assertEquals(1, metrics.getUriCount());
+        assertEquals(-1, metrics.getSnapshotBytes());
+        assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+    }
+
+    @Test
+    public void sizedPersisterReportsSnapshotBytes() throws Exception {
+        HistogramCookieStoreMetrics metrics = new HistogramCookieStoreMetrics();
+        RecordingHandler handler = new RecordingHandler();
+        File directory = Fixtures.newDirectory("metrics");
+        try {
+            File file = new File(directory, "jar.bin");
+            PersistentCookieStore store = Fixtures.builder(
+                    new BinaryCookieStoreSerializer(file), handler)
+                    .reportMetricsTo(metrics).build();
+            store.add(A, Fixtures.cookie("a", "1", "a.com"));
+            assertTrue(metrics.getSnapshotBytes() > 0);
+            assertEquals(file.length(), metrics.getSnapshotBytes());
+        } finally {
+            Fixtures.delete(directory);
+        }
+        assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+    }
+
+    private static void assertWithinFactorOfTwo(long expected, long actual) {
+        assertTrue(actual + " vs " + expected, actual >= expected / 2
+                && actual <= expected * 2);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link JournalingCookieStoreSerializer} over a
+ * {@link BasicCookieStoreSerializer} base
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class JournalingCookieStoreSerializerTest extends PersisterContractTest {
+
+    @Override
+    protected Persister create(File directory) {
+        return new JournalingCookieStoreSerializer(new File(directory,
+                "jar.ser"), DIRECT);
+    }
+
+    @Test
+    public void tornRecordIsDropped() throws Exception {
+        JournalingCookieStoreSerializer persister = (JournalingCookieStoreSerializer) open();
+        persister.restore();
+        List<CookieDelta> deltas = new ArrayList<CookieDelta>();
+        deltas.add(CookieDelta.add(A, serializable("kept", "1", "a.com", 60)));
+        persister.append(deltas);
+        deltas.clear();
+        deltas.add(CookieDelta.add(A, serializable("torn", "2", "a.com", 60)));
+        persister.append(deltas);
+
+        File journal = new File(directory, "jar.ser.journal");
+        RandomAccessFile raf = new RandomAccessFile(journal, "rw");
+        try {
+            raf.setLength(raf.length() - 3);
+        } finally {
+            raf.close();
+        }
+        Map<URI, List<SerializableCookie>> restored = open().restore();
+        assertEquals(1, restored.get(A).size());
+        assertEquals("kept", restored.get(A).get(0).getName());
+
+        // Appending after the torn record still replays
+        JournalingCookieStoreSerializer next = (JournalingCookieStoreSerializer) open();
+        next.restore();
+        deltas.clear();
+        deltas.add(CookieDelta.add(A, serializable("later", "3", "a.com", 60)));
+        next.append(deltas);
+        assertEquals(2, open().restore().get(A).size());
+    }
+
+    @Test
+    public void compactionFoldsJournalIntoBase() throws Exception {
+        File file = new File(directory, "jar.ser");
+        JournalingCookieStoreSerializer persister = new JournalingCookieStoreSerializer(
+                new BasicCookieStoreSerializer(file), new File(directory,
+                        "jar.ser.journal"), DIRECT, 512, 1000f);
+        persister.restore();
+        List<CookieDelta> deltas = new ArrayList<CookieDelta>();
+        for (int i = 0; i < 200; i++) {
+            deltas.clear();
+            deltas.add(CookieDelta.add(A, serializable("c" + (i % 20), "" + i,
+                    "a.com", 60)));
+            persister.append(deltas);
+        }
+        assertFalse(new File(directory, "jar.ser.journal.compacting").exists());
+        Map<URI, List<SerializableCookie>> base = new BasicCookieStoreSerializer(
+                file).restore();
+        assertFalse(null == base);
+        Map<URI, List<SerializableCookie>> restored = open().restore();
+        assertEquals(20, restored.get(A).size());
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link MappedCookieStoreSerializer}
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class MappedCookieStoreSerializerTest extends PersisterContractTest {
+
+    @Override
+    protected Persister create(File directory) {
+        return new MappedCookieStoreSerializer(new File(directory, "jar.map"));
+    }
+
+    @Test
+    public void restoredJarOutlivesLaterPersist() throws Exception {
+        Persister persister = open();
+        Map<URI, List<SerializableCookie>> jar = sampleJar();
+        persister.persist(jar);
+        Map<URI, List<SerializableCookie>> restored = open().restore();
+
+        Map<URI, List<SerializableCookie>> other = new HashMap<URI, List<SerializableCookie>>();
+        List<SerializableCookie> list = new ArrayList<SerializableCookie>();
+        list.add(serializable("other", "1", "b.org", 60));
+        other.put(B, list);
+        persister.persist(other);
+
+        // Decoded only now, from the mapping of the replaced file
+        assertEquals(detail(jar), detail(restored));
+        assertEquals(detail(other), detail(open().restore()));
+    }
+
+    @Test
+    public void reportsSnapshotSize() throws Exception {
+        MappedCookieStoreSerializer persister = (MappedCookieStoreSerializer) open();
+        persister.persist(sampleJar());
+        assertEquals(new File(directory, "jar.map").length(),
+                persister.getLastSnapshotBytes());
+    }
+
+}
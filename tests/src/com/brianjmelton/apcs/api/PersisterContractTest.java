@@ -0,0 +1,299 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.count;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.PersistentCookieStore;
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * What every {@link Persister} must do: give back what it was handed, on its
+ * own and behind a {@link PersistentCookieStore}, across restarts and with
+ * writers on several threads. Each persister's test extends this one.
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public abstract class PersisterContractTest {
+
+    static final URI A = URI.create("http://a.com");
+    static final URI WWW = URI.create("http://www.a.com");
+    static final URI B = URI.create("https://b.org");
+
+    static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    protected File directory;
+    protected final RecordingHandler handler = new RecordingHandler();
+    private final List<Persister> opened = new ArrayList<Persister>();
+
+    /**
+     * @return a persister keeping its files in the supplied directory, which
+     *         reads what the previous one opened on it left there
+     */
+    protected abstract Persister create(File directory) throws Exception;
+
+    @Before
+    public void setUpDirectory() throws Exception {
+        directory = Fixtures.newDirectory(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDownDirectory() throws Exception {
+        for (Persister persister : opened) {
+            if (persister instanceof Closeable) {
+                ((Closeable) persister).close();
+            }
+        }
+        Fixtures.delete(directory);
+        assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+    }
+
+    protected final Persister open() throws Exception {
+        Persister persister = create(directory);
+        opened.add(persister);
+        return persister;
+    }
+
+    protected final PersistentCookieStore openStore() throws Exception {
+        return Fixtures.builder(open(), handler).build();
+    }
+
+    @Test
+    public void freshPersisterRestoresNothing() throws Exception {
+        assertEquals(0, count(open().restore()));
+    }
+
+    @Test
+    public void roundTripKeepsEveryField() throws Exception {
+        Persister persister = open();
+        persister.restore();
+        Map<URI, List<SerializableCookie>> jar = sampleJar();
+        persister.persist(jar);
+        assertEquals(detail(jar), detail(open().restore()));
+    }
+
+    @Test
+    public void persistReplacesPreviousJar() throws Exception {
+        Persister persister = open();
+        persister.restore();
+        persister.persist(sampleJar());
+        Map<URI, List<SerializableCookie>> smaller = new HashMap<URI, List<SerializableCookie>>();
+        smaller.put(B, new ArrayList<SerializableCookie>(Arrays
+                .asList(serializable("only", "1", "b.org", 60))));
+        persister.persist(smaller);
+        assertEquals(detail(smaller), detail(open().restore()));
+    }
+
+    @Test
+    public void appendedChangesReplayOnRestart() throws Exception {
+        Persister persister = open();
+        if (!(persister instanceof IncrementalPersister)) {
+            return;
+        }
+        persister.restore();
+        Map<URI, List<SerializableCookie>> expected = sampleJar();
+        persister.persist(expected);
+        expected = copy(expected);
+        List<CookieDelta> deltas = Arrays.asList(
+                CookieDelta.add(A, serializable("added", "1", "a.com", 60)),
+                CookieDelta.add(WWW, serializable("sid", "2", "a.com", 60)),
+                CookieDelta.remove(B, serializable("pref", "x", "b.org", 60)));
+        ((IncrementalPersister) persister).append(deltas);
+        for (CookieDelta delta : deltas) {
+            delta.applyTo(expected);
+        }
+        assertEquals(detail(expected), detail(open().restore()));
+    }
+
+    @Test
+    public void clearReplaysOnRestart() throws Exception {
+        Persister persister = open();
+        if (!(persister instanceof IncrementalPersister)) {
+            return;
+        }
+        persister.restore();
+        persister.persist(sampleJar());
+        ((IncrementalPersister) persister).append(Arrays.asList(
+                CookieDelta.clear(),
+                CookieDelta.add(A, serializable("after", "1", "a.com", 60))));
+        Map<URI, List<SerializableCookie>> restored = open().restore();
+        assertEquals(1, count(restored));
+        assertEquals("after", restored.get(A).get(0).getName());
+    }
+
+    @Test
+    public void storeSurvivesRestart() throws Exception {
+        PersistentCookieStore store = openStore();
+        store.add(A, cookie("sid", "1", "a.com"));
+        store.add(WWW, cookie("www", "2", "www.a.com"));
+        store.add(B, cookie("pref", "3", "b.org"));
+        store.add(A, cookie("sid", "4", "a.com"));
+        store.remove(WWW, cookie("www", "2", "www.a.com"));
+        Set<String> expected = describe(store.getCookies());
+        store.close();
+        assertEquals(expected, describe(openStore().getCookies()));
+    }
+
+    @Test
+    public void removeAllSurvivesRestart() throws Exception {
+        PersistentCookieStore store = openStore();
+        store.add(A, cookie("sid", "1", "a.com"));
+        store.removeAll();
+        store.add(B, cookie("pref", "3", "b.org"));
+        store.close();
+        assertEquals(describe(store.getCookies()),
+                describe(openStore().getCookies()));
+    }
+
+    @Test
+    public void concurrentWritersAllSurviveRestart() throws Exception {
+        final PersistentCookieStore store = openStore();
+        final int threads = 4, perThread = 100;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++) {
+                        String domain = "h" + (i % 10) + ".com";
+                        URI uri = URI.create("http://" + domain);
+                        HttpCookie cookie = cookie("t" + thread + "c" + i,
+                                "v", domain);
+                        store.add(uri, cookie);
+                        if (i % 7 == 0) {
+                            store.remove(uri, cookie);
+                        }
+                    }
+                }
+            };
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        Set<String> expected = describe(store.getCookies());
+        store.close();
+        assertEquals(expected, describe(openStore().getCookies()));
+    }
+
+    static Map<URI, List<SerializableCookie>> sampleJar() {
+        Map<URI, List<SerializableCookie>> jar = new HashMap<URI, List<SerializableCookie>>();
+        List<SerializableCookie> a = new ArrayList<SerializableCookie>();
+        a.add(serializable("sid", "1", "a.com", 3600));
+        SerializableCookie hostOnly = serializable("host", "h", null, 60);
+        a.add(hostOnly);
+        jar.put(A, a);
+        List<SerializableCookie> b = new ArrayList<SerializableCookie>();
+        SerializableCookie secure = serializable("pref", "x", "b.org", 7200);
+        secure.setSecure(true);
+        secure.setPath("/account");
+        secure.setVersion(1);
+        secure.setComment("comment");
+        secure.setPortlist("443");
+        b.add(secure);
+        SerializableCookie session = serializable("session", "s", "b.org",
+                -1);
+        b.add(session);
+        jar.put(B, b);
+        return jar;
+    }
+
+    static SerializableCookie serializable(String name, String value,
+            String domain, long maxAge) {
+        SerializableCookie cookie = new SerializableCookie(name, value);
+        cookie.setDomain(domain);
+        cookie.setPath("/");
+        cookie.setMaxAge(maxAge);
+        cookie.setExpiresAt(SerializableCookie.expiresAt(maxAge,
+                System.currentTimeMillis()));
+        return cookie;
+    }
+
+    /**
+     * @return every persisted field of every cookie, by URI, sorted
+     */
+    static Set<String> detail(Map<URI, List<SerializableCookie>> cookies) {
+        Set<String> detail = new TreeSet<String>();
+        if (null != cookies) {
+            for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                    .entrySet()) {
+                for (SerializableCookie c : entry.getValue()) {
+                    detail.add(entry.getKey() + " " + c.getName() + "="
+                            + c.getValue() + " domain=" + c.getDomain()
+                            + " path=" + c.getPath() + " secure="
+                            + c.isSecure() + " version=" + c.getVersion()
+                            + " comment=" + c.getComment() + " ports="
+                            + c.getPortlist() + " maxAge=" + c.getMaxAge()
+                            + " expiresAt=" + c.getExpiresAt());
+                }
+            }
+        }
+        return detail;
+    }
+
+    static Map<URI, List<SerializableCookie>> copy(
+            Map<URI, List<SerializableCookie>> cookies) {
+        Map<URI, List<SerializableCookie>> copy = new HashMap<URI, List<SerializableCookie>>();
+        for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+                .entrySet()) {
+            copy.put(entry.getKey(),
+                    new ArrayList<SerializableCookie>(entry.getValue()));
+        }
+        return copy;
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link ShardedCookieStoreSerializer}, rewriting only the shards which
+ * changed
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class ShardedCookieStoreSerializerTest extends PersisterContractTest {
+
+    @Override
+    protected Persister create(File directory) {
+        return new ShardedCookieStoreSerializer(new File(directory, "shards"));
+    }
+
+    @Test
+    public void rewritesOnlyChangedShard() throws Exception {
+        Persister persister = open();
+        persister.restore();
+        Map<URI, List<SerializableCookie>> jar = sampleJar();
+        persister.persist(jar);
+        File shards = new File(directory, "shards");
+        for (File file : shards.listFiles()) {
+            file.setLastModified(0);
+        }
+
+        jar.put(B, new ArrayList<SerializableCookie>(Arrays
+                .asList(serializable("changed", "1", "b.org", 60))));
+        persister.persist(jar);
+        List<String> rewritten = new ArrayList<String>();
+        for (File file : shards.listFiles()) {
+            if (0 != file.lastModified()) {
+                rewritten.add(file.getName());
+            }
+        }
+        // The changed shard, then the manifest
+        assertEquals(rewritten.toString(), 2, rewritten.size());
+        assertEquals(detail(jar), detail(open().restore()));
+    }
+
+    @Test
+    public void unchangedJarWritesNothing() throws Exception {
+        Persister persister = open();
+        Map<URI, List<SerializableCookie>> jar = sampleJar();
+        persister.persist(jar);
+        File shards = new File(directory, "shards");
+        for (File file : shards.listFiles()) {
+            file.setLastModified(0);
+        }
+
+        // A restarted persister fingerprints what it restored
+        Persister restarted = open();
+        restarted.persist(restarted.restore());
+        for (File file : shards.listFiles()) {
+            assertEquals(file.getName(), 0, file.lastModified());
+        }
+    }
+
+    @Test
+    public void shardCountCanChangeBetweenRuns() throws Exception {
+        File shards = new File(directory, "shards");
+        Persister persister = new ShardedCookieStoreSerializer(shards, 7,
+                null, SyncPolicy.never());
+        Map<URI, List<SerializableCookie>> jar = sampleJar();
+        persister.persist(jar);
+
+        Persister resharded = new ShardedCookieStoreSerializer(shards, 1,
+                null, SyncPolicy.never());
+        Map<URI, List<SerializableCookie>> restored = resharded.restore();
+        assertEquals(detail(jar), detail(restored));
+        resharded.persist(restored);
+        // The old shards are gone, leaving the manifest and the one shard
+        assertEquals(Arrays.asList(shards.list()).toString(), 2,
+                shards.list().length);
+        assertEquals(detail(jar), detail(open().restore()));
+    }
+
+    @Test
+    public void restoresShardsInParallel() throws Exception {
+        Map<URI, List<SerializableCookie>> jar = sampleJar();
+        open().persist(jar);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            Persister parallel = new ShardedCookieStoreSerializer(new File(
+                    directory, "shards"),
+                    ShardedCookieStoreSerializer.DEFAULT_SHARD_COUNT, pool,
+                    SyncPolicy.never());
+            assertEquals(detail(jar), detail(parallel.restore()));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.api;
+
+import static com.brianjmelton.apcs.Fixtures.cookie;
+import static com.brianjmelton.apcs.Fixtures.count;
+import static com.brianjmelton.apcs.Fixtures.describe;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures;
+import com.brianjmelton.apcs.Fixtures.RecordingHandler;
+import com.brianjmelton.apcs.PersistentCookieStore;
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link SharedCookieStoreSerializer}, with the other process played by a
+ * second instance in this one, or by a child JVM
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class SharedCookieStoreSerializerTest extends PersisterContractTest {
+
+    @Override
+    protected Persister create(File directory) {
+        return new SharedCookieStoreSerializer(new File(directory, "jar.ser"));
+    }
+
+    private SharedCookieStoreSerializer openShared(long maxLogBytes) {
+        File file = new File(directory, "jar.ser");
+        return new SharedCookieStoreSerializer(new BasicCookieStoreSerializer(
+                file), new File(directory, "jar.ser.log"), 0, maxLogBytes);
+    }
+
+    @Test
+    public void appendsReachOtherInstance() throws Exception {
+        SharedCookieStoreSerializer first = openShared(1 << 20);
+        SharedCookieStoreSerializer second = openShared(1 << 20);
+        first.restore();
+        second.restore();
+        assertTrue(second.pollChanges().isEmpty());
+
+        first.append(Arrays.asList(CookieDelta.add(A,
+                serializable("sid", "1", "a.com", 60))));
+        assertTrue(second.hasChanges());
+        List<CookieDelta> changes = second.pollChanges();
+        assertEquals(1, changes.size());
+        assertEquals("sid", changes.get(0).getCookie().getName());
+        assertTrue(second.pollChanges().isEmpty());
+        // Its own appends are not polled back
+        assertTrue(first.pollChanges().isEmpty());
+    }
+
+    @Test
+    public void persistReachesOtherInstanceAsClear() throws Exception {
+        SharedCookieStoreSerializer first = openShared(1 << 20);
+        SharedCookieStoreSerializer second = openShared(1 << 20);
+        first.restore();
+        second.restore();
+        Map<URI, List<SerializableCookie>> jar = sampleJar();
+        first.persist(jar);
+
+        Map<URI, List<SerializableCookie>> seen = new HashMap<URI, List<SerializableCookie>>();
+        List<CookieDelta> changes = second.pollChanges();
+        assertEquals(CookieDelta.Type.CLEAR, changes.get(0).getType());
+        JournalingCookieStoreSerializer.applyAll(seen, changes);
+        assertEquals(detail(jar), detail(seen));
+    }
+
+    @Test
+    public void laggingInstanceCatchesUpAcrossCompactions() throws Exception {
+        SharedCookieStoreSerializer writer = openShared(256);
+        SharedCookieStoreSerializer reader = openShared(256);
+        Map<URI, List<SerializableCookie>> seen = reader.restore();
+        Map<URI, List<SerializableCookie>> expected = writer.restore();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 30; i++) {
+                List<CookieDelta> deltas = Arrays.asList(CookieDelta.add(A,
+                        serializable("c" + (i % 12), round + "." + i,
+                                "a.com", 60)));
+                writer.append(deltas);
+                JournalingCookieStoreSerializer.applyAll(expected, deltas);
+            }
+            JournalingCookieStoreSerializer.applyAll(seen,
+                    reader.pollChanges());
+            assertEquals(detail(expected), detail(seen));
+        }
+        assertEquals(detail(expected), detail(openShared(256).restore()));
+    }
+
+    @Test
+    public void storesShareChanges() throws Exception {
+        RecordingHandler handler = new RecordingHandler();
+        PersistentCookieStore first = Fixtures.builder(openShared(1 << 20),
+                handler).build();
+        PersistentCookieStore second = Fixtures.builder(openShared(1 << 20),
+                handler).build();
+        first.add(A, cookie("sid", "1", "a.com"));
+        assertEquals(1, second.get(A).size());
+        second.add(A, cookie("pref", "2", "a.com"));
+        second.remove(A, cookie("sid", "", "a.com"));
+        assertEquals(describe(second.getCookies()),
+                describe(first.getCookies()));
+        first.removeAll();
+        assertTrue(second.getCookies().isEmpty());
+        assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+    }
+
+    @Test
+    public void childProcessWritesAlongside() throws Exception {
+        final int perProcess = 300;
+        RecordingHandler handler = new RecordingHandler();
+        PersistentCookieStore store = Fixtures.builder(openShared(4096),
+                handler).build();
+        Process child = new ProcessBuilder(new File(
+                System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+                System.getProperty("java.class.path"),
+                ChildWriter.class.getName(), directory.getPath(),
+                Integer.toString(perProcess)).redirectErrorStream(true)
+                .start();
+        for (int i = 0; i < perProcess; i++) {
+            store.add(A, cookie("parent" + i, "v", "a.com"));
+        }
+        String output = readAll(child);
+        assertEquals(output, 0, child.waitFor());
+
+        assertEquals(2 * perProcess, store.getCookies().size());
+        store.close();
+        Map<URI, List<SerializableCookie>> restored = openShared(4096)
+                .restore();
+        assertEquals(2 * perProcess, count(restored));
+        assertTrue(handler.failures.toString(), handler.failures.isEmpty());
+    }
+
+    private static String readAll(Process process) throws Exception {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                process.getInputStream()));
+        try {
+            StringBuilder output = new StringBuilder();
+            for (String line; null != (line = in.readLine());) {
+                output.append(line).append('\n');
+            }
+            return output.toString();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Run in a child JVM: adds cookies to the jar in the supplied directory,
+     * exiting with 1 if any write failed
+     */
+    public static final class ChildWriter {
+
+        public static void main(String[] args) throws Exception {
+            File directory = new File(args[0]);
+            int count = Integer.parseInt(args[1]);
+            RecordingHandler handler = new RecordingHandler();
+            PersistentCookieStore store = Fixtures.builder(
+                    new SharedCookieStoreSerializer(
+                            new BasicCookieStoreSerializer(new File(directory,
+                                    "jar.ser")), new File(directory,
+                                    "jar.ser.log"), 0, 4096), handler).build();
+            for (int i = 0; i < count; i++) {
+                store.add(A, cookie("child" + i, "v", "a.com"));
+            }
+            store.close();
+            if (!handler.failures.isEmpty()) {
+                handler.failures.get(0).printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.brianjmelton.apcs.Fixtures;
+import com.brianjmelton.apcs.api.SyncPolicy;
+
+/**
+ * Replacing files with {@link AtomicFile}
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class AtomicFileTest {
+
+	private File directory;
+	private File file;
+
+	@Before
+	public void setUp() throws Exception {
+		directory = Fixtures.newDirectory("atomic");
+		file = new File(directory, "jar");
+	}
+
+	@After
+	public void tearDown() {
+		Fixtures.delete(directory);
+	}
+
+	@Test
+	public void finishedWriteReplacesContents() throws Exception {
+		AtomicFile atomicFile = new AtomicFile(file, SyncPolicy.always());
+		assertEquals(-1, atomicFile.getLastWriteLength());
+		write(atomicFile, "first");
+		write(atomicFile, "second!");
+		assertEquals("second!", read());
+		assertEquals(7, atomicFile.getLastWriteLength());
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void failedWriteKeepsPreviousContents() throws Exception {
+		AtomicFile atomicFile = new AtomicFile(file, SyncPolicy.never());
+		write(atomicFile, "kept");
+		OutputStream out = atomicFile.startWrite();
+		out.write("torn".getBytes("UTF-8"));
+		atomicFile.failWrite(out);
+		assertEquals("kept", read());
+		assertEquals(1, directory.list().length);
+	}
+
+	@Test
+	public void syncWithoutWritesDoesNothing() throws Exception {
+		AtomicFile atomicFile = new AtomicFile(file,
+				SyncPolicy.everyMillis(60000));
+		atomicFile.sync();
+		assertFalse(file.exists());
+		write(atomicFile, "unsynced");
+		atomicFile.sync();
+		assertEquals("unsynced", read());
+	}
+
+	@Test
+	public void policiesDecideWhenToSync() {
+		assertTrue(SyncPolicy.always().shouldSync(1, 0));
+		assertFalse(SyncPolicy.never().shouldSync(1000, 1000000));
+		assertFalse(SyncPolicy.everyWrites(3).shouldSync(2, 1000000));
+		assertTrue(SyncPolicy.everyWrites(3).shouldSync(3, 0));
+		assertFalse(SyncPolicy.everyMillis(100).shouldSync(1000, 99));
+		assertTrue(SyncPolicy.everyMillis(100).shouldSync(1, 100));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void everyWritesMustBePositive() {
+		SyncPolicy.everyWrites(0);
+	}
+
+	private static void write(AtomicFile atomicFile, String contents)
+			throws IOException {
+		OutputStream out = atomicFile.startWrite();
+		try {
+			out.write(contents.getBytes("UTF-8"));
+			atomicFile.finishWrite(out);
+		} catch (IOException e) {
+			atomicFile.failWrite(out);
+			throw e;
+		}
+	}
+
+	private String read() throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		try {
+			return IOUtils.toString(in, "UTF-8");
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.api.CookieVisitor;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * Encoding and decoding with {@link BinaryCookieCodec}
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class BinaryCookieCodecTest {
+
+	private static final URI A = URI.create("http://a.com");
+
+	@Test
+	public void roundTripKeepsEveryField() throws Exception {
+		SerializableCookie cookie = new SerializableCookie("n\u00e4me",
+				"v\u00e4lue \u2603");
+		cookie.setDomain(".a.com");
+		cookie.setPath("/p");
+		cookie.setPortlist("80,8080");
+		cookie.setComment("comment");
+		cookie.setCommentURL("http://a.com/why");
+		cookie.setVersion(1);
+		cookie.setSecure(true);
+		cookie.setDiscard(true);
+		cookie.setMaxAge(3600);
+		cookie.setExpiresAt(System.currentTimeMillis() + 3600000L);
+		SerializableCookie bare = new SerializableCookie("bare", null);
+		bare.setMaxAge(-1);
+		bare.setExpiresAt(SerializableCookie.NEVER_EXPIRES);
+
+		SerializableCookie read = roundTrip(jar(cookie, bare)).get(A).get(0);
+		assertEquals(cookie.getName(), read.getName());
+		assertEquals(cookie.getValue(), read.getValue());
+		assertEquals(cookie.getDomain(), read.getDomain());
+		assertEquals(cookie.getPath(), read.getPath());
+		assertEquals(cookie.getPortlist(), read.getPortlist());
+		assertEquals(cookie.getComment(), read.getComment());
+		assertEquals(cookie.getCommentURL(), read.getCommentURL());
+		assertEquals(1, read.getVersion());
+		assertTrue(read.isSecure());
+		assertTrue(read.getDiscard());
+		assertEquals(3600, read.getMaxAge());
+		assertEquals(cookie.getExpiresAt(), read.getExpiresAt());
+
+		SerializableCookie readBare = roundTrip(jar(cookie, bare)).get(A)
+				.get(1);
+		assertNull(readBare.getValue());
+		assertNull(readBare.getDomain());
+		assertFalse(readBare.isSecure());
+		assertEquals(SerializableCookie.NEVER_EXPIRES,
+				readBare.getExpiresAt());
+	}
+
+	@Test
+	public void expiredCookiesAreSkipped() throws Exception {
+		SerializableCookie gone = cookie("gone", 60);
+		gone.setExpiresAt(System.currentTimeMillis() - 1);
+		SerializableCookie flagged = cookie("flagged", 60);
+		flagged.setExpired(true);
+		SerializableCookie zero = cookie("zero", 0);
+		SerializableCookie kept = cookie("kept", 60);
+		Map<URI, List<SerializableCookie>> read = roundTrip(jar(gone,
+				flagged, zero, kept));
+		assertEquals(1, read.get(A).size());
+		assertEquals("kept", read.get(A).get(0).getName());
+	}
+
+	@Test
+	public void repeatedStringsAreWrittenOnce() throws Exception {
+		List<SerializableCookie> list = new ArrayList<SerializableCookie>();
+		for (int i = 0; i < 100; i++) {
+			SerializableCookie cookie = cookie("c" + i, 60);
+			cookie.setDomain("a-rather-long-domain-name.example.com");
+			list.add(cookie);
+		}
+		Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		cookies.put(A, list);
+		assertTrue(encode(cookies).length < 100 * 36);
+	}
+
+	@Test
+	public void readsVersionWithoutExpiryInstant() throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(BinaryCookieCodec.MAGIC);
+		out.writeByte(1);
+		BinaryCookieCodec.writeVarInt(out, 2);
+		out.writeUTF("old");
+		out.writeUTF("a.com");
+		BinaryCookieCodec.writeVarInt(out, 1);
+		out.writeUTF(A.toString());
+		BinaryCookieCodec.writeVarInt(out, 1);
+		out.writeByte(0);
+		BinaryCookieCodec.writeVarLong(out, 120); // max age 60, zig-zagged
+		BinaryCookieCodec.writeVarInt(out, 0);
+		BinaryCookieCodec.writeVarInt(out, 1);
+		BinaryCookieCodec.writeVarInt(out, 2);
+		for (int i = 0; i < 4; i++) {
+			BinaryCookieCodec.writeVarInt(out, 0);
+		}
+		SerializableCookieIO.writeNullableString(out, "v");
+
+		Map<URI, List<SerializableCookie>> read = BinaryCookieCodec
+				.read(new DataInputStream(new ByteArrayInputStream(bytes
+						.toByteArray())));
+		SerializableCookie cookie = read.get(A).get(0);
+		assertEquals("old", cookie.getName());
+		assertEquals("a.com", cookie.getDomain());
+		assertEquals(60, cookie.getMaxAge());
+		assertEquals(0, cookie.getExpiresAt());
+	}
+
+	@Test
+	public void rejectsUnknownData() throws Exception {
+		byte[] bytes = encode(jar(cookie("a", 60)));
+		bytes[4] = 99;
+		try {
+			decode(bytes);
+			fail();
+		} catch (IOException expected) {
+		}
+		bytes[0] = 0;
+		try {
+			decode(bytes);
+			fail();
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void varLongsRoundTrip() throws Exception {
+		Random random = new Random(1);
+		long[] values = new long[200];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = i < 4 ? new long[] { 0, 127, 128, -1 }[i] : random
+					.nextLong() >>> random.nextInt(64);
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (long value : values) {
+			BinaryCookieCodec.writeVarLong(out, value);
+		}
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		for (long value : values) {
+			assertEquals(value, BinaryCookieCodec.readVarLong(in));
+		}
+	}
+
+	@Test
+	public void streamingVisitsEachCookie() throws Exception {
+		final List<String> visited = new ArrayList<String>();
+		BinaryCookieCodec.read(new DataInputStream(new ByteArrayInputStream(
+				encode(jar(cookie("a", 60), cookie("b", 60))))),
+				new CookieVisitor() {
+					@Override
+					public void visit(URI uri, SerializableCookie cookie) {
+						visited.add(uri + " " + cookie.getName());
+					}
+				});
+		assertEquals(2, visited.size());
+		assertEquals("http://a.com a", visited.get(0));
+	}
+
+	private static Map<URI, List<SerializableCookie>> jar(
+			SerializableCookie... cookies) {
+		List<SerializableCookie> list = new ArrayList<SerializableCookie>();
+		for (SerializableCookie cookie : cookies) {
+			list.add(cookie);
+		}
+		Map<URI, List<SerializableCookie>> jar = new HashMap<URI, List<SerializableCookie>>();
+		jar.put(A, list);
+		return jar;
+	}
+
+	private static SerializableCookie cookie(String name, long maxAge) {
+		SerializableCookie cookie = new SerializableCookie(name, "v");
+		cookie.setDomain("a.com");
+		cookie.setPath("/");
+		cookie.setMaxAge(maxAge);
+		cookie.setExpiresAt(SerializableCookie.expiresAt(maxAge,
+				System.currentTimeMillis()));
+		return cookie;
+	}
+
+	private static Map<URI, List<SerializableCookie>> roundTrip(
+			Map<URI, List<SerializableCookie>> cookies) throws IOException {
+		return decode(encode(cookies));
+	}
+
+	private static byte[] encode(Map<URI, List<SerializableCookie>> cookies)
+			throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BinaryCookieCodec.write(new DataOutputStream(bytes), cookies);
+		return bytes.toByteArray();
+	}
+
+	private static Map<URI, List<SerializableCookie>> decode(byte[] bytes)
+			throws IOException {
+		return BinaryCookieCodec.read(new DataInputStream(
+				new ByteArrayInputStream(bytes)));
+	}
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.vo.CookieDelta;
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link CookieReplay} against {@link CookieDelta#applyTo(Map)}
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class CookieReplayTest {
+
+	@Test
+	public void matchesApplyingEachDelta() {
+		Random random = new Random(42);
+		for (int round = 0; round < 50; round++) {
+			Map<URI, List<SerializableCookie>> base = new HashMap<URI, List<SerializableCookie>>();
+			List<CookieDelta> deltas = new ArrayList<CookieDelta>();
+			for (int i = 0; i < 300; i++) {
+				CookieDelta delta = randomDelta(random, i);
+				if (i < 100 && CookieDelta.Type.CLEAR != delta.getType()) {
+					delta.applyTo(base);
+				} else {
+					deltas.add(delta);
+				}
+			}
+			Map<URI, List<SerializableCookie>> expected = copy(base);
+			for (CookieDelta delta : deltas) {
+				delta.applyTo(expected);
+			}
+			Map<URI, List<SerializableCookie>> actual = copy(base);
+			CookieReplay replay = new CookieReplay(actual);
+			for (CookieDelta delta : deltas) {
+				replay.apply(delta);
+			}
+			assertEquals(count(expected), replay.size());
+			assertEquals(describe(expected), describe(replay.finish()));
+		}
+	}
+
+	@Test
+	public void collapsesCopiesKeepingTheOneExpiringLast() {
+		Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		SerializableCookie older = cookie("sid", "old", "a.com");
+		older.setExpiresAt(1000L);
+		SerializableCookie newer = cookie("sid", "new", "a.com");
+		newer.setExpiresAt(2000L);
+		list(cookies, URI.create("http://www.a.com")).add(newer);
+		list(cookies, URI.create("http://a.com")).add(older);
+		new CookieReplay(cookies).finish();
+		assertEquals(1, cookies.size());
+		assertEquals("new", cookies.get(URI.create("http://www.a.com"))
+				.get(0).getValue());
+	}
+
+	@Test
+	public void replaysLargeJarInLinearTime() {
+		Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		for (int i = 0; i < 50000; i++) {
+			list(cookies, URI.create("http://h" + (i % 500) + ".com")).add(
+					cookie("c" + i, "v", "h" + (i % 500) + ".com"));
+		}
+		long start = System.nanoTime();
+		CookieReplay replay = new CookieReplay(cookies);
+		for (int i = 0; i < 50000; i++) {
+			URI uri = URI.create("http://h" + (i % 500) + ".com");
+			replay.apply(CookieDelta.add(uri,
+					cookie("c" + i, "w", "h" + (i % 500) + ".com")));
+		}
+		replay.finish();
+		long millis = (System.nanoTime() - start) / 1000000L;
+		assertEquals(50000, count(cookies));
+		// A scan per delta takes minutes here
+		assertTrue(millis + " ms", millis < 5000);
+	}
+
+	private static CookieDelta randomDelta(Random random, int i) {
+		int choice = random.nextInt(20);
+		if (0 == choice) {
+			return CookieDelta.clear();
+		}
+		int host = random.nextInt(4);
+		URI uri = URI.create("http://" + (random.nextBoolean() ? "www." : "")
+				+ "h" + host + ".com");
+		String domain = random.nextInt(3) == 0 ? null : "h" + host + ".com";
+		SerializableCookie cookie = cookie("c" + random.nextInt(6), "v" + i,
+				domain);
+		if (choice < 6) {
+			return CookieDelta.remove(uri, cookie);
+		}
+		cookie.setExpired(choice == 6);
+		return CookieDelta.add(uri, cookie);
+	}
+
+	private static SerializableCookie cookie(String name, String value,
+			String domain) {
+		SerializableCookie cookie = new SerializableCookie(name, value);
+		cookie.setDomain(domain);
+		cookie.setPath("/");
+		return cookie;
+	}
+
+	private static List<SerializableCookie> list(
+			Map<URI, List<SerializableCookie>> cookies, URI uri) {
+		List<SerializableCookie> list = cookies.get(uri);
+		if (null == list) {
+			list = new ArrayList<SerializableCookie>();
+			cookies.put(uri, list);
+		}
+		return list;
+	}
+
+	private static Map<URI, List<SerializableCookie>> copy(
+			Map<URI, List<SerializableCookie>> cookies) {
+		Map<URI, List<SerializableCookie>> copy = new HashMap<URI, List<SerializableCookie>>();
+		for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+				.entrySet()) {
+			copy.put(entry.getKey(), new ArrayList<SerializableCookie>(entry
+					.getValue()));
+		}
+		return copy;
+	}
+
+	private static int count(Map<URI, List<SerializableCookie>> cookies) {
+		int count = 0;
+		for (List<SerializableCookie> list : cookies.values()) {
+			count += list.size();
+		}
+		return count;
+	}
+
+	private static Set<String> describe(
+			Map<URI, List<SerializableCookie>> cookies) {
+		Set<String> described = new TreeSet<String>();
+		for (Map.Entry<URI, List<SerializableCookie>> entry : cookies
+				.entrySet()) {
+			for (SerializableCookie cookie : entry.getValue()) {
+				described.add(entry.getKey() + " " + cookie.getName() + "@"
+						+ cookie.getDomain() + "=" + cookie.getValue());
+			}
+		}
+		return described;
+	}
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link HashTrieMap} against {@link HashMap}, and its snapshots
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class HashTrieMapTest {
+
+	@Test
+	public void matchesHashMap() {
+		Random random = new Random(7);
+		for (int round = 0; round < 20; round++) {
+			// Few distinct hashes, so that keys collide at every depth
+			int hashes = round % 2 == 0 ? 64 : 1 << 20;
+			Map<Key, Integer> expected = new HashMap<Key, Integer>();
+			HashTrieMap<Key, Integer> map = HashTrieMap.empty();
+			for (int i = 0; i < 5000; i++) {
+				Key key = new Key(random.nextInt(2000), random.nextInt(hashes));
+				if (random.nextInt(3) == 0) {
+					expected.remove(key);
+					map = map.minus(key);
+				} else {
+					expected.put(key, i);
+					map = map.plus(key, i);
+				}
+				if (i % 500 == 0) {
+					assertSameContents(expected, map);
+				}
+			}
+			assertSameContents(expected, map);
+			for (Key key : new ArrayList<Key>(expected.keySet())) {
+				map = map.minus(key);
+			}
+			assertTrue(map.isEmpty());
+			assertSame(HashTrieMap.empty(), map);
+		}
+	}
+
+	@Test
+	public void snapshotsDoNotChange() {
+		HashTrieMap<Key, Integer> map = HashTrieMap.empty();
+		List<HashTrieMap<Key, Integer>> versions = new ArrayList<HashTrieMap<Key, Integer>>();
+		for (int i = 0; i < 1000; i++) {
+			map = map.plus(new Key(i, i % 37), i);
+			versions.add(map);
+		}
+		for (int i = 0; i < 1000; i += 2) {
+			map = map.minus(new Key(i, i % 37)).plus(
+					new Key(i + 1, (i + 1) % 37), -i);
+		}
+		for (int v = 0; v < versions.size(); v++) {
+			HashTrieMap<Key, Integer> version = versions.get(v);
+			assertEquals(v + 1, version.size());
+			for (int i = 0; i <= v; i++) {
+				assertEquals(Integer.valueOf(i),
+						version.get(new Key(i, i % 37)));
+			}
+			assertNull(version.get(new Key(v + 1, (v + 1) % 37)));
+		}
+		assertEquals(500, map.size());
+	}
+
+	@Test
+	public void unchangedUpdatesReturnSameMap() {
+		Key key = new Key(1, 1);
+		Integer value = Integer.valueOf(1000);
+		HashTrieMap<Key, Integer> map = HashTrieMap.<Key, Integer> empty()
+				.plus(key, value);
+		assertSame(map, map.plus(key, value));
+		assertSame(map, map.minus(new Key(2, 1)));
+		assertSame(map, map.minus(new Key(2, 2)));
+		HashTrieMap<Key, Integer> empty = HashTrieMap.empty();
+		assertSame(empty, empty.minus(new Key(1, 1)));
+	}
+
+	@Test
+	public void replacingKeepsSize() {
+		HashTrieMap<Key, Integer> map = HashTrieMap.<Key, Integer> empty()
+				.plus(new Key(1, 1), 1).plus(new Key(1, 1), 2);
+		assertEquals(1, map.size());
+		assertEquals(Integer.valueOf(2), map.get(new Key(1, 1)));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullKeyRefused() {
+		HashTrieMap.<Key, Integer> empty().plus(null, 1);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void nullValueRefused() {
+		HashTrieMap.<Key, Integer> empty().plus(new Key(1, 1), null);
+	}
+
+	@Test
+	public void iteratorIsReadOnlyAndEnds() {
+		HashTrieMap<Key, Integer> map = HashTrieMap.<Key, Integer> empty()
+				.plus(new Key(1, 1), 1);
+		Iterator<Integer> it = map.values().iterator();
+		assertEquals(Integer.valueOf(1), it.next());
+		assertFalse(it.hasNext());
+		try {
+			it.remove();
+			throw new AssertionError();
+		} catch (UnsupportedOperationException expected) {
+		}
+		try {
+			it.next();
+			throw new AssertionError();
+		} catch (NoSuchElementException expected) {
+		}
+		assertFalse(HashTrieMap.empty().values().iterator().hasNext());
+	}
+
+	private static void assertSameContents(Map<Key, Integer> expected,
+			HashTrieMap<Key, Integer> map) {
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Key, Integer> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+			assertTrue(map.containsKey(entry.getKey()));
+		}
+		Map<Integer, Integer> counts = new HashMap<Integer, Integer>();
+		for (Integer value : expected.values()) {
+			Integer count = counts.get(value);
+			counts.put(value, null == count ? 1 : count + 1);
+		}
+		int seen = 0;
+		for (Integer value : map.values()) {
+			Integer count = counts.get(value);
+			assertTrue(null != count && count > 0);
+			counts.put(value, count - 1);
+			seen++;
+		}
+		assertEquals(expected.size(), seen);
+	}
+
+	/**
+	 * A key with a chosen hash code, so tests can make keys collide
+	 */
+	private static final class Key {
+
+		final int id, hash;
+
+		Key(int id, int hash) {
+			this.id = id;
+			this.hash = hash;
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof Key && ((Key) o).id == id
+					&& ((Key) o).hash == hash;
+		}
+
+		@Override
+		public String toString() {
+			return id + "#" + hash;
+		}
+	}
+
+}
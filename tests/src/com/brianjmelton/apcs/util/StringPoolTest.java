@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.HttpCookie;
+
+import org.junit.Test;
+
+import com.brianjmelton.apcs.vo.SerializableCookie;
+
+/**
+ * {@link StringPool}, and cookies restored through it
+ * 
+ * @author brianmelton
+ * @since July 2014
+ */
+public class StringPoolTest {
+
+	@Test
+	public void equalStringsShareOneInstance() {
+		StringPool pool = new StringPool();
+		String first = new String("example.com");
+		String second = new String("example.com");
+		assertNotSame(first, second);
+		assertSame(first, pool.canonicalize(first));
+		assertSame(first, pool.canonicalize(second));
+		assertEquals(1, pool.size());
+		assertNull(pool.canonicalize(null));
+	}
+
+	@Test
+	public void poolsAreIndependent() {
+		String first = new String("/");
+		String second = new String("/");
+		new StringPool().canonicalize(first);
+		assertSame(second, new StringPool().canonicalize(second));
+	}
+
+	@Test
+	public void unreferencedStringsDropOut() throws Exception {
+		StringPool pool = new StringPool();
+		for (int i = 0; i < 1000; i++) {
+			pool.canonicalize("domain" + i + ".com");
+		}
+		// Collection can't be forced, only asked for
+		for (int i = 0; i < 50 && 0 != pool.size(); i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertEquals(0, pool.size());
+	}
+
+	@Test
+	public void restoredCookiesShareStrings() {
+		StringPool pool = new StringPool();
+		long now = System.currentTimeMillis();
+		HttpCookie first = SerializableHttpCookieAdapter.deserialize(
+				serializable("sid", "example.com"), now, pool);
+		HttpCookie second = SerializableHttpCookieAdapter.deserialize(
+				serializable("sid", "example.com"), now, pool);
+		assertSame(first.getName(), second.getName());
+		assertSame(first.getDomain(), second.getDomain());
+		assertSame(first.getPath(), second.getPath());
+
+		HttpCookie unpooled = SerializableHttpCookieAdapter.deserialize(
+				serializable("sid", "example.com"), now);
+		assertNotSame(first.getDomain(), unpooled.getDomain());
+		assertEquals(first.getDomain(), unpooled.getDomain());
+	}
+
+	private static SerializableCookie serializable(String name, String domain) {
+		// Fresh strings, as a decoder would produce
+		SerializableCookie cookie = new SerializableCookie(new String(name),
+				"1");
+		cookie.setDomain(new String(domain));
+		cookie.setPath(new String("/"));
+		cookie.setMaxAge(-1);
+		cookie.setExpiresAt(SerializableCookie.NEVER_EXPIRES);
+		return cookie;
+	}
+
+}
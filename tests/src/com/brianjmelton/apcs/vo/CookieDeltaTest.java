@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014 Brian Melton
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.brianjmelton.apcs.vo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Replaying {@link CookieDelta}s onto a persisted cookie map
+ * 
+ * @author brianmelton
+ * @since July 2014
+ * 
+ */
+public class CookieDeltaTest {
+
+	private static final URI A = URI.create("http://a.com");
+	private static final URI B = URI.create("http://b.com");
+	private static final URI WWW = URI.create("http://www.a.com");
+
+	@Test
+	public void identityIgnoresCaseOfNameAndDomain() {
+		assertEquals(CookieDelta.identityOf(A, cookie("SID", "1", "A.com")),
+				CookieDelta.identityOf(WWW, cookie("sid", "2", "a.com")));
+	}
+
+	@Test
+	public void identityOfHostOnlyCookieIsPerHost() {
+		assertFalse(CookieDelta.identityOf(A, cookie("sid", "1", null))
+				.equals(CookieDelta.identityOf(B, cookie("sid", "1", null))));
+		assertFalse(CookieDelta.identityOf(A, cookie("sid", "1", null))
+				.equals(CookieDelta.identityOf(A, cookie("sid", "1", "a.com"))));
+	}
+
+	@Test
+	public void addReplacesCopyUnderAnotherURI() {
+		Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		CookieDelta.add(A, cookie("sid", "1", "a.com")).applyTo(cookies);
+		CookieDelta.add(WWW, cookie("sid", "2", "a.com")).applyTo(cookies);
+		assertNull(cookies.get(A));
+		assertEquals(1, cookies.get(WWW).size());
+		assertEquals("2", cookies.get(WWW).get(0).getValue());
+	}
+
+	@Test
+	public void hostOnlyCookiesOfTwoHostsAreKept() {
+		Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		CookieDelta.add(A, cookie("sid", "1", null)).applyTo(cookies);
+		CookieDelta.add(B, cookie("sid", "2", null)).applyTo(cookies);
+		assertEquals("1", cookies.get(A).get(0).getValue());
+		assertEquals("2", cookies.get(B).get(0).getValue());
+		CookieDelta.remove(A, cookie("sid", "1", null)).applyTo(cookies);
+		assertNull(cookies.get(A));
+		assertEquals(1, cookies.get(B).size());
+	}
+
+	@Test
+	public void expiredAddRemoves() {
+		Map<URI, List<SerializableCookie>> cookies = new HashMap<URI, List<SerializableCookie>>();
+		CookieDelta.add(A, cookie("sid", "1", "a.com")).applyTo(cookies);
+		SerializableCookie expired = cookie("sid", "", "a.com");
+		expired.setExpired(true);
+		CookieDelta.add(A, expired).applyTo(cookies);
+		assertTrue(cookies.isEmpty());
+	}
+
+	@Test
+	public void replayIsIdempotent() {
+		CookieDelta[] deltas = {
+				CookieDelta.add(A, cookie("a", "1", "a.com")),
+				CookieDelta.add(B, cookie("b", "1", "b.com")),
+				CookieDelta.remove(A, cookie("a", "1", "a.com")),
+				CookieDelta.clear(),
+				CookieDelta.add(B, cookie("c", "1", "b.com")) };
+		Map<URI, List<SerializableCookie>> once = new HashMap<URI, List<SerializableCookie>>();
+		Map<URI, List<SerializableCookie>> twice = new HashMap<URI, List<SerializableCookie>>();
+		for (CookieDelta delta : deltas) {
+			delta.applyTo(once);
+			delta.applyTo(twice);
+		}
+		for (CookieDelta delta : deltas) {
+			delta.applyTo(twice);
+		}
+		assertEquals(1, once.get(B).size());
+		assertEquals(1, twice.get(B).size());
+		assertEquals("c", twice.get(B).get(0).getName());
+	}
+
+	static SerializableCookie cookie(String name, String value, String domain) {
+		SerializableCookie cookie = new SerializableCookie(name, value);
+		cookie.setDomain(domain);
+		cookie.setPath("/");
+		return cookie;
+	}
+
+}